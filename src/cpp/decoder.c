@@ -61,47 +61,23 @@ static void jffmpeg_printBuf(unsigned char *buf, int length) {
 /*
  * Class:     net_sourceforge_jffmpeg_NativeDecoder
  * Method:    open_codec
- * Signature: (ILjava/lang/String;)Z
+ * Signature: (JLjava/lang/String;)Z
  */
 JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_open_1decoder
   (JNIEnv *env, jobject jffmpeg, jstring codec_name, jboolean rtp, jboolean setTruncated, jboolean yuv2rgb, jint depth, jint rMask, jint gMask, jint bMask, jint width, jint height)
 {
     FFMPEGWrapper *wrapper;    
     enum CodecID codec_required;
-    static int FFMPEG_init = 0;
-    jclass clazz;
     jfieldID fidPeer;
-    jint peerVal;
+    jlong peerVal;
     char * str;
     AVCodecContext * ctx;
 
-    if(!FFMPEG_init) {
-        /* must be called before using avcodec lib */
-        avcodec_init();
-
-        /* register only the codec you need to have smaller code */
-        register_avcodec(&h263_decoder);
-#if FFMPEG_VERSION_INT >= 0x409
-        register_avcodec(&mpeg1video_decoder);
-        register_avcodec(&mpeg2video_decoder);
-#else
-        register_avcodec(&mpeg_decoder);
-#endif
-        register_avcodec(&msmpeg4v1_decoder);
-        register_avcodec(&msmpeg4v2_decoder);
-        register_avcodec(&msmpeg4v3_decoder);
-        register_avcodec(&mpeg4_decoder);
-        register_avcodec(&wmv1_decoder);
-        register_avcodec(&wmv2_decoder);
-        register_avcodec(&mjpeg_decoder);
-
-        FFMPEG_init = 1;
-    }
+    jffmpeg_init();
 
     // Only perform the following section if the "peer" variable is zero
-    clazz = (*env)->GetObjectClass(env, jffmpeg);
-    fidPeer = (*env)->GetFieldID(env, clazz, "peer", "I");
-    peerVal = (*env)->GetIntField(env, jffmpeg, fidPeer);
+    fidPeer = jffmpeg_field(env, jffmpeg, jffmpeg_decoder_peer, "peer", "J");
+    peerVal = (*env)->GetLongField(env, jffmpeg, fidPeer);
     if (peerVal != 0)
         return (jboolean) 1;
     
@@ -115,7 +91,7 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecod
     memset(wrapper,0,sizeof(FFMPEGWrapper));
 
     // Set the "peer" variable in java class
-    (*env)->SetIntField(env, jffmpeg, fidPeer, (jint)wrapper);
+    (*env)->SetLongField(env, jffmpeg, fidPeer, WRAPPER_TO_PEER(wrapper));
 
     // Find matching ffmpeg codec using the codec_name passed in
     str = (*env)->GetStringUTFChars(env, codec_name, 0);
@@ -170,7 +146,7 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecod
         ctx->flags &= ~CODEC_FLAG_RFC2190;
 
     /* open it */
-    if (avcodec_open(wrapper->codec_context, wrapper->codec) < 0) {
+    if (jffmpeg_open_codec(wrapper->codec_context, wrapper->codec) < 0) {
         fprintf(stderr, "could not open codec\n");
         return (jboolean) 0;
     }    
@@ -193,19 +169,18 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecod
 /*
  * Class:     net_sourceforge_jffmpeg_NativeDecoder
  * Method:    close_codec
- * Signature: (I)Z
+ * Signature: (J)Z
  */
 JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_close_1decoder
-  (JNIEnv *env, jobject jffmpeg, jint peer)
+  (JNIEnv *env, jobject jffmpeg, jlong peer)
 {
     FFMPEGWrapper *wrapper;
-    jclass clazz;
     jfieldID fidPeer;
 
     if (peer == 0)
         return (jboolean) 0;
 
-    wrapper = (FFMPEGWrapper *) peer;
+    wrapper = PEER_TO_WRAPPER(peer);
 
     if (wrapper->codec_context->codec != NULL)
         avcodec_close(wrapper->codec_context);
@@ -219,9 +194,8 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecod
     free(wrapper);
 
     // Unset the "peer" variable in java class
-    clazz = (*env)->GetObjectClass(env, jffmpeg);
-    fidPeer = (*env)->GetFieldID(env, clazz, "peer", "I");
-    (*env)->SetIntField(env, jffmpeg, fidPeer, (jint)0);
+    fidPeer = jffmpeg_field(env, jffmpeg, jffmpeg_decoder_peer, "peer", "J");
+    (*env)->SetLongField(env, jffmpeg, fidPeer, (jlong)0);
 
 #ifdef DEBUG
     printf("jffmpeg decoder closed\n");
@@ -231,59 +205,52 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecod
 }
 
 /*
- * Class:     net_sourceforge_jffmpeg_NativeDecoder
- * Method:    convert
- * Signature: (ILjava/lang/Object;JLjava/lang/Object;JJ)Z
+ * Decode from inBuf into outBuf, shared by the array, direct buffer and
+ * batch entry points.  Returns the number of bytes consumed, or -1 on
+ * error, and sets *gotPicture if a picture was decoded (and written to
+ * outBuf unless it is NULL).
+ *
+ * inBuf belongs to the caller and is never written to.
  */
-JNIEXPORT jint JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convert
-  (JNIEnv *env, jobject jffmpeg, jint peer,
-   jobject jinBuffer, jint inBufSize, jint inOffset, jint inLength,
-   jobject joutBuffer, jint outLength, jint eof)
+static int decode_frame(FFMPEGWrapper *wrapper,
+                        unsigned char *inBuf, int inBufSize, int inOffset, int inLength,
+                        unsigned char *outBuf, int eof, int *gotPicture)
 {
-    unsigned char *inBuf;
-    unsigned char *outBuf;
-    FFMPEGWrapper *wrapper;
-    AVCodecContext *ctx;
-    AVFrame *pict;
-    unsigned char *encBuf; // decode from this buffer
+    AVCodecContext *ctx = wrapper->codec_context;
+    AVFrame *pict = wrapper->picture;
+    unsigned char *encBuf = NULL; // decode from this buffer
     int encBufSize = inLength + INPUT_BUFFER_PADDING_SIZE;
     int got_picture, retval = 1;
     int numberOfBytesUsed;
 
-    if (peer == 0)
-        return (jboolean) 0;
-
-    wrapper = (FFMPEGWrapper *) peer;
-    ctx = wrapper->codec_context;
-    pict = wrapper->picture;
-
-    inBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) jinBuffer, NULL);
-
-    outBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) joutBuffer, NULL);
-
 #ifdef DEBUG
 	jffmpeg_printBuf(inBuf, inBufSize);
 #endif
 
     if (inLength > 0) {
-        if (inOffset + encBufSize > inBufSize) {
+        unsigned char *padding = inBuf + inOffset + inLength;
+
+        // Some decoders might overread/segfault if the first 23 bits of padding are not 0.
+        // Decode in place only if the padding is there and already zero: after a
+        // packet in a batch come the first bytes of the next one.
+        if (inOffset + encBufSize <= inBufSize
+            && padding[0] == 0 && padding[1] == 0 && padding[2] == 0) {
+            encBuf = inBuf + inOffset;
+        } else {
             // Use a temporary buffer to ensure correct padding for input.
             if (encBufSize > wrapper->copy_buf_size) {
+                void *copy_buf = realloc(wrapper->copy_buf, encBufSize);
 printf("reallocate copy_buf (%d bytes)\n", encBufSize);
+                if (copy_buf == NULL)
+                    return -1;
                 wrapper->copy_buf_size = encBufSize;
-                wrapper->copy_buf = realloc(wrapper->copy_buf, encBufSize);
+                wrapper->copy_buf = copy_buf;
             }
             encBuf = (unsigned char *) wrapper->copy_buf;
 //printf("copy input buffer (%d bytes)\n", (int)inLength);
             memcpy(encBuf, inBuf + inOffset, inLength);
-        } else {
-            encBuf = inBuf + inOffset;
+            memset(encBuf + inLength, 0, INPUT_BUFFER_PADDING_SIZE);
         }
-
-        // Some decoders might overread/segfault if the first 23 bits of padding are not 0.
-        encBuf[inLength] = 0;
-        encBuf[inLength+1] = 0;
-        encBuf[inLength+2] = 0;
     }
 
     if (wrapper->rtp_mode) {
@@ -301,6 +268,7 @@ printf("reallocate copy_buf (%d bytes)\n", encBufSize);
         numberOfBytesUsed = avcodec_decode_video(ctx, pict, &got_picture, encBuf, inLength);
     }
 
+    *gotPicture = got_picture;
     if (got_picture) {
         int width  = ctx->width;
         int height = ctx->height;
@@ -308,10 +276,15 @@ printf("reallocate copy_buf (%d bytes)\n", encBufSize);
 
         if (width == 0 || height == 0) {
             fprintf(stderr, "Image dimension is 0\n");
+            *gotPicture = 0;
             retval = 0;
             goto done;
         }
 
+        // The caller copies the picture itself (copy_planes)
+        if (outBuf == NULL)
+            goto done;
+
         if (wrapper->cnv != NULL) {
 
 #ifdef DEBUG
@@ -362,6 +335,106 @@ printf("copy plane%i, height %i, stride %i ->%i, 0x%.8x ->0x%.8x\n", i, h, src_s
         numberOfBytesUsed = 0;
 
 done:
+    return numberOfBytesUsed;
+}
+
+/*
+ * Input from a direct ByteBuffer, or else a pinned byte array
+ */
+static unsigned char *get_input(JNIEnv *env, jobject jinBuffer, int *inArray)
+{
+    unsigned char *inBuf = (unsigned char *) (*env)->GetDirectBufferAddress(env, jinBuffer);
+
+    *inArray = (inBuf == NULL);
+    if (inBuf == NULL) {
+        (*env)->ExceptionClear(env);
+        inBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) jinBuffer, NULL);
+    }
+    return inBuf;
+}
+
+static void release_input(JNIEnv *env, jobject jinBuffer, unsigned char *inBuf, int inArray)
+{
+    if (inArray)
+        (*env)->ReleaseByteArrayElements(env, (jbyteArray) jinBuffer, (jbyte *) inBuf, JNI_ABORT);
+}
+
+/*
+ * Indexes into the layout array of convertPlanes and copyPlanes
+ */
+#define LAYOUT_STRIDE_Y  0
+#define LAYOUT_STRIDE_UV 1
+#define LAYOUT_OFFSET_U  2
+#define LAYOUT_OFFSET_V  3
+#define LAYOUT_LENGTH    4
+#define LAYOUT_STATUS    5
+#define LAYOUT_WIDTH     6
+#define LAYOUT_HEIGHT    7
+
+/*
+ * Copy the last decoded YUV 4:2:0 picture into outBuf keeping the
+ * picture's own line sizes, so each plane is a single memcpy (or one
+ * for all three if libavcodec allocated them together).  The layout is
+ * always filled in; LAYOUT_STATUS is 1 if the picture was copied and -1
+ * if outBuf is smaller than LAYOUT_LENGTH.
+ */
+static void copy_planes(FFMPEGWrapper *wrapper, unsigned char *outBuf, jlong outCapacity, jint *layout)
+{
+    AVCodecContext *ctx = wrapper->codec_context;
+    AVFrame *pict = wrapper->picture;
+    int strideY  = pict->linesize[0];
+    int strideUV = pict->linesize[1];
+    int sizeY  = strideY * ctx->height;
+    int sizeUV = strideUV * (ctx->height >> 1);
+
+    layout[LAYOUT_STRIDE_Y]  = strideY;
+    layout[LAYOUT_STRIDE_UV] = strideUV;
+    layout[LAYOUT_OFFSET_U]  = sizeY;
+    layout[LAYOUT_OFFSET_V]  = sizeY + sizeUV;
+    layout[LAYOUT_LENGTH]    = sizeY + 2 * sizeUV;
+    layout[LAYOUT_WIDTH]     = ctx->width;
+    layout[LAYOUT_HEIGHT]    = ctx->height;
+
+    if (outBuf == NULL || outCapacity < sizeY + 2 * sizeUV) {
+        layout[LAYOUT_STATUS] = -1;
+        return;
+    }
+
+    if (pict->data[1] == pict->data[0] + sizeY
+        && pict->data[2] == pict->data[1] + sizeUV)
+        memcpy(outBuf, pict->data[0], sizeY + 2 * sizeUV);
+    else {
+        memcpy(outBuf, pict->data[0], sizeY);
+        memcpy(outBuf + sizeY, pict->data[1], sizeUV);
+        memcpy(outBuf + sizeY + sizeUV, pict->data[2], sizeUV);
+    }
+    layout[LAYOUT_STATUS] = 1;
+}
+
+/*
+ * Class:     net_sourceforge_jffmpeg_NativeDecoder
+ * Method:    convert
+ * Signature: (JLjava/lang/Object;IIILjava/lang/Object;II)I
+ */
+JNIEXPORT jint JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convert
+  (JNIEnv *env, jobject jffmpeg, jlong peer,
+   jobject jinBuffer, jint inBufSize, jint inOffset, jint inLength,
+   jobject joutBuffer, jint outLength, jint eof)
+{
+    unsigned char *inBuf;
+    unsigned char *outBuf;
+    int numberOfBytesUsed, gotPicture = 0;
+
+    if (peer == 0)
+        return (jboolean) 0;
+
+    inBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) jinBuffer, NULL);
+
+    outBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) joutBuffer, NULL);
+
+    numberOfBytesUsed = decode_frame(PEER_TO_WRAPPER(peer),
+                                     inBuf, inBufSize, inOffset, inLength, outBuf, eof, &gotPicture);
+
     (*env)->ReleaseByteArrayElements(env, (jbyteArray) joutBuffer, (jbyte *) outBuf, 0);
 
     (*env)->ReleaseByteArrayElements(env, (jbyteArray) jinBuffer, (jbyte *) inBuf, JNI_ABORT);
@@ -369,8 +442,167 @@ done:
     return (jint) numberOfBytesUsed;
 }
 
+/*
+ * Class:     net_sourceforge_jffmpeg_NativeDecoder
+ * Method:    convertDirect
+ * Signature: (JLjava/nio/ByteBuffer;IILjava/nio/ByteBuffer;II)I
+ *
+ * As convert, but the compressed input and the decoded picture are
+ * direct ByteBuffers, so neither is pinned or copied.
+ */
+JNIEXPORT jint JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convertDirect
+  (JNIEnv *env, jobject jffmpeg, jlong peer,
+   jobject jinBuffer, jint inOffset, jint inLength,
+   jobject joutBuffer, jint outLength, jint eof)
+{
+    unsigned char *inBuf;
+    unsigned char *outBuf;
+    jlong inBufSize;
+    int gotPicture = 0;
+
+    if (peer == 0)
+        return (jint) 0;
+
+    inBuf  = (unsigned char *) (*env)->GetDirectBufferAddress(env, jinBuffer);
+    outBuf = (unsigned char *) (*env)->GetDirectBufferAddress(env, joutBuffer);
+    inBufSize = (*env)->GetDirectBufferCapacity(env, jinBuffer);
+
+    // Not direct, or too small: the caller fails the buffer
+    if (inBuf == NULL || outBuf == NULL
+        || (*env)->GetDirectBufferCapacity(env, joutBuffer) < outLength)
+        return (jint) -1;
+
+    return (jint) decode_frame(PEER_TO_WRAPPER(peer),
+                               inBuf, (int) inBufSize, inOffset, inLength, outBuf, eof, &gotPicture);
+}
+
+/*
+ * Class:     net_sourceforge_jffmpeg_NativeDecoder
+ * Method:    convertBatch
+ * Signature: (JLjava/lang/Object;I[I[I[IILjava/nio/ByteBuffer;II[I[I)I
+ *
+ * Decode count packets from one input (byte array or direct ByteBuffer)
+ * in a single call.  Pictures go to successive outLength byte slots of
+ * the direct ring buffer from slot ringStart, wrapping at the end.
+ * consumed[i] is set to the bytes used from packet i, and pictures[i] to
+ * the ring slot of its picture or -1.  Returns the number of pictures,
+ * or -1 on error.
+ */
+JNIEXPORT jint JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convertBatch
+  (JNIEnv *env, jobject jffmpeg, jlong peer,
+   jobject jinBuffer, jint inBufSize, jintArray joffsets, jintArray jlengths, jintArray jeofs, jint count,
+   jobject jring, jint outLength, jint ringStart, jintArray jconsumed, jintArray jpictures)
+{
+    FFMPEGWrapper *wrapper;
+    unsigned char *inBuf, *ring;
+    jint *offsets, *lengths, *eofs, *consumed, *pictures;
+    int ringFrames, slot, i, numberOfPictures = 0;
+    int inArray = 0;
+
+    if (peer == 0 || outLength <= 0)
+        return (jint) -1;
+    wrapper = PEER_TO_WRAPPER(peer);
+
+    ring = (unsigned char *) (*env)->GetDirectBufferAddress(env, jring);
+    ringFrames = (int) ((*env)->GetDirectBufferCapacity(env, jring) / outLength);
+    if (ring == NULL || ringFrames <= 0)
+        return (jint) -1;
+
+    // One pin of the input for the whole batch
+    inBuf = get_input(env, jinBuffer, &inArray);
+
+    offsets  = (*env)->GetIntArrayElements(env, joffsets, NULL);
+    lengths  = (*env)->GetIntArrayElements(env, jlengths, NULL);
+    eofs     = (jeofs != NULL) ? (*env)->GetIntArrayElements(env, jeofs, NULL) : NULL;
+    consumed = (*env)->GetIntArrayElements(env, jconsumed, NULL);
+    pictures = (*env)->GetIntArrayElements(env, jpictures, NULL);
+
+    slot = ringStart % ringFrames;
+    for (i = 0; i < count; i++) {
+        int gotPicture = 0;
+
+        consumed[i] = decode_frame(wrapper, inBuf, inBufSize, offsets[i], lengths[i],
+                                   ring + slot * outLength, eofs ? eofs[i] : 1, &gotPicture);
+        if (gotPicture) {
+            pictures[i] = slot;
+            slot = (slot + 1) % ringFrames;
+            numberOfPictures++;
+        } else {
+            pictures[i] = -1;
+        }
+    }
+
+    (*env)->ReleaseIntArrayElements(env, jpictures, pictures, 0);
+    (*env)->ReleaseIntArrayElements(env, jconsumed, consumed, 0);
+    if (eofs != NULL)
+        (*env)->ReleaseIntArrayElements(env, jeofs, eofs, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, jlengths, lengths, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, joffsets, offsets, JNI_ABORT);
+    release_input(env, jinBuffer, inBuf, inArray);
+
+    return (jint) numberOfPictures;
+}
+
+/*
+ * Class:     net_sourceforge_jffmpeg_NativeDecoder
+ * Method:    convertPlanes
+ * Signature: (JLjava/lang/Object;IIILjava/nio/ByteBuffer;[II)I
+ *
+ * Decode YUV into a reusable direct buffer laid out with the strides of
+ * the decoded picture (see copy_planes).  Returns the bytes consumed.
+ */
+JNIEXPORT jint JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convertPlanes
+  (JNIEnv *env, jobject jffmpeg, jlong peer,
+   jobject jinBuffer, jint inBufSize, jint inOffset, jint inLength,
+   jobject joutBuffer, jintArray jlayout, jint eof)
+{
+    FFMPEGWrapper *wrapper;
+    unsigned char *inBuf;
+    jint layout[LAYOUT_HEIGHT + 1];
+    int numberOfBytesUsed, gotPicture = 0, inArray;
+
+    if (peer == 0)
+        return (jint) -1;
+    wrapper = PEER_TO_WRAPPER(peer);
+
+    inBuf = get_input(env, jinBuffer, &inArray);
+    numberOfBytesUsed = decode_frame(wrapper, inBuf, inBufSize, inOffset, inLength,
+                                     NULL, eof, &gotPicture);
+    release_input(env, jinBuffer, inBuf, inArray);
+
+    memset(layout, 0, sizeof(layout));
+    if (gotPicture)
+        copy_planes(wrapper,
+                    (unsigned char *) (*env)->GetDirectBufferAddress(env, joutBuffer),
+                    (*env)->GetDirectBufferCapacity(env, joutBuffer), layout);
+    (*env)->SetIntArrayRegion(env, jlayout, 0, LAYOUT_HEIGHT + 1, layout);
+
+    return (jint) numberOfBytesUsed;
+}
+
+/*
+ * Class:     net_sourceforge_jffmpeg_NativeDecoder
+ * Method:    copyPlanes
+ * Signature: (JLjava/nio/ByteBuffer;[I)V
+ *
+ * Copy the last picture again, after convertPlanes found the buffer too small
+ */
+JNIEXPORT void JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_copyPlanes
+  (JNIEnv *env, jobject jffmpeg, jlong peer, jobject joutBuffer, jintArray jlayout)
+{
+    jint layout[LAYOUT_HEIGHT + 1];
+
+    if (peer == 0)
+        return;
+
+    copy_planes(PEER_TO_WRAPPER(peer),
+                (unsigned char *) (*env)->GetDirectBufferAddress(env, joutBuffer),
+                (*env)->GetDirectBufferCapacity(env, joutBuffer), layout);
+    (*env)->SetIntArrayRegion(env, jlayout, 0, LAYOUT_HEIGHT + 1, layout);
+}
+
 JNIEXPORT jfloat JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_extractFrameRate
-  (JNIEnv * env, jobject ffmpeg, jint peer)
+  (JNIEnv * env, jobject ffmpeg, jlong peer)
 {
     FFMPEGWrapper *wrapper;
     AVCodecContext *ctx;
@@ -379,8 +611,19 @@ JNIEXPORT jfloat JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder
     if (peer == 0)
         return (jboolean) 0;
 
-    wrapper = (FFMPEGWrapper *) peer;
+    wrapper = PEER_TO_WRAPPER(peer);
     ctx = wrapper->codec_context;
     pict = wrapper->picture;
     return (jfloat)((float)ctx->frame_rate/(float)ctx->frame_rate_base);
 }
+
+/*
+ * Class:     net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder
+ * Method:    setConversionThreads
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_setConversionThreads
+  (JNIEnv *env, jclass clazz, jint threads)
+{
+    yuv2rgb_set_threads(threads);
+}
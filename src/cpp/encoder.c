@@ -48,36 +48,34 @@
 //#define FORCE_SPLIT
 
 /*
- * Creates an RTP chunk and adds it to the tail of the queue. Returns a
- * pointer to the chunk, or NULL if it could not be allocated.
+ * Adds an RTP chunk to the arena. Returns a pointer to the chunk, or NULL
+ * if the arena could not be grown.
  */
 static rtpChunk *jffmpeg_alloc_chunk(FFMPEGWrapper *wrapper, void *data, int data_size, void *hdr, int hdr_size)
 {
+    rtpChunk *newChunk;
+
 #ifdef DEBUG
     printf("jffmpeg_alloc_chunk(): creating packet with data_size %d and hdr_size %d\n", data_size, hdr_size);
 #endif
 
-    // Create a new chunk and add it to the end of the list.
-    rtpChunk *newChunk = (rtpChunk *) malloc(sizeof(rtpChunk));
-    if (newChunk == NULL) {
-        fprintf(stderr, "couldn't allocate another RTP chunk\n");
-        return NULL;
+    // Only a frame cut into more packets than ever before grows the arena.
+    if (wrapper->chunk_count == wrapper->chunk_alloc) {
+        int alloc = wrapper->chunk_alloc > 0 ? wrapper->chunk_alloc * 2 : RTP_CHUNK_ARENA;
+        rtpChunk *chunks = (rtpChunk *) realloc(wrapper->chunks, alloc * sizeof(rtpChunk));
+        if (chunks == NULL) {
+            fprintf(stderr, "couldn't allocate another RTP chunk\n");
+            return NULL;
+        }
+        wrapper->chunks = chunks;
+        wrapper->chunk_alloc = alloc;
     }
 
+    newChunk = &wrapper->chunks[wrapper->chunk_count++];
     newChunk->header   = hdr;
     newChunk->hdrSize  = hdr_size;
     newChunk->data     = data;
     newChunk->dataSize = data_size;
-    newChunk->next = NULL;
-
-    // If this is the first in the list, set the head and tail
-    // to point to the same space.
-    if (wrapper->tailChunks == NULL)
-        wrapper->headChunks = newChunk;
-    else
-        wrapper->tailChunks->next = newChunk;
-
-    wrapper->tailChunks = newChunk;
 
     return newChunk;
 }
@@ -126,25 +124,21 @@ static void jffmpeg_rtp_callback(void *data, int data_size,
 }
 
 static void jffmpeg_set_inputDone(JNIEnv *env, jobject jffmpeg, int done) {
-    jclass clazz;
     jfieldID fid;
     assert(env != NULL);
 
     // Fetch the "inputDone" variable and set it to the value of "done"
-    clazz= (*env)->GetObjectClass(env, jffmpeg);
-    fid = (*env)->GetFieldID(env, clazz, "inputDone", "Z");
+    fid = jffmpeg_field(env, jffmpeg, jffmpeg_encoder_inputDone, "inputDone", "Z");
     (*env)->SetBooleanField(env, jffmpeg, fid, (jboolean)done);
 }
 
 static void jffmpeg_set_outputSize(JNIEnv *env, jobject jffmpeg, int size) {
-    jclass clazz;
     jfieldID fid;
 
     assert(env != NULL);
 
     // Fetch the "outputSize" variable and set it to the value of "size"
-    clazz = (*env)->GetObjectClass(env, jffmpeg);
-    fid = (*env)->GetFieldID(env, clazz, "outputSize", "I");
+    fid = jffmpeg_field(env, jffmpeg, jffmpeg_encoder_outputSize, "outputSize", "I");
     (*env)->SetIntField(env, jffmpeg, fid, (jint)size);
 }
 
@@ -153,12 +147,12 @@ static void jffmpeg_processList(JNIEnv *env, jobject jffmpeg, FFMPEGWrapper *wra
     rtpChunk * temp;
 
 #ifdef DEBUG
-    printf ("jffmpeg_processList(): processing the head element in the queue\n");
+    printf ("jffmpeg_processList(): processing the next chunk of the frame\n");
 #endif
 
-    // Check the linked list. If there are chunks, pull them off the head and
-    // put them into the output buffer without bothering to do any encoding.
-    temp = wrapper->headChunks;
+    // Take the next chunk and put it into the output buffer without
+    // bothering to do any encoding.
+    temp = &wrapper->chunks[wrapper->chunk_next++];
 
     // Copy the header to outBuf
     memcpy(outBuf, temp->header, temp->hdrSize);
@@ -171,25 +165,23 @@ static void jffmpeg_processList(JNIEnv *env, jobject jffmpeg, FFMPEGWrapper *wra
     // Copy the data to outBuf
     memcpy(outBuf + temp->hdrSize, temp->data, dataSize);
 
-    // Advance the head pointer
-    wrapper->headChunks = temp->next;
-    if (wrapper->headChunks == NULL)
-        wrapper->tailChunks = NULL; // also set tail
-
-    // The input frame is consumed only if there are no more chunks to process.
-    jffmpeg_set_inputDone(env, jffmpeg, wrapper->headChunks == NULL ? 1 : 0);
-
     // The output frame is filled, set its size.
     jffmpeg_set_outputSize(env, jffmpeg, temp->hdrSize + dataSize);
 
-    // Free memory from old pointer
-    free(temp);
+    // The input frame is consumed only if there are no more chunks to
+    // process, and then the arena is free for the next frame.
+    if (wrapper->chunk_next == wrapper->chunk_count) {
+        wrapper->chunk_next = wrapper->chunk_count = 0;
+        jffmpeg_set_inputDone(env, jffmpeg, 1);
+    } else {
+        jffmpeg_set_inputDone(env, jffmpeg, 0);
+    }
 }
 
 /*
  * Class:     net_sourceforge_jffmpeg_NativeEncoder
  * Method:    open_encoder
- * Signature: (ILjava/lang/String;)Z
+ * Signature: (JLjava/lang/String;)Z
  */
 JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_open_1encoder
   (JNIEnv *env, jobject jffmpeg, jstring codec_name,
@@ -197,29 +189,17 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
    jfloat quality,  jboolean dynQuality, jint rtpPayloadSize, jboolean compatibility)
 {
     FFMPEGWrapper *wrapper;    
-    static int FFMPEG_init = 0;
     enum CodecID codec_required;
-    jclass clazz;
     jfieldID fidPeer;
-    jint peerVal;
+    jlong peerVal;
     const char * str;
     AVCodecContext * ctx;
 
-    if(!FFMPEG_init) {
-        /* must be called before using avcodec lib */
-        avcodec_init();
-
-        /* register only the codec you need to have smaller code */
-        register_avcodec(&h263_encoder);
-        register_avcodec(&h263p_encoder);
-
-        FFMPEG_init = 1;
-    }
+    jffmpeg_init();
 
     // Only perform the following section if the "peer" variable is zero
-    clazz = (*env)->GetObjectClass(env, jffmpeg);
-    fidPeer = (*env)->GetFieldID(env, clazz, "peer", "I");   
-    peerVal = (*env)->GetIntField(env, jffmpeg, fidPeer);
+    fidPeer = jffmpeg_field(env, jffmpeg, jffmpeg_encoder_peer, "peer", "J");   
+    peerVal = (*env)->GetLongField(env, jffmpeg, fidPeer);
     if (peerVal != 0)
         return (jboolean) 1;
     
@@ -233,7 +213,7 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
     memset(wrapper,0,sizeof(FFMPEGWrapper));
 
     // Set the "peer" variable in java class
-    (*env)->SetIntField(env, jffmpeg, fidPeer, (jint)wrapper);
+    (*env)->SetLongField(env, jffmpeg, fidPeer, WRAPPER_TO_PEER(wrapper));
 
     // Find matching ffmpeg codec using the codec_name passed in
     str = (*env)->GetStringUTFChars(env, codec_name, 0);
@@ -333,6 +313,11 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
         wrapper->encode_buf = malloc(buf_size);
         wrapper->encode_buf_size = buf_size;
 
+        /* Packets of a frame are kept in an arena rather than
+         * allocated one by one. */
+        wrapper->chunks = (rtpChunk *) malloc(RTP_CHUNK_ARENA * sizeof(rtpChunk));
+        wrapper->chunk_alloc = wrapper->chunks != NULL ? RTP_CHUNK_ARENA : 0;
+
 #ifdef DEBUG
         printf("open_encoder(): rtp_payload_size is %d\n", ctx->rtp_payload_size);
         printf("open_encoder(): temporary buffer size is %d\n", buf_size);
@@ -340,7 +325,7 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
     }
 
     /* open it */
-    if (avcodec_open(wrapper->codec_context, wrapper->codec) < 0) {
+    if (jffmpeg_open_codec(wrapper->codec_context, wrapper->codec) < 0) {
         fprintf(stderr, "could not open codec\n");
         return (jboolean) 0;
     }    
@@ -355,32 +340,24 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
 /*
  * Class:     net_sourceforge_jffmpeg_NativeEncoder
  * Method:    close_encoder
- * Signature: (I)Z
+ * Signature: (J)Z
  */
 JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_close_1encoder
-  (JNIEnv *env, jobject jffmpeg, jint peer)
+  (JNIEnv *env, jobject jffmpeg, jlong peer)
 {
     FFMPEGWrapper *wrapper;    
-    rtpChunk * temp;
-    rtpChunk * prev;
-    jclass clazz;
     jfieldID fidPeer;
 
     if (peer == 0)
         return (jboolean) 0;
 
-    wrapper = (FFMPEGWrapper *) peer;
+    wrapper = PEER_TO_WRAPPER(peer);
 
     if (wrapper->codec_context->codec != NULL)
         avcodec_close(wrapper->codec_context);
 
-    // Clean up the rtp queue
-    temp = wrapper->headChunks;
-    while(temp != NULL) {
-        prev = temp;
-        temp = temp->next;
-        free(prev);
-    }
+    // Clean up the rtp arena
+    free(wrapper->chunks);
 
     free(wrapper->copy_buf);
     free(wrapper->encode_buf);
@@ -389,9 +366,8 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
     free(wrapper);
 
     // Unset the "peer" variable in java class
-    clazz = (*env)->GetObjectClass(env, jffmpeg);
-    fidPeer = (*env)->GetFieldID(env, clazz, "peer", "I");
-    (*env)->SetIntField(env, jffmpeg, fidPeer, (jint)0);
+    fidPeer = jffmpeg_field(env, jffmpeg, jffmpeg_encoder_peer, "peer", "J");
+    (*env)->SetLongField(env, jffmpeg, fidPeer, (jlong)0);
 
 #ifdef DEBUG
     printf("jffmpeg encoder closed\n");
@@ -402,17 +378,17 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
 /*
  * Class:     net_sourceforge_jffmpeg_NativeEncoder
  * Method:    set_framerate
- * Signature: (II)Z
+ * Signature: (JI)Z
  */
 JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_set_1frameRate
-  (JNIEnv *env, jobject jffmpeg, jint peer, jint frameRate)
+  (JNIEnv *env, jobject jffmpeg, jlong peer, jint frameRate)
 {
     FFMPEGWrapper *wrapper;    
 
     if (peer == 0)
         return (jboolean) 0;
 
-    wrapper = (FFMPEGWrapper *) peer;
+    wrapper = PEER_TO_WRAPPER(peer);
 
     if (!wrapper->codec_context)
         return (jboolean) 0;
@@ -425,17 +401,17 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
 /*
  * Class:     net_sourceforge_jffmpeg_NativeEncoder
  * Method:    set_quality
- * Signature: (IF)Z
+ * Signature: (JF)Z
  */
 JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_set_1quality
-  (JNIEnv *env, jobject jffmpeg, jint peer, jfloat quality)
+  (JNIEnv *env, jobject jffmpeg, jlong peer, jfloat quality)
 {
     FFMPEGWrapper *wrapper;    
 
     if (peer == 0)
         return (jboolean) 0;
 
-    wrapper = (FFMPEGWrapper *) peer;
+    wrapper = PEER_TO_WRAPPER(peer);
 
     if (!wrapper->picture)
         return (jboolean) 0;
@@ -448,17 +424,17 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
 /*
  * Class:     net_sourceforge_jffmpeg_NativeEncoder
  * Method:    set_rtpPayloadSize
- * Signature: (II)Z
+ * Signature: (JI)Z
  */
 JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_set_1rtpPayloadSize
-  (JNIEnv *env, jobject jffmpeg, jint peer, jint rtpPayloadSize)
+  (JNIEnv *env, jobject jffmpeg, jlong peer, jint rtpPayloadSize)
 {
     FFMPEGWrapper *wrapper;    
 
     if (peer == 0)
         return (jboolean) 0;
 
-    wrapper = (FFMPEGWrapper *) peer;
+    wrapper = PEER_TO_WRAPPER(peer);
 
     if (!wrapper->codec_context)
         return (jboolean) 0;
@@ -471,17 +447,17 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
 /*
  * Class:     net_sourceforge_jffmpeg_NativeEncoder
  * Method:    set_
- * Signature: (II)Z
+ * Signature: (JI)Z
  */
 JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_set_1compatibility
-  (JNIEnv *env, jobject jffmpeg, jint peer, jboolean compatibility)
+  (JNIEnv *env, jobject jffmpeg, jlong peer, jboolean compatibility)
 {
     FFMPEGWrapper *wrapper;    
 
     if (peer == 0)
         return (jboolean) 0;
 
-    wrapper = (FFMPEGWrapper *) peer;
+    wrapper = PEER_TO_WRAPPER(peer);
 
     if (!wrapper->codec_context)
         return (jboolean) 0;
@@ -495,44 +471,27 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
 }
 
 /*
- * Class:     net_sourceforge_jffmpeg_NativeEncoder
- * Method:    convert
- * Signature: (ILjava/lang/Object;JLjava/lang/Object;JJ)Z
+ * Encode one frame (or send the next RTP packet of the last one) from
+ * inBuf, which may be pinned array elements or a direct buffer.
+ * Returns 0 on error.
  */
-JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_convert
-  (JNIEnv *env, jobject jffmpeg, jint peer,
-   jobject jinBuffer, jlong inBytes, jint inBufSize, jint inOffset, jint inLength,
-   jobject joutBuffer, jlong outBytes, jint outLength)
+static int encode_frame(JNIEnv *env, jobject jffmpeg, FFMPEGWrapper *wrapper,
+                        unsigned char *inBuf, int inBufSize, int inOffset, int inLength,
+                        unsigned char *outBuf, int outLength)
 {
-    unsigned char *inBuf  = (unsigned char *) inBytes;
-    unsigned char *outBuf = (unsigned char *) outBytes;
-    FFMPEGWrapper *wrapper;    
-    AVCodecContext *ctx;
-    AVFrame        *pict;
+    AVCodecContext *ctx = wrapper->codec_context;
+    AVFrame        *pict = wrapper->picture;
     unsigned char *rawBuf; // encode from this buffer
     int rawBufSize = inLength + INPUT_BUFFER_PADDING_SIZE;
     unsigned char *encBuf; // encode to this buffer
-    int encBufSize, encSize, retval = 1;
-
-    if (peer == 0)
-        return (jboolean) 0;
-
-    wrapper = (FFMPEGWrapper *) peer;
-    ctx = wrapper->codec_context;
-    pict = wrapper->picture;
-
-    if (inBytes == 0)
-        inBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) jinBuffer, NULL);
-
-    if (outBytes == 0)
-        outBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) joutBuffer, NULL);
+    int encBufSize, encSize;
 
     if (wrapper->rtp_mode) {
-        // First, process any "chunks" that are in the list before doing a
+        // First, process any "chunks" that are in the arena before doing a
         // REAL encode operation. The previous frame might not be finished yet.
-        if (wrapper->headChunks != NULL) {
+        if (wrapper->chunk_next < wrapper->chunk_count) {
             jffmpeg_processList(env, jffmpeg, wrapper, outBuf, outLength);
-            goto done;
+            return 1;
         }
 
         // Otherwise use a temporary buffer for the encoded frame.
@@ -570,26 +529,54 @@ JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncod
     pict->linesize[0] = ctx->width;
     pict->linesize[1] = pict->linesize[2] = ctx->width >> 1;
 
+    wrapper->chunk_count = wrapper->chunk_next = 0;
     encSize = avcodec_encode_video(ctx, encBuf, encBufSize, pict);
 
     if (encSize < 0) {
         fprintf(stderr, "Error while encoding frame\n");
-        retval = 0;
-        goto done;
+        return 0;
     }
 
-    if (wrapper->rtp_mode) {
-        assert(wrapper->headChunks != NULL);
+    if (wrapper->rtp_mode && wrapper->chunk_count > 0) {
         jffmpeg_processList(env, jffmpeg, wrapper, outBuf, outLength);
     } else {
         // The input frame is consumed.
         jffmpeg_set_inputDone(env, jffmpeg, 1);
 
-        // The output frame is filled, set its size.
-        jffmpeg_set_outputSize(env, jffmpeg, encSize);
+        // The output frame is filled, set its size (an RTP frame
+        // without packets sends nothing).
+        jffmpeg_set_outputSize(env, jffmpeg, wrapper->rtp_mode ? 0 : encSize);
     }
 
-done:
+    return 1;
+}
+
+/*
+ * Class:     net_sourceforge_jffmpeg_NativeEncoder
+ * Method:    convert
+ * Signature: (JLjava/lang/Object;JIIILjava/lang/Object;JI)Z
+ */
+JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_convert
+  (JNIEnv *env, jobject jffmpeg, jlong peer,
+   jobject jinBuffer, jlong inBytes, jint inBufSize, jint inOffset, jint inLength,
+   jobject joutBuffer, jlong outBytes, jint outLength)
+{
+    unsigned char *inBuf  = (unsigned char *) (intptr_t) inBytes;
+    unsigned char *outBuf = (unsigned char *) (intptr_t) outBytes;
+    int retval;
+
+    if (peer == 0)
+        return (jboolean) 0;
+
+    if (inBytes == 0)
+        inBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) jinBuffer, NULL);
+
+    if (outBytes == 0)
+        outBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) joutBuffer, NULL);
+
+    retval = encode_frame(env, jffmpeg, PEER_TO_WRAPPER(peer),
+                          inBuf, inBufSize, inOffset, inLength, outBuf, outLength);
+
     if (outBytes == 0)
         (*env)->ReleaseByteArrayElements(env, (jbyteArray) joutBuffer, (jbyte *) outBuf, 0);
 
@@ -598,3 +585,40 @@ done:
 
     return (jboolean) retval;
 }
+
+/*
+ * Class:     net_sourceforge_jffmpeg_NativeEncoder
+ * Method:    convertDirect
+ * Signature: (JLjava/nio/ByteBuffer;IILjava/lang/Object;JI)Z
+ *
+ * As convert, but the frame is read in place from a direct buffer, so
+ * the input is neither pinned nor copied.
+ */
+JNIEXPORT jboolean JNICALL Java_net_sourceforge_jffmpeg_ffmpegnative_NativeEncoder_convertDirect
+  (JNIEnv *env, jobject jffmpeg, jlong peer,
+   jobject jinBuffer, jint inOffset, jint inLength,
+   jobject joutBuffer, jlong outBytes, jint outLength)
+{
+    unsigned char *inBuf;
+    unsigned char *outBuf = (unsigned char *) (intptr_t) outBytes;
+    int inBufSize, retval;
+
+    if (peer == 0)
+        return (jboolean) 0;
+
+    inBuf = (unsigned char *) (*env)->GetDirectBufferAddress(env, jinBuffer);
+    inBufSize = (int) (*env)->GetDirectBufferCapacity(env, jinBuffer);
+    if (inBuf == NULL || inOffset < 0 || inOffset + inLength > inBufSize)
+        return (jboolean) 0;
+
+    if (outBytes == 0)
+        outBuf = (unsigned char *) (*env)->GetByteArrayElements(env, (jbyteArray) joutBuffer, NULL);
+
+    retval = encode_frame(env, jffmpeg, PEER_TO_WRAPPER(peer),
+                          inBuf, inBufSize, inOffset, inLength, outBuf, outLength);
+
+    if (outBytes == 0)
+        (*env)->ReleaseByteArrayElements(env, (jbyteArray) joutBuffer, (jbyte *) outBuf, 0);
+
+    return (jboolean) retval;
+}
@@ -0,0 +1,131 @@
+/*
+ * Version control
+ * ===============
+ * $Id$
+ *
+ * Description
+ * ============
+ * libavcodec initialisation shared by the decoder and encoder
+ *
+ * +++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include <pthread.h>
+#include <libavcodec/avcodec.h>
+#include "jffmpeg.h"
+
+jfieldID jffmpeg_decoder_peer;
+jfieldID jffmpeg_encoder_peer;
+jfieldID jffmpeg_encoder_inputDone;
+jfieldID jffmpeg_encoder_outputSize;
+
+static pthread_once_t jffmpeg_once = PTHREAD_ONCE_INIT;
+static pthread_mutex_t jffmpeg_open_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static void jffmpeg_register(void)
+{
+    /* must be called before using avcodec lib */
+    avcodec_init();
+
+    /* register only the codec you need to have smaller code */
+    register_avcodec(&h263_decoder);
+#if FFMPEG_VERSION_INT >= 0x409
+    register_avcodec(&mpeg1video_decoder);
+    register_avcodec(&mpeg2video_decoder);
+#else
+    register_avcodec(&mpeg_decoder);
+#endif
+    register_avcodec(&msmpeg4v1_decoder);
+    register_avcodec(&msmpeg4v2_decoder);
+    register_avcodec(&msmpeg4v3_decoder);
+    register_avcodec(&mpeg4_decoder);
+    register_avcodec(&wmv1_decoder);
+    register_avcodec(&wmv2_decoder);
+    register_avcodec(&mjpeg_decoder);
+
+    register_avcodec(&h263_encoder);
+    register_avcodec(&h263p_encoder);
+}
+
+/*
+ * The codec list is a plain linked list, so decoders and encoders are
+ * registered together, once, whichever thread opens a codec first.
+ */
+void jffmpeg_init(void)
+{
+    pthread_once(&jffmpeg_once, jffmpeg_register);
+}
+
+/*
+ * Only avcodec_open itself is serialised, the rest of opening a codec
+ * (and all decoding) runs concurrently.
+ */
+int jffmpeg_open_codec(AVCodecContext *ctx, AVCodec *codec)
+{
+    int ret;
+
+    pthread_mutex_lock(&jffmpeg_open_lock);
+    ret = avcodec_open(ctx, codec);
+    pthread_mutex_unlock(&jffmpeg_open_lock);
+    return ret;
+}
+
+static jfieldID jffmpeg_find_field(JNIEnv *env, jclass clazz, const char *name, const char *sig)
+{
+    jfieldID fid;
+
+    if (clazz == NULL)
+        return NULL;
+    fid = (*env)->GetFieldID(env, clazz, name, sig);
+    if (fid == NULL)
+        (*env)->ExceptionClear(env);
+    return fid;
+}
+
+/*
+ * Cache the field IDs used on every call, so the native methods need
+ * no GetObjectClass/GetFieldID of their own
+ */
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
+{
+    JNIEnv *env;
+    jclass clazz;
+
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_4) != JNI_OK)
+        return JNI_VERSION_1_4;
+
+    clazz = (*env)->FindClass(env, "net/sourceforge/jffmpeg/ffmpegnative/NativeDecoder");
+    if (clazz == NULL)
+        (*env)->ExceptionClear(env);
+    jffmpeg_decoder_peer = jffmpeg_find_field(env, clazz, "peer", "J");
+
+    clazz = (*env)->FindClass(env, "net/sourceforge/jffmpeg/ffmpegnative/NativeEncoder");
+    if (clazz == NULL)
+        (*env)->ExceptionClear(env);
+    jffmpeg_encoder_peer       = jffmpeg_find_field(env, clazz, "peer", "J");
+    jffmpeg_encoder_inputDone  = jffmpeg_find_field(env, clazz, "inputDone", "Z");
+    jffmpeg_encoder_outputSize = jffmpeg_find_field(env, clazz, "outputSize", "I");
+
+    return JNI_VERSION_1_4;
+}
+
+jfieldID jffmpeg_field(JNIEnv *env, jobject obj, jfieldID cached, const char *name, const char *sig)
+{
+    if (cached != NULL)
+        return cached;
+    return (*env)->GetFieldID(env, (*env)->GetObjectClass(env, obj), name, sig);
+}
@@ -1,6 +1,8 @@
 #ifndef __JFFMPEG_H__
 #define __JFFMPEG_H__
 
+#include <stdint.h>
+#include <jni.h>
 #include <libavcodec/avcodec.h>
 #include "yuv2rgb.h"
 
@@ -17,9 +19,12 @@ typedef struct rtpChunk {
     int hdrSize;
     void *data;
     int dataSize;
-    struct rtpChunk *next;
 } rtpChunk;
 
+// Chunks allocated when an RTP encoder is opened (the arena doubles if a
+// frame is cut into more packets)
+#define RTP_CHUNK_ARENA 64
+
 /*
  * Wrapper structure that holds relevant data per codec instance.
  */
@@ -36,9 +41,11 @@ typedef struct {
 	void *copy_buf;
 	int copy_buf_size;
 
-	// list of pointers to RTP packets
-	rtpChunk *headChunks;
-	rtpChunk *tailChunks;
+	// RTP packets of the current frame, in an arena reused for every frame
+	rtpChunk *chunks;
+	int chunk_count;
+	int chunk_next;
+	int chunk_alloc;
 
 	// variable used to activate RTP mode
 	int rtp_mode;
@@ -47,4 +54,35 @@ typedef struct {
 	Converter* cnv;
 } FFMPEGWrapper;
 
+/*
+ * The Java "peer" field is a long, so the wrapper pointer fits on 64-bit JVMs.
+ */
+#define PEER_TO_WRAPPER(peer) ((FFMPEGWrapper *) (intptr_t) (peer))
+#define WRAPPER_TO_PEER(wrapper) ((jlong) (intptr_t) (wrapper))
+
+/*
+ * Register the codecs with libavcodec.  Safe to call from any number of
+ * threads; the registration is done only once.
+ */
+void jffmpeg_init(void);
+
+/*
+ * avcodec_open, serialised because codec init builds shared static tables
+ */
+int jffmpeg_open_codec(AVCodecContext *ctx, AVCodec *codec);
+
+/*
+ * Field IDs looked up once in JNI_OnLoad
+ */
+extern jfieldID jffmpeg_decoder_peer;
+extern jfieldID jffmpeg_encoder_peer;
+extern jfieldID jffmpeg_encoder_inputDone;
+extern jfieldID jffmpeg_encoder_outputSize;
+
+/*
+ * The cached field ID, or a lookup on the object's class if JNI_OnLoad
+ * could not resolve it
+ */
+jfieldID jffmpeg_field(JNIEnv *env, jobject obj, jfieldID cached, const char *name, const char *sig);
+
 #endif
@@ -17,6 +17,7 @@
 
 #include <math.h>
 #include <stdlib.h>
+#include <pthread.h>
 
 #include "yuv2rgb.h"
 
@@ -32,48 +33,256 @@ static void yuv_to_rgb32(YUVTables *tables,
                          unsigned char *lum, unsigned char *cb, unsigned char *cr,
                          unsigned char *out, int cols, int rows);
 
+/*
+ * Tables depend only on the depth and masks, so every decoder writing
+ * the same RGB format uses one copy
+ */
+typedef struct _CachedTables CachedTables;
+
+struct _CachedTables {
+  int depth;
+  long r_mask, g_mask, b_mask;
+  YUVTables *tables;
+  int refs;
+  CachedTables *next;
+};
+
+static CachedTables *table_cache = NULL;
+static pthread_mutex_t table_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static YUVTables *get_shared_tables(int depth, long r_mask, long g_mask, long b_mask)
+{
+  CachedTables *entry;
+  YUVTables *tables = NULL;
+
+  pthread_mutex_lock(&table_lock);
+  for (entry = table_cache; entry != NULL; entry = entry->next) {
+    if (entry->depth == depth && entry->r_mask == r_mask &&
+        entry->g_mask == g_mask && entry->b_mask == b_mask) {
+      entry->refs++;
+      tables = entry->tables;
+      goto done;
+    }
+  }
+
+  entry = malloc(sizeof(CachedTables));
+  if (entry == NULL)
+    goto done;
+  entry->tables = get_yuv_tables(depth, r_mask, g_mask, b_mask);
+  if (entry->tables == NULL) {
+    free(entry);
+    goto done;
+  }
+  entry->depth = depth;
+  entry->r_mask = r_mask;
+  entry->g_mask = g_mask;
+  entry->b_mask = b_mask;
+  entry->refs = 1;
+  entry->next = table_cache;
+  table_cache = entry;
+  tables = entry->tables;
+
+done:
+  pthread_mutex_unlock(&table_lock);
+  return tables;
+}
+
+static void release_shared_tables(YUVTables *tables)
+{
+  CachedTables **link, *entry;
+
+  pthread_mutex_lock(&table_lock);
+  for (link = &table_cache; (entry = *link) != NULL; link = &entry->next) {
+    if (entry->tables == tables) {
+      if (--entry->refs == 0) {
+        *link = entry->next;
+        release_yuv_tables(entry->tables);
+        free(entry);
+      }
+      break;
+    }
+  }
+  pthread_mutex_unlock(&table_lock);
+}
+
 Converter* yuv2rgb_get_converter(int depth, long r_mask, long g_mask, long b_mask)
 {
   Converter *cnv;
 
+  switch(depth) {
+    case 32:
+    case 24:
+    case 15:
+    case 16:
+      break;
+    default:
+      return NULL;
+  }
+
   cnv = malloc (sizeof (Converter));
   if (cnv == NULL)
     return NULL;
 
-  cnv->color_tables = get_yuv_tables(depth, r_mask, g_mask, b_mask);
-  if (cnv->color_tables == NULL)
-    goto fail;
+  cnv->color_tables = get_shared_tables(depth, r_mask, g_mask, b_mask);
+  if (cnv->color_tables == NULL) {
+    free(cnv);
+    return NULL;
+  }
 
   switch(depth) {
     case 32:
         cnv->convert = yuv_to_rgb32;
+        cnv->bytes_per_pixel = 4;
         break;
     case 24:
         cnv->convert = yuv_to_rgb24;
+        cnv->bytes_per_pixel = 3;
         break;
-    case 15:
-    case 16:
+    default:
         cnv->convert = yuv_to_rgb16;
+        cnv->bytes_per_pixel = 2;
       break;
-    default:
-      goto fail;
   }
 
   return cnv;
-
-fail:
-  free(cnv->color_tables);
-  free(cnv);
-  return NULL;
 }
 
 void release_converter(Converter *cnv) 
 {
   if (cnv->color_tables != NULL)
-    release_yuv_tables(cnv->color_tables);
+    release_shared_tables(cnv->color_tables);
   free(cnv);
 }
 
+/*
+ * Band conversion.  Worker threads take bands from a single queue; the
+ * calling thread converts the first band itself and then waits for the
+ * rest.  Bands start on an even row, so each band reads its own rows
+ * of chroma.
+ */
+typedef struct _BandGroup BandGroup;
+typedef struct _Band Band;
+
+struct _BandGroup {
+  int pending;
+  pthread_cond_t done;
+};
+
+struct _Band {
+  Converter *cnv;
+  unsigned char *lum, *cb, *cr, *out;
+  int cols, rows;
+  BandGroup *group;
+  Band *next;
+};
+
+static pthread_mutex_t pool_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t pool_work = PTHREAD_COND_INITIALIZER;
+static Band *queue_head = NULL;
+static Band *queue_tail = NULL;
+static int pool_workers = 0;
+static int convert_threads = 1;
+
+static void *band_worker(void *arg)
+{
+  Band *band;
+
+  for (;;) {
+    pthread_mutex_lock(&pool_lock);
+    while (queue_head == NULL)
+      pthread_cond_wait(&pool_work, &pool_lock);
+    band = queue_head;
+    queue_head = band->next;
+    if (queue_head == NULL)
+      queue_tail = NULL;
+    pthread_mutex_unlock(&pool_lock);
+
+    band->cnv->convert(band->cnv->color_tables, band->lum, band->cb, band->cr,
+                       band->out, band->cols, band->rows);
+
+    pthread_mutex_lock(&pool_lock);
+    if (--band->group->pending == 0)
+      pthread_cond_signal(&band->group->done);
+    pthread_mutex_unlock(&pool_lock);
+  }
+  return NULL;
+}
+
+/*
+ * Workers are started on demand and are never stopped; lowering the
+ * count just uses fewer bands.
+ */
+void yuv2rgb_set_threads(int threads)
+{
+  pthread_t thread;
+
+  if (threads < 1)
+    threads = 1;
+  if (threads > YUV2RGB_MAX_THREADS)
+    threads = YUV2RGB_MAX_THREADS;
+
+  pthread_mutex_lock(&pool_lock);
+  while (pool_workers < threads - 1) {
+    if (pthread_create(&thread, NULL, band_worker, NULL) != 0)
+      break;
+    pthread_detach(thread);
+    pool_workers++;
+  }
+  convert_threads = pool_workers + 1;
+  pthread_mutex_unlock(&pool_lock);
+}
+
+void yuv2rgb_convert(Converter *cnv, unsigned char *lum, unsigned char *cb, unsigned char *cr,
+                     unsigned char *out, int cols, int rows)
+{
+  Band bands[YUV2RGB_MAX_THREADS];
+  BandGroup group;
+  int count, band_rows, row, i;
+
+  count = convert_threads;
+  if (count > rows / YUV2RGB_MIN_BAND_ROWS)
+    count = rows / YUV2RGB_MIN_BAND_ROWS;
+  if (count <= 1) {
+    cnv->convert(cnv->color_tables, lum, cb, cr, out, cols, rows);
+    return;
+  }
+
+  band_rows = (rows / count) & ~1;
+  for (i = 0; i < count; i++) {
+    row = i * band_rows;
+    bands[i].cnv = cnv;
+    bands[i].lum = lum + row * cols;
+    bands[i].cb = cb + (row >> 1) * (cols >> 1);
+    bands[i].cr = cr + (row >> 1) * (cols >> 1);
+    bands[i].out = out + row * cols * cnv->bytes_per_pixel;
+    bands[i].cols = cols;
+    bands[i].rows = (i == count - 1) ? rows - row : band_rows;
+    bands[i].group = &group;
+    bands[i].next = (i == count - 1) ? NULL : &bands[i + 1];
+  }
+
+  group.pending = count - 1;
+  pthread_cond_init(&group.done, NULL);
+
+  pthread_mutex_lock(&pool_lock);
+  if (queue_tail != NULL)
+    queue_tail->next = &bands[1];
+  else
+    queue_head = &bands[1];
+  queue_tail = &bands[count - 1];
+  pthread_cond_broadcast(&pool_work);
+  pthread_mutex_unlock(&pool_lock);
+
+  cnv->convert(cnv->color_tables, bands[0].lum, bands[0].cb, bands[0].cr,
+               bands[0].out, cols, bands[0].rows);
+
+  pthread_mutex_lock(&pool_lock);
+  while (group.pending > 0)
+    pthread_cond_wait(&group.done, &pool_lock);
+  pthread_mutex_unlock(&pool_lock);
+  pthread_cond_destroy(&group.done);
+}
+
 /*
  * How many 1 bits are there in the longword.
  * Low performance, do not call often.
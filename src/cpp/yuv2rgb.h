@@ -52,13 +52,29 @@ typedef struct _Converter Converter;
 struct _Converter {
   YUVTables *color_tables;
   ConvertFunction convert;
+  int bytes_per_pixel;
 };
 
 
+/*
+ * Converters with the same depth and masks share one set of tables
+ */
 Converter* yuv2rgb_get_converter(int depth, long red_mask, long green_mask, long blue_mask);
 void release_converter(Converter *cnv);
 
+/*
+ * Number of threads converting a picture (1 converts on the calling
+ * thread only).  Pictures are split into horizontal bands of at least
+ * YUV2RGB_MIN_BAND_ROWS rows.
+ */
+#define YUV2RGB_MAX_THREADS   16
+#define YUV2RGB_MIN_BAND_ROWS 64
+
+void yuv2rgb_set_threads(int threads);
+void yuv2rgb_convert(Converter *cnv, unsigned char *lum, unsigned char *cb, unsigned char *cr,
+                     unsigned char *out, int cols, int rows);
+
 #define yuv2rgb(cnv, lum, cb, cr, rgb, cols, rows) \
-        (cnv)->convert((cnv)->color_tables, (lum), (cb), (cr), (rgb), (cols), (rows))
+        yuv2rgb_convert((cnv), (lum), (cb), (cr), (rgb), (cols), (rows))
 
 #endif
@@ -9,10 +9,13 @@ import javax.media.format.RGBFormat;
 import javax.media.format.YUVFormat;
 import javax.media.Buffer;
 
+import java.awt.Component;
 import java.awt.Dimension;
 
 import net.sourceforge.jffmpeg.ffmpegnative.NativeDecoder;
 import net.sourceforge.jffmpeg.JMFCodec;
+import net.sourceforge.jffmpeg.JMFAudioCodec;
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
 
 /**
  * This class manages all ffmpeg audio codecs
@@ -21,6 +24,25 @@ public class AudioDecoder implements Codec {
     private CodecManager codecManager = new CodecManager();
     private JMFCodec peer = null;
 
+    /* Codec chosen for this stream */
+    private JffmpegAudioFormat codecFormat = null;
+    private CodecSelector.Candidate candidate = null;
+
+    /* Numbers this decoder in Flight Recorder events */
+    private final int streamId = DecodeEvent.nextStreamId();
+
+    /* Counters, while open and if enabled */
+    private DecoderStatistics statistics = null;
+    private final StatisticsControl statisticsControl = new StatisticsControl() {
+        public DecoderStatisticsMBean getStatistics() {
+            return statistics;
+        }
+
+        public Component getControlComponent() {
+            return null;
+        }
+    };
+
     /**
      * Retrieve the supported input formats.
      *
@@ -31,8 +53,8 @@ public class AudioDecoder implements Codec {
     }
     
     /**
-     * Retrieve the supported output formats.  Currently RGBVideo
-     * for Java codecs.
+     * Retrieve the supported output formats.  Java codecs offer
+     * byte[], short[] and float[] LINEAR audio.
      *
      * @return Format[] the supported output formats
      */
@@ -45,6 +67,10 @@ public class AudioDecoder implements Codec {
 
         /* Get corresponding Jffmpeg Format */
         JffmpegAudioFormat audioCodec = codecManager.getAudioCodec( format.getEncoding() );
+        if ( audioCodec != null && choose( audioCodec ) != null
+             && !candidate.getProvider().isNative() ) {
+            return PcmOutput.getSupportedOutputFormats( inputFormat );
+        }
         return new AudioFormat[] { 
             new AudioFormat( "LINEAR", inputFormat.getSampleRate(),
                              inputFormat.getSampleSizeInBits() > 0 ? 
@@ -63,25 +89,30 @@ public class AudioDecoder implements Codec {
         JffmpegAudioFormat audioCodec = codecManager.getAudioCodec( format.getEncoding() );
         if ( audioCodec == null ) return null;
 
-        /* Construct Codec */
-        try {
-            peer = (JMFCodec)Class.forName( audioCodec.getCodecClass() ).newInstance();
-            if ( !peer.isCodecAvailable() ) return null;
-        } catch ( ClassNotFoundException e ) {
-            e.printStackTrace();
-            return null;
-        } catch ( InstantiationException e ) {
-            e.printStackTrace();
-            return null;
-        } catch ( IllegalAccessException e ) {
-            e.printStackTrace();
-            return null;
+        /* Construct Codec, trying the next choice if one fails */
+        peer = null;
+        while ( peer == null && choose( audioCodec ) != null ) {
+            peer = candidate.createCodec();
+            if ( peer == null ) candidate = null;
         }
+        if ( peer == null ) return null;
 
         peer.setEncoding( audioCodec.getFFMpegCodecName() );
         return format;
     }
     
+    /**
+     * The codec for this stream, chosen once so the output formats
+     * offered match the codec created
+     */
+    private CodecSelector.Candidate choose( JffmpegAudioFormat audioCodec ) {
+        if ( audioCodec != codecFormat || candidate == null ) {
+            codecFormat = audioCodec;
+            candidate = audioCodec.select();
+        }
+        return candidate;
+    }
+
     /**
      * Negotiate the format for screen display renderer.  
      *
@@ -92,6 +123,9 @@ public class AudioDecoder implements Codec {
      */
     public Format setOutputFormat( Format format ) {
         if ( peer == null ) throw new IllegalArgumentException( "Must set Input Format first" );
+        if ( peer instanceof JMFAudioCodec ) {
+            return peer.setOutputFormat( format );
+        }
         AudioFormat inputFormat = (AudioFormat)format;
         return new AudioFormat( "LINEAR", inputFormat.getSampleRate(),
                              inputFormat.getSampleSizeInBits() > 0 ? 
@@ -100,6 +134,18 @@ public class AudioDecoder implements Codec {
                              0, 1); // endian, int signed
     }
     
+    /**
+     * Samples per channel the codec can produce from one frame, or
+     * zero if unknown.  Size output Buffers from this to avoid the
+     * codec allocating.
+     */
+    public int maxSamplesPerFrame() {
+        if ( peer instanceof JMFAudioCodec ) {
+            return ((JMFAudioCodec)peer).maxSamplesPerFrame();
+        }
+        return 0;
+    }
+
     /**
      * Convert data using this codec
      *
@@ -107,7 +153,50 @@ public class AudioDecoder implements Codec {
      * @return BUFFER_PROCESSED_FAILED A decoding problem was encountered
      */
     public int process( Buffer in, Buffer out ) {
-        return peer.process( in, out );
+        DecodeEvent event = new DecodeEvent();
+        if ( statistics == null && !candidate.isMeasuring() && !event.isEnabled() ) {
+            return peer.process( in, out );
+        }
+
+        int length = in.getLength();
+        Object data = out.getData();
+        if ( statistics != null ) statistics.beginFrame();
+        event.begin();
+        long start = System.nanoTime();
+        int result = peer.process( in, out );
+        long time = System.nanoTime() - start;
+        event.end();
+
+        if ( event.shouldCommit() ) {
+            String frameType = (peer instanceof InstrumentedCodec)
+                             ? ((InstrumentedCodec)peer).getFrameType() : null;
+            event.set( peer, codecFormat.getEncoding(), streamId, frameType,
+                       length, out.getLength(), result );
+            event.commit();
+        }
+
+        if ( candidate.isMeasuring() ) candidate.record( length, time );
+        if ( statistics != null ) {
+            statistics.endFrame( in, out, result, data, time );
+            if ( result == BUFFER_PROCESSED_OK ) {
+                statistics.add( DecoderStatistics.SAMPLES, samples( out ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Samples per channel in an output buffer
+     */
+    private static int samples( Buffer out ) {
+        if ( !(out.getFormat() instanceof AudioFormat) ) return 0;
+        AudioFormat format = (AudioFormat)out.getFormat();
+        int channels = Math.max( format.getChannels(), 1 );
+        int length = out.getLength();
+        if ( out.getData() instanceof byte[] ) {
+            length /= Math.max( format.getSampleSizeInBits() / 8, 1 );
+        }
+        return length / channels;
     }
     
     /**
@@ -115,6 +204,11 @@ public class AudioDecoder implements Codec {
      */
     public void open() throws ResourceUnavailableException {
         peer.open();
+
+        statistics = DecoderStatistics.open( peer, codecFormat.getEncoding() );
+        if ( peer instanceof InstrumentedCodec ) {
+            ((InstrumentedCodec)peer).setStatistics( statistics );
+        }
     }
     
     /**
@@ -122,6 +216,14 @@ public class AudioDecoder implements Codec {
      */
     public void close() {
         peer.close();
+
+        if ( statistics != null ) {
+            statistics.close();
+            statistics = null;
+            if ( peer instanceof InstrumentedCodec ) {
+                ((InstrumentedCodec)peer).setStatistics( null );
+            }
+        }
     }
     
     /**
@@ -141,17 +243,22 @@ public class AudioDecoder implements Codec {
     
     /**
      * This method returns the interfaces that can be used
-     * to control this codec.  Currently no interfaces are defined.
+     * to control this codec: a StatisticsControl.
      */
     public Object[] getControls() {
-        return null; //peer.getControls();
+        return new Object[] { statisticsControl };
     }
     
     /**
      * This method returns an interface that can be used
-     * to control this codec.  Currently no interfaces are defined.
+     * to control this codec.
      */
     public Object getControl( String type ) {
-        return null; //peer.getControl( type );
+        try {
+            if ( Class.forName( type ).isInstance( statisticsControl ) ) return statisticsControl;
+        } catch ( ClassNotFoundException e ) {
+            /* Unknown control */
+        }
+        return null;
     }
 }
@@ -0,0 +1,52 @@
+package net.sourceforge.jffmpeg;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Creates codecs (or demultiplexers) of one class.  The class is loaded
+ * and its constructor looked up the first time one is needed.
+ */
+class CodecFactory {
+    private static final MethodType CONSTRUCTOR = MethodType.methodType( void.class );
+
+    private String className;
+    private volatile MethodHandle constructor;
+
+    CodecFactory( String className ) {
+        this.className = className;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Returns a new codec, or null if the class cannot be created
+     */
+    public JMFCodec newCodec() {
+        Object codec = newInstance();
+        if ( codec instanceof JMFCodec ) return (JMFCodec)codec;
+        if ( codec != null ) System.err.println( className + " is not a JMFCodec" );
+        return null;
+    }
+
+    /**
+     * Returns a new instance, or null if the class cannot be created
+     */
+    public Object newInstance() {
+        try {
+            MethodHandle handle = constructor;
+            if ( handle == null ) {
+                handle = MethodHandles.publicLookup().findConstructor( Class.forName( className ), CONSTRUCTOR )
+                             .asType( MethodType.methodType( Object.class ) );
+                constructor = handle;
+            }
+            return (Object)handle.invokeExact();
+        } catch ( Throwable e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
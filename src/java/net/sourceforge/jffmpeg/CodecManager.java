@@ -1,19 +1,35 @@
 package net.sourceforge.jffmpeg;
 
 import java.util.ResourceBundle;
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.StringTokenizer;
 
 import javax.media.format.VideoFormat;
 import javax.media.format.AudioFormat;
+import javax.media.format.RGBFormat;
+import javax.media.format.YUVFormat;
+import javax.media.protocol.ContentDescriptor;
+import javax.media.Demultiplexer;
 import javax.media.Format;
+import javax.media.PlugInManager;
 
 import net.sourceforge.jffmpeg.ffmpegnative.NativeDecoder;
 
 /**
  * Manage the available Codecs.
  *
- * These are loaded from a .properties file.
+ * Codecs and demultiplexers are CodecProvider and DemuxProvider
+ * services; stream settings (and any extra codec classes) come from a
+ * .properties file.  Both are read once into a registry shared by every
+ * CodecManager in the JVM.
  */
 public class CodecManager {
     /**
@@ -42,12 +58,189 @@ public class CodecManager {
     private static final String LIBRARY_NAME = "FFMpegNativeLibrary";
     private static final String SYS_LIBRARY_NAME = "net.sourceforge.jffmpeg.FFMpegNativeLibrary";
 
+    /**
+     * Threads used by the native YUV to RGB conversion
+     */
+    private static final String CONVERSION_THREADS = "YUVConversionThreads";
+    private static final String SYS_CONVERSION_THREADS = "net.sourceforge.jffmpeg.YUVConversionThreads";
+
+    /**
+     * How codecs are chosen for a stream, "configured" or "measured"
+     */
+    private static final String CODEC_SELECTION = "CodecSelection";
+    private static final String SYS_CODEC_SELECTION = "net.sourceforge.jffmpeg.CodecSelection";
+    private static final String MEASURED = "measured";
+
+    /**
+     * Publish decoder statistics as MBeans
+     */
+    private static final String STATISTICS = "DecoderStatistics";
+    private static final String SYS_STATISTICS = "net.sourceforge.jffmpeg.DecoderStatistics";
+
+    /**
+     * Per format options may be overriden by system properties with
+     * this prefix
+     */
+    private static final String SYS_PREFIX = "net.sourceforge.jffmpeg.";
+
+    private static final String NATIVE_STRING = ".Native";
+    private static final String CLASS_STRING = ".Class";
+    private static final String JAVA_CLASS_STRING = ".JavaClass";
+
+
+    /**
+     * Providers and codec descriptions, created when first used
+     */
+    static class Registry {
+        static final Registry INSTANCE = new Registry();
+
+        final ResourceBundle resources;
+        final VideoFormat[] videoFormats;
+        final AudioFormat[] audioFormats;
+
+        /* Codec descriptions by encoding, as listed and in lower case */
+        final HashMap<String, JffmpegVideoFormat> videoCodecs = new HashMap<String, JffmpegVideoFormat>();
+        final HashMap<String, JffmpegAudioFormat> audioCodecs = new HashMap<String, JffmpegAudioFormat>();
+
+        /* DemuxProviders by content type, cheapest first */
+        final HashMap<String, List<DemuxProvider>> demuxers = new HashMap<String, List<DemuxProvider>>();
+
+        /**
+         * An encoding as first named, and its providers
+         */
+        private static class Encoding {
+            final String name;
+            final List<CodecProvider> providers = new ArrayList<CodecProvider>();
+
+            Encoding( String name ) {
+                this.name = name;
+            }
+        }
+
+        Registry() {
+            resources = ResourceBundle.getBundle( JFFMPEG_RESOURCE );
+            boolean measured = MEASURED.equalsIgnoreCase(
+                                   getSetting( resources, SYS_CODEC_SELECTION, CODEC_SELECTION ) );
+
+            /* Providers by media type then encoding, in the order listed */
+            List<LinkedHashMap<String, Encoding>> encodings = new ArrayList<LinkedHashMap<String, Encoding>>();
+            encodings.add( new LinkedHashMap<String, Encoding>() );
+            encodings.add( new LinkedHashMap<String, Encoding>() );
+            addListed( encodings.get( CodecProvider.VIDEO ), resources.getString( SUPPORTED_VIDEO_FORMATS ) );
+            addListed( encodings.get( CodecProvider.AUDIO ), resources.getString( SUPPORTED_AUDIO_FORMATS ) );
+
+            for ( CodecProvider provider : load( CodecProvider.class ) ) {
+                String[] names = provider.getEncodings();
+                for ( int j = 0; j < names.length; j++ ) {
+                    encodingFor( encodings.get( provider.getMediaType() ), names[ j ] ).providers.add( provider );
+                }
+            }
+
+            /* Classes only named in the configuration */
+            for ( int type = 0; type < encodings.size(); type++ ) {
+                for ( Encoding encoding : encodings.get( type ).values() ) {
+                    if ( !encoding.providers.isEmpty() ) continue;
+                    addConfigured( encoding, type, CLASS_STRING, true );
+                    addConfigured( encoding, type, JAVA_CLASS_STRING, false );
+                }
+            }
+
+            List<VideoFormat> video = new ArrayList<VideoFormat>();
+            for ( Encoding encoding : encodings.get( CodecProvider.VIDEO ).values() ) {
+                String key = encoding.name.toLowerCase();
+                JffmpegVideoFormat codec = new JffmpegVideoFormat( key, resources,
+                    new CodecSelector( encoding.providers, getString( resources, key + NATIVE_STRING ), measured, key ) );
+                video.add( new VideoFormat( encoding.name ) );
+                videoCodecs.put( encoding.name, codec );
+                videoCodecs.put( key, codec );
+            }
+            videoFormats = video.toArray( new VideoFormat[ video.size() ] );
+
+            List<AudioFormat> audio = new ArrayList<AudioFormat>();
+            for ( Encoding encoding : encodings.get( CodecProvider.AUDIO ).values() ) {
+                String key = encoding.name.toLowerCase();
+                JffmpegAudioFormat codec = new JffmpegAudioFormat( key, resources,
+                    new CodecSelector( encoding.providers, getString( resources, key + NATIVE_STRING ), measured, key ) );
+                audio.add( new AudioFormat( encoding.name ) );
+                audioCodecs.put( encoding.name, codec );
+                audioCodecs.put( key, codec );
+            }
+            audioFormats = audio.toArray( new AudioFormat[ audio.size() ] );
+
+            for ( DemuxProvider provider : load( DemuxProvider.class ) ) {
+                String[] types = provider.getContentTypes();
+                for ( int j = 0; j < types.length; j++ ) {
+                    List<DemuxProvider> providers = demuxers.get( types[ j ] );
+                    if ( providers == null ) {
+                        providers = new ArrayList<DemuxProvider>();
+                        demuxers.put( types[ j ], providers );
+                    }
+                    providers.add( provider );
+                }
+            }
+            for ( List<DemuxProvider> providers : demuxers.values() ) {
+                Collections.sort( providers, new Comparator<DemuxProvider>() {
+                    public int compare( DemuxProvider a, DemuxProvider b ) {
+                        return a.getCost() - b.getCost();
+                    }
+                } );
+            }
+        }
+
+        /**
+         * Providers of one encoding, keyed in lower case
+         */
+        private static Encoding encodingFor( LinkedHashMap<String, Encoding> encodings, String name ) {
+            String key = name.toLowerCase();
+            Encoding encoding = encodings.get( key );
+            if ( encoding == null ) {
+                encoding = new Encoding( name );
+                encodings.put( key, encoding );
+            }
+            return encoding;
+        }
+
+        private static void addListed( LinkedHashMap<String, Encoding> encodings, String list ) {
+            StringTokenizer tokenizer = new StringTokenizer( list, "," );
+            while ( tokenizer.hasMoreTokens() ) {
+                encodingFor( encodings, tokenizer.nextToken() );
+            }
+        }
+
+        /**
+         * Wrap a class named in the configuration for an encoding no
+         * provider decodes
+         */
+        private void addConfigured( Encoding encoding, int type, String suffix, boolean isNative ) {
+            String className = getString( resources, encoding.name.toLowerCase() + suffix );
+            if ( className == null ) return;
+            encoding.providers.add( new ConfiguredCodecProvider( className, type, encoding.name, isNative ) );
+        }
+
+        /**
+         * Services of this type; providers that fail to load (e.g. GPL
+         * classes left out of the LGPL jar) are skipped
+         */
+        private static <T> List<T> load( Class<T> service ) {
+            List<T> loaded = new ArrayList<T>();
+            Iterator<T> i = ServiceLoader.load( service, CodecManager.class.getClassLoader() ).iterator();
+            while ( true ) {
+                try {
+                    if ( !i.hasNext() ) break;
+                    loaded.add( i.next() );
+                } catch ( ServiceConfigurationError e ) {
+                    /* Missing or broken provider */
+                }
+            }
+            return loaded;
+        }
+    }
 
     /**
      * Load the CodecManager class
      */
     public CodecManager() {
-        resources = ResourceBundle.getBundle( JFFMPEG_RESOURCE );
+        resources = Registry.INSTANCE.resources;
     }
 
     /**
@@ -72,167 +265,206 @@ public class CodecManager {
  
         return libraryName;
     }
-     
+
     /**
-     * Return list of supported VideoFormats
+     * Read the number of native YUV to RGB conversion threads
+     * (0 for one per processor).  This can be overriden using a
+     * system property.
      */
-    public VideoFormat[] getSupportedVideoFormats() {
-        String formats = resources.getString( SUPPORTED_VIDEO_FORMATS );
-        StringTokenizer tokenizer = new StringTokenizer( formats, "," );
+    public int getConversionThreads() {
+        String threads = getSetting( resources, SYS_CONVERSION_THREADS, CONVERSION_THREADS );
 
-        VideoFormat[] videoFormats = new VideoFormat[ tokenizer.countTokens() ];
-        int i = 0;
-        while ( tokenizer.hasMoreTokens() ) {
-            videoFormats[ i++ ] = new VideoFormat( tokenizer.nextToken() );
+        int count = 1;
+        try {
+            if ( threads != null ) count = Integer.parseInt( threads.trim() );
+        } catch ( NumberFormatException e ) {
+            /* Keep the default */
         }
-        return videoFormats;
+        if ( count == 0 ) count = Runtime.getRuntime().availableProcessors();
+        return count;
     }
-
+     
     /**
-     * Return list of supported VideoFormats
+     * Read if decoder statistics are collected.  This can be overriden
+     * using a system property.
      */
-    public AudioFormat[] getSupportedAudioFormats() {
-        String formats = resources.getString( SUPPORTED_AUDIO_FORMATS );
-        StringTokenizer tokenizer = new StringTokenizer( formats, "," );
-
-        AudioFormat[] audioFormats = new AudioFormat[ tokenizer.countTokens() ];
-        int i = 0;
-        while ( tokenizer.hasMoreTokens() ) {
-            audioFormats[ i++ ] = new AudioFormat( tokenizer.nextToken() );
-        }
-        return audioFormats;
+    static boolean isStatisticsEnabled() {
+        return "true".equalsIgnoreCase( getSetting( Registry.INSTANCE.resources,
+                                                    SYS_STATISTICS, STATISTICS ) );
     }
 
     /**
-     * Return the Codec information for this encoding
+     * Read an option of one format (e.g. "ac3", "Precision").  This can
+     * be overriden using the system property
+     * net.sourceforge.jffmpeg.<format>.<option>.
      */
-    public JffmpegVideoFormat getVideoCodec( String encoding ) {
-        return new JffmpegVideoFormat( encoding.toLowerCase(), resources );
+    public static String getFormatSetting( String format, String option ) {
+        String key = format + "." + option;
+        return getSetting( Registry.INSTANCE.resources, SYS_PREFIX + key, key );
     }
 
     /**
-     * Return the Codec information for this encoding
+     * A system property, or the configuration value if it is not set
      */
-    public JffmpegAudioFormat getAudioCodec( String encoding ) {
-        return new JffmpegAudioFormat( encoding.toLowerCase(), resources );
+    private static String getSetting( ResourceBundle resources, String property, String key ) {
+        String value = null;
+        try {
+            value = System.getProperty( property );
+        } catch ( Exception e ) {
+            /* SecurityException */
+        }
+        if ( value == null || value.length() == 0 ) {
+            value = getString( resources, key );
+        }
+        return value;
     }
 
     /**
-     * Store if the native codec is available
+     * The value of a key, or null if it is missing
      */
-    private static volatile int isNativeLoaded = -1;
-    public synchronized static boolean isNativeAvailable() {
-        if ( isNativeLoaded == -1 ) {
-            try {
-                NativeDecoder d = new NativeDecoder();
-                isNativeLoaded = d.isCodecAvailable() ? 1 : 0;
-            } catch ( Throwable e ) {
-                isNativeLoaded = 0;
-            }
+    static String getString( ResourceBundle resources, String key ) {
+        try {
+            return resources.getString( key );
+        } catch ( Exception e ) {
+            /* MissingResourceException */
+            return null;
         }
-        return (isNativeLoaded > 0);
-    }        
-}
-
-/**
- * This class is used to describe an individual 
- * Video codec.  All parameters are loaded from
- * a resource bundle.
- */
-class JffmpegVideoFormat extends VideoFormat {
-    private static final String RTP_STRING = ".RTP";
-    private static final String NATIVE_STRING = ".Native";
-    private static final String CLASS_STRING = ".Class";
-    private static final String JAVA_CLASS_STRING = ".JavaClass";
-    private static final String FFMPEG_NAME = ".FFMpegName";
-    private static final String TRUNCATE_STRING = ".IsTruncated";
-
-    private String name;
-    ResourceBundle configuration;
+    }
 
     /**
-     * Construct a Video codec description
+     * Return list of supported VideoFormats
      */
-    public JffmpegVideoFormat( String name, ResourceBundle configuration ) {
-        super( name );
-        this.name = name;
-        this.configuration = configuration;
+    public VideoFormat[] getSupportedVideoFormats() {
+        return Registry.INSTANCE.videoFormats.clone();
     }
 
     /**
-     * Returns true if this is an RTP format
+     * Return list of supported AudioFormats
      */
-    public boolean isRtp() {
-        return "true".equalsIgnoreCase( configuration.getString( name + RTP_STRING) );
+    public AudioFormat[] getSupportedAudioFormats() {
+        return Registry.INSTANCE.audioFormats.clone();
     }
 
     /**
-     * Returns true if this Codec is managed by the JNI layer
-     */ 
-    public boolean isNative() {
-        return CodecManager.isNativeAvailable() && "true".equalsIgnoreCase( configuration.getString( name + NATIVE_STRING) );
+     * Return the Codec information for this encoding, or null if it is
+     * not a supported video format
+     */
+    public JffmpegVideoFormat getVideoCodec( String encoding ) {
+        HashMap<String, JffmpegVideoFormat> codecs = Registry.INSTANCE.videoCodecs;
+        JffmpegVideoFormat codec = codecs.get( encoding );
+        if ( codec == null ) codec = codecs.get( encoding.toLowerCase() );
+        return codec;
     }
 
     /**
-     * Return the class set to handle this codec
+     * Return the Codec information for this encoding, or null if it is
+     * not a supported audio format
      */
-    public String getCodecClass() {
-        return configuration.getString( name + (isNative() ? CLASS_STRING : JAVA_CLASS_STRING) );
+    public JffmpegAudioFormat getAudioCodec( String encoding ) {
+        HashMap<String, JffmpegAudioFormat> codecs = Registry.INSTANCE.audioCodecs;
+        JffmpegAudioFormat codec = codecs.get( encoding );
+        if ( codec == null ) codec = codecs.get( encoding.toLowerCase() );
+        return codec;
     }
 
     /**
-     * Returns the identifier used by FFMpeg for this Codec
+     * Return the demultiplexer providers for a content type (such as
+     * "video.x_msvideo"), cheapest first
      */
-    public String getFFMpegCodecName() {
-        return configuration.getString( name + FFMPEG_NAME );
+    public DemuxProvider[] getDemuxProviders( String contentType ) {
+        List<DemuxProvider> providers = Registry.INSTANCE.demuxers.get( contentType );
+        if ( providers == null ) return new DemuxProvider[ 0 ];
+        return providers.toArray( new DemuxProvider[ providers.size() ] );
     }
 
-    public boolean isTruncated() {
-        return "true".equalsIgnoreCase( configuration.getString( name + TRUNCATE_STRING) );
-    }
-}
-
-/**
- * This class is used to describe an individual 
- * Audio codec.  All parameters are loaded from
- * a resource bundle.
- */
-class JffmpegAudioFormat extends AudioFormat {
-    private static final String NATIVE_STRING = ".Native";
-    private static final String CLASS_STRING = ".Class";
-    private static final String JAVA_CLASS_STRING = ".JavaClass";
-    private static final String FFMPEG_NAME = ".FFMpegName";
-
-    private String name;
-    ResourceBundle configuration;
-
     /**
-     * Construct a Video codec description
+     * Create the cheapest demultiplexer for a content type, or null
      */
-    public JffmpegAudioFormat( String name, ResourceBundle configuration ) {
-        super( name );
-        this.name = name;
-        this.configuration = configuration;
+    public Demultiplexer createDemultiplexer( String contentType ) {
+        DemuxProvider[] providers = getDemuxProviders( contentType );
+        for ( int i = 0; i < providers.length; i++ ) {
+            Demultiplexer demux = providers[ i ].createDemultiplexer();
+            if ( demux != null ) return demux;
+        }
+        return null;
     }
 
     /**
-     * Returns true if this Codec is managed by the JNI layer
-     */ 
-    public boolean isNative() {
-        return CodecManager.isNativeAvailable() && "true".equalsIgnoreCase( configuration.getString( name + NATIVE_STRING) );
+     * Return the codec providers for an encoding, in order of preference
+     */
+    public CodecProvider[] getCodecProviders( String encoding ) {
+        JffmpegVideoFormat video = getVideoCodec( encoding );
+        if ( video != null ) return video.getSelector().getProviders();
+        JffmpegAudioFormat audio = getAudioCodec( encoding );
+        if ( audio != null ) return audio.getSelector().getProviders();
+        return new CodecProvider[ 0 ];
     }
 
     /**
-     * Return the class set to handle this codec
+     * Register VideoDecoder, AudioDecoder and the demultiplexers with
+     * JMF, in place of adding them with JMFRegistry.  Only the provider
+     * descriptions are used, no codec or demultiplexer is loaded.
+     *
+     * @param commit true to save the JMF registry
      */
-    public String getCodecClass() {
-        return configuration.getString( name + (isNative() ? CLASS_STRING : JAVA_CLASS_STRING) );
+    public void registerPlugIns( boolean commit ) throws java.io.IOException {
+        PlugInManager.addPlugIn( VideoDecoder.class.getName(), getSupportedVideoFormats(),
+                                 new Format[] { new RGBFormat(), new YUVFormat() },
+                                 PlugInManager.CODEC );
+        PlugInManager.addPlugIn( AudioDecoder.class.getName(), getSupportedAudioFormats(),
+                                 new Format[] { new AudioFormat( AudioFormat.LINEAR ) },
+                                 PlugInManager.CODEC );
+
+        /* One entry per class, with all the content types it reads */
+        HashMap<String, String[]> types = new HashMap<String, String[]>();
+        for ( List<DemuxProvider> providers : Registry.INSTANCE.demuxers.values() ) {
+            for ( DemuxProvider provider : providers ) {
+                types.put( provider.getClassName(), provider.getContentTypes() );
+            }
+        }
+        for ( String className : types.keySet() ) {
+            String[] contentTypes = types.get( className );
+            Format[] in = new Format[ contentTypes.length ];
+            for ( int k = 0; k < in.length; k++ ) {
+                in[ k ] = new ContentDescriptor( contentTypes[ k ] );
+            }
+            PlugInManager.addPlugIn( className, in, null, PlugInManager.DEMULTIPLEXER );
+        }
+
+        if ( commit ) PlugInManager.commit();
     }
 
     /**
-     * Returns the identifier used by FFMpeg for this Codec
+     * Store if the native codec is available
      */
-    public String getFFMpegCodecName() {
-        return configuration.getString( name + FFMPEG_NAME );
+    private static volatile int isNativeLoaded = -1;
+    public static boolean isNativeAvailable() {
+        if ( isNativeLoaded == -1 ) {
+            synchronized ( CodecManager.class ) {
+                if ( isNativeLoaded == -1 ) {
+                    try {
+                        /* Loading the class is enough, no decoder is created */
+                        isNativeLoaded = NativeDecoder.isLibraryLoaded() ? 1 : 0;
+                    } catch ( Throwable e ) {
+                        isNativeLoaded = 0;
+                    }
+                }
+            }
+        }
+        return (isNativeLoaded > 0);
+    }        
+}
+
+/**
+ * A codec class named in Jffmpeg.properties (.Class or .JavaClass) for
+ * an encoding that no CodecProvider decodes
+ */
+class ConfiguredCodecProvider extends CodecProvider {
+    private static final int CONFIGURED_COST = 50;
+
+    ConfiguredCodecProvider( String className, int mediaType, String encoding, boolean isNative ) {
+        super( className, mediaType, new String[] { encoding }, isNative, CONFIGURED_COST,
+               (mediaType == AUDIO) ? PCM_OUTPUT : RGB_OUTPUT );
     }
 }
+
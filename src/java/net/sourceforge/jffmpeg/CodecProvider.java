@@ -0,0 +1,116 @@
+package net.sourceforge.jffmpeg;
+
+/**
+ * Describes a decoder implementation to the CodecManager.
+ *
+ * Providers are found with java.util.ServiceLoader (listed in
+ * META-INF/services/net.sourceforge.jffmpeg.CodecProvider) and must be
+ * cheap to create: the codec class itself is named, not referenced, and
+ * is only loaded when a stream first chooses it.
+ */
+public abstract class CodecProvider {
+    /** Media types */
+    public static final int VIDEO = 0;
+    public static final int AUDIO = 1;
+
+    /** Capabilities */
+    public static final int LOWRES     = 1;  /* Can decode at reduced resolution */
+    public static final int THREADS    = 2;  /* Can use more than one thread */
+    public static final int RGB_OUTPUT = 4;
+    public static final int YUV_OUTPUT = 8;
+    public static final int PCM_OUTPUT = 16;
+
+    private String   className;
+    private int      mediaType;
+    private String[] encodings;
+    private boolean  isNative;
+    private int      cost;
+    private int      capabilities;
+
+    private CodecFactory factory;
+
+    /* 1 if the codec class can be loaded, 0 if not, -1 until checked */
+    private volatile int isLoadable = -1;
+
+    /**
+     * @param className    JMFCodec implementation
+     * @param mediaType    VIDEO or AUDIO
+     * @param encodings    JMF encodings (FourCCs) decoded
+     * @param isNative     true if the codec needs the native library
+     * @param cost         relative cost, the cheapest codec is preferred
+     * @param capabilities LOWRES, THREADS and output flags
+     */
+    protected CodecProvider( String className, int mediaType, String[] encodings,
+                             boolean isNative, int cost, int capabilities ) {
+        this.className    = className;
+        this.mediaType    = mediaType;
+        this.encodings    = encodings;
+        this.isNative     = isNative;
+        this.cost         = cost;
+        this.capabilities = capabilities;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public int getMediaType() {
+        return mediaType;
+    }
+
+    public String[] getEncodings() {
+        return encodings.clone();
+    }
+
+    public boolean isNative() {
+        return isNative;
+    }
+
+    /**
+     * Relative decoding cost for this encoding, lower is better
+     */
+    public int getCost( String encoding ) {
+        return cost;
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public boolean hasCapability( int capability ) {
+        return (capabilities & capability) == capability;
+    }
+
+    /**
+     * Returns false if the codec cannot run here (the native library
+     * did not load, or the class is not in this build, as the GPL
+     * codecs are left out of the LGPL jar)
+     */
+    public boolean isAvailable() {
+        if ( isNative && !CodecManager.isNativeAvailable() ) return false;
+        if ( isLoadable == -1 ) {
+            try {
+                /* Loaded but not initialised */
+                Class.forName( className, false, CodecProvider.class.getClassLoader() );
+                isLoadable = 1;
+            } catch ( Throwable e ) {
+                isLoadable = 0;
+            }
+        }
+        return isLoadable > 0;
+    }
+
+    /**
+     * Create a codec, or null if the class cannot be created
+     */
+    public JMFCodec createCodec() {
+        synchronized ( this ) {
+            if ( factory == null ) factory = new CodecFactory( className );
+        }
+        return factory.newCodec();
+    }
+
+    public String toString() {
+        return className;
+    }
+}
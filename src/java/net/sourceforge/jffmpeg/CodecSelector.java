@@ -0,0 +1,151 @@
+package net.sourceforge.jffmpeg;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses the codec for a new stream from the providers of one
+ * encoding.
+ *
+ * In configured mode the Native entry of Jffmpeg.properties decides
+ * between native and Java codecs, then the cost hint.  In measured mode
+ * each available codec is first tried on MIN_FRAMES frames, after which
+ * streams go to the codec that has decoded fastest (per input byte)
+ * for this encoding.
+ *
+ * A codec that cannot be created is not chosen again.
+ */
+class CodecSelector {
+    /** Frames decoded before a measurement is trusted */
+    static final int MIN_FRAMES = 50;
+
+    /** Counters are halved past this, so the average follows recent streams */
+    private static final int MAX_FRAMES = 10000;
+
+    private Candidate[] candidates;
+    private boolean measured;
+
+    /**
+     * @param providers  CodecProviders for the encoding
+     * @param preferNative "true" or "false" from the configuration, or null
+     * @param measured   true to choose by measured throughput
+     */
+    CodecSelector( List<CodecProvider> providers, String preferNative, boolean measured, final String encoding ) {
+        this.measured = measured;
+
+        candidates = new Candidate[ providers.size() ];
+        for ( int i = 0; i < candidates.length; i++ ) {
+            candidates[ i ] = new Candidate( providers.get( i ), measured );
+        }
+
+        final int nativeRank = "true".equalsIgnoreCase( preferNative ) ? 0
+                             : "false".equalsIgnoreCase( preferNative ) ? 1 : -1;
+        Arrays.sort( candidates, new Comparator<Candidate>() {
+            public int compare( Candidate a, Candidate b ) {
+                CodecProvider p = a.provider;
+                CodecProvider q = b.provider;
+                if ( nativeRank >= 0 && p.isNative() != q.isNative() ) {
+                    return (p.isNative() == (nativeRank == 0)) ? -1 : 1;
+                }
+                return p.getCost( encoding ) - q.getCost( encoding );
+            }
+        } );
+    }
+
+    /**
+     * The codec for a new stream, or null if none is available
+     */
+    Candidate select() {
+        Candidate best = null;
+        for ( int i = 0; i < candidates.length; i++ ) {
+            Candidate candidate = candidates[ i ];
+            if ( candidate.isFailed() || !candidate.provider.isAvailable() ) continue;
+            if ( !measured ) return candidate;
+
+            /* Measure each codec before comparing them */
+            if ( candidate.getFrames() < MIN_FRAMES ) return candidate;
+            if ( best == null || candidate.getNanosPerByte() < best.getNanosPerByte() ) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * All providers, in order of preference
+     */
+    CodecProvider[] getProviders() {
+        CodecProvider[] providers = new CodecProvider[ candidates.length ];
+        for ( int i = 0; i < providers.length; i++ ) {
+            providers[ i ] = candidates[ i ].provider;
+        }
+        return providers;
+    }
+
+    /**
+     * A provider for one encoding, and how fast it has decoded it
+     */
+    static class Candidate {
+        final CodecProvider provider;
+        private boolean measuring;
+        private volatile boolean failed = false;
+        private long bytes = 0;
+        private long nanos = 0;
+        private int  frames = 0;
+
+        Candidate( CodecProvider provider, boolean measuring ) {
+            this.provider  = provider;
+            this.measuring = measuring;
+        }
+
+        CodecProvider getProvider() {
+            return provider;
+        }
+
+        /**
+         * Create the codec, or return null and mark this candidate
+         * failed if it cannot be created or is not available
+         */
+        JMFCodec createCodec() {
+            try {
+                JMFCodec codec = provider.createCodec();
+                if ( codec != null && codec.isCodecAvailable() ) return codec;
+            } catch ( Throwable e ) {
+                e.printStackTrace();
+            }
+            failed = true;
+            return null;
+        }
+
+        boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns true if process() calls should be timed
+         */
+        boolean isMeasuring() {
+            return measuring;
+        }
+
+        synchronized void record( int length, long time ) {
+            if ( length <= 0 ) return;
+            bytes += length;
+            nanos += time;
+            if ( ++frames > MAX_FRAMES ) {
+                bytes  >>= 1;
+                nanos  >>= 1;
+                frames >>= 1;
+            }
+        }
+
+        synchronized int getFrames() {
+            return frames;
+        }
+
+        synchronized double getNanosPerByte() {
+            return (bytes > 0) ? (double)nanos / bytes : Double.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package net.sourceforge.jffmpeg;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one call to a codec's process().
+ *
+ * Disabled by default; enable net.sourceforge.jffmpeg.Decode (category
+ * Jffmpeg/Decode) in the recording settings.  While it is disabled the
+ * decoders only test isEnabled().
+ */
+@Name( "net.sourceforge.jffmpeg.Decode" )
+@Label( "Decode" )
+@Category( { "Jffmpeg", "Decode" } )
+@Description( "Decoding of one input buffer" )
+@Enabled( false )
+@StackTrace( false )
+public class DecodeEvent extends Event {
+    private static final AtomicInteger streams = new AtomicInteger();
+
+    @Label( "Codec" )
+    String codec;
+
+    @Label( "Encoding" )
+    String encoding;
+
+    @Label( "Stream" )
+    @Description( "Decoder instance, numbered from 1" )
+    int streamId;
+
+    @Label( "Frame Type" )
+    @Description( "I, P, B (or S for MPEG-4 sprites) for video codecs that report it" )
+    String frameType;
+
+    @Label( "Bytes In" )
+    @DataAmount
+    int bytesIn;
+
+    @Label( "Bytes Out" )
+    @Description( "Output length, in elements of the output data" )
+    int bytesOut;
+
+    @Label( "Result" )
+    @Description( "PlugIn result flags returned by process()" )
+    int result;
+
+    /**
+     * Fill in the event before commit()
+     */
+    void set( Object codec, String encoding, int streamId, String frameType,
+              int bytesIn, int bytesOut, int result ) {
+        this.codec     = codec.getClass().getName();
+        this.encoding  = encoding;
+        this.streamId  = streamId;
+        this.frameType = frameType;
+        this.bytesIn   = bytesIn;
+        this.bytesOut  = bytesOut;
+        this.result    = result;
+    }
+
+    /**
+     * Number a new decoder
+     */
+    static int nextStreamId() {
+        return streams.incrementAndGet();
+    }
+}
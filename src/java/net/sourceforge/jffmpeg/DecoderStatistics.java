@@ -0,0 +1,307 @@
+package net.sourceforge.jffmpeg;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.media.Buffer;
+import javax.media.PlugIn;
+
+/**
+ * Counters for one decoder, published as the MBean
+ * net.sourceforge.jffmpeg:type=Decoder,codec=...,id=... while it is
+ * open.  The totals for each codec class are published as
+ * net.sourceforge.jffmpeg:type=DecoderTotals,codec=...
+ *
+ * Statistics are only kept if DecoderStatistics=true in
+ * Jffmpeg.properties (or the system property
+ * net.sourceforge.jffmpeg.DecoderStatistics).  Otherwise open() returns
+ * null, and decoders test for null before reading the clock.
+ *
+ * The decoding thread updates the counters; they may be read from any
+ * thread.
+ */
+public class DecoderStatistics implements DecoderStatisticsMBean {
+    public static final boolean ENABLED = CodecManager.isStatisticsEnabled();
+
+    /**
+     * Counters
+     */
+    public static final int FRAMES            = 0;
+    public static final int SAMPLES           = 1;
+    public static final int BYTES             = 2;
+    public static final int DECODE_TIME       = 3;
+    public static final int PARSE_TIME        = 4;
+    public static final int IDCT_TIME         = 5;  /* IDCT and motion compensation */
+    public static final int COLOUR_TIME       = 6;
+    public static final int SYNTHESIS_TIME    = 7;
+    public static final int DROPPED           = 8;
+    public static final int SKIPPED           = 9;
+    public static final int ERRORS            = 10;
+    public static final int RESYNCS           = 11;
+    public static final int BUFFERS_ALLOCATED = 12;
+    public static final int BUFFERS_REUSED    = 13;
+    private static final int COUNTERS         = 14;
+
+    private static final String DOMAIN = "net.sourceforge.jffmpeg";
+
+    /* Totals by codec */
+    private static final HashMap<String, Totals> totals = new HashMap<String, Totals>();
+    private static long nextId = 0;
+
+    private String codec;
+    private String encoding;
+    private LongAdder[] counters = new LongAdder[ COUNTERS ];
+
+    private Totals total;
+    private ObjectName name;
+
+    /* Stage times in the current frame, the rest is parsing */
+    private long frameStages;
+
+    DecoderStatistics( String codec, String encoding ) {
+        this.codec    = codec;
+        this.encoding = encoding;
+        for ( int i = 0; i < COUNTERS; i++ ) {
+            counters[ i ] = new LongAdder();
+        }
+    }
+
+    /**
+     * Start collecting statistics for a decoder
+     *
+     * @param decoder  the codec, named by its class
+     * @param encoding the JMF encoding decoded
+     * @return the statistics, or null if statistics are disabled
+     */
+    public static DecoderStatistics open( Object decoder, String encoding ) {
+        if ( !ENABLED ) return null;
+
+        String codec = decoder.getClass().getName();
+        codec = codec.substring( codec.lastIndexOf( '.' ) + 1 );
+
+        DecoderStatistics statistics = new DecoderStatistics( codec, encoding );
+        synchronized ( totals ) {
+            Totals total = totals.get( codec );
+            if ( total == null ) {
+                total = new Totals( codec );
+                ((DecoderStatistics)total).name = register( total, "type=DecoderTotals,codec=" + codec );
+                totals.put( codec, total );
+            }
+            total.live.add( statistics );
+            statistics.total = total;
+            statistics.name = register( statistics, "type=Decoder,codec=" + codec + ",id=" + (++nextId) );
+        }
+        return statistics;
+    }
+
+    /**
+     * Stop publishing these statistics, and add them to the totals
+     */
+    public void close() {
+        synchronized ( totals ) {
+            if ( total == null ) return;
+            unregister( name );
+            total.retire( this );
+            total = null;
+        }
+    }
+
+    private static ObjectName register( DecoderStatistics statistics, String properties ) {
+        try {
+            ObjectName name = new ObjectName( DOMAIN + ":" + properties );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean( statistics, DecoderStatisticsMBean.class ), name );
+            return name;
+        } catch ( Exception e ) {
+            /* No MBean server here; keep counting */
+            return null;
+        }
+    }
+
+    private static void unregister( ObjectName name ) {
+        if ( name == null ) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( name );
+        } catch ( Exception e ) {
+            /* Already unregistered */
+        }
+    }
+
+    /**
+     * Update a counter
+     */
+    public void count( int counter ) {
+        counters[ counter ].increment();
+    }
+
+    public void add( int counter, long value ) {
+        counters[ counter ].add( value );
+    }
+
+    /**
+     * Add the time since start (from System.nanoTime()) to a stage of
+     * the current frame
+     */
+    public void addTime( int stage, long start ) {
+        long time = System.nanoTime() - start;
+        counters[ stage ].add( time );
+        frameStages += time;
+    }
+
+    /**
+     * Called by the decoder before process()
+     */
+    void beginFrame() {
+        frameStages = 0;
+    }
+
+    /**
+     * Called by the decoder after process()
+     *
+     * @param oldData output data before process(), to detect allocation
+     * @param time    nanoseconds spent in process()
+     */
+    void endFrame( Buffer in, Buffer out, int result, Object oldData, long time ) {
+        counters[ DECODE_TIME ].add( time );
+        counters[ PARSE_TIME ].add( time - frameStages );
+
+        if ( (result & PlugIn.INPUT_BUFFER_NOT_CONSUMED) == 0 ) {
+            counters[ BYTES ].add( in.getLength() );
+        }
+        if ( (result & PlugIn.BUFFER_PROCESSED_FAILED) != 0 ) {
+            counters[ ERRORS ].increment();
+            return;
+        }
+        if ( (result & PlugIn.OUTPUT_BUFFER_NOT_FILLED) != 0 ) return;
+
+        if ( out.getLength() <= 0 || out.isDiscard() ) {
+            counters[ DROPPED ].increment();
+            return;
+        }
+        counters[ FRAMES ].increment();
+        Object data = out.getData();
+        if ( data != null && data == oldData ) {
+            counters[ BUFFERS_REUSED ].increment();
+        } else {
+            counters[ BUFFERS_ALLOCATED ].increment();
+        }
+    }
+
+    long get( int counter ) {
+        return counters[ counter ].sum();
+    }
+
+    /**
+     * Implement DecoderStatisticsMBean
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public long getFrames() {
+        return get( FRAMES );
+    }
+
+    public long getSamples() {
+        return get( SAMPLES );
+    }
+
+    public long getBytes() {
+        return get( BYTES );
+    }
+
+    public long getDecodeTime() {
+        return get( DECODE_TIME );
+    }
+
+    public long getParseTime() {
+        return get( PARSE_TIME );
+    }
+
+    public long getIdctTime() {
+        return get( IDCT_TIME );
+    }
+
+    public long getColourConversionTime() {
+        return get( COLOUR_TIME );
+    }
+
+    public long getSynthesisTime() {
+        return get( SYNTHESIS_TIME );
+    }
+
+    public long getDropped() {
+        return get( DROPPED );
+    }
+
+    public long getSkipped() {
+        return get( SKIPPED );
+    }
+
+    public long getErrors() {
+        return get( ERRORS );
+    }
+
+    public long getResyncs() {
+        return get( RESYNCS );
+    }
+
+    public long getBuffersAllocated() {
+        return get( BUFFERS_ALLOCATED );
+    }
+
+    public long getBuffersReused() {
+        return get( BUFFERS_REUSED );
+    }
+
+    public void reset() {
+        for ( int i = 0; i < COUNTERS; i++ ) {
+            counters[ i ].reset();
+        }
+    }
+
+    /**
+     * Closed decoders of one codec, plus the open ones
+     */
+    static class Totals extends DecoderStatistics {
+        ArrayList<DecoderStatistics> live = new ArrayList<DecoderStatistics>();
+
+        Totals( String codec ) {
+            super( codec, null );
+        }
+
+        void retire( DecoderStatistics statistics ) {
+            live.remove( statistics );
+            for ( int i = 0; i < COUNTERS; i++ ) {
+                add( i, statistics.get( i ) );
+            }
+        }
+
+        long get( int counter ) {
+            long value = super.get( counter );
+            synchronized ( totals ) {
+                for ( int i = 0; i < live.size(); i++ ) {
+                    value += live.get( i ).get( counter );
+                }
+            }
+            return value;
+        }
+
+        public void reset() {
+            super.reset();
+            synchronized ( totals ) {
+                for ( int i = 0; i < live.size(); i++ ) {
+                    live.get( i ).reset();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package net.sourceforge.jffmpeg;
+
+/**
+ * Counters published for each decoder, and for all the decoders of
+ * one codec class.  Times are in nanoseconds.
+ */
+public interface DecoderStatisticsMBean {
+    public String getCodec();
+    public String getEncoding();
+
+    /** Frames delivered and audio samples per channel produced */
+    public long getFrames();
+    public long getSamples();
+
+    /** Input bytes consumed */
+    public long getBytes();
+
+    /** Time in process(), and the part of it in each stage */
+    public long getDecodeTime();
+    public long getParseTime();
+    public long getIdctTime();
+    public long getColourConversionTime();
+    public long getSynthesisTime();
+
+    /** Input consumed without output, and frames the codec chose not to decode */
+    public long getDropped();
+    public long getSkipped();
+
+    public long getErrors();
+    public long getResyncs();
+
+    /** Output buffers the codec allocated, and output buffers reused */
+    public long getBuffersAllocated();
+    public long getBuffersReused();
+
+    public void reset();
+}
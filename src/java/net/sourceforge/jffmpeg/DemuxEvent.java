@@ -0,0 +1,63 @@
+package net.sourceforge.jffmpeg;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for reading one frame or packet from a
+ * container, with the time spent reading the source.
+ *
+ * Disabled by default; enable net.sourceforge.jffmpeg.Demux (category
+ * Jffmpeg/Demux) in the recording settings.  Demultiplexers only read
+ * the clock for I/O when isEnabled() is true.
+ */
+@Name( "net.sourceforge.jffmpeg.Demux" )
+@Label( "Demultiplex" )
+@Category( { "Jffmpeg", "Demux" } )
+@Description( "Reading of one frame or packet from a container" )
+@Enabled( false )
+@StackTrace( false )
+public class DemuxEvent extends Event {
+    @Label( "Demultiplexer" )
+    String demuxer;
+
+    @Label( "Stream" )
+    @Description( "Stream number, ID or serial in the container" )
+    int streamId;
+
+    @Label( "Position" )
+    @Description( "Offset in the source where reading started" )
+    long position;
+
+    @Label( "Bytes" )
+    @DataAmount
+    int bytes;
+
+    @Label( "I/O Time" )
+    @Timespan
+    long ioTime;
+
+    @Label( "Checksum Time" )
+    @Timespan
+    long checksumTime;
+
+    /**
+     * Fill in the event before commit()
+     */
+    public void set( Object demuxer, int streamId, long position, int bytes,
+                     long ioTime, long checksumTime ) {
+        this.demuxer      = demuxer.getClass().getName();
+        this.streamId     = streamId;
+        this.position     = position;
+        this.bytes        = bytes;
+        this.ioTime       = ioTime;
+        this.checksumTime = checksumTime;
+    }
+}
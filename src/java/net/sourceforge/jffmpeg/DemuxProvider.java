@@ -0,0 +1,55 @@
+package net.sourceforge.jffmpeg;
+
+import javax.media.Demultiplexer;
+
+/**
+ * Describes a demultiplexer to the CodecManager.
+ *
+ * Providers are found with java.util.ServiceLoader (listed in
+ * META-INF/services/net.sourceforge.jffmpeg.DemuxProvider).  The
+ * demultiplexer class is only loaded when it is first created.
+ */
+public abstract class DemuxProvider {
+    private String   className;
+    private String[] contentTypes;
+    private int      cost;
+
+    private CodecFactory factory;
+
+    /**
+     * @param className    Demultiplexer implementation
+     * @param contentTypes JMF content types read (e.g. "video.x_msvideo")
+     * @param cost         relative cost, the cheapest demultiplexer is preferred
+     */
+    protected DemuxProvider( String className, String[] contentTypes, int cost ) {
+        this.className    = className;
+        this.contentTypes = contentTypes;
+        this.cost         = cost;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String[] getContentTypes() {
+        return contentTypes.clone();
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    /**
+     * Create a demultiplexer, or null if the class cannot be created
+     */
+    public Demultiplexer createDemultiplexer() {
+        synchronized ( this ) {
+            if ( factory == null ) factory = new CodecFactory( className );
+        }
+        return (Demultiplexer)factory.newInstance();
+    }
+
+    public String toString() {
+        return className;
+    }
+}
@@ -0,0 +1,17 @@
+package net.sourceforge.jffmpeg;
+
+/**
+ * A JMFCodec that times its own decoding stages (IDCT, colour
+ * conversion, synthesis) and reports skipped frames and resyncs.
+ * VideoDecoder and AudioDecoder pass it their statistics when opened,
+ * and null when closed.
+ */
+public interface InstrumentedCodec {
+    public void setStatistics( DecoderStatistics statistics );
+
+    /**
+     * Type of the picture last decoded, "I", "P", "B" or "S", or null
+     * if unknown (audio)
+     */
+    public String getFrameType();
+}
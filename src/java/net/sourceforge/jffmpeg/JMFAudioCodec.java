@@ -0,0 +1,14 @@
+package net.sourceforge.jffmpeg;
+
+/**
+ * Audio codecs also report how much output a frame can produce, so
+ * callers can supply an output Buffer that never has to be reallocated.
+ * The output array type (byte[], short[] or float[]) follows the data
+ * type of the format passed to setOutputFormat.
+ */
+public interface JMFAudioCodec extends JMFCodec {
+    /**
+     * Largest number of samples per channel decoded from one frame
+     */
+    public int maxSamplesPerFrame();
+}
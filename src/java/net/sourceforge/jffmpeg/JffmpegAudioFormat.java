@@ -0,0 +1,62 @@
+package net.sourceforge.jffmpeg;
+
+import java.util.ResourceBundle;
+
+import javax.media.format.AudioFormat;
+
+/**
+ * This class is used to describe an individual 
+ * Audio codec.  Stream parameters are read from
+ * a resource bundle when the registry is built.
+ */
+class JffmpegAudioFormat extends AudioFormat {
+    private static final String FFMPEG_NAME = ".FFMpegName";
+
+    private String name;
+    private String ffmpegName;
+    private CodecSelector selector;
+
+    /**
+     * Construct an Audio codec description
+     */
+    JffmpegAudioFormat( String name, ResourceBundle configuration, CodecSelector selector ) {
+        super( name );
+        this.name = name;
+        this.selector = selector;
+        ffmpegName = CodecManager.getString( configuration, name + FFMPEG_NAME );
+    }
+
+    CodecSelector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Choose the codec for a new stream, or null if none is available
+     */
+    CodecSelector.Candidate select() {
+        return selector.select();
+    }
+
+    /**
+     * Returns true if a new stream would be decoded by the JNI layer
+     */ 
+    public boolean isNative() {
+        CodecSelector.Candidate candidate = selector.select();
+        return candidate != null && candidate.getProvider().isNative();
+    }
+
+    /**
+     * Return the class a new stream would be decoded by
+     */
+    public String getCodecClass() {
+        CodecSelector.Candidate candidate = selector.select();
+        return (candidate != null) ? candidate.getProvider().getClassName() : null;
+    }
+
+    /**
+     * Returns the identifier used by FFMpeg for this Codec
+     */
+    public String getFFMpegCodecName() {
+        return ffmpegName;
+    }
+}
@@ -0,0 +1,79 @@
+package net.sourceforge.jffmpeg;
+
+import java.util.ResourceBundle;
+
+import javax.media.format.VideoFormat;
+
+/**
+ * This class is used to describe an individual 
+ * Video codec.  Stream parameters are read from
+ * a resource bundle when the registry is built.
+ */
+class JffmpegVideoFormat extends VideoFormat {
+    private static final String RTP_STRING = ".RTP";
+    private static final String FFMPEG_NAME = ".FFMpegName";
+    private static final String TRUNCATE_STRING = ".IsTruncated";
+
+    private String name;
+    private boolean rtp;
+    private boolean truncated;
+    private String ffmpegName;
+    private CodecSelector selector;
+
+    /**
+     * Construct a Video codec description
+     */
+    JffmpegVideoFormat( String name, ResourceBundle configuration, CodecSelector selector ) {
+        super( name );
+        this.name = name;
+        this.selector = selector;
+        rtp        = "true".equalsIgnoreCase( CodecManager.getString( configuration, name + RTP_STRING ) );
+        truncated  = "true".equalsIgnoreCase( CodecManager.getString( configuration, name + TRUNCATE_STRING ) );
+        ffmpegName = CodecManager.getString( configuration, name + FFMPEG_NAME );
+    }
+
+    CodecSelector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Choose the codec for a new stream, or null if none is available
+     */
+    CodecSelector.Candidate select() {
+        return selector.select();
+    }
+
+    /**
+     * Returns true if this is an RTP format
+     */
+    public boolean isRtp() {
+        return rtp;
+    }
+
+    /**
+     * Returns true if a new stream would be decoded by the JNI layer
+     */ 
+    public boolean isNative() {
+        CodecSelector.Candidate candidate = selector.select();
+        return candidate != null && candidate.getProvider().isNative();
+    }
+
+    /**
+     * Return the class a new stream would be decoded by
+     */
+    public String getCodecClass() {
+        CodecSelector.Candidate candidate = selector.select();
+        return (candidate != null) ? candidate.getProvider().getClassName() : null;
+    }
+
+    /**
+     * Returns the identifier used by FFMpeg for this Codec
+     */
+    public String getFFMpegCodecName() {
+        return ffmpegName;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,120 @@
+package net.sourceforge.jffmpeg;
+
+/**
+ * The codecs and demultiplexers shipped with Jffmpeg, as listed in
+ * META-INF/services.
+ *
+ * Native codecs are cheaper than the Java ports; the Native entries in
+ * Jffmpeg.properties can still prefer one or the other per format.
+ */
+public final class Providers {
+    private static final int NATIVE_COST = 10;
+    private static final int JAVA_COST   = 20;
+    private static final int DEMUX_COST  = 20;
+
+    private Providers() {
+    }
+
+    /*
+     * Video codecs
+     */
+    public static class NativeVideo extends CodecProvider {
+        public NativeVideo() {
+            super( "net.sourceforge.jffmpeg.ffmpegnative.NativeDecoder", VIDEO,
+                   new String[] { "h263", "h263/RTP", "DIV3", "div4", "MPEG", "mpeg video",
+                                  "DIVX", "XVID", "DX50", "MP42", "MPG4", "WMV1", "WMV2", "MJPG" },
+                   true, NATIVE_COST, THREADS | RGB_OUTPUT | YUV_OUTPUT );
+        }
+    }
+
+    public static class Div3 extends CodecProvider {
+        public Div3() {
+            super( "net.sourceforge.jffmpeg.codecs.video.mpeg4.div3.Div3Codec", VIDEO,
+                   new String[] { "DIV3", "div4" }, false, JAVA_COST, RGB_OUTPUT );
+        }
+    }
+
+    public static class Divx extends CodecProvider {
+        public Divx() {
+            super( "net.sourceforge.jffmpeg.codecs.video.mpeg4.divx.DIVXCodec", VIDEO,
+                   new String[] { "DIVX", "XVID", "DX50" }, false, JAVA_COST, RGB_OUTPUT );
+        }
+    }
+
+    public static class MP42 extends CodecProvider {
+        public MP42() {
+            super( "net.sourceforge.jffmpeg.codecs.video.mpeg4.mp42.MP42Codec", VIDEO,
+                   new String[] { "MP42" }, false, JAVA_COST, RGB_OUTPUT );
+        }
+    }
+
+    public static class MPG4 extends CodecProvider {
+        public MPG4() {
+            super( "net.sourceforge.jffmpeg.codecs.video.mpeg4.mpg4.MPG4Codec", VIDEO,
+                   new String[] { "MPG4" }, false, JAVA_COST, RGB_OUTPUT );
+        }
+    }
+
+    public static class MpegVideo extends CodecProvider {
+        public MpegVideo() {
+            super( "net.sourceforge.jffmpeg.codecs.video.mpeg12.MpegVideo", VIDEO,
+                   new String[] { "MPEG", "mpeg video" }, false, JAVA_COST, RGB_OUTPUT );
+        }
+    }
+
+    /*
+     * Audio codecs (the native library has no audio decoders)
+     */
+    public static class MP3 extends CodecProvider {
+        public MP3() {
+            super( "net.sourceforge.jffmpeg.codecs.audio.mpeg.mp3.MP3", AUDIO,
+                   new String[] { "mpeglayer3" }, false, JAVA_COST, PCM_OUTPUT );
+        }
+    }
+
+    public static class AC3 extends CodecProvider {
+        public AC3() {
+            super( "net.sourceforge.jffmpeg.codecs.audio.ac3.AC3Decoder", AUDIO,
+                   new String[] { "AC3" }, false, JAVA_COST, PCM_OUTPUT );
+        }
+    }
+
+    public static class Vorbis extends CodecProvider {
+        public Vorbis() {
+            super( "net.sourceforge.jffmpeg.codecs.audio.vorbis.VorbisDecoder", AUDIO,
+                   new String[] { "vorbis" }, false, JAVA_COST, PCM_OUTPUT );
+        }
+    }
+
+    /*
+     * Demultiplexers (VobDemux is preferred for MPEG program streams,
+     * as in the README)
+     */
+    public static class AviDemux extends DemuxProvider {
+        public AviDemux() {
+            super( "net.sourceforge.jffmpeg.demux.avi.AviDemux",
+                   new String[] { "video.x_msvideo" }, DEMUX_COST );
+        }
+    }
+
+    public static class MpegDemux extends DemuxProvider {
+        public MpegDemux() {
+            super( "net.sourceforge.jffmpeg.demux.mpg.MpegDemux",
+                   new String[] { "video.mpeg" }, DEMUX_COST );
+        }
+    }
+
+    public static class VobDemux extends DemuxProvider {
+        public VobDemux() {
+            super( "net.sourceforge.jffmpeg.demux.vob.VobDemux",
+                   new String[] { "video.mpeg", "video.vob" }, DEMUX_COST - 10 );
+        }
+    }
+
+    public static class OggDemux extends DemuxProvider {
+        public OggDemux() {
+            super( "net.sourceforge.jffmpeg.demux.ogg.OggDemux",
+                   new String[] { "audio.ogg" }, DEMUX_COST );
+        }
+    }
+}
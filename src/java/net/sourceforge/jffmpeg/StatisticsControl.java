@@ -0,0 +1,11 @@
+package net.sourceforge.jffmpeg;
+
+/**
+ * This interface is a Control for reading the counters of a decoder.
+ * getStatistics() returns null unless the decoder is open and
+ * DecoderStatistics are enabled.
+ */
+public interface StatisticsControl extends javax.media.Control {
+
+    public DecoderStatisticsMBean getStatistics();
+}
@@ -8,6 +8,7 @@ import javax.media.format.RGBFormat;
 import javax.media.format.YUVFormat;
 import javax.media.Buffer;
 
+import java.awt.Component;
 import java.awt.Dimension;
 
 import net.sourceforge.jffmpeg.ffmpegnative.NativeDecoder;
@@ -20,6 +21,25 @@ public class VideoDecoder implements Codec {
     private CodecManager codecManager = new CodecManager();
     private JMFCodec peer = null;
 
+    /* Codec chosen for this stream */
+    private JffmpegVideoFormat codecFormat = null;
+    private CodecSelector.Candidate candidate = null;
+
+    /* Numbers this decoder in Flight Recorder events */
+    private final int streamId = DecodeEvent.nextStreamId();
+
+    /* Counters, while open and if enabled */
+    private DecoderStatistics statistics = null;
+    private final StatisticsControl statisticsControl = new StatisticsControl() {
+        public DecoderStatisticsMBean getStatistics() {
+            return statistics;
+        }
+
+        public Component getControlComponent() {
+            return null;
+        }
+    };
+
     /**
      * Retrieve the supported input formats.
      *
@@ -41,7 +61,9 @@ public class VideoDecoder implements Codec {
 
         /* Get corresponding Jffmpeg Format */
         JffmpegVideoFormat videoCodec = codecManager.getVideoCodec( format.getEncoding() );
-        if ( format instanceof VideoFormat && videoCodec.isNative() ) {
+        if ( videoCodec == null || choose( videoCodec ) == null ) return new Format[ 0 ];
+        boolean isNative = candidate.getProvider().isNative();
+        if ( format instanceof VideoFormat && isNative ) {
             /* Video format */
              VideoFormat videoIn = (VideoFormat)format;
              Dimension inSize = videoIn.getSize();
@@ -145,7 +167,7 @@ public class VideoDecoder implements Codec {
                     Format.FALSE,
                     Format.NOT_SPECIFIED)
             };
-        } else if ( format instanceof VideoFormat && !videoCodec.isNative() ) {
+        } else if ( format instanceof VideoFormat && !isNative ) {
             /* Java video codec */
             return new Format[] { new RGBFormat() };
         } else {
@@ -168,20 +190,13 @@ public class VideoDecoder implements Codec {
         Dimension videoSize = ((VideoFormat)format).getSize();
         if ( videoSize == null ) return null;
 
-        /* Construct Codec */
-        try {
-            peer = (JMFCodec)Class.forName( videoCodec.getCodecClass() ).newInstance();
-            if ( !peer.isCodecAvailable() ) return null;
-        } catch ( ClassNotFoundException e ) {
-            e.printStackTrace();
-            return null;
-        } catch ( InstantiationException e ) {
-            e.printStackTrace();
-            return null;
-        } catch ( IllegalAccessException e ) {
-            e.printStackTrace();
-            return null;
+        /* Construct Codec, trying the next choice if one fails */
+        peer = null;
+        while ( peer == null && choose( videoCodec ) != null ) {
+            peer = candidate.createCodec();
+            if ( peer == null ) candidate = null;
         }
+        if ( peer == null ) return null;
 
         peer.setVideoSize( videoSize );
         peer.setEncoding( videoCodec.getFFMpegCodecName() );
@@ -191,6 +206,18 @@ public class VideoDecoder implements Codec {
         return format;
     }
     
+    /**
+     * The codec for this stream, chosen once so the output formats
+     * offered match the codec created
+     */
+    private CodecSelector.Candidate choose( JffmpegVideoFormat videoCodec ) {
+        if ( videoCodec != codecFormat || candidate == null ) {
+            codecFormat = videoCodec;
+            candidate = videoCodec.select();
+        }
+        return candidate;
+    }
+
     /**
      * Negotiate the format for screen display renderer.  
      *
@@ -211,7 +238,31 @@ public class VideoDecoder implements Codec {
      * @return BUFFER_PROCESSED_FAILED A decoding problem was encountered
      */
     public int process( Buffer in, Buffer out ) {
-        return peer.process( in, out );
+        DecodeEvent event = new DecodeEvent();
+        if ( statistics == null && !candidate.isMeasuring() && !event.isEnabled() ) {
+            return peer.process( in, out );
+        }
+
+        int length = in.getLength();
+        Object data = out.getData();
+        if ( statistics != null ) statistics.beginFrame();
+        event.begin();
+        long start = System.nanoTime();
+        int result = peer.process( in, out );
+        long time = System.nanoTime() - start;
+        event.end();
+
+        if ( event.shouldCommit() ) {
+            String frameType = (peer instanceof InstrumentedCodec)
+                             ? ((InstrumentedCodec)peer).getFrameType() : null;
+            event.set( peer, codecFormat.getEncoding(), streamId, frameType,
+                       length, out.getLength(), result );
+            event.commit();
+        }
+
+        if ( candidate.isMeasuring() ) candidate.record( length, time );
+        if ( statistics != null ) statistics.endFrame( in, out, result, data, time );
+        return result;
     }
     
     /**
@@ -219,6 +270,11 @@ public class VideoDecoder implements Codec {
      */
     public void open() throws ResourceUnavailableException {
         peer.open();
+
+        statistics = DecoderStatistics.open( peer, codecFormat.getEncoding() );
+        if ( peer instanceof InstrumentedCodec ) {
+            ((InstrumentedCodec)peer).setStatistics( statistics );
+        }
     }
     
     /**
@@ -226,6 +282,14 @@ public class VideoDecoder implements Codec {
      */
     public void close() {
         peer.close();
+
+        if ( statistics != null ) {
+            statistics.close();
+            statistics = null;
+            if ( peer instanceof InstrumentedCodec ) {
+                ((InstrumentedCodec)peer).setStatistics( null );
+            }
+        }
     }
     
     /**
@@ -245,17 +309,22 @@ public class VideoDecoder implements Codec {
     
     /**
      * This method returns the interfaces that can be used
-     * to control this codec.  Currently no interfaces are defined.
+     * to control this codec: a StatisticsControl.
      */
     public Object[] getControls() {
-        return null; //peer.getControls();
+        return new Object[] { statisticsControl };
     }
     
     /**
      * This method returns an interface that can be used
-     * to control this codec.  Currently no interfaces are defined.
+     * to control this codec.
      */
     public Object getControl( String type ) {
-        return null; //peer.getControl( type );
+        try {
+            if ( Class.forName( type ).isInstance( statisticsControl ) ) return statisticsControl;
+        } catch ( ClassNotFoundException e ) {
+            /* Unknown control */
+        }
+        return null;
     }
 }
@@ -29,20 +29,29 @@ import javax.media.Format;
 import javax.media.format.AudioFormat;
 import javax.media.Buffer;
 
-import net.sourceforge.jffmpeg.JMFCodec;
+import net.sourceforge.jffmpeg.CodecManager;
+import net.sourceforge.jffmpeg.JMFAudioCodec;
 import net.sourceforge.jffmpeg.GPLLicense;
+import net.sourceforge.jffmpeg.InstrumentedCodec;
+import net.sourceforge.jffmpeg.DecoderStatistics;
 import net.sourceforge.jffmpeg.codecs.audio.ac3.data.Tables;
 
 import net.sourceforge.jffmpeg.codecs.utils.BitStream;
 import net.sourceforge.jffmpeg.codecs.utils.FFMpegException;
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
 
 /**
  * AC3 Codec
  */
-public class AC3Decoder implements Codec, GPLLicense, JMFCodec {
+public class AC3Decoder implements Codec, GPLLicense, JMFAudioCodec, InstrumentedCodec {
     public static final boolean debug = false;
     int bias = 0;
 
+    /**
+     * Counters (null if disabled)
+     */
+    private DecoderStatistics statistics;
+
     
     public static final int SYNC_BYTES = 0x0b77;
     public static final int HEADER_LENGTH = 7;
@@ -140,8 +149,51 @@ public class AC3Decoder implements Codec, GPLLicense, JMFCodec {
     private int lfsr_state = 1;
     
     private Quantizer quant = new Quantizer();
+
+    /*
+     * Output channel layouts
+     */
+    /** Downmix to stereo (default) */
+    public static final int OUTPUT_STEREO = 0;
+    /** Channels in bitstream order followed by LFE, without downmixing */
+    public static final int OUTPUT_NATIVE = 1;
+    /** Always six channels L R C LFE SL SR, missing channels silent */
+    public static final int OUTPUT_5_1    = 2;
+
+    /** Source channel for L R C LFE SL SR in each acmod */
+    private static final int[][] surroundMap = new int[][] {
+        {  0,  1, -1, -1, -1, -1 },     /* Dual mono */
+        { -1, -1,  0, -1, -1, -1 },     /* C */
+        {  0,  1, -1, -1, -1, -1 },     /* L R */
+        {  0,  2,  1, -1, -1, -1 },     /* L C R */
+        {  0,  1, -1, -1,  2,  2 },     /* L R S */
+        {  0,  2,  1, -1,  3,  3 },     /* L C R S */
+        {  0,  1, -1, -1,  2,  3 },     /* L R SL SR */
+        {  0,  2,  1, -1,  3,  4 }      /* L C R SL SR */
+    };
+
+    private int   outputLayout = OUTPUT_STEREO;
+    private int[] channelOffsets = new int[ SoundOutput.MAX_OUTPUT_CHANNELS ];
+    private int   outputChannels = 2;
+    /** Channels (with LFE) in the last frame header, NOT_SPECIFIED before one */
+    private int   streamChannels = Format.NOT_SPECIFIED;
+    /** Negotiated output format, following the stream with OUTPUT_NATIVE */
+    private AudioFormat outputFormat;
+
+    /*
+     * Per block scratch, kept so that decoding a block does not allocate
+     */
+    private boolean[] blksw        = new boolean[ MAX_CHANNELS ];
+    private boolean[] dithflag     = new boolean[ MAX_CHANNELS ];
+    private int[]     chexpstr     = new int[ MAX_CHANNELS ];
+    private double[]  downmixCoeff = new double[ MAX_CHANNELS ];
+    private double[]  cplcoLocal   = new double[ MAX_CHANNELS ];
     
-    private double[] samplesOut = new double[ (MAX_CHANNELS + 2) * 256 * 2];
+    /**
+     * Coefficients and then PCM for each channel (LFE first) followed by
+     * the IMDCT delay lines, in the chosen precision
+     */
+    private final Samples samples;
     private boolean downmixed;
     
     BitStream in = new BitStream();
@@ -173,12 +225,58 @@ public class AC3Decoder implements Codec, GPLLicense, JMFCodec {
     public final double[] q_4_1 = Tables.getQ41Table();
     public final double[] q_5   = Tables.getQ5Table();
     
-    SoundOutput soundOutput = new SoundOutput();
+    SoundOutput soundOutput;
+    PcmOutput   pcmOutput   = new PcmOutput();
+
+    /**
+     * Decode in the precision and output layout chosen by ac3.Precision
+     * and ac3.OutputLayout in Jffmpeg.properties (or the system properties
+     * net.sourceforge.jffmpeg.ac3.Precision and .ac3.OutputLayout)
+     */
+    public AC3Decoder() {
+        this( "single".equalsIgnoreCase( CodecManager.getFormatSetting( "ac3", "Precision" ) ) );
+        setOutputLayout( parseOutputLayout( CodecManager.getFormatSetting( "ac3", "OutputLayout" ) ) );
+    }
+
+    /**
+     * A single precision decoder dequantises, downmixes and transforms
+     * in float, and keeps its samples, delay lines and IMDCT tables as
+     * float, halving the memory traffic of the transform.  Output
+     * differs from the double decoder by float rounding (well below 16
+     * bit resolution).
+     */
+    public AC3Decoder( boolean singlePrecision ) {
+        soundOutput = new SoundOutput( singlePrecision );
+        samples = Samples.create( singlePrecision, (MAX_CHANNELS + 2) * 256 * 2 );
+    }
+
+    public boolean isSinglePrecision() {
+        return samples.isSinglePrecision();
+    }
+
+    private void imdct( boolean shortBlock, int dataPointer, int delayPointer ) {
+        long start = (statistics != null) ? System.nanoTime() : 0;
+        if ( shortBlock ) {
+            samples.imdct256( soundOutput, dataPointer, delayPointer, bias );
+        } else {
+            samples.imdct512( soundOutput, dataPointer, delayPointer, bias );
+        }
+        if ( statistics != null ) statistics.addTime( DecoderStatistics.SYNTHESIS_TIME, start );
+    }
+
+    /**
+     * Samples per channel in a frame (6 blocks)
+     */
+    public static final int MAX_SAMPLES_PER_FRAME = 6 * 256;
+
     /**
      * Read synchronisation bytes and header
      */
     private boolean a52_syncinfo() throws FFMpegException {
         /* Check for synchronisation block */
+        if ( statistics != null && in.showBits( 16 ) != SYNC_BYTES ) {
+            statistics.count( DecoderStatistics.RESYNCS );
+        }
         while ( in.showBits( 16 ) != SYNC_BYTES ) {
             in.getBits(8);
 //            System.out.println( "Jump" );
@@ -300,14 +398,12 @@ if ( debug) System.out.println( "Sync - flags:" + Integer.toHexString( flags )
         int nfchans = nfchansValues[ acmod ];
 if ( debug && nfchans != 2 ) System.out.println( "nfchans " + nfchans + " acmod " + acmod );
         /* Read block switch */
-        boolean[] blksw = new boolean[ 5 ];
         for ( int i = 0; i < nfchans; i++ ) {
             blksw[i] = in.getTrueFalse();
 if ( debug ) System.out.println( "blksw[" + i + "]=" + (blksw[i]? 1:0) );
         }
         
         /* Read dither flags */
-        boolean[] dithflag = new boolean[ 5 ];
         for ( int i = 0; i < nfchans; i++ ) {
             dithflag[i] = in.getTrueFalse();
 if ( debug ) System.out.println( "dithflag[" + i + "]=" + (dithflag[i]? 1:0) );
@@ -421,7 +517,6 @@ if ( debug ) System.out.println( "i="+i+" j="+j+" cplco=" + cplco[i][j] );
             cplexpstr = in.getBits(2);
 if ( debug ) System.out.print( "cplextstr=" + cplexpstr + " " );
         }
-        int[] chexpstr = new int[ 5 ];
         for ( int i = 0; i < nfchans; i++ ) {
             chexpstr[i] = in.getBits(2);
 if ( debug ) System.out.print( "chextstr=" + chexpstr[i] + " " );
@@ -570,7 +665,10 @@ if ( debug ) System.out.println( "lfebaBai=" + (lfebaBai &7));
 //        if ( output & A52_LFE )
             samplesPointer += 256;
             
-        double[] coeff = new double[ 5 ];
+        double[] coeff = downmixCoeff;
+        for ( int i = 0; i < coeff.length; i++ ) {
+            coeff[ i ] = 0;
+        }
         if ( debug ) System.out.println( "dynrng " + show_sample(dynrng) + " clev " + show_sample(clev) + " slev " + show_sample(slev) );
         a52_downmix_coeff( coeff, acmod, dynrng, clev, slev );
         
@@ -581,7 +679,7 @@ if ( debug ) System.out.println( "lfebaBai=" + (lfebaBai &7));
         quant.setQ2Pointer( -1 );
         quant.setQ4Pointer( -1 );
         for ( int i = 0; i < nfchans; i++ ) {
-            coeff_get( samplesOut, samplesPointer + 256 * i,    // Output
+            coeff_get( samplesPointer + 256 * i,    // Output
                        fbw_expbapExp[i], fbw_expbapBap[i],    // Work area
                        quant,
                        coeff[ i ], dithflag[ i ], endmant[ i ] );
@@ -589,16 +687,14 @@ if ( debug ) System.out.println( "lfebaBai=" + (lfebaBai &7));
                 if ( !done_cpl ) {
                     done_cpl = true;
                     coeff_get_coupling( nfchans, coeff, 
-                                        samplesOut, samplesPointer, quant, dithflag ); 
+                                        samplesPointer, quant, dithflag ); 
                 }
                 j = cplendmant;
             } else {
                 j = endmant[i];
             }
             
-            do {
-                samplesOut[ samplesPointer + 256*i +j ] = 0;
-            } while ( ++j < 256 );
+            samples.clear( samplesPointer + 256*i + j, samplesPointer + 256*i + 256 );
         }
         
 if ( debug ) {
@@ -606,7 +702,7 @@ if ( debug ) {
     for ( int ch = 0; ch < nfchans; ch++ ) {
         System.out.println( "\nChannel " + ch );
         for ( int i = 0; i < 256; i++ ) {
-            System.out.print( show_sample( samplesOut[ samplesPointer + i + 256 * ch] ) + " " );
+            System.out.print( show_sample( samples.get( samplesPointer + i + 256 * ch ) ) + " " );
         }
     }
     System.out.println();
@@ -626,13 +722,10 @@ if ( debug ) {
                 rematflgLocal >>= 1;
                 int band = rematrix_band[ i++ ];
                 if ( band > end ) band = end;
-                do {
-//System.out.println( "Reorder " + j );
-                    double tmp0 = samplesOut[ samplesPointer + j ];
-                    double tmp1 = samplesOut[ samplesPointer + j + 256 ];
-                    samplesOut[ samplesPointer + j       ] = tmp0 + tmp1;
-                    samplesOut[ samplesPointer + j + 256 ] = tmp0 - tmp1;
-                } while ( ++j < band );
+                /* At least one coefficient, as a52dec */
+                if ( band <= j ) band = j + 1;
+                samples.rematrix( samplesPointer, j, band );
+                j = band;
             } while ( j < end );
         }
         
@@ -641,7 +734,7 @@ if ( debug ) {
     for ( int ch = 0; ch < nfchans; ch++ ) {
         System.out.println( "\nChannel " + ch );
         for ( int i = 0; i < 256; i++ ) {
-            System.out.print( show_sample( samplesOut[ samplesPointer + i + 256 * ch] ) + " " );
+            System.out.print( show_sample( samples.get( samplesPointer + i + 256 * ch ) ) + " " );
         }
     }
     System.out.println();
@@ -649,14 +742,12 @@ if ( debug ) {
         if ( lfeon ) {
 //            if ( output & A52_LFE )
             {
-                coeff_get( samplesOut, samplesPointer - 256, 
+                coeff_get( samplesPointer - 256, 
                            lfe_expbapExp, lfe_expbapBap,
                            quant,
-                           0, false, 7 );
-                for ( int i = 7; i < 256; i++ ) {
-                    samplesOut[ samplesPointer - 256 + i ] = 0;
-                }
-                soundOutput.a52_imdct_512( samplesOut, samplesPointer - 256, samplesPointer -256 + 1536, bias );
+                           dynrng, false, 7 );
+                samples.clear( samplesPointer - 256 + 7, samplesPointer );
+                imdct( false, samplesPointer - 256, samplesPointer -256 + 1536 );
             }
         }
         
@@ -684,16 +775,12 @@ if ( debug ) {
                 
                 if ( coeff[i] != 0 ) {
                     if ( blksw[i] ) {
-                        soundOutput.a52_imdct_256( samplesOut, samplesPointer + 256 * i, 
-                                                   samplesPointer + 1536 + 256 * i, bias );
+                        imdct( true, samplesPointer + 256 * i, samplesPointer + 1536 + 256 * i );
                     } else {
-                        soundOutput.a52_imdct_512( samplesOut, samplesPointer + 256 * i, 
-                                       samplesPointer + 1536 + 256 * i, bias );
+                        imdct( false, samplesPointer + 256 * i, samplesPointer + 1536 + 256 * i );
                     }
                 } else {
-                    for ( j = 0; j < 256; j++ ) {
-                        samplesOut[ samplesPointer + 256 * i + j ] = 0;
-                    }
+                    samples.clear( samplesPointer + 256 * i, samplesPointer + 256 * i + 256 );
                 }
             }
             //a52_downmix( );
@@ -710,16 +797,18 @@ if ( debug ) {
 
             if ( blksw[ 0 ] ) {
                 for ( i = 0; i < nfchans; i++ ) {
-                    soundOutput.a52_imdct_256( samplesOut, samplesPointer + 256 * i, 
-                                               samplesPointer + 1536 + 256 * i, bias );
+                    imdct( true, samplesPointer + 256 * i, samplesPointer + 1536 + 256 * i );
                 }
             } else {
                 for ( i = 0; i < nfchans; i++ ) {
-                    soundOutput.a52_imdct_512( samplesOut, samplesPointer + 256 * i, 
-                                               samplesPointer + 1536 + 256 * i, bias );
+                    imdct( false, samplesPointer + 256 * i, samplesPointer + 1536 + 256 * i );
                 }
             }
         }          
+
+        if ( outputLayout == OUTPUT_STEREO ) {
+            a52_downmix( samplesPointer, acmod );
+        }
     }
 
     private static final int[] slowgainValues = new int[] { 0x540, 0x4d8, 0x478, 0x410 };
@@ -943,34 +1032,32 @@ if ( debug ) System.out.println( "dither_gen=" + lfsr_state );
     }
         
     
-    private void coeff_get( double[] samples, int samplesPointer, byte[] exp, byte[] bap,
+    private void coeff_get( int samplesPointer, byte[] exp, byte[] bap,
                             Quantizer quant,
                             double level, boolean dither, int end) throws FFMpegException {
 
                                 if ( debug ) System.out.println( "coeff_get " + show_sample(level) );
-        double[] factor = new double[ 25 ];
-        for ( int i = 0; i <= 24; i++ ) {
-            factor[ i ] = scale_factor[ i ] * level;
-        }
+        Samples samples = this.samples;
+        samples.setLevel( scale_factor, level );
         
         for ( int i = 0; i < end; i++ ) {
-if ( debug ) if ( i != 0 ) System.out.println( "coeff_get: sample=" + show_sample(samples[ samplesPointer + i - 1]) );
+if ( debug ) if ( i != 0 ) System.out.println( "coeff_get: sample=" + show_sample(samples.get( samplesPointer + i - 1 )) );
             int bapi = bap[i];
 if ( debug ) System.out.println( "bapi=" + bapi );
             switch ( bapi ) {
                 case 0: {
                     if ( dither ) {
                         int d = dither_gen();
-                        samples[ samplesPointer + i ] = d * factor[exp[i]] * LEVEL_3DB;    /* NOTE VERSION */
-if ( debug ) System.out.println( "dither " + exp[i] + " " + d + " " + show_sample(samples[ samplesPointer + i ]) );
+                        samples.dequantise( samplesPointer + i, d * LEVEL_3DB, exp[i] );    /* NOTE VERSION */
+if ( debug ) System.out.println( "dither " + exp[i] + " " + d + " " + show_sample(samples.get( samplesPointer + i )) );
                     } else {
-                        samples[ samplesPointer + i ] = 0;
+                        samples.set( samplesPointer + i, 0 );
                     }
                     break;
                 }
                 case -1: {
                     if ( quant.getQ1Pointer() >= 0 ) {
-                        samples[ samplesPointer + i ] = quant.getQ1()[ quant.getQ1Pointer() ] * factor[ exp[i] ];
+                        samples.dequantise( samplesPointer + i, quant.getQ1()[ quant.getQ1Pointer() ], exp[i] );
 //System.out.println( "case -1 Q1=" + show_sample(quant.getQ1()[ quant.getQ1Pointer() ]) );
                         quant.setQ1Pointer( quant.getQ1Pointer() - 1 );
                     } else {
@@ -979,30 +1066,30 @@ if ( debug ) System.out.println( "dither " + exp[i] + " " + d + " " + show_sampl
                         quant.setQ1Pointer( 1 );
                         quant.getQ1()[0] = q_1_2[code];
                         quant.getQ1()[1] = q_1_1[code];
-                        samples[ samplesPointer + i ] =q_1_0[code] * factor[ exp[i] ];
+                        samples.dequantise( samplesPointer + i, q_1_0[code], exp[i] );
                     }
                     break;
                 }
                 case -2: {
                     if ( quant.getQ2Pointer() >= 0 ) {
-                        samples[ samplesPointer + i ] =quant.getQ2()[ quant.getQ2Pointer() ] * factor[ exp[i] ];
+                        samples.dequantise( samplesPointer + i, quant.getQ2()[ quant.getQ2Pointer() ], exp[i] );
                         quant.setQ2Pointer( quant.getQ2Pointer() - 1 );
                     } else {
                         int code = in.getBits( 7 );
                         quant.setQ2Pointer( 1 );
                         quant.getQ2()[0] = q_2_2[code];
                         quant.getQ2()[1] = q_2_1[code];
-                        samples[ samplesPointer + i ] = q_2_0[code] * factor[ exp[i] ];
+                        samples.dequantise( samplesPointer + i, q_2_0[code], exp[i] );
                     }
                     break;
                 }
                 case 3: {
-                    samples[ samplesPointer + i ] = q_3[ in.getBits(3) ] * factor[ exp[i] ];
+                    samples.dequantise( samplesPointer + i, q_3[ in.getBits(3) ], exp[i] );
                     break;
                 }
                 case -3: {
                     if ( quant.getQ4Pointer() == 0 ) {
-                        samples[ samplesPointer + i ] = quant.getQ4()[0] * factor[ exp[i] ];
+                        samples.dequantise( samplesPointer + i, quant.getQ4()[0], exp[i] );
 //System.out.println( "-3A: q_4=" + quant.getQ4()[0] + " exp[" + i+"]=" + exp[i] );
                         quant.setQ4Pointer( -1 );
                     } else {
@@ -1010,18 +1097,18 @@ if ( debug ) System.out.println( "dither " + exp[i] + " " + d + " " + show_sampl
 //System.out.println( "-3B: code=" + code + " q_4_0=" + q_4_0[code] + " level=" + level );
                         quant.setQ4Pointer( 0 );
                         quant.getQ4()[0] = q_4_1[code];
-                        samples[ samplesPointer + i ] = q_4_0[code] * factor[ exp[i] ];
+                        samples.dequantise( samplesPointer + i, q_4_0[code], exp[i] );
                     }
                     break;
                 }
                 case 4: {
-                    samples[ samplesPointer + i ] = q_5[in.getBits(4)] * factor[ exp[i] ];
+                    samples.dequantise( samplesPointer + i, q_5[in.getBits(4)], exp[i] );
                     break;
                 }
                 default: {
                     int tmp = bitstream_get_2(bapi);
                     if ( debug ) System.out.println( "default " + tmp + " " + i + " " + exp[i] );
-                    samples[ samplesPointer + i ] = ((double)(tmp << (16 - bapi))) * factor[exp[i]];
+                    samples.dequantise( samplesPointer + i, ((double)(tmp << (16 - bapi))), exp[i] );
                     break;
                 }
             }                
@@ -1040,10 +1127,10 @@ if ( debug ) System.out.println( "dither " + exp[i] + " " + d + " " + show_sampl
     }
         
     private void coeff_get_coupling( int nfchans, double[] coeff, 
-                                     double[] samples, int samplesPointer, 
+                                     int samplesPointer, 
                                      Quantizer quant,
                                      boolean[] dithflag ) throws FFMpegException {
-        double[] cplcoLocal = new double[ 5 ];
+        double[] cplcoLocal = this.cplcoLocal;
         byte[] exp = cpl_expbapExp;
         byte[] bap = cpl_expbapBap;
         int bnd = 0;
@@ -1068,7 +1155,7 @@ if ( debug ) System.out.println( "cplcoLocal[" + ch + "]=" + show_sample(cplcoLo
 if ( debug && i != 0 ) { 
     System.out.print( "coeff_get_coupling: sample=" );
     for ( int ch = 0; ch < nfchans; ch++ ) {
-        System.out.print( show_sample(samples[ samplesPointer + i - 1 + ch * 256 ])+ ", ");
+        System.out.print( show_sample(samples.get( samplesPointer + i - 1 + ch * 256 ))+ ", ");
     }
     System.out.println();
 }
@@ -1080,11 +1167,11 @@ if ( debug ) System.out.println( "bapi=" + bapi );
                         for ( int ch = 0; ch < nfchans; ch++ ) {
                             if ( ((chincpl >> ch ) & 1) != 0 ) {
                                 if ( dithflag[ ch ] ) {
-                                    samples[ samplesPointer + i + ch * 256 ] = cplcoeff * cplcoLocal[ch] * dither_gen();
+                                    samples.set( samplesPointer + i + ch * 256, cplcoeff * cplcoLocal[ch] * dither_gen() );
 if ( debug ) System.out.println( "cplcoeff " + show_sample(cplcoLocal[ch]) );
                                 } else {
 if ( debug ) System.out.println( "!dithflag" );
-                                    samples[ samplesPointer + i + ch * 256 ] = 0;
+                                    samples.set( samplesPointer + i + ch * 256, 0 );
                                 }
                             }
                         }
@@ -1146,7 +1233,7 @@ if ( debug ) System.out.println( "!dithflag" );
                 cplcoeff *= scale_factor[ exp[i] ];
                 for ( int ch = 0; ch < nfchans; ch++ ) {
                     if ( ((chincpl >> ch ) & 1) != 0 ) {
-                        samples[ samplesPointer + i + ch * 256 ] = cplcoeff * cplcoLocal[ch];
+                        samples.set( samplesPointer + i + ch * 256, cplcoeff * cplcoLocal[ch] );
                     }                    
                 }
                 i++;
@@ -1171,12 +1258,19 @@ if ( debug ) System.out.println( "!dithflag" );
     }
 
     private void downmix_init( int acmod ) {
-        /* Stereo output 
+        /* Discrete channels keep their level */
+        if ( outputLayout != OUTPUT_STEREO ) return;
+
+        /* Stereo output */
         switch ( acmod ) {
             case A52_3F: {
                 level /= 1 + clev;
                 break;
             }
+            case A52_2F1R: {
+                level /= 1 + slev * LEVEL_3DB;
+                break;
+            }
             case A52_3F1R: {
                 level /= 1 + clev + slev * LEVEL_3DB;
                 break;
@@ -1190,13 +1284,28 @@ if ( debug ) System.out.println( "!dithflag" );
                 break;
             }
         }        
-         */
     }
     
     private void a52_downmix_coeff( double[] coeff, int acmod, double level, double clev, double slev ) {
-        /* TODO - depends on output mode */
+        /* Discrete channels are passed through at the same level */
+        if ( outputLayout != OUTPUT_STEREO ) {
+            for ( int i = 0; i < coeff.length; i++ ) {
+                coeff[ i ] = level;
+            }
+            return;
+        }
+
         /* Stereo output */
         switch ( acmod ) {
+            case A52_CHANNEL: {
+                coeff[ 0 ] = level;
+                coeff[ 1 ] = level;
+                break;
+            }
+            case A52_MONO: {
+                coeff[ 0 ] = level * LEVEL_3DB;
+                break;
+            }
             case A52_STEREO: {
                 coeff[ 0 ] = level;
                 coeff[ 1 ] = level;
@@ -1251,6 +1360,95 @@ if ( debug ) System.out.println( "!dithflag" );
         }
     }
     
+    /**
+     * Mix the channels of the current block into the first two channel
+     * slots, for stereo output.  The coefficients from a52_downmix_coeff
+     * have already scaled each channel.
+     */
+    private void a52_downmix( int samplesPointer, int acmod ) {
+        int left   = samplesPointer;
+        int right  = samplesPointer + 256;
+        int third  = samplesPointer + 512;
+        int fourth = samplesPointer + 768;
+        int fifth  = samplesPointer + 1024;
+        switch ( acmod ) {
+            case A52_MONO: {
+                samples.copy( right, left );
+                break;
+            }
+            case A52_3F: {
+                /* L C R */
+                samples.add( left,  left,  right );
+                samples.add( right, third, right );
+                break;
+            }
+            case A52_2F1R: {
+                samples.add( left,  left,  third );
+                samples.add( right, right, third );
+                break;
+            }
+            case A52_3F1R: {
+                /* L C R S, the surround slot holds C + S */
+                samples.add( fourth, right, fourth );
+                samples.add( left,   left,  fourth );
+                samples.add( right,  third, fourth );
+                break;
+            }
+            case A52_2F2R: {
+                samples.add( left,  left,  third );
+                samples.add( right, right, fourth );
+                break;
+            }
+            case A52_3F2R: {
+                /* L C R SL SR, the surround slots hold C + SL and C + SR */
+                samples.add( fourth, fourth, right );
+                samples.add( fifth,  fifth,  right );
+                samples.add( left,   left,   fourth );
+                samples.add( right,  third,  fifth );
+                break;
+            }
+            default: {
+                /* Stereo and dual mono are already two channels */
+                break;
+            }
+        }
+    }
+
+    /**
+     * Start of each output channel in the sample buffer for the chosen
+     * layout, -1 for silence.  Channel k of the block is at 256 * (k + 1)
+     * and LFE at 0.
+     */
+    private int setChannelOffsets( int acmod ) {
+        int[] offsets = channelOffsets;
+        int nfchans = nfchansValues[ acmod ];
+        switch ( outputLayout ) {
+            case OUTPUT_NATIVE: {
+                for ( int i = 0; i < nfchans; i++ ) {
+                    offsets[ i ] = 256 * (i + 1);
+                }
+                if ( lfeon ) {
+                    offsets[ nfchans++ ] = 0;
+                }
+                return nfchans;
+            }
+            case OUTPUT_5_1: {
+                /* WAVE order: L R C LFE SL SR */
+                int[] map = surroundMap[ acmod & 7 ];
+                for ( int i = 0; i < 6; i++ ) {
+                    offsets[ i ] = (map[ i ] < 0) ? -1 : 256 * (map[ i ] + 1);
+                }
+                offsets[ 3 ] = lfeon ? 0 : -1;
+                return 6;
+            }
+            default: {
+                offsets[ 0 ] = 256;
+                offsets[ 1 ] = 512;
+                return 2;
+            }
+        }
+    }
+
     /* Read Deltba */
     private void parse_deltba( int[] deltba ) throws FFMpegException {
         for ( int i = 0; i < deltba.length; i++ ) {
@@ -1326,7 +1524,8 @@ if ( debug ) System.out.println( "parse_exponents " + ngrps );
     }
     
     public Format[] getSupportedOutputFormats(Format format) {
-        return new Format[] { new AudioFormat( "LINEAR" ) };
+        AudioFormat input = (format instanceof AudioFormat) ? (AudioFormat)format : null;
+        return PcmOutput.getSupportedOutputFormats( input, getLayoutChannels( input ) );
     }
     
     private AudioFormat inputFormat;
@@ -1336,10 +1535,60 @@ if ( debug ) System.out.println( "parse_exponents " + ngrps );
     }
     
     public Format setOutputFormat( Format format ) {
-        return new AudioFormat("LINEAR", inputFormat.getSampleRate(),
-                                         inputFormat.getSampleSizeInBits() > 0 ? inputFormat.getSampleSizeInBits() : 16,
-                                         inputFormat.getChannels(),
-                                         0, 1); // endian, int signed
+        outputFormat = pcmOutput.setOutputFormat( inputFormat, getLayoutChannels( inputFormat ), format );
+        return outputFormat;
+    }
+
+    /**
+     * Choose OUTPUT_STEREO, OUTPUT_NATIVE or OUTPUT_5_1.  Call before
+     * the output format is negotiated.
+     */
+    public void setOutputLayout( int outputLayout ) {
+        if ( outputLayout < OUTPUT_STEREO || outputLayout > OUTPUT_5_1 ) {
+            throw new IllegalArgumentException( "Unknown output layout " + outputLayout );
+        }
+        this.outputLayout = outputLayout;
+    }
+
+    public int getOutputLayout() {
+        return outputLayout;
+    }
+
+    /**
+     * Layout for a setting of "stereo", "native" or "5.1", stereo if
+     * the setting is missing or unknown
+     */
+    public static int parseOutputLayout( String setting ) {
+        if ( "native".equalsIgnoreCase( setting ) ) return OUTPUT_NATIVE;
+        if ( "5.1".equals( setting ) ) return OUTPUT_5_1;
+        return OUTPUT_STEREO;
+    }
+
+    /**
+     * Channels in the last decoded block (OUTPUT_NATIVE follows the stream)
+     */
+    public int getOutputChannels() {
+        return outputChannels;
+    }
+
+    private int getLayoutChannels( AudioFormat input ) {
+        switch ( outputLayout ) {
+            case OUTPUT_NATIVE: {
+                /* The container's channel count may be wrong (VOB always says 2) */
+                if ( streamChannels != Format.NOT_SPECIFIED ) return streamChannels;
+                return (input != null) ? input.getChannels() : Format.NOT_SPECIFIED;
+            }
+            case OUTPUT_5_1: {
+                return 6;
+            }
+            default: {
+                return 2;
+            }
+        }
+    }
+
+    public int maxSamplesPerFrame() {
+        return MAX_SAMPLES_PER_FRAME;
     }
     
     private boolean readSyncBlock = true;
@@ -1352,6 +1601,7 @@ if ( debug ) System.out.println( "parse_exponents " + ngrps );
             byte[] data = (byte[])input.getData();  //in.getLength
             int    length = input.getLength();
 
+            output.setOffset(0);
             output.setLength(0);
 //            System.out.println( "Process" );
             /*
@@ -1387,14 +1637,29 @@ if ( debug ) System.out.println( "parse_exponents " + ngrps );
                 if ( in.availableBits() >= frame_length * 8 ) {
                     int syncPos = in.getPos();
                     a52_frame();
+                    streamChannels = nfchansValues[ acmod ] + (lfeon ? 1 : 0);
+                    int channels = getLayoutChannels( inputFormat );
+                    if ( output.getLength() > 0 && channels != outputChannels ) {
+                        /* One Buffer has one format, decode this frame next time */
+                        in.seek( syncPos );
+                        break;
+                    }
+                    if ( outputFormat != null && outputFormat.getChannels() != channels ) {
+                        outputFormat = (AudioFormat)PcmOutput.getSupportedOutputFormats(
+                                                 inputFormat, channels )[ pcmOutput.getType() ];
+                    }
                     //a52_dynring()
                     while ( in.getPos() - syncPos < (frame_length - HEADER_LENGTH) * 8 ) {
                         a52_block();
-                        soundOutput.getAudioBuffer( samplesOut, 2, output );
+                        outputChannels = setChannelOffsets( acmod );
+                        long start = (statistics != null) ? System.nanoTime() : 0;
+                        samples.output( soundOutput, channelOffsets, outputChannels, pcmOutput, output );
+                        if ( statistics != null ) statistics.addTime( DecoderStatistics.SYNTHESIS_TIME, start );
                     }
                     readSyncBlock = true;
                 } else break;
             } 
+            if ( outputFormat != null ) output.setFormat( outputFormat );
 //            System.out.println( "EXITING!!!" );
         } catch (Exception e) {
 //            e.printStackTrace();
@@ -1426,6 +1691,17 @@ if ( debug ) System.out.println( "parse_exponents " + ngrps );
         return null;
     }
 
+    /**
+     * Time imdct and output into these statistics
+     */
+    public void setStatistics( DecoderStatistics statistics ) {
+        this.statistics = statistics;
+    }
+
+    public String getFrameType() {
+        return null;
+    }
+
     /**
      * Implement the Jffmpeg codec interface
      */
@@ -0,0 +1,243 @@
+/*
+ * This is a Java port of the a52dec audio codec,a free ATSC A-52 stream decoder.
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * Copyright (C) 2000-2003 Michel Lespinasse <walken@zoy.org>
+ * Copyright (C) 1999-2000 Aaron Holtzman <aholtzma@ess.engr.uvic.ca>
+ *
+ * a52dec is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * a52dec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.sourceforge.jffmpeg.codecs.audio.ac3;
+
+import javax.media.Buffer;
+
+import net.sourceforge.jffmpeg.GPLLicense;
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
+
+/**
+ * The sample buffer of the decoder: coefficients and then PCM for each
+ * channel (LFE first) followed by the IMDCT delay lines.
+ *
+ * The decoder picks the double or float implementation when it is
+ * created, and from then on dequantises, rematrixes, downmixes and
+ * transforms in that precision.
+ */
+abstract class Samples implements GPLLicense {
+    /** Samples in a block of one channel */
+    public static final int BLOCK = 256;
+
+    /**
+     * Create a buffer of size samples
+     */
+    static Samples create( boolean singlePrecision, int size ) {
+        if ( singlePrecision ) return new SinglePrecision( size );
+        return new DoublePrecision( size );
+    }
+
+    public abstract boolean isSinglePrecision();
+
+    /**
+     * Scale factors for each exponent at this level, used by dequantise
+     */
+    public abstract void setLevel( double[] scaleFactors, double level );
+
+    /**
+     * Store mantissa scaled by the factor for exponent
+     */
+    public abstract void dequantise( int index, double mantissa, int exponent );
+
+    public abstract void set( int index, double value );
+
+    public abstract double get( int index );
+
+    /**
+     * Zero samples [from, to)
+     */
+    public abstract void clear( int from, int to );
+
+    /**
+     * Rematrix [from, to) of the two channels at pointer into sum and
+     * difference
+     */
+    public abstract void rematrix( int pointer, int from, int to );
+
+    /**
+     * Block at destination = block at a + block at b (any of them may
+     * be the same block)
+     */
+    public abstract void add( int destination, int a, int b );
+
+    public abstract void copy( int destination, int source );
+
+    public abstract void imdct512( SoundOutput soundOutput, int dataPointer, int delayPointer, double bias );
+
+    public abstract void imdct256( SoundOutput soundOutput, int dataPointer, int delayPointer, double bias );
+
+    /**
+     * Interleave the channels at channelOffsets into output
+     */
+    public abstract void output( SoundOutput soundOutput, int[] channelOffsets, int numberOfChannels,
+                                 PcmOutput pcmOutput, Buffer output );
+
+    /**
+     * Samples as double
+     */
+    static final class DoublePrecision extends Samples {
+        private final double[] data;
+        private final double[] factor = new double[ 25 ];
+
+        DoublePrecision( int size ) {
+            data = new double[ size ];
+        }
+
+        public boolean isSinglePrecision() {
+            return false;
+        }
+
+        public void setLevel( double[] scaleFactors, double level ) {
+            for ( int i = 0; i < factor.length; i++ ) {
+                factor[ i ] = scaleFactors[ i ] * level;
+            }
+        }
+
+        public void dequantise( int index, double mantissa, int exponent ) {
+            data[ index ] = mantissa * factor[ exponent ];
+        }
+
+        public void set( int index, double value ) {
+            data[ index ] = value;
+        }
+
+        public double get( int index ) {
+            return data[ index ];
+        }
+
+        public void clear( int from, int to ) {
+            for ( int i = from; i < to; i++ ) {
+                data[ i ] = 0;
+            }
+        }
+
+        public void rematrix( int pointer, int from, int to ) {
+            double[] data = this.data;
+            for ( int j = pointer + from; j < pointer + to; j++ ) {
+                double tmp0 = data[ j ];
+                double tmp1 = data[ j + BLOCK ];
+                data[ j ]         = tmp0 + tmp1;
+                data[ j + BLOCK ] = tmp0 - tmp1;
+            }
+        }
+
+        public void add( int destination, int a, int b ) {
+            double[] data = this.data;
+            for ( int i = 0; i < BLOCK; i++ ) {
+                data[ destination + i ] = data[ a + i ] + data[ b + i ];
+            }
+        }
+
+        public void copy( int destination, int source ) {
+            System.arraycopy( data, source, data, destination, BLOCK );
+        }
+
+        public void imdct512( SoundOutput soundOutput, int dataPointer, int delayPointer, double bias ) {
+            soundOutput.a52_imdct_512( data, dataPointer, delayPointer, bias );
+        }
+
+        public void imdct256( SoundOutput soundOutput, int dataPointer, int delayPointer, double bias ) {
+            soundOutput.a52_imdct_256( data, dataPointer, delayPointer, bias );
+        }
+
+        public void output( SoundOutput soundOutput, int[] channelOffsets, int numberOfChannels,
+                            PcmOutput pcmOutput, Buffer output ) {
+            soundOutput.getAudioBuffer( data, channelOffsets, numberOfChannels, pcmOutput, output );
+        }
+    }
+
+    /**
+     * Samples as float, halving the memory traffic of the transform.
+     * Output differs from the double decoder by float rounding (well
+     * below 16 bit resolution).
+     */
+    static final class SinglePrecision extends Samples {
+        private final float[] data;
+        private final float[] factor = new float[ 25 ];
+
+        SinglePrecision( int size ) {
+            data = new float[ size ];
+        }
+
+        public boolean isSinglePrecision() {
+            return true;
+        }
+
+        public void setLevel( double[] scaleFactors, double level ) {
+            for ( int i = 0; i < factor.length; i++ ) {
+                factor[ i ] = (float)(scaleFactors[ i ] * level);
+            }
+        }
+
+        public void dequantise( int index, double mantissa, int exponent ) {
+            data[ index ] = (float)mantissa * factor[ exponent ];
+        }
+
+        public void set( int index, double value ) {
+            data[ index ] = (float)value;
+        }
+
+        public double get( int index ) {
+            return data[ index ];
+        }
+
+        public void clear( int from, int to ) {
+            for ( int i = from; i < to; i++ ) {
+                data[ i ] = 0;
+            }
+        }
+
+        public void rematrix( int pointer, int from, int to ) {
+            float[] data = this.data;
+            for ( int j = pointer + from; j < pointer + to; j++ ) {
+                float tmp0 = data[ j ];
+                float tmp1 = data[ j + BLOCK ];
+                data[ j ]         = tmp0 + tmp1;
+                data[ j + BLOCK ] = tmp0 - tmp1;
+            }
+        }
+
+        public void add( int destination, int a, int b ) {
+            float[] data = this.data;
+            for ( int i = 0; i < BLOCK; i++ ) {
+                data[ destination + i ] = data[ a + i ] + data[ b + i ];
+            }
+        }
+
+        public void copy( int destination, int source ) {
+            System.arraycopy( data, source, data, destination, BLOCK );
+        }
+
+        public void imdct512( SoundOutput soundOutput, int dataPointer, int delayPointer, double bias ) {
+            soundOutput.a52_imdct_512( data, dataPointer, delayPointer, (float)bias );
+        }
+
+        public void imdct256( SoundOutput soundOutput, int dataPointer, int delayPointer, double bias ) {
+            soundOutput.a52_imdct_256( data, dataPointer, delayPointer, (float)bias );
+        }
+
+        public void output( SoundOutput soundOutput, int[] channelOffsets, int numberOfChannels,
+                            PcmOutput pcmOutput, Buffer output ) {
+            soundOutput.getAudioBuffer( data, channelOffsets, numberOfChannels, pcmOutput, output );
+        }
+    }
+}
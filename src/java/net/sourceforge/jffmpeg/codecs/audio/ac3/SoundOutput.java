@@ -24,6 +24,7 @@ package net.sourceforge.jffmpeg.codecs.audio.ac3;
 import javax.media.Buffer;
 
 import net.sourceforge.jffmpeg.GPLLicense;
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
 
 /**
  *
@@ -248,11 +249,11 @@ if ( debug ) {
             int q = 2 * (2 * k);
 
             /* Z1[k] = (X1[128-2*k-1] + j * X1[2*k]) * (xcos2[k] + j * xsin2[k]); */ 
-            buf_1_re[k] =          data[p] * xcos2[k] - data[q] * xsin2[k];
-            buf_1_im[k] = -1.0f * (data[q] * xcos2[k] + data[p] * xsin2[k]); 
+            buf_1_re[k] =          data[dataPointer + p] * xcos2[k] - data[dataPointer + q] * xsin2[k];
+            buf_1_im[k] = -1.0f * (data[dataPointer + q] * xcos2[k] + data[dataPointer + p] * xsin2[k]); 
             /* Z2[k] = (X2[128-2*k-1] + j * X2[2*k]) * (xcos2[k] + j * xsin2[k]); */ 
-            buf_2_re[k] =           data[p + 1] * xcos2[k] - data[q + 1] * xsin2[k];
-            buf_2_im[k] = -1.0f * ( data[q + 1] * xcos2[k] + data[p + 1] * xsin2[k]); 
+            buf_2_re[k] =           data[dataPointer + p + 1] * xcos2[k] - data[dataPointer + q + 1] * xsin2[k];
+            buf_2_im[k] = -1.0f * ( data[dataPointer + q + 1] * xcos2[k] + data[dataPointer + p + 1] * xsin2[k]); 
         }
 
         /* IFFT Bit reversed shuffling */
@@ -352,18 +353,36 @@ if ( debug ) {
         }
     }
     
-    private double[] xcos1 = new double[ 128 ];
-    private double[] xsin1 = new double[ 128 ];
-    private double[] xcos2 = new double[ 64 ];
-    private double[] xsin2 = new double[ 64 ];
-    private double[][] w_re = new double[8][256];
-    private double[][] w_im = new double[8][256];
+    private double[] xcos1;
+    private double[] xsin1;
+    private double[] xcos2;
+    private double[] xsin2;
+    private double[][] w_re;
+    private double[][] w_im;
     /**
      * Constructor cache values
      */
     public SoundOutput() {
+        this( false );
+    }
+
+    /**
+     * Only the tables for the chosen precision are built
+     */
+    public SoundOutput( boolean singlePrecision ) {
     	int i, j, k;
 
+        if ( singlePrecision ) {
+            initFloatTables();
+            return;
+        }
+        xcos1 = new double[ 128 ];
+        xsin1 = new double[ 128 ];
+        xcos2 = new double[ 64 ];
+        xsin2 = new double[ 64 ];
+        w_re  = new double[8][256];
+        w_im  = new double[8][256];
+
 	/* Twiddle factors to turn IFFT into IMDCT */
 	for (i = 0; i < 128; i++) {
 	    xcos1[i] = -Math.cos ((Math.PI / 2048) * (8 * i + 1));
@@ -385,48 +404,323 @@ if ( debug ) {
 	}
     }
 
-    
+    /*
+     * Single precision IMDCT.  The same transform as above with float
+     * tables and buffers, for AC3Decoder( true ).
+     */
+    private static final float[] windowFloat = new float[ 256 ];
+    static {
+        for ( int i = 0; i < 256; i++ ) {
+            windowFloat[ i ] = (float)window[ i ];
+        }
+    }
+
+    private float[] xcos1f;
+    private float[] xsin1f;
+    private float[] xcos2f;
+    private float[] xsin2f;
+    private float[][] wf_re;
+    private float[][] wf_im;
+
+    private float[] bf_re;
+    private float[] bf_im;
+    private float[] bf_1_re;
+    private float[] bf_1_im;
+    private float[] bf_2_re;
+    private float[] bf_2_im;
+
+    private void initFloatTables() {
+        xcos1f = new float[ 128 ];
+        xsin1f = new float[ 128 ];
+        xcos2f = new float[ 64 ];
+        xsin2f = new float[ 64 ];
+        wf_re  = new float[ 7 ][];
+        wf_im  = new float[ 7 ][];
+        for ( int i = 0; i < 128; i++ ) {
+            xcos1f[i] = (float)-Math.cos( (Math.PI / 2048) * (8 * i + 1) );
+            xsin1f[i] = (float)-Math.sin( (Math.PI / 2048) * (8 * i + 1) );
+        }
+        for ( int i = 0; i < 64; i++ ) {
+            xcos2f[i] = (float)-Math.cos( (Math.PI / 1024) * (8 * i + 1) );
+            xsin2f[i] = (float)-Math.sin( (Math.PI / 1024) * (8 * i + 1) );
+        }
+        for ( int i = 0; i < 7; i++ ) {
+            int j = 1 << i;
+            wf_re[i] = new float[ j ];
+            wf_im[i] = new float[ j ];
+            for ( int k = 0; k < j; k++ ) {
+                wf_re[i][k] = (float)Math.cos( -Math.PI * k / j );
+                wf_im[i][k] = (float)Math.sin( -Math.PI * k / j );
+            }
+        }
+        bf_re   = new float[ 128 ];
+        bf_im   = new float[ 128 ];
+        bf_1_re = new float[ 64 ];
+        bf_1_im = new float[ 64 ];
+        bf_2_re = new float[ 64 ];
+        bf_2_im = new float[ 64 ];
+
+        /* Double precision work areas are not needed */
+        buf_re   = null;
+        buf_im   = null;
+        buf_1_re = null;
+        buf_1_im = null;
+        buf_2_re = null;
+        buf_2_im = null;
+    }
+
+    private final void swap_cmplx( float[] buf_re, float[] buf_im, int i, int k) {
+        float re = buf_re[i];
+        float im = buf_im[i];
+        buf_re[i] = buf_re[k];
+        buf_im[i] = buf_im[k];
+        buf_re[k] = re;
+        buf_im[k] = im;
+    }
+
+    public void a52_imdct_512( float[] data, int dataPointer, int delayPointer, float bias ) {
+        float[] buf_re = bf_re;
+        float[] buf_im = bf_im;
+
+        /* Pre IFFT complex multiply plus IFFT cmplx conjugate */
+        for( int i = 0; i < 128; i++) {
+            buf_re[i] =   (data[dataPointer + 256-2*i-1] * xcos1f[i])  -  (data[dataPointer + 2*i]       * xsin1f[i]);
+            buf_im[i] = -((data[dataPointer + 2*i]       * xcos1f[i])  +  (data[dataPointer + 256-2*i-1] * xsin1f[i]));
+        }
+
+        /* Bit reversed shuffling */
+        for(int i=0; i<128; i++) {
+            int k = bit_reverse_512[i];
+            if (k < i) {
+                swap_cmplx(buf_re, buf_im, i,k);
+            }
+        }
+
+        /* FFT Merge */
+        float tmp_a_r, tmp_a_i;
+        float tmp_b_r, tmp_b_i;
+        for ( int m = 0; m < 7; m++ ) {
+            int two_m = 1 << m;
+            int two_m_plus_one = 1 << (m+1);
+            float[] wr = wf_re[m];
+            float[] wi = wf_im[m];
+            for ( int k = 0; k < two_m; k++ ) {
+                float w_r = wr[k];
+                float w_i = wi[k];
+                for ( int p = k; p < 128; p += two_m_plus_one ) {
+                    int q = p + two_m;
+                    tmp_a_r = buf_re[p];
+                    tmp_a_i = buf_im[p];
+                    tmp_b_r = buf_re[q] * w_r - buf_im[q] * w_i;
+                    tmp_b_i = buf_im[q] * w_r + buf_re[q] * w_i;
+                    buf_re[p] = tmp_a_r + tmp_b_r;
+                    buf_im[p] = tmp_a_i + tmp_b_i;
+                    buf_re[q] = tmp_a_r - tmp_b_r;
+                    buf_im[q] = tmp_a_i - tmp_b_i;
+                }
+            }
+        }
+
+        /* Post IFFT complex multiply  plus IFFT complex conjugate*/
+        for( int i=0; i < 128; i++) {
+            tmp_a_r =  buf_re[i];
+            tmp_a_i = -buf_im[i];
+            buf_re[i] =(tmp_a_r * xcos1f[i])  -  (tmp_a_i  * xsin1f[i]);
+            buf_im[i] =(tmp_a_r * xsin1f[i])  +  (tmp_a_i  * xcos1f[i]);
+        }
+
+        /* Window and convert to real valued signal */
+        float[] window = windowFloat;
+        int dataPtr = dataPointer;
+        int delayPtr = delayPointer;
+        int windowPointer = 0;
+        for(int i=0; i< 64; i++) { 
+            data[ dataPtr++ ]  = -buf_im[64+i]   * window[ windowPointer++ ] + data[ delayPtr++ ] + bias; 
+            data[ dataPtr++ ]  =  buf_re[64-i-1] * window[ windowPointer++ ] + data[ delayPtr++ ] + bias; 
+        }
+
+        for(int i=0; i< 64; i++) { 
+            data[ dataPtr++ ] = -buf_re[i]       * window[ windowPointer++ ] + data[ delayPtr++ ] + bias; 
+            data[ dataPtr++ ] =  buf_im[128-i-1] * window[ windowPointer++ ] + data[ delayPtr++ ] + bias; 
+        }
+
+        /* The trailing edge of the window goes into the delay line */
+        delayPtr = delayPointer;
+
+        for(int i=0; i< 64; i++) { 
+            data[delayPtr++]  = -buf_re[64+i]   * window[ --windowPointer ];
+            data[delayPtr++]  =  buf_im[64-i-1] * window[ --windowPointer ];
+        }
+
+        for(int i=0; i<64; i++) {
+            data[delayPtr++] =  buf_im[i]       * window[ --windowPointer ];
+            data[delayPtr++] = -buf_re[128-i-1] * window[ --windowPointer ];
+        }
+    }
+
+    public void a52_imdct_256( float[] data, int dataPointer, int delayPointer, float bias ) {
+        float[] buf_1_re = bf_1_re;
+        float[] buf_1_im = bf_1_im;
+        float[] buf_2_re = bf_2_re;
+        float[] buf_2_im = bf_2_im;
+
+        /* Pre IFFT complex multiply plus IFFT cmplx conjugate */
+        for( int k=0; k < 64; k++ ) { 
+            int p = dataPointer + 2 * (128-2*k-1);
+            int q = dataPointer + 2 * (2 * k);
+            buf_1_re[k] =    data[p] * xcos2f[k] - data[q] * xsin2f[k];
+            buf_1_im[k] = -( data[q] * xcos2f[k] + data[p] * xsin2f[k]); 
+            buf_2_re[k] =    data[p + 1] * xcos2f[k] - data[q + 1] * xsin2f[k];
+            buf_2_im[k] = -( data[q + 1] * xcos2f[k] + data[p + 1] * xsin2f[k]); 
+        }
+
+        /* IFFT Bit reversed shuffling */
+        for( int i = 0; i < 64; i++) { 
+            int k = bit_reverse_256[i];
+            if (k < i) {
+                swap_cmplx( buf_1_re, buf_1_im, i, k);
+                swap_cmplx( buf_2_re, buf_2_im, i, k);
+            }
+        }
+
+        /* FFT Merge */
+        float tmp_a_r, tmp_a_i;
+        float tmp_b_r, tmp_b_i;
+        for ( int m = 0; m < 6; m++ ) {
+            int two_m = 1 << m;
+            int two_m_plus_one = 1 << (m+1);
+            float[] wr = wf_re[m];
+            float[] wi = wf_im[m];
+            for ( int k = 0; k < two_m; k++ ) {
+                float w_r = wr[k];
+                float w_i = wi[k];
+                for ( int p = k; p < 64; p += two_m_plus_one ) {
+                    int q = p + two_m;
+
+                    /* Do block 1 */
+                    tmp_a_r = buf_1_re[p];
+                    tmp_a_i = buf_1_im[p];
+                    tmp_b_r = buf_1_re[q] * w_r - buf_1_im[q] * w_i;
+                    tmp_b_i = buf_1_im[q] * w_r + buf_1_re[q] * w_i;
+                    buf_1_re[p] = tmp_a_r + tmp_b_r;
+                    buf_1_im[p] = tmp_a_i + tmp_b_i;
+                    buf_1_re[q] = tmp_a_r - tmp_b_r;
+                    buf_1_im[q] = tmp_a_i - tmp_b_i;
+
+                    /* Do block 2 */
+                    tmp_a_r = buf_2_re[p];
+                    tmp_a_i = buf_2_im[p];
+                    tmp_b_r = buf_2_re[q] * w_r - buf_2_im[q] * w_i;
+                    tmp_b_i = buf_2_im[q] * w_r + buf_2_re[q] * w_i;
+                    buf_2_re[p] = tmp_a_r + tmp_b_r;
+                    buf_2_im[p] = tmp_a_i + tmp_b_i;
+                    buf_2_re[q] = tmp_a_r - tmp_b_r;
+                    buf_2_im[q] = tmp_a_i - tmp_b_i;
+                }
+            }
+        }
+
+        /* Post IFFT complex multiply */
+        for( int i=0; i < 64; i++) {
+            tmp_a_r =  buf_1_re[i];
+            tmp_a_i = -buf_1_im[i];
+            buf_1_re[i] =(tmp_a_r * xcos2f[i])  -  (tmp_a_i  * xsin2f[i]);
+            buf_1_im[i] =(tmp_a_r * xsin2f[i])  +  (tmp_a_i  * xcos2f[i]);
+            tmp_a_r =  buf_2_re[i];
+            tmp_a_i = -buf_2_im[i];
+            buf_2_re[i] =(tmp_a_r * xcos2f[i])  -  (tmp_a_i  * xsin2f[i]);
+            buf_2_im[i] =(tmp_a_r * xsin2f[i])  +  (tmp_a_i  * xcos2f[i]);
+        }
+
+        /* Window and convert to real valued signal */
+        float[] window = windowFloat;
+        int dataPtr = dataPointer;
+        int delayPtr = delayPointer;
+        int windowPointer = 0;
+        for(int i=0; i< 64; i++) { 
+            data[ dataPtr++ ]  = -buf_1_im[i]      * window[ windowPointer++ ] + data[ delayPtr++ ] + bias; 
+            data[ dataPtr++ ]  =  buf_1_re[64-i-1] * window[ windowPointer++ ] + data[ delayPtr++ ] + bias; 
+        }
+
+        for(int i=0; i< 64; i++) { 
+            data[ dataPtr++ ] = -buf_1_re[i]       * window[ windowPointer++ ] + data[ delayPtr++ ] + bias; 
+            data[ dataPtr++ ] =  buf_1_im[64-i-1]  * window[ windowPointer++ ] + data[ delayPtr++ ] + bias; 
+        }
+
+        /* The trailing edge of the window goes into the delay line */
+        delayPtr = delayPointer;
+
+        for(int i=0; i< 64; i++) { 
+            data[delayPtr++]  = -buf_2_re[i]      * window[ --windowPointer ];
+            data[delayPtr++]  =  buf_2_im[64-i-1] * window[ --windowPointer ];
+        }
+
+        for(int i=0; i<64; i++) {
+            data[delayPtr++] =  buf_2_im[i]       * window[ --windowPointer ];
+            data[delayPtr++] = -buf_2_re[64-i-1]  * window[ --windowPointer ];
+        }
+    }
+
     /**
-     * Output to buffer
+     * Interleaved samples for one block, up to 5.1 channels
      */
-    public void getAudioBuffer( double[] data, int numberOfChannels, Buffer output ) {
-        /* Stereo */
-        if ( numberOfChannels > 2 ) numberOfChannels = 2;
-        
-        byte[] outputData = (byte[])output.getData();
-        int   outputDataLen = output.getLength();
-        if ( outputData == null ) {
-            outputData = new byte[ numberOfChannels * 256 * 2 * 1000];
-            outputDataLen = 0;
-            output.setData( outputData );
-            output.setLength( outputDataLen );
-        }
-        if ( outputData.length < numberOfChannels * 256 * 2 + output.getLength() ) {
-            byte[] newOutputData = new byte[ (outputDataLen + numberOfChannels * 256 * 2) * 2];
-            System.arraycopy( outputData, 0, newOutputData, 0, outputDataLen );
-            outputData = newOutputData;
-            output.setData( outputData );
-        }
-        output.setLength( outputDataLen + numberOfChannels * 256 * 2);
+    public static final int MAX_OUTPUT_CHANNELS = 6;
+    private int[]   outputSamples      = new int[ MAX_OUTPUT_CHANNELS * 256 ];
+    private float[] outputFloatSamples = new float[ MAX_OUTPUT_CHANNELS * 256 ];
+
+    /**
+     * Output to buffer.  channelOffsets gives the start in data of each
+     * output channel, or -1 for a silent channel.
+     */
+    public void getAudioBuffer( double[] data, int[] channelOffsets, int numberOfChannels,
+                                PcmOutput pcmOutput, Buffer output ) {
         if (debug) System.out.println( "DATAOUT" );
-        for ( int i = 0; i < 256; i++ ) {
+        if ( pcmOutput.getType() == PcmOutput.FLOAT_OUTPUT ) {
+            double scale = volumeControl / PcmOutput.FULL_SCALE;
             for ( int ch = 0; ch < numberOfChannels; ch++ ) {
-                int v = (int)((double)volumeControl * (double)data[ i + 256 * ch + 256]);
-                if ( v > (1 <<15) - 1) {
-//                    System.out.println( "Distort " + Integer.toHexString(v) );
-                    v = 2^15 - 1;
+                int offset = channelOffsets[ ch ];
+                for ( int i = 0, n = ch; i < 256; i++, n += numberOfChannels ) {
+                    outputFloatSamples[ n ] = (offset < 0) ? 0 : (float)(scale * data[ offset + i ]);
                 }
-                if ( v < -(1<<15) ) {
-//                    System.out.println( "Distort " + Integer.toHexString(v) );
-                    v = -2^15;
+            }
+            pcmOutput.putSamples( output, outputFloatSamples, 0, 256 * numberOfChannels );
+        } else {
+            for ( int ch = 0; ch < numberOfChannels; ch++ ) {
+                int offset = channelOffsets[ ch ];
+                for ( int i = 0, n = ch; i < 256; i++, n += numberOfChannels ) {
+                    outputSamples[ n ] = (offset < 0) ? 0 : (int)(volumeControl * data[ offset + i ]);
                 }
-                outputData[ outputDataLen++ ] = (byte)(v&0xff);
-                outputData[ outputDataLen++ ] = (byte)((v>>8)&0xff);
-              //  System.out.print( v + " " );
             }
+            pcmOutput.putSamples( output, outputSamples, 0, 256 * numberOfChannels );
         }
         if (debug) System.out.println();
     }
+
+    /**
+     * Output to buffer from the single precision samples
+     */
+    public void getAudioBuffer( float[] data, int[] channelOffsets, int numberOfChannels,
+                                PcmOutput pcmOutput, Buffer output ) {
+        if ( pcmOutput.getType() == PcmOutput.FLOAT_OUTPUT ) {
+            float scale = (float)(volumeControl / PcmOutput.FULL_SCALE);
+            for ( int ch = 0; ch < numberOfChannels; ch++ ) {
+                int offset = channelOffsets[ ch ];
+                for ( int i = 0, n = ch; i < 256; i++, n += numberOfChannels ) {
+                    outputFloatSamples[ n ] = (offset < 0) ? 0 : scale * data[ offset + i ];
+                }
+            }
+            pcmOutput.putSamples( output, outputFloatSamples, 0, 256 * numberOfChannels );
+        } else {
+            float scale = (float)volumeControl;
+            for ( int ch = 0; ch < numberOfChannels; ch++ ) {
+                int offset = channelOffsets[ ch ];
+                for ( int i = 0, n = ch; i < 256; i++, n += numberOfChannels ) {
+                    outputSamples[ n ] = (offset < 0) ? 0 : (int)(scale * data[ offset + i ]);
+                }
+            }
+            pcmOutput.putSamples( output, outputSamples, 0, 256 * numberOfChannels );
+        }
+    }
     
     //TODO fix newer idct code 
 //    private final void BUTTERFLY_ZERO(int a0, int a1, int a2, int a3) {
@@ -572,7 +572,7 @@ if ( debug ) {                System.out.println( "region=" + i + " n=" + (regio
             }
         }
         
-        while ( s_index < 572 ) sb_hybrid[ s_index++ ] = 0;
+        while ( s_index < 576 ) sb_hybrid[ s_index++ ] = 0;
 
         /** skip to end of stream */
         in.seek( part23Length + granuleStartPosition );
@@ -30,10 +30,13 @@ import javax.media.Format;
 import javax.media.format.AudioFormat;
 import javax.media.Buffer;
 
-import net.sourceforge.jffmpeg.JMFCodec;
+import net.sourceforge.jffmpeg.JMFAudioCodec;
+import net.sourceforge.jffmpeg.InstrumentedCodec;
+import net.sourceforge.jffmpeg.DecoderStatistics;
 
 import net.sourceforge.jffmpeg.codecs.utils.BitStream;
 import net.sourceforge.jffmpeg.codecs.utils.FFMpegException;
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
 
 import net.sourceforge.jffmpeg.codecs.audio.mpeg.mp3.data.Table;
 
@@ -42,7 +45,7 @@ import java.io.*;
 /**
  * Mp3 Codec
  */
-public class MP3 implements Codec, JMFCodec {
+public class MP3 implements Codec, JMFAudioCodec, InstrumentedCodec {
     public static final boolean debug = false;
     
     public final static int MPA_STEREO  = 0;
@@ -56,6 +59,12 @@ public class MP3 implements Codec, JMFCodec {
     protected BitStream in = new BitStream();
     protected BitStream granuleIn = new BitStream();
 
+    /**
+     * Counters (null if disabled)
+     */
+    private DecoderStatistics statistics;
+    private boolean lostSync = false;
+
     /**
      * Expected header
      */
@@ -107,6 +116,12 @@ public class MP3 implements Codec, JMFCodec {
     private int[][]   mdct_buffer = new int[2][ Granule.SBLIMIT * 18 ];
 
     private SoundOutput soundOutput = new SoundOutput();
+    private PcmOutput   pcmOutput   = new PcmOutput();
+
+    /**
+     * Samples per channel in an MPEG-1 layer 3 frame (2 granules)
+     */
+    public static final int MAX_SAMPLES_PER_FRAME = 2 * 18 * Granule.SBLIMIT;
     
     /**
      * Search for header
@@ -117,6 +132,29 @@ public class MP3 implements Codec, JMFCodec {
             && ( (header & (15 << 12)) != 15 )
             && ( (header & (3  << 10)) != 3 );
     }
+    private static final int[][][] bitrateTable   = Table.getBitrateTable();
+    private static final int[]     frequencyTable = new int[] { 44100, 48000, 32000 };
+
+    /**
+     * Frame size in bytes from a layer 3 header, or -1 if this is not
+     * a valid header.  Finds frame boundaries without decoding.
+     */
+    public static int getFrameSize( int header ) {
+        if ( (header & 0xffe00000) != 0xffe00000 ) return -1;
+        boolean lsf    = (header & (1 << 20)) == 0 || (header & (1 << 19)) == 0;
+        boolean mpeg25 = (header & (1 << 20)) == 0;
+        int layer             = 4 - ((header >> 17) & 3);
+        int bitrate_index     = (header >> 12) & 0xf;
+        int sample_rate_index = (header >> 10) & 3;
+        if ( layer != 3 || bitrate_index == 0 || bitrate_index == 0xf || sample_rate_index == 3 ) {
+            return -1;
+        }
+        int sample_rate = frequencyTable[ sample_rate_index ] >> ((lsf?1:0) + (mpeg25?1:0));
+        int size = bitrateTable[ lsf ? 1:0 ][ layer - 1 ][ bitrate_index ];
+        size = (size * 144000) / ( sample_rate << (lsf?1:0));
+        return size + ((header >> 9) & 1);
+    }
+
     public MP3() {
         granules = new Granule[ 2 ][ 2 ];
         granules[ 0 ][ 0 ] = new Granule();
@@ -316,33 +354,39 @@ if ( debug )                System.out.println( "Antialias" );
 if ( debug )                granules[ channel ][ granuleNumber ].dumpHybrid();
                 
                 /* Compute imdct */
+                long start = (statistics != null) ? System.nanoTime() : 0;
                 soundOutput.computeImdct( granules[ channel ][ granuleNumber ],
                                           sb_samples[ channel ][ granuleNumber ],
                                           mdct_buffer[ channel ] );
+                if ( statistics != null ) statistics.addTime( DecoderStatistics.SYNTHESIS_TIME, start );
             }
         }        
         /* Synth_finter */
-        byte[] out = (byte[])outputBuffer.getData();
-        int outputPointer = outputBuffer.getLength();
-        if ( out == null ) { out = new byte[ 0 ]; outputPointer = 0; }
-        if ( out.length - outputPointer < nb_channels * nb_granules * 18 * 32 * 2 ) {
-            byte[] tmp = out;
-            out = new byte[ 4 * ( out.length + nb_channels * nb_granules * 18 * 32 ) ];
-            System.arraycopy( tmp, 0, out, 0, outputPointer );
-            outputBuffer.setData( out );
-        }
-
-        for ( int channel = 0; channel < nb_channels; channel++ ) {
-            int samplePointer = outputPointer + channel * 2;
-            for ( int frameNumber = 0; frameNumber < nb_granules * 18; frameNumber++ ) {
-                soundOutput.synth_filter( channel, nb_channels,
-                                          out, samplePointer, 
-                                          sb_samples[ channel ][ frameNumber / 18 ], (frameNumber % 18) * Granule.SBLIMIT );
-                samplePointer += 32 * nb_channels * 2;
+        int outputPointer = pcmOutput.reserve( outputBuffer, nb_channels * nb_granules * 18 * 32 );
+        Object out = outputBuffer.getData();
+        long start = (statistics != null) ? System.nanoTime() : 0;
+        for ( int granuleNumber = 0; granuleNumber < nb_granules; granuleNumber++ ) {
+            switch ( pcmOutput.getType() ) {
+                case PcmOutput.SHORT_OUTPUT:
+                    outputPointer = soundOutput.synthGranule( nb_channels, (short[])out, outputPointer,
+                                                              sb_samples[ 0 ][ granuleNumber ],
+                                                              sb_samples[ 1 ][ granuleNumber ] );
+                    break;
+                case PcmOutput.FLOAT_OUTPUT:
+                    outputPointer = soundOutput.synthGranule( nb_channels, (float[])out, outputPointer,
+                                                              sb_samples[ 0 ][ granuleNumber ],
+                                                              sb_samples[ 1 ][ granuleNumber ] );
+                    break;
+                default:
+                    outputPointer = soundOutput.synthGranule( nb_channels, (byte[])out, outputPointer,
+                                                              sb_samples[ 0 ][ granuleNumber ],
+                                                              sb_samples[ 1 ][ granuleNumber ] );
+                    break;
             }
         }
+        if ( statistics != null ) statistics.addTime( DecoderStatistics.SYNTHESIS_TIME, start );
         
-        outputBuffer.setLength( outputPointer + nb_channels * nb_granules * 18 * 32 * 2);
+        outputBuffer.setLength( outputPointer - outputBuffer.getOffset() );
         /*
         System.out.println( "Output " + (18 * nb_granules) + " " + nb_channels );
         for ( int i = 0; i < nb_channels * nb_granules * 18 * 32; i++ ) {
@@ -369,7 +413,7 @@ if ( debug )        System.out.println( "getSupportedInputFormats" );
     
     public Format[] getSupportedOutputFormats(Format format) {
 if ( debug )        System.out.println( "getSupportedOutputFormats" );
-        return new Format[] { new AudioFormat( "LINEAR" ) };
+        return PcmOutput.getSupportedOutputFormats( (format instanceof AudioFormat) ? (AudioFormat)format : null );
     }
     
     private AudioFormat inputFormat;
@@ -382,12 +426,35 @@ if ( debug )        System.out.println( "Input Format: " + format );
     
     public Format setOutputFormat( Format format ) {
 if ( debug )        System.out.println( "Output Format: " + format );
-        return new AudioFormat("LINEAR", inputFormat.getSampleRate(),
-                                         inputFormat.getSampleSizeInBits() > 0 ? inputFormat.getSampleSizeInBits() : 16,
-                                         inputFormat.getChannels(),
-                                         0, 1); // endian, int signed
+        return pcmOutput.setOutputFormat( inputFormat, format );
+    }
+
+    public int maxSamplesPerFrame() {
+        return MAX_SAMPLES_PER_FRAME;
     }
     
+    /**
+     * Decode one complete frame, appending any output to the Buffer.
+     * A frame whose bit reservoir reaches back before the first frame
+     * seen produces no output.  Used by MP3BatchDecoder.
+     */
+    void decodeFrame( byte[] data, int offset, int length, Buffer output ) {
+        try {
+            in.addData( data, offset, length );
+            currentHeader = decodeHeader();
+            if ( currentHeader != -1 ) {
+                decodeMP3( output, in.getPos() - 32 );
+            } else {
+                in.seek( in.getPos() + in.availableBits() );
+            }
+        } catch ( Exception e ) {
+            reset();
+        } catch ( Error e ) {
+            reset();
+        }
+        currentHeader = -1;
+    }
+
 //    private OutputStream outtemp;
     private int currentHeader = -1;
     public int process( Buffer input, Buffer output ) {
@@ -397,6 +464,8 @@ if ( debug )        System.out.println( "Output Format: " + format );
         output.setFlags( input.getFlags() );
         output.setTimeStamp( input.getTimeStamp() );
         output.setDuration( input.getDuration() );
+        output.setOffset( 0 );
+        output.setLength( 0 );
         
         try {
             byte[] data = (byte[])input.getData();  //in.getLength
@@ -425,7 +494,12 @@ if ( debug )        System.out.println( "Output Format: " + format );
                      */
                     if ( in.availableBits() < 32 ) break;
                     currentHeader = decodeHeader( );
-                    if ( currentHeader == -1 ) continue;
+                    if ( currentHeader == -1 ) {
+                        lostSync = true;
+                        continue;
+                    }
+                    if ( lostSync && statistics != null ) statistics.count( DecoderStatistics.RESYNCS );
+                    lostSync = false;
                 }
 
                 /* 
@@ -460,6 +534,7 @@ if ( debug )        System.out.println( "Output Format: " + format );
             reset();
             e.printStackTrace();
             currentHeader = -1;
+            if ( statistics != null ) statistics.count( DecoderStatistics.ERRORS );
     }
         return BUFFER_PROCESSED_OK;
     }
@@ -507,6 +582,17 @@ if ( debug )        System.out.println( "Output Format: " + format );
         return null;
     }
 
+    /**
+     * Time imdct and synthesis into these statistics
+     */
+    public void setStatistics( DecoderStatistics statistics ) {
+        this.statistics = statistics;
+    }
+
+    public String getFrameType() {
+        return null;
+    }
+
     /**
      * Implement the Jffmpeg codec interface
      */
@@ -0,0 +1,238 @@
+/*
+ * Java port of ffmpeg mp3 decoder.
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * Copyright (c) 2000, 2001 Fabrice Bellard.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * See Credits file and Readme for details
+ */
+package net.sourceforge.jffmpeg.codecs.audio.mpeg.mp3;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.AudioFormat;
+
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
+
+/**
+ * Decodes long runs of MP3 frames on several threads, for offline
+ * transcoding.
+ *
+ * The IMDCT overlap and the synthesis window carry state from granule
+ * to granule, so rather than splitting a frame, frame boundaries are
+ * found up front and the run is cut into segments decoded by separate
+ * MP3 instances on a fork-join pool.  Huffman decoding stays sequential
+ * within each segment.  A segment starts decoding a few frames early
+ * so the bit reservoir, IMDCT overlap and synthesis buffer hold the
+ * same state as in a sequential decode; the output of those frames is
+ * dropped.  Successive calls keep enough trailing frames to do the same
+ * for the first segment of the next call.
+ */
+public class MP3BatchDecoder {
+    /** Main data a frame may take from earlier frames (bytes) */
+    public static final int MAX_RESERVOIR = 512;
+
+    /** Header, CRC and the largest side info of a frame */
+    private static final int MAX_FRAME_OVERHEAD = 4 + 2 + 32;
+
+    /** Decoded frames before the IMDCT and synthesis state is settled */
+    public static final int SETTLE_FRAMES = 2;
+
+    /** Smallest segment worth a task */
+    public static final int MIN_SEGMENT_FRAMES = 64;
+
+    private ForkJoinPool pool;
+    private AudioFormat  inputFormat;
+    private Format       outputFormat;
+    private PcmOutput    pcmOutput = new PcmOutput();
+
+    /** Trailing frames of the previous call */
+    private byte[] history = new byte[ 0 ];
+    private int    historyLength = 0;
+
+    /** Frame offsets of the current call */
+    private int[] frames = new int[ 256 ];
+
+    public MP3BatchDecoder() {
+        this( ForkJoinPool.commonPool() );
+    }
+
+    public MP3BatchDecoder( ForkJoinPool pool ) {
+        this.pool = pool;
+    }
+
+    public Format setInputFormat( Format format ) {
+        inputFormat = (AudioFormat)format;
+        return format;
+    }
+
+    /**
+     * Select byte[], short[] or float[] output as for MP3
+     */
+    public Format setOutputFormat( Format format ) {
+        outputFormat = pcmOutput.setOutputFormat( inputFormat, format );
+        return outputFormat;
+    }
+
+    /**
+     * Forget the previous frames (after a seek)
+     */
+    public void reset() {
+        historyLength = 0;
+    }
+
+    /**
+     * Decode all the complete frames in data, appending PCM to output.
+     * Returns the number of bytes used; an incomplete frame at the end
+     * should be passed again with the following data.
+     */
+    public int decode( byte[] data, int offset, int length, Buffer output ) {
+        /* Continue from the frames kept last time */
+        byte[] stream = new byte[ historyLength + length ];
+        System.arraycopy( history, 0, stream, 0, historyLength );
+        System.arraycopy( data, offset, stream, historyLength, length );
+
+        /* Find frame boundaries, frames[ n ] is the end of the last frame */
+        int n = 0;
+        int firstNew = -1;
+        int position = 0;
+        while ( position + 4 <= stream.length ) {
+            int header = ((stream[ position ] & 0xff) << 24) | ((stream[ position + 1 ] & 0xff) << 16)
+                       | ((stream[ position + 2 ] & 0xff) << 8) | (stream[ position + 3 ] & 0xff);
+            int size = MP3.getFrameSize( header );
+            if ( size <= 0 ) {
+                position++;
+                continue;
+            }
+            if ( position + size > stream.length ) break;
+            if ( firstNew == -1 && position >= historyLength ) firstNew = n;
+            if ( n + 1 >= frames.length ) {
+                int[] t = new int[ frames.length * 2 ];
+                System.arraycopy( frames, 0, t, 0, n );
+                frames = t;
+            }
+            frames[ n++ ] = position;
+            position += size;
+        }
+        frames[ n ] = position;
+        if ( firstNew == -1 ) firstNew = n;
+
+        /* Cut new frames into segments */
+        int parallelism = pool.getParallelism();
+        int segmentFrames = (n - firstNew + 4 * parallelism - 1) / (4 * parallelism);
+        if ( segmentFrames < MIN_SEGMENT_FRAMES ) segmentFrames = MIN_SEGMENT_FRAMES;
+        int numberOfSegments = (n - firstNew + segmentFrames - 1) / segmentFrames;
+        Segment[] segments = new Segment[ numberOfSegments ];
+        for ( int i = 0; i < numberOfSegments; i++ ) {
+            int start = firstNew + i * segmentFrames;
+            int end   = Math.min( start + segmentFrames, n );
+            segments[ i ] = new Segment( stream, warmUp( start ), start, end );
+        }
+        pool.invoke( new Batch( segments ) );
+
+        /* Concatenate, in array elements */
+        int total = 0;
+        for ( int i = 0; i < numberOfSegments; i++ ) {
+            total += segments[ i ].output.getLength() - segments[ i ].skip;
+        }
+        int write = pcmOutput.reserve( output,
+                        (pcmOutput.getType() == PcmOutput.BYTE_OUTPUT) ? total / 2 : total );
+        for ( int i = 0; i < numberOfSegments; i++ ) {
+            Segment segment = segments[ i ];
+            int count = segment.output.getLength() - segment.skip;
+            System.arraycopy( segment.output.getData(), segment.skip, output.getData(), write, count );
+            write += count;
+        }
+        output.setLength( write - output.getOffset() );
+
+        /* Keep enough frames to warm up the next call */
+        int keep = frames[ warmUp( n ) ];
+        historyLength = position - keep;
+        if ( history.length < historyLength ) {
+            history = new byte[ historyLength ];
+        }
+        System.arraycopy( stream, keep, history, 0, historyLength );
+
+        return Math.max( position - (stream.length - length), 0 );
+    }
+
+    /**
+     * First frame to decode so that frame start comes out as if the
+     * stream had been decoded from the beginning
+     */
+    private int warmUp( int start ) {
+        int first = start - SETTLE_FRAMES;
+        if ( first <= 0 ) return 0;
+        int reservoir = 0;
+        while ( first > 0 && reservoir < MAX_RESERVOIR ) {
+            first--;
+            reservoir += frames[ first + 1 ] - frames[ first ] - MAX_FRAME_OVERHEAD;
+        }
+        return first;
+    }
+
+    /**
+     * Decodes frames [first, end) and keeps the output from start
+     */
+    private class Segment extends RecursiveAction {
+        /* Tasks are never serialized, RecursiveAction just implements Serializable */
+        private static final long serialVersionUID = 1L;
+
+        private byte[] stream;
+        private int first;
+        private int start;
+        private int end;
+
+        Buffer output = new Buffer();
+        int    skip   = 0;
+
+        Segment( byte[] stream, int first, int start, int end ) {
+            this.stream = stream;
+            this.first  = first;
+            this.start  = start;
+            this.end    = end;
+        }
+
+        protected void compute() {
+            MP3 decoder = new MP3();
+            decoder.setInputFormat( inputFormat );
+            decoder.setOutputFormat( outputFormat );
+            output.setLength( 0 );
+            for ( int i = first; i < end; i++ ) {
+                if ( i == start ) skip = output.getLength();
+                decoder.decodeFrame( stream, frames[ i ], frames[ i + 1 ] - frames[ i ], output );
+            }
+        }
+    }
+
+    private static class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private Segment[] segments;
+
+        Batch( Segment[] segments ) {
+            this.segments = segments;
+        }
+
+        protected void compute() {
+            invokeAll( segments );
+        }
+    }
+}
@@ -23,6 +23,7 @@
 package net.sourceforge.jffmpeg.codecs.audio.mpeg.mp3;
 
 import net.sourceforge.jffmpeg.codecs.audio.mpeg.mp3.data.Table;
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
 
 /**
  *
@@ -532,52 +533,29 @@ public class SoundOutput {
         out[31] = in[ inPointer + 31];
 }
 
-    private long SUM8( long sum, int windowOffset, int[] synth_buffer, int bufferPointer ) {
-        sum += MUL64( window[ 0 * 64 + windowOffset ], synth_buffer[ 0 * 64 + bufferPointer ] );
-        sum += MUL64( window[ 1 * 64 + windowOffset ], synth_buffer[ 1 * 64 + bufferPointer ] );
-        sum += MUL64( window[ 2 * 64 + windowOffset ], synth_buffer[ 2 * 64 + bufferPointer ] );
-        sum += MUL64( window[ 3 * 64 + windowOffset ], synth_buffer[ 3 * 64 + bufferPointer ] );
-        sum += MUL64( window[ 4 * 64 + windowOffset ], synth_buffer[ 4 * 64 + bufferPointer ] );
-        sum += MUL64( window[ 5 * 64 + windowOffset ], synth_buffer[ 5 * 64 + bufferPointer ] );
-        sum += MUL64( window[ 6 * 64 + windowOffset ], synth_buffer[ 6 * 64 + bufferPointer ] );
-        sum += MUL64( window[ 7 * 64 + windowOffset ], synth_buffer[ 7 * 64 + bufferPointer ] );
-        return sum;
-    }
-
-    private long SUB8( long sum, int windowOffset, int[] synth_buffer, int bufferPointer ) {
-        sum -= MUL64( window[ 0 * 64 + windowOffset ], synth_buffer[ 0 * 64 + bufferPointer ] );
-        sum -= MUL64( window[ 1 * 64 + windowOffset ], synth_buffer[ 1 * 64 + bufferPointer ] );
-        sum -= MUL64( window[ 2 * 64 + windowOffset ], synth_buffer[ 2 * 64 + bufferPointer ] );
-        sum -= MUL64( window[ 3 * 64 + windowOffset ], synth_buffer[ 3 * 64 + bufferPointer ] );
-        sum -= MUL64( window[ 4 * 64 + windowOffset ], synth_buffer[ 4 * 64 + bufferPointer ] );
-        sum -= MUL64( window[ 5 * 64 + windowOffset ], synth_buffer[ 5 * 64 + bufferPointer ] );
-        sum -= MUL64( window[ 6 * 64 + windowOffset ], synth_buffer[ 6 * 64 + bufferPointer ] );
-        sum -= MUL64( window[ 7 * 64 + windowOffset ], synth_buffer[ 7 * 64 + bufferPointer ] );
-        return sum;
-    }
-    
-    private void OUT_SAMPLE(long sum, byte[] out, int outPointer) {
-        int sum1 = (int)((sum + (((long)1) << (OUT_SHIFT - 1))) >> OUT_SHIFT);
-             if ( sum1 < -32768 ) { sum1 = -32768;}
-        else if ( sum1 >  32767 ) { sum1 = 32767;}
-//        System.out.println( sum  );
-        out[ outPointer ]     = (byte)(sum1 & 0xff);
-        out[ outPointer + 1 ] = (byte)((sum1 >> 8) & 0xff);
-    }
+    /**
+     * Synthesis window rearranged for synthSlot.  The 16 taps of each
+     * output sample are contiguous, the first 8 applied from synthPosA
+     * and the last 8 from synthPosB (taps are 64 apart in the synth
+     * buffer).  The sign of subtracted taps is folded into the table.
+     */
+    private static final int[] synthWindow = new int[ 32 * 16 ];
+    private static final int[] synthPosA   = new int[ 32 ];
+    private static final int[] synthPosB   = new int[ 32 ];
 
-    
     private int[]   synth_buf_offset = new int[ 2 ];
     private int[][] synth_buf        = new int[ 2 ][ 512 * 2 ];
     
     private int[] synth_filterTmpBuffer = new int[32];
-    public int synth_filter( int channel, int nb_channels,
-                             byte[] out, int outPointer, 
-                             int[] in, int inPointer ) {
-/*        MPA_INT *synth_buf, *p;
-        MPA_INT *w;
-        int j, offset, v;
-        long sum;
-*/
+    private int[] synthSamples = new int[ 64 ];
+
+    /**
+     * Filter one time slot (32 subband samples) of one channel, leaving
+     * 32 PCM samples in samples[ samplesPointer ].  These are scaled to
+     * 16 bits but not yet clipped.
+     */
+    private final void synthSlot( int channel, int[] in, int inPointer,
+                                  int[] samples, int samplesPointer ) {
         dct32(synth_filterTmpBuffer, in, inPointer);
         
 if ( Granule.debug ) {
@@ -590,53 +568,133 @@ if ( Granule.debug ) {
         int offset = synth_buf_offset[channel];
         int[] synth_buffer = synth_buf[channel];
 
-        for(int j=0;j<32;j++) {
-            synth_buffer[ j + offset ] = synth_filterTmpBuffer[ j ];
-        }
+        System.arraycopy( synth_filterTmpBuffer, 0, synth_buffer, offset, 32 );
         
         /* copy to avoid wrap */
         System.arraycopy( synth_buffer, offset, synth_buffer, offset + 512, 32 );
-        
-/* I am here */
-//        System.out.println( "A" );
+
+        int[] w = synthWindow;
         int windowOffset = 0;
-        long sum = 0;
-        int p;
-        for(int j=0;j<16;j++) {
-            sum = 0;
-            p = offset + 16 + j;    /* 0-15  */
-            sum = SUM8(sum, windowOffset, synth_buffer, p);
-            p = offset + 48 - j;    /* 32-47 */
-            sum = SUB8(sum, windowOffset + 32, synth_buffer, p);
-
-            OUT_SAMPLE(sum, out, outPointer);
-            outPointer += 2 * nb_channels;  // CHECKME
-            windowOffset++;
+        for ( int j = 0; j < 32; j++ ) {
+            int a = offset + synthPosA[ j ];
+            int b = offset + synthPosB[ j ];
+            long sum = (long)w[ windowOffset      ] * synth_buffer[ a           ]
+                     + (long)w[ windowOffset +  1 ] * synth_buffer[ a + 1 * 64 ]
+                     + (long)w[ windowOffset +  2 ] * synth_buffer[ a + 2 * 64 ]
+                     + (long)w[ windowOffset +  3 ] * synth_buffer[ a + 3 * 64 ]
+                     + (long)w[ windowOffset +  4 ] * synth_buffer[ a + 4 * 64 ]
+                     + (long)w[ windowOffset +  5 ] * synth_buffer[ a + 5 * 64 ]
+                     + (long)w[ windowOffset +  6 ] * synth_buffer[ a + 6 * 64 ]
+                     + (long)w[ windowOffset +  7 ] * synth_buffer[ a + 7 * 64 ]
+                     + (long)w[ windowOffset +  8 ] * synth_buffer[ b           ]
+                     + (long)w[ windowOffset +  9 ] * synth_buffer[ b + 1 * 64 ]
+                     + (long)w[ windowOffset + 10 ] * synth_buffer[ b + 2 * 64 ]
+                     + (long)w[ windowOffset + 11 ] * synth_buffer[ b + 3 * 64 ]
+                     + (long)w[ windowOffset + 12 ] * synth_buffer[ b + 4 * 64 ]
+                     + (long)w[ windowOffset + 13 ] * synth_buffer[ b + 5 * 64 ]
+                     + (long)w[ windowOffset + 14 ] * synth_buffer[ b + 6 * 64 ]
+                     + (long)w[ windowOffset + 15 ] * synth_buffer[ b + 7 * 64 ];
+            windowOffset += 16;
+
+            samples[ samplesPointer + j ] = (int)((sum + OUT_ROUND) >> OUT_SHIFT);
         }
+        synth_buf_offset[channel] = (offset - 32) & 511;
+    }
 
-//        System.out.println( "B" );
-        p = offset + 32; /* 48 */
-        sum = 0;
-        sum = SUB8(sum, windowOffset + 32, synth_buffer, p);
-        OUT_SAMPLE(sum, out, outPointer);
-        outPointer += 2 * nb_channels;  // CHECKME
-        windowOffset++;
-
-//        System.out.println( "C" );
-        for(int j=17;j<32;j++) {
-            sum = 0;
-            p = offset + 48 - j;    /* 0-15  */
-            sum = SUB8(sum, windowOffset, synth_buffer, p);
-            p = offset + 16 + j;    /* 32-47 */
-            sum = SUB8(sum, windowOffset + 32, synth_buffer, p);
-
-            OUT_SAMPLE(sum, out, outPointer);
-            outPointer += 2 * nb_channels;  // CHECKME
-            windowOffset++;
+    /**
+     * Synthesise a whole granule (18 time slots) of one or two channels,
+     * writing interleaved 16 bit little endian PCM.  Returns the new
+     * output pointer.
+     */
+    public int synthGranule( int nb_channels, byte[] out, int outPointer,
+                             int[] left, int[] right ) {
+        int[] samples = synthSamples;
+        for ( int inPointer = 0; inPointer < 18 * Granule.SBLIMIT; inPointer += Granule.SBLIMIT ) {
+            synthSlot( 0, left, inPointer, samples, 0 );
+            if ( nb_channels == 2 ) {
+                synthSlot( 1, right, inPointer, samples, 32 );
+                for ( int i = 0; i < 32; i++ ) {
+                    int l = PcmOutput.clip( samples[ i ] );
+                    int r = PcmOutput.clip( samples[ i + 32 ] );
+                    out[ outPointer     ] = (byte)l;
+                    out[ outPointer + 1 ] = (byte)(l >> 8);
+                    out[ outPointer + 2 ] = (byte)r;
+                    out[ outPointer + 3 ] = (byte)(r >> 8);
+                    outPointer += 4;
+                }
+            } else {
+                for ( int i = 0; i < 32; i++ ) {
+                    int s = PcmOutput.clip( samples[ i ] );
+                    out[ outPointer     ] = (byte)s;
+                    out[ outPointer + 1 ] = (byte)(s >> 8);
+                    outPointer += 2;
+                }
+            }
+        }
+        return outPointer;
+    }
+
+    /**
+     * Synthesise a whole granule to interleaved 16 bit samples
+     */
+    public int synthGranule( int nb_channels, short[] out, int outPointer,
+                             int[] left, int[] right ) {
+        int[] samples = synthSamples;
+        for ( int inPointer = 0; inPointer < 18 * Granule.SBLIMIT; inPointer += Granule.SBLIMIT ) {
+            synthSlot( 0, left, inPointer, samples, 0 );
+            if ( nb_channels == 2 ) {
+                synthSlot( 1, right, inPointer, samples, 32 );
+                for ( int i = 0; i < 32; i++ ) {
+                    out[ outPointer++ ] = (short)PcmOutput.clip( samples[ i ] );
+                    out[ outPointer++ ] = (short)PcmOutput.clip( samples[ i + 32 ] );
+                }
+            } else {
+                for ( int i = 0; i < 32; i++ ) {
+                    out[ outPointer++ ] = (short)PcmOutput.clip( samples[ i ] );
+                }
+            }
+        }
+        return outPointer;
+    }
+
+    /**
+     * Synthesise a whole granule to interleaved floats (full scale 1.0,
+     * not clipped)
+     */
+    public int synthGranule( int nb_channels, float[] out, int outPointer,
+                             int[] left, int[] right ) {
+        int[] samples = synthSamples;
+        for ( int inPointer = 0; inPointer < 18 * Granule.SBLIMIT; inPointer += Granule.SBLIMIT ) {
+            synthSlot( 0, left, inPointer, samples, 0 );
+            if ( nb_channels == 2 ) {
+                synthSlot( 1, right, inPointer, samples, 32 );
+                for ( int i = 0; i < 32; i++ ) {
+                    out[ outPointer++ ] = samples[ i ]      * (1.f / PcmOutput.FULL_SCALE);
+                    out[ outPointer++ ] = samples[ i + 32 ] * (1.f / PcmOutput.FULL_SCALE);
+                }
+            } else {
+                for ( int i = 0; i < 32; i++ ) {
+                    out[ outPointer++ ] = samples[ i ] * (1.f / PcmOutput.FULL_SCALE);
+                }
+            }
+        }
+        return outPointer;
+    }
+
+    /**
+     * Synthesise a single time slot of one channel
+     */
+    public int synth_filter( int channel, int nb_channels,
+                             byte[] out, int outPointer, 
+                             int[] in, int inPointer ) {
+        int[] samples = synthSamples;
+        synthSlot( channel, in, inPointer, samples, 0 );
+        for ( int i = 0; i < 32; i++ ) {
+            int s = PcmOutput.clip( samples[ i ] );
+            out[ outPointer     ] = (byte)s;
+            out[ outPointer + 1 ] = (byte)(s >> 8);
+            outPointer += 2 * nb_channels;
         }
-        offset = (offset - 32) & 511;
-        synth_buf_offset[channel] = offset;
-        
         return outPointer;
     }
 
@@ -645,6 +703,7 @@ if ( Granule.debug ) {
     private static final int FRAC_BITS = 23;
     private static final int WFRAC_BITS = 16;
     public static final int OUT_SHIFT = WFRAC_BITS + FRAC_BITS - 15;
+    private static final long OUT_ROUND = ((long)1) << (OUT_SHIFT - 1);
     
     private static final int MULL( int a, int b ) {
         return (int)(((long)a * (long)b) >> FRAC_BITS);
@@ -703,6 +762,27 @@ if ( Granule.debug ) {
             if (i != 0)
                 window[512 - i] = v;
         }
+
+        /* Interleave window for synthSlot */
+        for(j=0;j<32;j++) {
+            synthPosA[j] = (j <= 16) ? 16 + j : 48 - j;
+            synthPosB[j] = (j <= 16) ? 48 - j : 16 + j;
+            for(i=0;i<8;i++) {
+                int a, b;
+                if (j < 16) {
+                    a =  window[i * 64 + j];
+                    b = -window[i * 64 + j + 32];
+                } else if (j == 16) {
+                    a =  0;
+                    b = -window[i * 64 + j + 32];
+                } else {
+                    a = -window[i * 64 + j];
+                    b = -window[i * 64 + j + 32];
+                }
+                synthWindow[j * 16 + i]     = a;
+                synthWindow[j * 16 + 8 + i] = b;
+            }
+        }
     }
     
     public static final int FIXR( double a ) {
@@ -40,10 +40,22 @@ public class CodeBook {
         return dim;
     }
 
+    /* The one place codes are read, so the lookup is inlined in every caller */
     private final int decode_packed_entry_number(OggReader oggRead){
+        if ( dec_direct != null ) {
+            int code = dec_direct[ oggRead.look( dec_directlen ) ];
+            if ( code < 0 ) throw new Error( "Unrecognised Code" );
+            oggRead.skipBits( code & 0x1f );
+            return code >>> 5;
+        }
+        return decode_long_entry_number( oggRead );
+    }
+
+    /* Codes longer than the direct table: first table then bisection */
+    private final int decode_long_entry_number(OggReader oggRead){
         int  read = dec_maxlength;
         int lo,hi;
-        long lok = oggRead.showBits(dec_firsttablen);  //TODO handle EOF exc
+        long lok = oggRead.look(dec_firsttablen);  //TODO handle EOF exc
 //	System.out.println( "lok " +lok + " " + dec_firsttablen + " " + oggRead.showBits(dec_firsttablen*2));
         int entry = dec_firsttable[(int)lok];
         if( (entry & 0x80000000L) != 0 ){
@@ -85,43 +97,37 @@ public class CodeBook {
 
     /* Read an array of floats */
     public void decodev_set(float[] out, int offset, OggReader read, int n) {
-        for( int i = 0; i < n; ) {
-            int entry = decode_packed_entry_number(read);
-//	    System.out.println( "decodec_set " + entry );
-            int t = entry * dim;
-            for ( int j = 0; j < dim; j++ ) {
-                out[ offset + (i++) ]=valuelist[ t + j ];
-//System.out.println( (int)(valuelist[t+j]*1000) );
+        float[] values = valuelist;
+        int     d      = dim;
+        for( int i = offset, end = offset + n; i < end; ) {
+            int t = decode_packed_entry_number( read ) * d;
+            for ( int j = 0; j < d; j++ ) {
+                out[ i++ ] = values[ t + j ];
             }
         }
     }
 
     public void decodev_add(float[] out, int offset, OggReader read, int n) {
-        for( int i = 0; i < n; ) {
-            int entry = decode_packed_entry_number( read );
-	    System.out.println( "decodev_add " + entry );
-            int t = entry * dim;
-            for ( int j = 0; j < dim; j++ ) {
-                out[ offset + (i++) ] += valuelist[ t + j ];
+        float[] values = valuelist;
+        int     d      = dim;
+        for( int i = offset, end = offset + n; i < end; ) {
+            int t = decode_packed_entry_number( read ) * d;
+            for ( int j = 0; j < d; j++ ) {
+                out[ i++ ] += values[ t + j ];
             }
         }
     }
 
     public void decodevs_add(float[] out, int offset, OggReader read, int n) {
-        int step = n / dim;
-        long[] entry = new long[ step ];
-        int[] t = new int[ step ];
-
-        for ( int i = 0; i < step; i++ ) {
-            entry[i] = decode_packed_entry_number(read);
-            t[i] = (int)(entry[i] * dim);
-//	    System.out.println( "decodecs_add " + entry[i] );
-        }
-
-        int o = 0;
-        for( int i = 0; i < dim; i++, o+=step ) {
-            for ( int j = 0; j < step; j++ ) {
-                out[ offset + j ] += valuelist[ t[j] + i ];
+        float[] values = valuelist;
+        int     d      = dim;
+        int step = n / d;
+
+        /* Entry j adds to every step'th value from j, so no list of entries is needed */
+        for ( int j = 0; j < step; j++ ) {
+            int t = decode_packed_entry_number( read ) * d;
+            for ( int i = 0, o = offset + j; i < d; i++, o += step ) {
+                out[ o ] += values[ t + i ];
             }
         }
     }
@@ -350,6 +356,14 @@ public class CodeBook {
     private int[] dec_index;
     private int[] codelist;
 
+    /* Longest code resolved by a single lookup in dec_direct */
+    public static final int MAX_DIRECT_BITS = 10;
+
+    /* Books with all codes up to MAX_DIRECT_BITS long are decoded with one
+       lookup of dec_directlen bits, giving (entry << 5) | length, or -1 */
+    private int   dec_directlen;
+    private int[] dec_direct;
+
     public void initDecode() {
 //        System.out.println( "vorbis_book_init_decode" );
         int i = 0;
@@ -439,6 +453,21 @@ public class CodeBook {
             }
         }
 
+        /* books with only short codes skip the first table and bisection */
+        dec_direct = null;
+        if ( dec_maxlength > 0 && dec_maxlength <= MAX_DIRECT_BITS ) {
+            dec_directlen = dec_maxlength;
+            dec_direct = new int[ 1 << dec_directlen ];
+            java.util.Arrays.fill( dec_direct, -1 );
+            for( i = 0; i < n; i++ ) {
+                int orig = bitreverse( codelist[i] );
+                int code = (i << 5) | dec_codelengths[i];
+                for( j = 0; j < (1 << (dec_directlen - dec_codelengths[i])); j++ ) {
+                    dec_direct[ orig | (j << dec_codelengths[i]) ] = code;
+                }
+            }
+        }
+
         /* now fill in 'unused' entries in the firsttable with hi/lo search
            hints for the non-direct-hits */
         long mask=0xfffffffeL<<(31-dec_firsttablen);
@@ -47,6 +47,20 @@ public class OggReader {
         return val & mask;
     }
 
+    /**
+     * showBits for up to 24 bits as an int, reading a whole word at
+     * once where the packet has room
+     */
+    public int look( int bits ) {
+        int p = offset;
+        if ( p + 3 < data.length ) {
+            int val = (data[ p ]&0xff) | ((data[ p + 1 ]&0xff)<<8)
+                    | ((data[ p + 2 ]&0xff)<<16) | (data[ p + 3 ]<<24);
+            return (val >>> bitPointer) & ((1 << bits) - 1);
+        }
+        return (int)showBits( bits );
+    }
+
     public long getBits( int bits ) {
         long mask = maskBits[ bits ];
         bits += bitPointer;
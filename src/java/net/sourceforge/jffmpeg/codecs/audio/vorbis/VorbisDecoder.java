@@ -24,7 +24,10 @@ import javax.media.Format;
 import javax.media.format.AudioFormat;
 import javax.media.Buffer;
 
-import net.sourceforge.jffmpeg.JMFCodec;
+import net.sourceforge.jffmpeg.JMFAudioCodec;
+import net.sourceforge.jffmpeg.InstrumentedCodec;
+import net.sourceforge.jffmpeg.DecoderStatistics;
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
 import java.awt.Dimension;
 
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.floor.*;
@@ -35,7 +38,7 @@ import net.sourceforge.jffmpeg.codecs.audio.vorbis.mapping.Mdct;
 /**
  * Vorbis Codec
  */
-public class VorbisDecoder implements Codec, JMFCodec {
+public class VorbisDecoder implements Codec, JMFAudioCodec, InstrumentedCodec {
     public static final boolean debug = false;
     
 
@@ -45,16 +48,11 @@ public class VorbisDecoder implements Codec, JMFCodec {
     /* Header information */
     private int headersRequired = 3;
 
-    /* Audio information */
-    private int channels;
-    private int[] blocksize = new int[ 2 ];
+    /* Audio information and pluggable modules, shared between decoders */
+    private VorbisSetup setup;
 
-    /* Pluggable Modules */
-    private CodeBook[] codeBooks;
-    private Floor[] floor_param;
-    private Residue[] residue_param;
-    private Mapping[] mapping_param;
-    private Mode[]    modes_param;
+    /* Identification header, kept to look up the setup in the cache */
+    private byte[] infoHeader;
 
     /* Modified discrete cosine transforms */
     private Mdct[]    mdct = new Mdct[ 2 ];
@@ -62,31 +60,80 @@ public class VorbisDecoder implements Codec, JMFCodec {
     /* Bitreader */
     private OggReader oggRead = new OggReader();
 
+    /* Counters (null if disabled) */
+    private DecoderStatistics statistics;
+
+    /* Per packet work arrays, created with the setup header */
+    private Workspace workspace;
+
+    /* Output sample format */
+    private PcmOutput pcmOutput = new PcmOutput();
+
+    /* Largest block allowed by the Vorbis specification */
+    public static final int MAX_BLOCK_SIZE = 8192;
+
     /* Retrieve modules */
     public CodeBook getCodeBook( int i ) {
-        return codeBooks[i];
+        return setup.codeBooks[i];
     }
 
     public Floor getFloor( int i ) {
-        return floor_param[i];
+        return setup.floors[i];
     }
   
     public Residue getResidue( int i ) {
-        return residue_param[i];
+        return setup.residues[i];
     }
 
     public Mapping getMapping( int i ) {
-        return mapping_param[i];
+        return setup.mappings[i];
     }
 
     public Mode getMode( int i ) {
-        return modes_param[i];
+        return setup.modes[i];
+    }
+
+    /**
+     * Unpacked headers, null until all three have been read
+     */
+    public VorbisSetup getSetup() {
+        return (headersRequired == 0) ? setup : null;
+    }
+
+    /**
+     * Decode with headers already unpacked by another decoder, for
+     * joining a stream mid-way or opening several files from the same
+     * encoder setup.  Any header packets that follow are ignored.
+     */
+    public void setSetup( VorbisSetup setup ) {
+        this.setup = setup;
+        createDecoderState();
+        headersRequired = 0;
+    }
+
+    public Workspace getWorkspace() {
+        return workspace;
     }
 
     public Mdct getMdct() {
         return mdct[ W?1:0 ];
     }
 
+    /**
+     * Counters for the synthesis stage, or null
+     */
+    public DecoderStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics( DecoderStatistics statistics ) {
+        this.statistics = statistics;
+    }
+
+    public String getFrameType() {
+        return null;
+    }
+
     /**
      * Codec management
      */
@@ -95,7 +142,7 @@ public class VorbisDecoder implements Codec, JMFCodec {
     }
     
     public Format[] getSupportedOutputFormats(Format format) {
-        return new Format[] { new AudioFormat( "LINEAR" ) };
+        return PcmOutput.getSupportedOutputFormats( (format instanceof AudioFormat) ? (AudioFormat)format : null );
     }
     
     public Format setInputFormat( Format format ) {
@@ -104,10 +151,15 @@ public class VorbisDecoder implements Codec, JMFCodec {
     }
     
     public Format setOutputFormat( Format format ) {
-        return new AudioFormat("LINEAR", inputFormat.getSampleRate(),
-                                         inputFormat.getSampleSizeInBits() > 0 ? inputFormat.getSampleSizeInBits() : 16,
-                                         inputFormat.getChannels(),
-                                         0, 1);
+        return pcmOutput.setOutputFormat( inputFormat, format );
+    }
+
+    /**
+     * Each packet returns at most half the long block size
+     */
+    public int maxSamplesPerFrame() {
+        if ( headersRequired != 0 ) return MAX_BLOCK_SIZE / 2;
+        return setup.blocksize[ 1 ] / 2;
     }
 
     private static final int ilog2( int v ) {
@@ -143,8 +195,10 @@ public class VorbisDecoder implements Codec, JMFCodec {
     }
 
     private void vorbis_unpack_info( byte[] data, int offset, int length ) {
+        setup = new VorbisSetup();
+        int[] blocksize = setup.blocksize;
         int version         = readInt( data, offset );
-        channels            = data[ offset + 4 ] & 0xff;
+        int channels        = data[ offset + 4 ] & 0xff;
         int rate            = readInt( data, offset + 5 );
         int bitrate_upper   = readInt( data, offset + 9 );
         int bitrate_nominal = readInt( data, offset + 13 );
@@ -159,8 +213,8 @@ public class VorbisDecoder implements Codec, JMFCodec {
         if ( blocksize[0] < 8 || blocksize[1] < blocksize[0] ) throw new Error ( "Illegal Block Size" );
         if ( pad !=1 )      throw new Error( "Illegal pad" );
 
-        mdct[ 0 ] = new Mdct( blocksize[0] );
-        mdct[ 1 ] = new Mdct( blocksize[1] );
+        setup.channels = channels;
+        setup.rate     = rate;
 
 //        System.out.println( "Rate: " + rate );
     }
@@ -184,13 +238,42 @@ public class VorbisDecoder implements Codec, JMFCodec {
         if ( pad != 1 ) throw new Error ( "Illegal pad" );
     }
 
-    private int modebits;
+    /**
+     * Use the setup unpacked by an earlier decoder from the same headers
+     * if there is one, otherwise unpack it and keep it for the next
+     */
+    private void vorbis_setup( byte[] data, int offset, int length ) {
+        byte[] headers = new byte[ infoHeader.length + length ];
+        System.arraycopy( infoHeader, 0, headers, 0, infoHeader.length );
+        System.arraycopy( data, offset, headers, infoHeader.length, length );
+
+        VorbisSetup cached = VorbisSetup.lookup( headers );
+        if ( cached != null ) {
+            setup = cached;
+        } else {
+            vorbis_unpack_books( data, offset, length );
+            VorbisSetup.store( headers, setup );
+        }
+        createDecoderState();
+    }
+
+    /**
+     * Transforms and work arrays are per decoder
+     */
+    private void createDecoderState() {
+        mdct[ 0 ] = new Mdct( setup.blocksize[0] );
+        mdct[ 1 ] = new Mdct( setup.blocksize[1] );
+        workspace = new Workspace( setup.channels, setup.blocksize[ 1 ], setup.floors.length, setup.partwords );
+    }
+
     private void vorbis_unpack_books( byte[] data, int offset, int length ) {
         oggRead.setData( data, offset );
+        int channels = setup.channels;
 
         /* Extract codebooks */
         int books = (int)oggRead.getBits(8) + 1;
-        codeBooks = new CodeBook[ books ];
+        CodeBook[] codeBooks = new CodeBook[ books ];
+        setup.codeBooks = codeBooks;
         for ( int i = 0; i < books; i++ ) {
             codeBooks[ i ] = new CodeBook();
             codeBooks[ i ].unpack( oggRead );
@@ -204,7 +287,8 @@ public class VorbisDecoder implements Codec, JMFCodec {
 
         /* Floors */
         int floors = (int)oggRead.getBits(6) + 1;
-        floor_param = new Floor[ floors ];
+        Floor[] floor_param = new Floor[ floors ];
+        setup.floors = floor_param;
         for ( int i = 0; i < floors; i++ ) {
             int floor_type = (int)oggRead.getBits(16);
 //    System.out.println( "floortype " + floor_type );
@@ -228,7 +312,8 @@ public class VorbisDecoder implements Codec, JMFCodec {
 
         /* Residues */
         int residues = (int)oggRead.getBits(6) + 1;
-        residue_param = new Residue[ residues ];
+        Residue[] residue_param = new Residue[ residues ];
+        setup.residues = residue_param;
         for ( int i = 0; i < residues; i++ ) {
             int residue_type = (int)oggRead.getBits( 16 );
 //    System.out.println( "residuetype " + residue_type );
@@ -257,7 +342,8 @@ public class VorbisDecoder implements Codec, JMFCodec {
 
         /* Mapping */
         int mappings = (int)oggRead.getBits(6) + 1;
-        mapping_param = new Mapping[ residues ];
+        Mapping[] mapping_param = new Mapping[ mappings ];
+        setup.mappings = mapping_param;
         for ( int i = 0; i < mappings; i++ ) {
             int mapping_type = (int)oggRead.getBits( 16 );
 //    System.out.println( "mappingtype " + mapping_type );
@@ -276,8 +362,9 @@ public class VorbisDecoder implements Codec, JMFCodec {
 
         /* Modes */
         int modes = (int)oggRead.getBits(6) + 1;
-        modebits = ilog2( modes - 1 );
-        modes_param = new Mode[ residues ];
+        setup.modebits = ilog2( modes - 1 );
+        Mode[] modes_param = new Mode[ modes ];
+        setup.modes = modes_param;
         for ( int i = 0; i < modes; i++ ) {
 //    System.out.println( "Mode" );
             modes_param[ i ] = new Mode();
@@ -298,9 +385,12 @@ public class VorbisDecoder implements Codec, JMFCodec {
             floor_param[ i ].look();
         }
 
+        int partwords = 0;
         for ( int i = 0; i < residue_param.length; i++ ) {
             residue_param[ i ].look( this );
+            partwords = Math.max( partwords, residue_param[ i ].getPartwords() );
         }
+        setup.partwords = partwords;
     }
 
     /* Retrieve blockflag */
@@ -318,7 +408,7 @@ public class VorbisDecoder implements Codec, JMFCodec {
 
     /* Retrieve blockSize */
     public  int getBlockSize( int i ) {
-        return blocksize[i];
+        return setup.blocksize[i];
     }
 
     /* Block management */
@@ -337,7 +427,8 @@ public class VorbisDecoder implements Codec, JMFCodec {
         }
 
         /* read our mode and pre/post windowsize */
-        int mode = (int)oggRead.getBits( modebits );
+        Mode[] modes_param = setup.modes;
+        int mode = (int)oggRead.getBits( setup.modebits );
 //	System.out.println( "Mode " + modebits + " " + mode );
         W = modes_param[ mode ].getBlockFlag();
         lW = 0;
@@ -351,10 +442,12 @@ public class VorbisDecoder implements Codec, JMFCodec {
         // TODO handle Packet headers, etc.
 
         /* unpack_header enforces range checking */
-        int type = modes_param[ mode ].getMapping();
-        mapping_param[ type ].inverse( oggRead, this );
-        mapping_param[ type ].vorbis_synthesis_blockin( this );
-        mapping_param[ type ].soundOutput( output );
+        Mapping mapping = setup.mappings[ modes_param[ mode ].getMapping() ];
+        mapping.inverse( oggRead, this );
+        long start = (statistics != null) ? System.nanoTime() : 0;
+        mapping.vorbis_synthesis_blockin( this );
+        mapping.soundOutput( this, pcmOutput, output );
+        if ( statistics != null ) statistics.addTime( DecoderStatistics.SYNTHESIS_TIME, start );
     }
     
     private static final int HEADER_INFO    = 1;
@@ -378,6 +471,8 @@ public class VorbisDecoder implements Codec, JMFCodec {
             length -= 7;
             switch (packType) {
                 case HEADER_INFO: {
+                    infoHeader = new byte[ length ];
+                    System.arraycopy( data, offset, infoHeader, 0, length );
                     vorbis_unpack_info( data, offset, length );
                     break;
                 }
@@ -386,7 +481,7 @@ public class VorbisDecoder implements Codec, JMFCodec {
                     break;
                 }
                 case HEADER_BOOKS: {
-                    vorbis_unpack_books( data, offset, length);
+                    vorbis_setup( data, offset, length);
                     break;
                 }
                 default: {
@@ -407,6 +502,7 @@ public class VorbisDecoder implements Codec, JMFCodec {
         output.setFlags( input.getFlags() );
         output.setTimeStamp( input.getTimeStamp() );
         output.setDuration( input.getDuration() );
+        output.setOffset( 0 );
         output.setLength( 0 );
         
         try {
@@ -426,10 +522,10 @@ public class VorbisDecoder implements Codec, JMFCodec {
                 } while(   data[ 27 + (segmentNumber - 1) ] == -1
                         && segmentNumber < numberOfSegments );
 
-                /* Copy data to spare buffer */
+                /* Copy data to spare buffer, doubling so it soon stops growing */
                 if ( packetBuffer.length < length + packetBufferLength ) {
                     byte[] t = packetBuffer;
-                    packetBuffer = new byte[ length + packetBufferLength ];
+                    packetBuffer = new byte[ Math.max( length + packetBufferLength, 2 * packetBuffer.length ) ];
                     System.arraycopy(t, 0, packetBuffer,0, packetBufferLength);
                 }
                 System.arraycopy( data, dataPointer, 
@@ -453,6 +549,7 @@ public class VorbisDecoder implements Codec, JMFCodec {
         } catch( Error e ) {
             System.out.println( e );
             e.printStackTrace();
+            if ( statistics != null ) statistics.count( DecoderStatistics.ERRORS );
         }
         return BUFFER_PROCESSED_OK;
     }
@@ -464,7 +561,23 @@ public class VorbisDecoder implements Codec, JMFCodec {
     public void close() {
     }
     
+    /**
+     * JMF resets codecs when the player seeks
+     */
     public void reset() {
+        seekReset();
+    }
+
+    /**
+     * Forget the audio before a seek.  Only the overlap buffers and any
+     * partial packet are dropped; the headers stay unpacked, so decoding
+     * restarts with the next audio packet.
+     */
+    public void seekReset() {
+        packetBufferLength = 0;
+        if ( workspace != null ) {
+            workspace.resetOverlap();
+        }
     }
     
     public String getName() {
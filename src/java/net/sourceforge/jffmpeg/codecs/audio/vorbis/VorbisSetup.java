@@ -0,0 +1,102 @@
+/*
+ * Java port of ogg demultiplexer.
+ * Copyright (c) 2004 Jonathan Hueber.
+ *
+ * License conditions are the same as OggVorbis.  See README.
+ * 1a39e335700bec46ae31a38e2156a898
+ */
+/********************************************************************
+ *                                                                  *
+ * THIS FILE IS PART OF THE OggVorbis SOFTWARE CODEC SOURCE CODE.   *
+ * USE, DISTRIBUTION AND REPRODUCTION OF THIS LIBRARY SOURCE IS     *
+ * GOVERNED BY A BSD-STYLE SOURCE LICENSE INCLUDED WITH THIS SOURCE *
+ * IN 'COPYING'. PLEASE READ THESE TERMS BEFORE DISTRIBUTING.       *
+ *                                                                  *
+ * THE OggVorbis SOURCE CODE IS (C) COPYRIGHT 1994-2002             *
+ * by the XIPHOPHORUS Company http://www.xiph.org/                  *
+ *                                                                  *
+ ********************************************************************/
+
+package net.sourceforge.jffmpeg.codecs.audio.vorbis;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sourceforge.jffmpeg.codecs.audio.vorbis.floor.Floor;
+import net.sourceforge.jffmpeg.codecs.audio.vorbis.residue.Residue;
+import net.sourceforge.jffmpeg.codecs.audio.vorbis.mapping.Mapping;
+
+/**
+ * Unpacked identification and setup headers.  Nothing here changes
+ * once the headers have been read (per decoder state is in Workspace
+ * and the Mdct), so decoders of streams with identical headers share
+ * one instance instead of unpacking the codebooks again.
+ */
+public class VorbisSetup {
+    /* Identification header */
+    int   channels;
+    int   rate;
+    int[] blocksize = new int[ 2 ];
+
+    /* Setup header */
+    CodeBook[] codeBooks;
+    Floor[]    floors;
+    Residue[]  residues;
+    Mapping[]  mappings;
+    Mode[]     modes;
+    int        modebits;
+    int        partwords;
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public int getBlockSize( int i ) {
+        return blocksize[ i ];
+    }
+
+    /* Setups kept for reuse, least recently used dropped first */
+    public static final int CACHE_SIZE = 16;
+
+    private static Map<Key, VorbisSetup> cache = new LinkedHashMap<Key, VorbisSetup>( CACHE_SIZE, 0.75f, true ) {
+        protected boolean removeEldestEntry( Map.Entry<Key, VorbisSetup> eldest ) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Setup previously unpacked from these header bytes, or null
+     */
+    static synchronized VorbisSetup lookup( byte[] headers ) {
+        return cache.get( new Key( headers ) );
+    }
+
+    static synchronized void store( byte[] headers, VorbisSetup setup ) {
+        cache.put( new Key( headers ), setup );
+    }
+
+    /**
+     * Header bytes compared by value
+     */
+    private static class Key {
+        private byte[] headers;
+        private int    hash;
+
+        Key( byte[] headers ) {
+            this.headers = headers;
+            this.hash    = Arrays.hashCode( headers );
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals( Object o ) {
+            return (o instanceof Key) && Arrays.equals( headers, ((Key)o).headers );
+        }
+    }
+}
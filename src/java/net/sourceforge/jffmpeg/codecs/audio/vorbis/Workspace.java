@@ -0,0 +1,142 @@
+/*
+ * Java port of ogg demultiplexer.
+ * Copyright (c) 2004 Jonathan Hueber.
+ *
+ * License conditions are the same as OggVorbis.  See README.
+ * 1a39e335700bec46ae31a38e2156a898
+ */
+/********************************************************************
+ *                                                                  *
+ * THIS FILE IS PART OF THE OggVorbis SOFTWARE CODEC SOURCE CODE.   *
+ * USE, DISTRIBUTION AND REPRODUCTION OF THIS LIBRARY SOURCE IS     *
+ * GOVERNED BY A BSD-STYLE SOURCE LICENSE INCLUDED WITH THIS SOURCE *
+ * IN 'COPYING'. PLEASE READ THESE TERMS BEFORE DISTRIBUTING.       *
+ *                                                                  *
+ * THE OggVorbis SOURCE CODE IS (C) COPYRIGHT 1994-2002             *
+ * by the XIPHOPHORUS Company http://www.xiph.org/                  *
+ *                                                                  *
+ ********************************************************************/
+
+package net.sourceforge.jffmpeg.codecs.audio.vorbis;
+
+/**
+ * Work arrays and overlap state for one decoder.  These are sized once
+ * the setup header has been read, so decoding an audio packet does not
+ * allocate.
+ */
+public class Workspace {
+    /* Spectrum and then PCM for each channel */
+    private float[][] pcm;
+
+    /* Mapping scratch */
+    private float[][] pcmBundle;
+    private int[]     zeroBundle;
+    private int[]     nonZero;
+    private Object[]  floorMemo;
+
+    /* Floor.inverse1 storage indexed by floor then channel */
+    private Object[][] floorCache;
+
+    /* Residue partition words, indexed by channel */
+    private long[][][] partword;
+
+    /* Overlap-add buffer carried from packet to packet */
+    private float[][] overlap;
+
+    /* Interleaved output */
+    private float[] interleaved;
+
+    /* Window of the previous block and returned range of overlap */
+    private boolean thisWindow;
+    private int     centerW;
+    private int     pcmReturned;
+    private int     pcmCurrent;
+
+    public Workspace( int channels, int blockSize, int floors, int partwords ) {
+        pcm        = new float[ channels ][ blockSize ];
+        pcmBundle  = new float[ channels ][];
+        zeroBundle = new int[ channels ];
+        nonZero    = new int[ channels ];
+        floorMemo  = new Object[ channels ];
+        floorCache = new Object[ floors ][ channels ];
+        partword   = new long[ channels ][ partwords ][];
+        overlap    = new float[ channels ][ blockSize ];
+        interleaved = new float[ channels * blockSize / 2 ];
+        resetOverlap();
+    }
+
+    /**
+     * Start again as if no audio packet had been decoded (after a seek)
+     */
+    public void resetOverlap() {
+        thisWindow  = false;
+        centerW     = -1;
+        pcmReturned = -1;
+        pcmCurrent  = -1;
+        for ( int i = 0; i < overlap.length; i++ ) {
+            java.util.Arrays.fill( overlap[ i ], 0.f );
+        }
+    }
+
+    public float[][] getPcm() {
+        return pcm;
+    }
+
+    public float[][] getPcmBundle() {
+        return pcmBundle;
+    }
+
+    public int[] getZeroBundle() {
+        return zeroBundle;
+    }
+
+    public int[] getNonZero() {
+        return nonZero;
+    }
+
+    public Object[] getFloorMemo() {
+        return floorMemo;
+    }
+
+    public Object[] getFloorCache( int floor ) {
+        return floorCache[ floor ];
+    }
+
+    public long[][][] getPartword() {
+        return partword;
+    }
+
+    public float[][] getOverlap() {
+        return overlap;
+    }
+
+    public float[] getInterleaved() {
+        return interleaved;
+    }
+
+    public boolean getWindow() {
+        return thisWindow;
+    }
+
+    public int getCenterW() {
+        return centerW;
+    }
+
+    public int getPcmReturned() {
+        return pcmReturned;
+    }
+
+    public int getPcmCurrent() {
+        return pcmCurrent;
+    }
+
+    /**
+     * Record the state left by vorbis_synthesis_blockin
+     */
+    public void setOverlapState( boolean thisWindow, int centerW, int pcmReturned, int pcmCurrent ) {
+        this.thisWindow  = thisWindow;
+        this.centerW     = centerW;
+        this.pcmReturned = pcmReturned;
+        this.pcmCurrent  = pcmCurrent;
+    }
+}
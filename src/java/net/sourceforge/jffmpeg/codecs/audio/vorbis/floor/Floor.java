@@ -25,6 +25,11 @@ import net.sourceforge.jffmpeg.codecs.audio.vorbis.OggReader;
 public abstract class Floor {
     public abstract void unpack( OggReader oggRead );
     public abstract void look();
-    public abstract Object inverse1( OggReader oggRead, VorbisDecoder vorbis );
+    /**
+     * Decode the floor of one channel.  memo is the value returned by an
+     * earlier call for the same channel (or null), and is reused when
+     * possible.
+     */
+    public abstract Object inverse1( OggReader oggRead, VorbisDecoder vorbis, Object memo );
     public abstract void inverse2( Object floor, float[] pcm, VorbisDecoder vorbis );
 }
@@ -69,7 +69,7 @@ public class Floor0 extends Floor {
 //        System.out.println( "Floor0 look" );
     }
 
-    public Object inverse1( OggReader oggRead, VorbisDecoder vorbis ) {
+    public Object inverse1( OggReader oggRead, VorbisDecoder vorbis, Object memo ) {
         System.out.println( "Floor0 inverse1" );
 
         int ampraw = (int)oggRead.getBits( ampbits );
@@ -82,7 +82,10 @@ public class Floor0 extends Floor {
                 CodeBook b = vorbis.getCodeBook(booknum);
                 float last=0.f;
                 int dim = b.getDim();
-		float[] lsp = new float[ m + dim + 1 ];
+                float[] lsp = (float[])memo;
+                if ( lsp == null || lsp.length < m + dim + 1 ) {
+                    lsp = new float[ m + dim + 1 ];
+                }
             
                 for( int j = 0;j < m; j += dim) {
                     b.decodev_set( lsp, j, oggRead, dim);
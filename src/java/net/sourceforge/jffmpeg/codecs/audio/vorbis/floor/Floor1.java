@@ -190,11 +190,14 @@ public class Floor1 extends Floor {
       }
   }
  
-    public Object inverse1( OggReader oggRead, VorbisDecoder vorbis ) {
+    public Object inverse1( OggReader oggRead, VorbisDecoder vorbis, Object memo ) {
         /* unpack wrapped/predicted values from stream */
         if( oggRead.getBits(1) == 0 ) return null;
 
-        int[] fit_value= new int[ posts ];
+        int[] fit_value = (int[])memo;
+        if ( fit_value == null ) {
+            fit_value = new int[ posts ];
+        }
 
 //        System.out.println( "Floor1 inverse1" );
         fit_value[0] = (int)oggRead.getBits( ilog(quant_q - 1) );
@@ -24,10 +24,12 @@ import net.sourceforge.jffmpeg.codecs.audio.vorbis.OggReader;
 
 import javax.media.Buffer;
 
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
+
 public abstract class Mapping {
     public abstract void unpack( OggReader oggRead, int channels );
 //    public abstract void forward();
     public abstract void inverse( OggReader oggRead, VorbisDecoder vorbis );
-    public abstract void soundOutput( Buffer buffer );
+    public abstract void soundOutput( VorbisDecoder vorbis, PcmOutput pcmOutput, Buffer buffer );
     public abstract void vorbis_synthesis_blockin( VorbisDecoder vorbis );
 }
@@ -21,9 +21,13 @@ package net.sourceforge.jffmpeg.codecs.audio.vorbis.mapping;
 
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.VorbisDecoder;
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.OggReader;
+import net.sourceforge.jffmpeg.codecs.audio.vorbis.Workspace;
 
 import javax.media.Buffer;
 
+import net.sourceforge.jffmpeg.codecs.utils.PcmOutput;
+import net.sourceforge.jffmpeg.DecoderStatistics;
+
 public class Mapping0 extends Mapping {
     private int channels;
     private int submaps;
@@ -33,8 +37,6 @@ public class Mapping0 extends Mapping {
     private int[] chmuxlist     = new int[ 6 ];
     private int[] floorsubmap   = new int[ 17 ];
     private int[] residuesubmap = new int[ 17 ];
-    private float[][] pcm;
-    private int pcmend;
 
     private static final int ilog( long v ) {
        int ret=0;
@@ -75,34 +77,33 @@ public class Mapping0 extends Mapping {
             floorsubmap[i] = (int)oggRead.getBits( 8 );
             residuesubmap[i] = (int)oggRead.getBits( 8 );
         }
-
-        pcm = new float[ channels ][ 4096 ];  //TODO moveme
-        pcmb = new float[ channels ][ 4096 ];  //TODO moveme
     }
 
     public void inverse( OggReader oggRead, VorbisDecoder vorbis ) {
-        pcmend = vorbis.getBlockSize( vorbis.getW() ? 1:0 );
-        long  n = pcmend;
+        long  n = vorbis.getBlockSize( vorbis.getW() ? 1:0 );
 //        System.out.println( "mapping0_inverse " + n );
 
-        float[][] pcmbundle  = new float[ channels ][ (int)n ];
-        int[]     zerobundle = new int[ channels ];
-        int[]     nonzero    = new int[ channels ];
-        Object[]  floormemo  = new Object[ channels ];
+        Workspace workspace  = vorbis.getWorkspace();
+        float[][] pcmbundle  = workspace.getPcmBundle();
+        int[]     zerobundle = workspace.getZeroBundle();
+        int[]     nonzero    = workspace.getNonZero();
+        Object[]  floormemo  = workspace.getFloorMemo();
+        float[][] pcm        = workspace.getPcm();
 
         /* recover the spectral envelope; store it in the PCM vector for now */
         for(int i = 0; i < channels; i++ ) {
             int submap = chmuxlist[ i ];
-            floormemo[i]=vorbis.getFloor( floorsubmap[submap] ).inverse1(oggRead, vorbis);
+            int floor  = floorsubmap[ submap ];
+            Object[] floorcache = workspace.getFloorCache( floor );
+            floormemo[i]=vorbis.getFloor( floor ).inverse1(oggRead, vorbis, floorcache[i]);
             if( floormemo[i] != null) {
+                floorcache[i]=floormemo[i];
                 nonzero[i]=1;
             } else {
                 nonzero[i]=0;
             }
             // TODO clear channel pcm
-            for ( int j = 0; j < n; j++ ) {
-                pcm[i][j] = 0;
-            }
+            java.util.Arrays.fill( pcm[i], 0, (int)n, 0.f );
         }
     
         /* channel coupling can 'dirty' the nonzero listing */
@@ -128,7 +129,7 @@ public class Mapping0 extends Mapping {
                 }
             }
             vorbis.getResidue(residuesubmap[i]).inverse( oggRead,
-                 pcmbundle, zerobundle, ch_in_bundle);
+                 pcmbundle, zerobundle, ch_in_bundle, workspace);
         }
 
         /* channel coupling */
@@ -161,6 +162,8 @@ public class Mapping0 extends Mapping {
         }
 
         /* compute and apply spectral envelope */
+        DecoderStatistics statistics = vorbis.getStatistics();
+        long start = (statistics != null) ? System.nanoTime() : 0;
         for( int i = 0; i < channels; i++ ) {
             float[] pcmt = pcm[i];
             int submap = chmuxlist[i];
@@ -181,9 +184,7 @@ public class Mapping0 extends Mapping {
             if ( nonzero[i] != 0 ) {
                 _vorbis_apply_window(pcmt, vorbis);
             } else {
-                for( int j = 0; j < n; j++ ) {
-                     pcmt[j] = 0.f;
-                }
+                java.util.Arrays.fill( pcmt, 0, (int)n, 0.f );
             }
     { /*
         int q;
@@ -194,12 +195,16 @@ public class Mapping0 extends Mapping {
         System.out.println();
       */     } 
         }
+        if ( statistics != null ) statistics.addTime( DecoderStatistics.SYNTHESIS_TIME, start );
 //System.out.println( "mapping 0 done" );
     }
 
 //    public abstract void forward();
     private float[][] window = new float[ 2 ][];
 
+    /* window in reverse, so the right slope is also a forward loop */
+    private float[][] windowReversed = new float[ 2 ][];
+
     public Mapping0( VorbisDecoder vorbis ) {
         for ( int w = 0; w < 2; w++ ) {
             int left = vorbis.getBlockSize(w) / 2;
@@ -214,6 +219,10 @@ public class Mapping0 extends Mapping {
                 x  = Math.sin(x);
                 window[w][i] = (float)x;
             }
+            windowReversed[w] = new float[ left ];
+            for( int i = 0; i < left; i++ ) {
+                windowReversed[w][i] = window[w][left - 1 - i];
+            }
         }
     }
 
@@ -230,35 +239,51 @@ public class Mapping0 extends Mapping {
     
         int rightbegin=n/2+n/4-rn/4;
         int rightend=rightbegin+rn/2;
-        int i,p;
-    
-        for(i=0;i<leftbegin;i++) {
-           d[i] = 0.f;
+        java.util.Arrays.fill( d, 0, leftbegin, 0.f );
+
+        multiply( d, leftbegin,  window[ lW ],         leftend - leftbegin );
+        multiply( d, rightbegin, windowReversed[ nW ], rightend - rightbegin );
+
+        java.util.Arrays.fill( d, rightend, n, 0.f );
+    }
+
+    private static void multiply( float[] d, int offset, float[] window, int length ) {
+        if ( Mdct.vector ) {
+            VectorMdct.multiply( d, offset, window, length );
+            return;
         }
-    
-        for(p=0;i<leftend;i++,p++) {
-           d[i] *= window[ lW ][p];
+        for( int i = offset, p = 0; p < length; i++, p++ ) {
+           d[i] *= window[p];
         }
-    
-        for(i=rightbegin,p=rn/2-1;i<rightend;i++,p--) {
-           d[i] *= window[ nW ][p];
+    }
+
+    /**
+     * dst[dstOffset...] += src[srcOffset...] for length samples
+     */
+    private static void overlap( float[] dst, int dstOffset, float[] src, int srcOffset, int length ) {
+        if ( Mdct.vector ) {
+            VectorMdct.add( dst, dstOffset, src, srcOffset, length );
+            return;
         }
-    
-        for( ; i < n; i++ ) {
-           d[i]  =0.f;
+        for ( int i = 0; i < length; i++ ) {
+            dst[i + dstOffset] += src[i + srcOffset];
         }
     }
 
-    private static boolean lastWindow;
-    private static boolean thisWindow = false;
-    private static int centerW      = -1;
-    private static int pcm_returned = -1;
-    private static int pcm_current  = -1;
-    private static float[][] pcmb;
+    /**
+     * Overlap state lives in the decoder's Workspace, so one Mapping0
+     * can be shared by decoders of streams with the same setup
+     */
     public void vorbis_synthesis_blockin( VorbisDecoder vorbis ) {
 //        System.out.println( "VORBIS_SYNTHESIS_BLOCKIN" );
-        lastWindow = thisWindow;
-        thisWindow = vorbis.getW();
+        Workspace workspace = vorbis.getWorkspace();
+        float[][] pcm  = workspace.getPcm();
+        float[][] pcmb = workspace.getOverlap();
+        boolean lastWindow = workspace.getWindow();
+        boolean thisWindow = vorbis.getW();
+        int centerW      = workspace.getCenterW();
+        int pcm_returned = workspace.getPcmReturned();
+        int pcm_current;
 
         int n  = vorbis.getBlockSize( thisWindow ? 1 : 0 )/ 2;
         int n0 = vorbis.getBlockSize( 0 ) / 2;
@@ -283,11 +308,13 @@ public class Mapping0 extends Mapping {
         /* overlap/add PCM */
     
         for( int j = 0; j < channels; j++ ) {
+           float[] src = pcm[j];
+           float[] dst = pcmb[j];
     {/*
         int q;
         System.out.println( "before overlap" );
         for ( q = 0; q < n; q++ ) {
-            System.out.print( ((int)(pcm[j][q] * 10000000)) + " " );
+            System.out.print( ((int)(src[q] * 10000000)) + " " );
         }
         System.out.println(); */
      } 
@@ -298,50 +325,30 @@ public class Mapping0 extends Mapping {
                    /* large/large */
                    int pcmPointer  = prevCenter;
                    int pcmPointer2 = 0;
-                   for ( int i = 0; i < n1; i++ ) {
-//System.out.print( " " + ((int)(pcm[j][i + pcmPointer2 ] *10000000 ) ) );
-                       pcmb[j][i + pcmPointer] += pcm[j][i + pcmPointer2 ];
-                   }
+                   overlap( dst, pcmPointer, src, pcmPointer2, n1 );
                } else {
                    /* large/small */
                    int pcmPointer  = prevCenter + n1 / 2 - n0 / 2;
                    int pcmPointer2 = 0;
-                   for( int i = 0; i < n0; i++ ) {
-//System.out.print( " " + ((int)(pcm[j][i + pcmPointer2 ] *10000000 ) ) );
-                       pcmb[j][i + pcmPointer] += pcm[j][i + pcmPointer2 ];
-                   }
+                   overlap( dst, pcmPointer, src, pcmPointer2, n0 );
                }
            } else {
                if ( thisWindow ) {
                    /* small/large */
                    int pcmPointer  = prevCenter;
                    int pcmPointer2 = n1 / 2 - n0 / 2;
-                   int i;
-                   for ( i = 0; i < n0; i++ ) {
-//System.out.print( " " + ((int)(pcm[j][i + pcmPointer2 ] *10000000 ) ) );
-                       pcmb[j][i + pcmPointer ] += pcm[j][i + pcmPointer2];
-                   }
-                   for ( ; i < n1 / 2 + n0 / 2; i++ ) {
-//System.out.print( " " + ((int)(pcm[j][i + pcmPointer2 ] *10000000 ) ) );
-                       pcmb[j][i + pcmPointer ] = pcm[j][i + pcmPointer2];
-                   }
+                   overlap( dst, pcmPointer, src, pcmPointer2, n0 );
+                   System.arraycopy( src, n0 + pcmPointer2, dst, n0 + pcmPointer, n1 / 2 - n0 / 2 );
                } else {
                    /* small/small */
                    int pcmPointer = prevCenter;
                    int pcmPointer2 = 0;
-                   for( int i = 0; i < n0; i++ ) {
-//System.out.print( " " + ((int)(pcm[j][i + pcmPointer2 ] *10000000 ) ) );
-                        pcmb[j][i + pcmPointer ] += pcm[j][i + pcmPointer2];
-                   }
+                   overlap( dst, pcmPointer, src, pcmPointer2, n0 );
                }
            }
 //  System.out.println();
            /* the copy section */
-           int pcmPointer  = thisCenter;
-           int pcmPointer2 = n;
-           for( int i = 0; i < n; i++ ) {
-               pcmb[j][i + pcmPointer]=pcm[j][i + pcmPointer2];
-           }
+           System.arraycopy( src, n, dst, thisCenter, n );
        }
 
        if( centerW != 0 ) {
@@ -363,41 +370,25 @@ public class Mapping0 extends Mapping {
                           + vorbis.getBlockSize(lastWindow ? 1 : 0)/4
                           + vorbis.getBlockSize(thisWindow ? 1 : 0)/4;
        }
+       workspace.setOverlapState( thisWindow, centerW, pcm_returned, pcm_current );
    }
 
-    public void soundOutput( Buffer output ) {
-        int size = (pcm_current - pcm_returned);
-        byte[] out = (byte[])output.getData();
-        if ( out == null || out.length < output.getLength() + size * 4 ) {
-            byte[] t = new byte[ output.getLength() + size * 4 ];
-            if ( out != null ) System.arraycopy( t, 0, out, 0, output.getLength() );
-            output.setData( t );
-            out = t;
-        }
+    public void soundOutput( VorbisDecoder vorbis, PcmOutput pcmOutput, Buffer output ) {
+        Workspace workspace = vorbis.getWorkspace();
+        float[][] pcmb        = workspace.getOverlap();
+        float[]   interleaved = workspace.getInterleaved();
+        int pcm_returned = workspace.getPcmReturned();
+        int size = (workspace.getPcmCurrent() - pcm_returned);
+        int count = size * channels;
 //	System.out.println( " " + pcm_current + " " + size );
-        int offset = output.getLength();
-//        System.out.println( "Channel" );
-        for ( int i = 0; i < size; i++ ) {
-            int s = scale( pcmb[ 0 ][ i + pcm_returned ] );
-            out[ offset + i * 4 + 1  ] = (byte)((s & 0xff00) >> 8);
-            out[ offset + i * 4 + 0 ] = (byte)(s & 0xff);
-//            System.out.print( " " + s );
-            s = scale( pcmb[ 1 ][ i + pcm_returned ] );
-            out[ offset + i * 4 + 3 ] = (byte)((s & 0xff00) >> 8);
-            out[ offset + i * 4 + 2 ] = (byte)(s & 0xff);
-        }
-//        System.out.println();
-        output.setLength( offset + (size) * 4 );
-    }
-
-    private static final int scale( double in ) {
-        int val = (int)(in * 32767.f);
-        if(val>32767){
-            val=32767;
-        }
-        if(val<-32768){
-            val=-32768;
+        for ( int j = 0; j < channels; j++ ) {
+            float[] channel = pcmb[ j ];
+            int p = j;
+            for ( int i = 0; i < size; i++ ) {
+                interleaved[ p ] = channel[ i + pcm_returned ];
+                p += channels;
+            }
         }
-        return val;
+        pcmOutput.putSamples( output, interleaved, 0, count );
     }
 }
@@ -37,6 +37,25 @@ public class Mdct {
     private int[] bitrev;
     private float scale;
 
+    /**
+     * The butterfly stages before the 32 point ones and the bit reverse
+     * run on the Vector API (VectorMdct) when the VM was started with
+     * --add-modules jdk.incubator.vector, as are windowing and
+     * overlap-add in Mapping0.  Output is identical to the scalar loops,
+     * which jffmpeg.vorbis.mdct=scalar selects.
+     */
+    public static final boolean vector = selectVector();
+
+    /* Twiddles of each butterfly stage in data order, for VectorMdct */
+    private float[][] stageCos;
+    private float[][] stageSin;
+
+    /* bitrev and the bit reverse twiddles split for VectorMdct */
+    private int[]   bitrev0;
+    private int[]   bitrev1;
+    private float[] bitrevCos;
+    private float[] bitrevSin;
+
     /**
      * Construct class for this blocksize
      */
@@ -77,10 +96,61 @@ public class Mdct {
             }
         }
         scale = (float)(4.f/n);
+
+        if ( vector ) {
+            /* stage i uses every (4 << i)'th pair counting down, each
+               value of a pair gets cos and sin, sin negated on the second */
+            int stages = Math.max( log2n - 6, 0 );
+            stageCos = new float[ stages ][];
+            stageSin = new float[ stages ][];
+            for ( int i = 0; i < stages; i++ ) {
+                int half    = n2 >> (i + 1);
+                int trigint = 4 << i;
+                stageCos[i] = new float[ half ];
+                stageSin[i] = new float[ half ];
+                for ( int k = 0; k < half; k += 2 ) {
+                    int t = (half / 2 - 1 - k / 2) * trigint;
+                    stageCos[i][k]   =  T[ t ];
+                    stageCos[i][k+1] =  T[ t ];
+                    stageSin[i][k]   =  T[ t + 1 ];
+                    stageSin[i][k+1] = -T[ t + 1 ];
+                }
+            }
+
+            int quarter = n >> 3;
+            bitrev0   = new int[ quarter ];
+            bitrev1   = new int[ quarter ];
+            bitrevCos = new float[ quarter ];
+            bitrevSin = new float[ quarter ];
+            for ( int h = 0; h < quarter; h++ ) {
+                bitrev0[h]   = bitrev[ 2 * h ];
+                bitrev1[h]   = bitrev[ 2 * h + 1 ];
+                bitrevCos[h] = T[ n + 2 * h ];
+                bitrevSin[h] = T[ n + 2 * h + 1 ];
+            }
+        }
     }
 
+    private static boolean selectVector() {
+        if ( "scalar".equals( System.getProperty( "jffmpeg.vorbis.mdct" ) ) ) {
+            return false;
+        }
+        try {
+            return VectorMdct.getLength() >= 2;
+        } catch ( LinkageError e ) {
+            /* jdk.incubator.vector not in the boot layer */
+            return false;
+        }
+    }
 
     public void mdct_backward( float[] in, float[] out ){
+        mdct_backward( in, out, vector );
+    }
+
+    /**
+     * Package access so tests can compare both paths
+     */
+    void mdct_backward( float[] in, float[] out, boolean vector ){
         int n2 = n >> 1;
         int n4 = n >> 2;
 
@@ -114,14 +184,22 @@ public class Mdct {
             oX       += 4;
         } while( iX >= 0 );
 
-        mdct_butterflies(out, n2, n2);  //float, offset, n2
+        if ( vector ) {
+            mdct_butterflies_vector(out, n2, n2);
+        } else {
+            mdct_butterflies(out, n2, n2);  //float, offset, n2
+        }
 
 //	for ( int k = 0; k < n/2; k++ ) {
 //             System.out.print( " " + ((int)( out[k] * 10000000 )) );
 //        }
 //        System.out.println();
 
-        mdct_bitreverse( out );
+        if ( vector ) {
+            VectorMdct.bitreverse( out, n >> 3, bitrev0, bitrev1, bitrevCos, bitrevSin );
+        } else {
+            mdct_bitreverse( out );
+        }
 
         /* roatate + window */
         {
@@ -205,6 +283,19 @@ public class Mdct {
         }
     }
 
+    private void mdct_butterflies_vector( float[] x, int offset, int points ) {
+        for ( int i = 0; i < stageCos.length; i++ ) {
+            int size = points >> i;
+            for ( int j = 0; j < (1<<i); j++ ) {
+                VectorMdct.butterfly( x, offset + size * j, size, stageCos[i], stageSin[i] );
+            }
+        }
+
+        for( int j = 0; j < points; j += 32 ) {
+            mdct_butterfly_32( x, offset + j );
+        }
+    }
+
     private void mdct_butterfly_first( float[] data, int x, int points) {
         int x1 = x +  points     - 8;
         int x2 = x + (points>>1) - 8;
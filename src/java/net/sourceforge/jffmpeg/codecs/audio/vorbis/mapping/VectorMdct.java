@@ -0,0 +1,172 @@
+/*
+ * Java port of ogg demultiplexer.
+ * Copyright (c) 2004 Jonathan Hueber.
+ *
+ * License conditions are the same as OggVorbis.  See README.
+ * 1a39e335700bec46ae31a38e2156a898
+ */
+package net.sourceforge.jffmpeg.codecs.audio.vorbis.mapping;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Inner loops of the inverse MDCT, windowing and overlap-add on the
+ * Vector API.  Each value sees the same float operations as in the
+ * scalar loops, so the output is identical.
+ *
+ * Loading this class fails with a LinkageError unless the VM was started
+ * with --add-modules jdk.incubator.vector.
+ */
+final class VectorMdct {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LENGTH = SPECIES.length();
+
+    /* (0 1)(2 3)... swapped */
+    private static final VectorShuffle<Float> SWAP_PAIRS = shuffle( 0 );
+    /* Interleave the low, then the high halves of two vectors */
+    private static final VectorShuffle<Float> ZIP_LOW    = shuffle( 1 );
+    private static final VectorShuffle<Float> ZIP_HIGH   = shuffle( 2 );
+    /* Pairs in reverse order */
+    private static final VectorShuffle<Float> REVERSE_PAIRS = shuffle( 3 );
+
+    private VectorMdct() {
+    }
+
+    private static VectorShuffle<Float> shuffle( int type ) {
+        int[] lanes = new int[ LENGTH ];
+        for ( int j = 0; j < LENGTH; j++ ) {
+            switch ( type ) {
+                case 0: lanes[j] = j ^ 1; break;
+                case 1: lanes[j] = (j >> 1) + ((j & 1) != 0 ? LENGTH : 0); break;
+                case 2: lanes[j] = (j >> 1) + LENGTH / 2 + ((j & 1) != 0 ? LENGTH : 0); break;
+                default: lanes[j] = LENGTH - 2 - (j & ~1) + (j & 1); break;
+            }
+        }
+        return VectorShuffle.fromValues( SPECIES, lanes );
+    }
+
+    /**
+     * Fails unless the Vector API can be used
+     */
+    static int getLength() {
+        return LENGTH;
+    }
+
+    /**
+     * One butterfly block as in Mdct.mdct_butterfly_generic: the upper
+     * half gets the sums, the lower half the differences rotated by the
+     * twiddles, which are cos and sin repeated for each pair and sin
+     * negated on the odd values.
+     */
+    static void butterfly( float[] data, int x, int points, float[] cos, float[] sin ) {
+        int half = points >> 1;
+        int x1   = x + half;
+        int k    = 0;
+
+        for ( ; k <= half - LENGTH; k += LENGTH ) {
+            FloatVector a = FloatVector.fromArray( SPECIES, data, x1 + k );
+            FloatVector b = FloatVector.fromArray( SPECIES, data, x  + k );
+            FloatVector d = a.sub( b );
+            a.add( b ).intoArray( data, x1 + k );
+            FloatVector c = FloatVector.fromArray( SPECIES, cos, k );
+            FloatVector s = FloatVector.fromArray( SPECIES, sin, k );
+            d.mul( c ).add( d.rearrange( SWAP_PAIRS ).mul( s ) ).intoArray( data, x + k );
+        }
+
+        for ( ; k < half; k += 2 ) {
+            float r0 = data[x1+k]   - data[x+k];
+            float r1 = data[x1+k+1] - data[x+k+1];
+            data[x1+k]   += data[x+k];
+            data[x1+k+1] += data[x+k+1];
+            data[x+k]   = r0 * cos[k]   + r1 * sin[k];
+            data[x+k+1] = r1 * cos[k+1] + r0 * sin[k+1];
+        }
+    }
+
+    /**
+     * Mdct.mdct_bitreverse for n = 8 * quarter, with the bit reverse
+     * table split into the first and second index of each pair and the
+     * twiddles into cos and sin.  Reads the upper half of data and
+     * writes the lower half from both ends.
+     */
+    static void bitreverse( float[] data, int quarter, int[] rev0, int[] rev1,
+                            float[] cos, float[] sin ) {
+        int x  = quarter << 2;
+        int w1 = x - 2;
+        int h  = 0;
+
+        for ( ; h <= quarter - LENGTH; h += LENGTH ) {
+            FloatVector d00 = FloatVector.fromArray( SPECIES, data, x,     rev0, h );
+            FloatVector d01 = FloatVector.fromArray( SPECIES, data, x + 1, rev0, h );
+            FloatVector d10 = FloatVector.fromArray( SPECIES, data, x,     rev1, h );
+            FloatVector d11 = FloatVector.fromArray( SPECIES, data, x + 1, rev1, h );
+            FloatVector c   = FloatVector.fromArray( SPECIES, cos, h );
+            FloatVector s   = FloatVector.fromArray( SPECIES, sin, h );
+
+            FloatVector r0 = d01.sub( d11 );
+            FloatVector r1 = d00.add( d10 );
+            FloatVector r2 = r1.mul( c ).add( r0.mul( s ) );
+            FloatVector r3 = r1.mul( s ).sub( r0.mul( c ) );
+            FloatVector q0 = d01.add( d11 ).div( 2 );
+            FloatVector q1 = d00.sub( d10 ).div( 2 );
+
+            FloatVector front0 = q0.add( r2 );
+            FloatVector front1 = q1.add( r3 );
+            front0.rearrange( ZIP_LOW,  front1 ).intoArray( data, 2 * h );
+            front0.rearrange( ZIP_HIGH, front1 ).intoArray( data, 2 * h + LENGTH );
+
+            FloatVector back0 = q0.sub( r2 );
+            FloatVector back1 = r3.sub( q1 );
+            int back = w1 - 2 * h - 2 * LENGTH + 2;
+            back0.rearrange( ZIP_HIGH, back1 ).rearrange( REVERSE_PAIRS ).intoArray( data, back );
+            back0.rearrange( ZIP_LOW,  back1 ).rearrange( REVERSE_PAIRS ).intoArray( data, back + LENGTH );
+        }
+
+        for ( ; h < quarter; h++ ) {
+            int x0 = x + rev0[h];
+            int x1 = x + rev1[h];
+            float r0 = data[x0+1] - data[x1+1];
+            float r1 = data[x0+0] + data[x1+0];
+            float r2 = r1 * cos[h] + r0 * sin[h];
+            float r3 = r1 * sin[h] - r0 * cos[h];
+            float q0 = (data[x0+1] + data[x1+1])/2;
+            float q1 = (data[x0+0] - data[x1+0])/2;
+            data[2*h]      = q0 + r2;
+            data[2*h+1]    = q1 + r3;
+            data[w1-2*h]   = q0 - r2;
+            data[w1-2*h+1] = r3 - q1;
+        }
+    }
+
+    /**
+     * data[offset, offset + length) *= window[0, length)
+     */
+    static void multiply( float[] data, int offset, float[] window, int length ) {
+        int i = 0;
+        for ( ; i <= length - LENGTH; i += LENGTH ) {
+            FloatVector.fromArray( SPECIES, data, offset + i )
+                       .mul( FloatVector.fromArray( SPECIES, window, i ) )
+                       .intoArray( data, offset + i );
+        }
+        for ( ; i < length; i++ ) {
+            data[offset + i] *= window[i];
+        }
+    }
+
+    /**
+     * dst[dstOffset, dstOffset + length) += src[srcOffset, srcOffset + length)
+     */
+    static void add( float[] dst, int dstOffset, float[] src, int srcOffset, int length ) {
+        int i = 0;
+        for ( ; i <= length - LENGTH; i += LENGTH ) {
+            FloatVector.fromArray( SPECIES, dst, dstOffset + i )
+                       .add( FloatVector.fromArray( SPECIES, src, srcOffset + i ) )
+                       .intoArray( dst, dstOffset + i );
+        }
+        for ( ; i < length; i++ ) {
+            dst[dstOffset + i] += src[srcOffset + i];
+        }
+    }
+}
@@ -21,10 +21,16 @@ package net.sourceforge.jffmpeg.codecs.audio.vorbis.residue;
 
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.VorbisDecoder;
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.OggReader;
+import net.sourceforge.jffmpeg.codecs.audio.vorbis.Workspace;
 
 public abstract class Residue {
     public abstract void unpack( OggReader oggRead );
     public abstract void look( VorbisDecoder vorbis );
 //    public abstract void forward();
-    public abstract void inverse( OggReader oggRead, float[][] pcmBundle, int[] zeroBundle, int ch_in_bundle);
+    public abstract void inverse( OggReader oggRead, float[][] pcmBundle, int[] zeroBundle, int ch_in_bundle,
+                                  Workspace workspace );
+    /**
+     * Partition words per channel, for sizing the Workspace
+     */
+    public abstract int getPartwords();
 }
@@ -22,6 +22,7 @@ package net.sourceforge.jffmpeg.codecs.audio.vorbis.residue;
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.CodeBook;
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.VorbisDecoder;
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.OggReader;
+import net.sourceforge.jffmpeg.codecs.audio.vorbis.Workspace;
 
 public class Residue0 extends Residue {
     protected int begin;
@@ -121,7 +122,14 @@ public class Residue0 extends Residue {
 //    public abstract void forward();
 
 
-    public void inverse( OggReader oggRead, float[][] in, int[] nonZero, int channels ) {
+    public int getPartwords() {
+        int partvals = (end - begin) / grouping;
+        int partitions_per_word = phrasebook.getDim();
+        return (partvals + partitions_per_word - 1) / partitions_per_word;
+    }
+
+    public void inverse( OggReader oggRead, float[][] in, int[] nonZero, int channels,
+                         Workspace workspace ) {
 //        System.out.println( "Residue0 inverse" );
 
         int used = 0;
@@ -131,20 +139,17 @@ public class Residue0 extends Residue {
             }
         }
         if ( used > 0 ) {
-            _01inverse( oggRead, in, used );
+            _01inverse( oggRead, in, used, workspace.getPartword() );
         }
     }
 
-    protected void _01inverse( OggReader oggRead, float[][] in, int ch ) {
+    protected void _01inverse( OggReader oggRead, float[][] in, int ch, long[][][] partword ) {
         /* move all this setup out later */
         int samples_per_partition = grouping;
         int partitions_per_word = phrasebook.getDim();
         int n = end - begin;
   
         int partvals = n/samples_per_partition;
-        int partwords = (partvals+partitions_per_word-1)/partitions_per_word;
-
-        long[][][] partword = new long[ ch ][ partwords ][];
 
         for( int s = 0; s < stages; s++ ) {
             /* each loop decodes on partition codeword containing 
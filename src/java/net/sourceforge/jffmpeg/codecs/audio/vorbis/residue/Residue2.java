@@ -21,22 +21,23 @@ package net.sourceforge.jffmpeg.codecs.audio.vorbis.residue;
 
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.CodeBook;
 import net.sourceforge.jffmpeg.codecs.audio.vorbis.OggReader;
+import net.sourceforge.jffmpeg.codecs.audio.vorbis.Workspace;
 
 public class Residue2 extends Residue0 {
 //    public abstract void look();
 //    public abstract void forward();
 
 
-    public void inverse(OggReader oggRead, float[][] in, int[] nonZero, int ch) {
+    public void inverse(OggReader oggRead, float[][] in, int[] nonZero, int ch, Workspace workspace) {
         /* move all this setup out later */
         int samples_per_partition = grouping;
         int partitions_per_word = phrasebook.getDim();
         int n = end - begin;
   
         int partvals = n/samples_per_partition;
-        int partwords = (partvals+partitions_per_word-1)/partitions_per_word;
 
-        long[][] partword = new long[ partwords ][];
+        /* Residue 2 interleaves the channels, one partition word is enough */
+        long[][] partword = workspace.getPartword()[ 0 ];
 
 //        System.out.println( "Residue2 inverse" );
 
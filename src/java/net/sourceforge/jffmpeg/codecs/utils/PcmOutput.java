@@ -0,0 +1,236 @@
+/*
+ * PCM output buffer management for the audio decoders.
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * See Credits file and Readme for details
+ */
+package net.sourceforge.jffmpeg.codecs.utils;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.AudioFormat;
+
+/**
+ * Writes decoded samples into the output Buffer in the negotiated
+ * sample format:
+ *
+ *   BYTE_OUTPUT  - 16 bit signed little endian in a byte[] (default)
+ *   SHORT_OUTPUT - 16 bit signed in a short[]
+ *   FLOAT_OUTPUT - float[] with full scale at +/-1.0 (not clipped)
+ *
+ * 16 bit samples are FULL_SCALE times the float ones in both
+ * directions, so a round trip keeps the level.
+ *
+ * Buffer lengths are counted in array elements, as JMF expects.
+ * The caller's array is used if it is of the right type and large
+ * enough, so a caller sizing its Buffer from maxSamplesPerFrame() never
+ * sees the decoder allocate.
+ */
+public class PcmOutput {
+    public static final int BYTE_OUTPUT  = 0;
+    public static final int SHORT_OUTPUT = 1;
+    public static final int FLOAT_OUTPUT = 2;
+
+    /** 16 bit value of a float sample of 1.0 */
+    public static final float FULL_SCALE = 32768.f;
+
+    /** JMF has no float data type */
+    public static final Class<?> floatArray = float[].class;
+
+    private int type = BYTE_OUTPUT;
+
+    /**
+     * Output formats available for this input
+     */
+    public static Format[] getSupportedOutputFormats( AudioFormat input ) {
+        return getSupportedOutputFormats( input,
+                            (input != null) ? input.getChannels() : Format.NOT_SPECIFIED );
+    }
+
+    /**
+     * Output formats for a decoder that changes the number of channels
+     */
+    public static Format[] getSupportedOutputFormats( AudioFormat input, int channels ) {
+        double sampleRate = (input != null) ? input.getSampleRate() : Format.NOT_SPECIFIED;
+        return new Format[] {
+            new AudioFormat( "LINEAR", sampleRate, 16, channels,
+                             AudioFormat.LITTLE_ENDIAN, AudioFormat.SIGNED,
+                             Format.NOT_SPECIFIED, Format.NOT_SPECIFIED, Format.byteArray ),
+            new AudioFormat( "LINEAR", sampleRate, 16, channels,
+                             AudioFormat.LITTLE_ENDIAN, AudioFormat.SIGNED,
+                             Format.NOT_SPECIFIED, Format.NOT_SPECIFIED, Format.shortArray ),
+            new AudioFormat( "LINEAR", sampleRate, 32, channels,
+                             Format.NOT_SPECIFIED, AudioFormat.SIGNED,
+                             Format.NOT_SPECIFIED, Format.NOT_SPECIFIED, floatArray )
+        };
+    }
+
+    /**
+     * Select the sample format from the requested data type and
+     * return the format that will be produced
+     */
+    public AudioFormat setOutputFormat( AudioFormat input, Format format ) {
+        return setOutputFormat( input,
+                    (input != null) ? input.getChannels() : Format.NOT_SPECIFIED, format );
+    }
+
+    public AudioFormat setOutputFormat( AudioFormat input, int channels, Format format ) {
+        Class<?> dataType = (format != null) ? format.getDataType() : null;
+        if ( dataType == Format.shortArray ) {
+            type = SHORT_OUTPUT;
+        } else if ( dataType == floatArray ) {
+            type = FLOAT_OUTPUT;
+        } else {
+            type = BYTE_OUTPUT;
+        }
+        return (AudioFormat)getSupportedOutputFormats( input, channels )[ type ];
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Make room for count more samples (all channels) after the data
+     * already in output, from its offset.  Returns the array index to
+     * write at; the caller sets the new length (the end index less
+     * output.getOffset()).  A replacement array starts at offset 0.
+     */
+    public int reserve( Buffer output, int count ) {
+        int offset = output.getOffset();
+        int length = output.getLength();
+        Object data = output.getData();
+        switch ( type ) {
+            case SHORT_OUTPUT: {
+                short[] out = (data instanceof short[]) ? (short[])data : null;
+                if ( out == null ) length = 0;
+                if ( out == null || out.length < offset + length + count ) {
+                    short[] t = new short[ grow( length + count, out ) ];
+                    if ( out != null ) System.arraycopy( out, offset, t, 0, length );
+                    output.setData( t );
+                    offset = 0;
+                }
+                break;
+            }
+            case FLOAT_OUTPUT: {
+                float[] out = (data instanceof float[]) ? (float[])data : null;
+                if ( out == null ) length = 0;
+                if ( out == null || out.length < offset + length + count ) {
+                    float[] t = new float[ grow( length + count, out ) ];
+                    if ( out != null ) System.arraycopy( out, offset, t, 0, length );
+                    output.setData( t );
+                    offset = 0;
+                }
+                break;
+            }
+            default: {
+                byte[] out = (data instanceof byte[]) ? (byte[])data : null;
+                if ( out == null ) length = 0;
+                if ( out == null || out.length < offset + length + count * 2 ) {
+                    byte[] t = new byte[ grow( length + count * 2, out ) ];
+                    if ( out != null ) System.arraycopy( out, offset, t, 0, length );
+                    output.setData( t );
+                    offset = 0;
+                }
+                break;
+            }
+        }
+        output.setOffset( offset );
+        output.setLength( length );
+        return offset + length;
+    }
+
+    /**
+     * Append interleaved samples scaled to 16 bits (clipped unless
+     * the output is float)
+     */
+    public void putSamples( Buffer output, int[] samples, int offset, int count ) {
+        int position = reserve( output, count );
+        switch ( type ) {
+            case SHORT_OUTPUT: {
+                short[] out = (short[])output.getData();
+                for ( int i = 0; i < count; i++ ) {
+                    out[ position++ ] = (short)clip( samples[ offset + i ] );
+                }
+                break;
+            }
+            case FLOAT_OUTPUT: {
+                float[] out = (float[])output.getData();
+                for ( int i = 0; i < count; i++ ) {
+                    out[ position++ ] = samples[ offset + i ] * (1.f / FULL_SCALE);
+                }
+                break;
+            }
+            default: {
+                byte[] out = (byte[])output.getData();
+                for ( int i = 0; i < count; i++ ) {
+                    int s = clip( samples[ offset + i ] );
+                    out[ position++ ] = (byte)s;
+                    out[ position++ ] = (byte)(s >> 8);
+                }
+                break;
+            }
+        }
+        output.setLength( position - output.getOffset() );
+    }
+
+    /**
+     * Append interleaved samples with full scale at +/-1.0
+     */
+    public void putSamples( Buffer output, float[] samples, int offset, int count ) {
+        int position = reserve( output, count );
+        switch ( type ) {
+            case SHORT_OUTPUT: {
+                short[] out = (short[])output.getData();
+                for ( int i = 0; i < count; i++ ) {
+                    out[ position++ ] = (short)clip( (int)(samples[ offset + i ] * FULL_SCALE) );
+                }
+                break;
+            }
+            case FLOAT_OUTPUT: {
+                System.arraycopy( samples, offset, output.getData(), position, count );
+                position += count;
+                break;
+            }
+            default: {
+                byte[] out = (byte[])output.getData();
+                for ( int i = 0; i < count; i++ ) {
+                    int s = clip( (int)(samples[ offset + i ] * FULL_SCALE) );
+                    out[ position++ ] = (byte)s;
+                    out[ position++ ] = (byte)(s >> 8);
+                }
+                break;
+            }
+        }
+        output.setLength( position - output.getOffset() );
+    }
+
+    /**
+     * Size for a replacement array, doubling so that appending
+     * several frames to a small Buffer does not copy every time
+     */
+    private static int grow( int needed, Object old ) {
+        int size = (old != null) ? 2 * java.lang.reflect.Array.getLength( old ) : 0;
+        return (size > needed) ? size : needed;
+    }
+
+    public static final int clip( int sample ) {
+        if ( sample >  32767 ) return  32767;
+        if ( sample < -32768 ) return -32768;
+        return sample;
+    }
+}
@@ -32,6 +32,8 @@ import javax.media.format.YUVFormat;
 import java.awt.Dimension;
 
 import net.sourceforge.jffmpeg.JMFCodec;
+import net.sourceforge.jffmpeg.InstrumentedCodec;
+import net.sourceforge.jffmpeg.DecoderStatistics;
 
 import net.sourceforge.jffmpeg.codecs.video.mpeg12.data.Tables;
 import net.sourceforge.jffmpeg.codecs.video.mpeg12.data.MbPTypeVLC;
@@ -56,7 +58,7 @@ import net.sourceforge.jffmpeg.codecs.video.mpeg.DisplayOutput;
 /**
  * This codec can decode MPEG 1 and MPEG 2 streams.
  */
-public class MpegVideo implements Codec, JMFCodec {
+public class MpegVideo implements Codec, JMFCodec, InstrumentedCodec {
     /**
      * Input and output variables
      */
@@ -80,6 +82,11 @@ public class MpegVideo implements Codec, JMFCodec {
     public int targetFrameBuffer  = 50;
     public boolean hurryUp = false;
 
+    /**
+     * Counters (null if disabled)
+     */
+    private DecoderStatistics statistics;
+
     /**
      * Synchronisation codes
      */
@@ -1156,6 +1163,7 @@ public class MpegVideo implements Codec, JMFCodec {
          */
         if ( (skipBFrames || hurryUp) && pict_type == B_TYPE ) return;
         
+        long start = (statistics != null) ? System.nanoTime() : 0;
         if ( !mb_intra ) {
             /**
              * P or B Type macroblock
@@ -1212,6 +1220,7 @@ public class MpegVideo implements Codec, JMFCodec {
             displayOutput.putRedIdct( x, y, block[ 5 ] );
             displayOutput.putBlueIdct( x, y, block[ 4 ] );
         }
+        if ( statistics != null ) statistics.addTime( DecoderStatistics.IDCT_TIME, start );
     }
     
 
@@ -1572,18 +1581,23 @@ public class MpegVideo implements Codec, JMFCodec {
                  *
                  * Display the last I or P frame we decoded
                  */
+                long start = (statistics != null) ? System.nanoTime() : 0;
                 displayOutput.showNextScreen(out);
+                if ( statistics != null ) statistics.addTime( DecoderStatistics.COLOUR_TIME, start );
                 displayOutput.endIPFrame();
             } else if ( pict_type == B_TYPE ) {
                 /*
                  * B frame - simply show the current frame (it will be discarded)
                  */
                 if ( !skipBFrames && !hurryUp ) {
+                    long start = (statistics != null) ? System.nanoTime() : 0;
                     displayOutput.showScreen(out);
+                    if ( statistics != null ) statistics.addTime( DecoderStatistics.COLOUR_TIME, start );
                     displayOutput.endBFrame();
                 } else {
                     displayOutput.endBFrame();
                     out.setLength(0);
+                    if ( statistics != null ) statistics.count( DecoderStatistics.SKIPPED );
                 }
             } else {
                 /**
@@ -1605,11 +1619,13 @@ public class MpegVideo implements Codec, JMFCodec {
 
         } catch( Error e ) {
             e.printStackTrace();
+            resync();
             this.in = new BitStream();
             out.setLength(0);
             return BUFFER_PROCESSED_OK;
         } catch ( Exception e ) {
             e.printStackTrace();
+            resync();
             this.in = new BitStream();
 //            this.in.seek( this.in.getPos() + this.in.availableBits() );
             out.setLength(0);
@@ -1634,6 +1650,16 @@ public class MpegVideo implements Codec, JMFCodec {
         }
     }
     
+    /**
+     * Count a decoding error; the stream restarts at the next frame
+     */
+    private void resync() {
+        if ( statistics != null ) {
+            statistics.count( DecoderStatistics.ERRORS );
+            statistics.count( DecoderStatistics.RESYNCS );
+        }
+    }
+
     /**
      * Initialise the video codec for use.
      */
@@ -1701,4 +1727,20 @@ public class MpegVideo implements Codec, JMFCodec {
 
     public void setIsTruncated( boolean isTruncated ) {
     }
+
+    /**
+     * Time IDCT and colour conversion into these statistics
+     */
+    public void setStatistics( DecoderStatistics statistics ) {
+        this.statistics = statistics;
+    }
+
+    public String getFrameType() {
+        switch ( pict_type ) {
+            case I_TYPE: return "I";
+            case P_TYPE: return "P";
+            case B_TYPE: return "B";
+            default:     return null;
+        }
+    }
 }
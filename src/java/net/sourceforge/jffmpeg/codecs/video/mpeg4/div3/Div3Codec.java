@@ -32,6 +32,8 @@ import javax.media.format.YUVFormat;
 import java.awt.Dimension;
 
 import net.sourceforge.jffmpeg.JMFCodec;
+import net.sourceforge.jffmpeg.InstrumentedCodec;
+import net.sourceforge.jffmpeg.DecoderStatistics;
 
 import net.sourceforge.jffmpeg.codecs.video.mpeg4.Mpeg4Exception;
 import net.sourceforge.jffmpeg.codecs.utils.FFMpegException;
@@ -49,7 +51,7 @@ import net.sourceforge.jffmpeg.codecs.video.mpeg4.div3.mbtables.*;
  * This is a JMF Video Codec.
  * This is a port from ffmpeg - This version targets Div3
  */
-public class Div3Codec extends Mpeg4 implements Codec, JMFCodec {
+public class Div3Codec extends Mpeg4 implements Codec, JMFCodec, InstrumentedCodec {
     /**
      * Per Macroblock RL tables only appear in 
      * streams of bitrate MBAC_BITRATE
@@ -797,7 +799,9 @@ public class Div3Codec extends Mpeg4 implements Codec, JMFCodec {
             
             /* Decode and create an output image */
             decodeFrame( buffer, in.getLength() );
+            long start = (statistics != null) ? System.nanoTime() : 0;
             displayOutput.showScreen(out);
+            if ( statistics != null ) statistics.addTime( DecoderStatistics.COLOUR_TIME, start );
             out.setTimeStamp( in.getTimeStamp() );
             out.setFlags( in.getFlags() );
         } catch ( Exception e ) {
@@ -26,6 +26,7 @@ import net.sourceforge.jffmpeg.codecs.video.mpeg.DisplayOutput;
 import net.sourceforge.jffmpeg.codecs.video.mpeg4.Mpeg4Exception;
 import net.sourceforge.jffmpeg.codecs.utils.FFMpegException;
 import net.sourceforge.jffmpeg.codecs.utils.BitStream;
+import net.sourceforge.jffmpeg.DecoderStatistics;
 
 /**
  * MPEG4 base decoder.  This contains many functions common to various
@@ -116,6 +117,11 @@ public abstract class Mpeg4 {
      */
     protected DisplayOutput displayOutput;
 
+    /**
+     * Counters (null if disabled)
+     */
+    protected DecoderStatistics statistics;
+
     /**
      * Decode a frame
      */
@@ -149,6 +155,7 @@ public abstract class Mpeg4 {
      *    - motion followed by addition of DCT for P macroblocks
      */
     protected void MPV_decode_mb( int x, int y ) {
+        long start = (statistics != null) ? System.nanoTime() : 0;
         if ( !mb_intra ) {
             /*
              * Predicted macroblock
@@ -246,12 +253,29 @@ public abstract class Mpeg4 {
         System.arraycopy( blankBlock, 0, block[3], 0, 64 );
         System.arraycopy( blankBlock, 0, block[4], 0, 64 );
         System.arraycopy( blankBlock, 0, block[5], 0, 64 );
+        if ( statistics != null ) statistics.addTime( DecoderStatistics.IDCT_TIME, start );
     }
 
     /**
      * Constructor does nothing
      */
     protected Mpeg4() {}
+
+    /**
+     * Time IDCT and colour conversion into these statistics
+     */
+    public void setStatistics( DecoderStatistics statistics ) {
+        this.statistics = statistics;
+    }
+
+    public String getFrameType() {
+        switch ( pictType ) {
+            case I_FRAME_TYPE: return "I";
+            case P_FRAME_TYPE: return "P";
+            case B_FRAME_TYPE: return "B";
+            default:           return null;
+        }
+    }
     
     /**
      * Initialise the width and height of this codec
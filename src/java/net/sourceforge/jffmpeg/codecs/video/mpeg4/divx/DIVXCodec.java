@@ -32,6 +32,8 @@ import javax.media.format.YUVFormat;
 import java.awt.Dimension;
 
 import net.sourceforge.jffmpeg.JMFCodec;
+import net.sourceforge.jffmpeg.InstrumentedCodec;
+import net.sourceforge.jffmpeg.DecoderStatistics;
 
 import net.sourceforge.jffmpeg.codecs.video.mpeg4.Mpeg4Exception;
 import net.sourceforge.jffmpeg.codecs.utils.FFMpegException;
@@ -48,10 +50,15 @@ import net.sourceforge.jffmpeg.codecs.video.mpeg4.div3.rltables.RLTable;
  * This is a JMF Video Codec.
  * This is a port from ffmpeg - This version targets H263
  */
-public class DIVXCodec implements Codec, JMFCodec {
+public class DIVXCodec implements Codec, JMFCodec, InstrumentedCodec {
     public static final boolean debug = false;
     public static final boolean debug2 = false;
 
+    /**
+     * Counters (null if disabled)
+     */
+    private DecoderStatistics statistics;
+
     /**
      * Width and height
      */
@@ -1406,7 +1413,13 @@ if (debug) System.out.println( "BMotion 5" );
                 } else {
                     mpeg4_decode_partitioned_mb();
                 }
-                MPV_decode_mb( mb_x, mb_y );
+                if ( statistics == null ) {
+                    MPV_decode_mb( mb_x, mb_y );
+                } else {
+                    long start = System.nanoTime();
+                    MPV_decode_mb( mb_x, mb_y );
+                    statistics.addTime( DecoderStatistics.IDCT_TIME, start );
+                }
             }
             mb_x = 0;
         }
@@ -1893,6 +1906,10 @@ if ( debug2 ) DisplayOutput.debug.println( "Picture (" + (pict_type==I_TYPE?"I":
             mb_x = 0;
             mb_y = 0;
             do {
+                /* Slices after the first follow resync markers */
+                if ( statistics != null && (mb_x != 0 || mb_y != 0) ) {
+                    statistics.count( DecoderStatistics.RESYNCS );
+                }
                 decode_slice();
             } while ( mb_y < mbHeight );
 /*            if ( pict_type != B_TYPE ) {
@@ -1903,7 +1920,12 @@ if ( debug2 ) DisplayOutput.debug.println( "Picture (" + (pict_type==I_TYPE?"I":
                 displayOutput.showScreen(out);
             }
 */
+            long start = (statistics != null) ? System.nanoTime() : 0;
             displayOutput.expandIntoBoarder();
+            if ( statistics != null ) {
+                statistics.addTime( DecoderStatistics.IDCT_TIME, start );
+                start = System.nanoTime();
+            }
             if ( pict_type != B_TYPE ) {
                 displayOutput.showNextScreen(out);
                 displayOutput.endIPFrame();
@@ -1911,6 +1933,7 @@ if ( debug2 ) DisplayOutput.debug.println( "Picture (" + (pict_type==I_TYPE?"I":
                 displayOutput.endBFrame();
                 displayOutput.showScreen(out);
             }
+            if ( statistics != null ) statistics.addTime( DecoderStatistics.COLOUR_TIME, start );
         }
     }
 
@@ -1938,6 +1961,7 @@ if ( debug2 ) DisplayOutput.debug.println( "Picture (" + (pict_type==I_TYPE?"I":
         } catch ( Throwable e ) {
             System.out.println( e );
             e.printStackTrace();
+            if ( statistics != null ) statistics.count( DecoderStatistics.ERRORS );
             return BUFFER_PROCESSED_OK;
         }
         return BUFFER_PROCESSED_OK;
@@ -2008,4 +2032,19 @@ if ( debug2 ) DisplayOutput.debug.println( "Picture (" + (pict_type==I_TYPE?"I":
 
     public void setIsTruncated( boolean isTruncated ) {
     }
+
+    /**
+     * Time IDCT and colour conversion into these statistics
+     */
+    public void setStatistics( DecoderStatistics statistics ) {
+        this.statistics = statistics;
+    }
+
+    public String getFrameType() {
+        if ( pict_type == I_TYPE ) return "I";
+        if ( pict_type == P_TYPE ) return "P";
+        if ( pict_type == B_TYPE ) return "B";
+        if ( pict_type == S_TYPE ) return "S";
+        return null;
+    }
 }
@@ -0,0 +1,424 @@
+/*
+ * Seek index shared by the jffmpeg demultiplexers.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.sourceforge.jffmpeg.demux;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import net.sourceforge.jffmpeg.GPLLicense;
+
+/**
+ * Index of sync points (keyframes, VOBUs, Ogg pages) in a media file.
+ * Each entry holds the file offset of a sync point and its timestamp in
+ * the demultiplexer's own time base, sorted by offset.  The index also
+ * records the duration, the offset of the last sync point and per-track
+ * packet and byte counts.
+ *
+ * Indexes are cached in a directory (the jffmpeg.index.dir system
+ * property, by default ~/.jffmpeg/index) keyed by the file's path, size
+ * and modification time.  Cached indexes are memory mapped, so reopening
+ * a file costs almost nothing; the entries are only copied to the heap
+ * if the demultiplexer adds to them.
+ */
+public class MediaIndex implements GPLLicense {
+    public static final String INDEX_DIRECTORY_PROPERTY = "jffmpeg.index.dir";
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC   = 0x4a464958;  /* JFIX */
+    private static final int VERSION = 2;  /* 1 could hold gaps in Ogg indexes */
+
+    /**
+     * Entries, either on the heap or mapped from the cache
+     */
+    private long[] offsets;
+    private long[] times;
+    private LongBuffer mappedOffsets;
+    private LongBuffer mappedTimes;
+    private int size = 0;
+
+    /**
+     * Per-track statistics
+     */
+    private int[]  trackIds     = new int[ 0 ];
+    private long[] trackPackets = new long[ 0 ];
+    private long[] trackBytes   = new long[ 0 ];
+
+    /** Media file this index describes (null if not cached) */
+    private File file;
+
+    private boolean complete   = false;
+    private long    duration   = -1;
+    private long    endOffset  = -1;
+    private boolean modified   = false;
+
+    /**
+     * Create an empty index that is not cached
+     */
+    public MediaIndex() {
+        offsets = new long[ 1024 ];
+        times   = new long[ 1024 ];
+    }
+
+    /**
+     * Return the cached index for file, or an empty one that will be
+     * cached when saved
+     */
+    public static MediaIndex open( File file ) {
+        MediaIndex index = load( file );
+        if ( index == null ) index = new MediaIndex();
+        index.file = file;
+        return index;
+    }
+
+    /**
+     * Directory holding cached indexes, or null if caching is disabled
+     */
+    private static File getCacheDirectory() {
+        String directory = System.getProperty( INDEX_DIRECTORY_PROPERTY );
+        if ( directory == null ) {
+            directory = System.getProperty( "user.home" ) + File.separator
+                      + ".jffmpeg" + File.separator + "index";
+        }
+        if ( directory.length() == 0 ) return null;
+        return new File( directory );
+    }
+
+    /**
+     * Cache file for this media file
+     */
+    private static File getCacheFile( File file ) {
+        File directory = getCacheDirectory();
+        if ( directory == null ) return null;
+
+        String path = file.getAbsolutePath();
+        long key = path.hashCode();
+        key = key * 31 + file.length();
+        key = key * 31 + file.lastModified();
+        return new File( directory, Long.toHexString( key ) + SUFFIX );
+    }
+
+    /**
+     * Map the cached index, returns null if it is missing or stale
+     */
+    private static MediaIndex load( File file ) {
+        File indexFile = getCacheFile( file );
+        if ( indexFile == null || !indexFile.isFile() ) return null;
+
+        try {
+            FileInputStream in = new FileInputStream( indexFile );
+            try {
+                FileChannel channel = in.getChannel();
+                ByteBuffer data = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+
+                if ( data.getInt() != MAGIC || data.getInt() != VERSION ) return null;
+                byte[] path = new byte[ data.getInt() ];
+                data.get( path );
+                if (   !file.getAbsolutePath().equals( new String( path, "UTF-8" ) )
+                    || data.getLong() != file.length()
+                    || data.getLong() != file.lastModified() ) return null;
+
+                MediaIndex index = new MediaIndex();
+                index.complete  = data.getInt() != 0;
+                index.duration  = data.getLong();
+                index.endOffset = data.getLong();
+
+                int tracks = data.getInt();
+                index.trackIds     = new int[ tracks ];
+                index.trackPackets = new long[ tracks ];
+                index.trackBytes   = new long[ tracks ];
+                for ( int i = 0; i < tracks; i++ ) {
+                    index.trackIds[ i ]     = data.getInt();
+                    index.trackPackets[ i ] = data.getLong();
+                    index.trackBytes[ i ]   = data.getLong();
+                }
+
+                int size = data.getInt();
+                if ( size < 0 || data.remaining() < size * 16 ) return null;
+                ByteBuffer entries = data.slice();
+                entries.limit( size * 8 );
+                index.mappedOffsets = entries.asLongBuffer();
+                entries = data.slice();
+                entries.position( size * 8 );
+                index.mappedTimes = entries.slice().asLongBuffer();
+                index.offsets = null;
+                index.times   = null;
+                index.size    = size;
+                return index;
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            return null;
+        } catch ( RuntimeException e ) {
+            /* Truncated or corrupt cache file */
+            return null;
+        }
+    }
+
+    /**
+     * Write the index to the cache if it has changed.  Failures are
+     * ignored, the index will simply be rebuilt next time.
+     */
+    public synchronized void save() {
+        if ( file == null || !modified ) return;
+        File indexFile = getCacheFile( file );
+        if ( indexFile == null ) return;
+
+        try {
+            indexFile.getParentFile().mkdirs();
+            File temp = new File( indexFile.getPath() + ".tmp" );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+            try {
+                byte[] path = file.getAbsolutePath().getBytes( "UTF-8" );
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                out.writeInt( path.length );
+                out.write( path );
+                out.writeLong( file.length() );
+                out.writeLong( file.lastModified() );
+                out.writeInt( complete ? 1 : 0 );
+                out.writeLong( duration );
+                out.writeLong( endOffset );
+
+                out.writeInt( trackIds.length );
+                for ( int i = 0; i < trackIds.length; i++ ) {
+                    out.writeInt( trackIds[ i ] );
+                    out.writeLong( trackPackets[ i ] );
+                    out.writeLong( trackBytes[ i ] );
+                }
+
+                out.writeInt( size );
+                for ( int i = 0; i < size; i++ ) out.writeLong( offsetAt( i ) );
+                for ( int i = 0; i < size; i++ ) out.writeLong( timeAt( i ) );
+            } finally {
+                out.close();
+            }
+            indexFile.delete();
+            if ( temp.renameTo( indexFile ) ) modified = false;
+        } catch ( IOException e ) {
+        }
+    }
+
+    private long offsetAt( int i ) {
+        return (offsets != null) ? offsets[ i ] : mappedOffsets.get( i );
+    }
+
+    private long timeAt( int i ) {
+        return (times != null) ? times[ i ] : mappedTimes.get( i );
+    }
+
+    /**
+     * Copy mapped entries to the heap before modifying them
+     */
+    private void unmap() {
+        if ( offsets != null ) return;
+        offsets = new long[ size + 1024 ];
+        times   = new long[ size + 1024 ];
+        mappedOffsets.get( offsets, 0, size );
+        mappedTimes.get( times, 0, size );
+        mappedOffsets = null;
+        mappedTimes   = null;
+    }
+
+    /**
+     * Record a sync point.  Entries out of time order (timestamp
+     * discontinuities) are ignored.
+     */
+    public synchronized void add( long offset, long time ) {
+        int i = search( offset, false );
+        if ( i >= 0 ) return;
+        i = -(i + 1);
+
+        if (   (i > 0    && timeAt( i - 1 ) >= time)
+            || (i < size && timeAt( i ) <= time) ) return;
+
+        unmap();
+        if ( size == offsets.length ) {
+            long[] temp = new long[ size * 2 ];
+            System.arraycopy( offsets, 0, temp, 0, size );
+            offsets = temp;
+            temp = new long[ size * 2 ];
+            System.arraycopy( times, 0, temp, 0, size );
+            times = temp;
+        }
+        System.arraycopy( offsets, i, offsets, i + 1, size - i );
+        System.arraycopy( times,   i, times,   i + 1, size - i );
+        offsets[ i ] = offset;
+        times[ i ]   = time;
+        size++;
+        modified = true;
+    }
+
+    /**
+     * Binary search of the offsets or times, as java.util.Arrays.binarySearch
+     */
+    private int search( long key, boolean byTime ) {
+        int low = 0;
+        int high = size - 1;
+        while ( low <= high ) {
+            int mid = (low + high) >>> 1;
+            long value = byTime ? timeAt( mid ) : offsetAt( mid );
+            if ( value < key ) {
+                low = mid + 1;
+            } else if ( value > key ) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Offset of the last sync point at or before time.  Returns -1 if
+     * time is beyond the indexed part of the file.
+     */
+    public synchronized long findOffset( long time ) {
+        if ( size == 0 ) return -1;
+        if ( time > timeAt( size - 1 ) && !complete ) return -1;
+
+        int i = search( time, true );
+        if ( i < 0 ) i = -(i + 1) - 1;
+        if ( i < 0 ) i = 0;
+        return offsetAt( i );
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Timestamp of the first sync point, or -1 if unknown
+     */
+    public synchronized long getFirstTime() {
+        return (size > 0) ? timeAt( 0 ) : -1;
+    }
+
+    /**
+     * Timestamp of the last indexed sync point, or -1 if unknown
+     */
+    public synchronized long getLastTime() {
+        return (size > 0) ? timeAt( size - 1 ) : -1;
+    }
+
+    /**
+     * Offset of the last indexed sync point, or -1 if unknown
+     */
+    public synchronized long getLastOffset() {
+        return (size > 0) ? offsetAt( size - 1 ) : -1;
+    }
+
+    /**
+     * Average bytes per time unit across the indexed sync points, or 0
+     */
+    public synchronized double getByteRate() {
+        if ( size < 2 || timeAt( size - 1 ) == timeAt( 0 ) ) return 0;
+        return (double)(offsetAt( size - 1 ) - offsetAt( 0 )) / (timeAt( size - 1 ) - timeAt( 0 ));
+    }
+
+    /**
+     * True once every sync point in the file has been indexed
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    public synchronized void setComplete( boolean complete ) {
+        if ( this.complete != complete ) modified = true;
+        this.complete = complete;
+    }
+
+    /**
+     * Duration in the demultiplexer's time base, or -1 if unknown
+     */
+    public synchronized long getDuration() {
+        return duration;
+    }
+
+    public synchronized void setDuration( long duration ) {
+        if ( this.duration != duration ) modified = true;
+        this.duration = duration;
+    }
+
+    /**
+     * Offset of the final sync point in the file, or -1 if unknown
+     */
+    public synchronized long getEndOffset() {
+        return endOffset;
+    }
+
+    public synchronized void setEndOffset( long endOffset ) {
+        if ( this.endOffset != endOffset ) modified = true;
+        this.endOffset = endOffset;
+    }
+
+    /**
+     * Record the number of packets and bytes in a track
+     */
+    public synchronized void setTrackStats( int track, long packets, long bytes ) {
+        int i = findTrack( track );
+        if ( i < 0 ) {
+            i = trackIds.length;
+            int[] ids = new int[ i + 1 ];
+            System.arraycopy( trackIds, 0, ids, 0, i );
+            long[] temp = new long[ i + 1 ];
+            System.arraycopy( trackPackets, 0, temp, 0, i );
+            trackPackets = temp;
+            temp = new long[ i + 1 ];
+            System.arraycopy( trackBytes, 0, temp, 0, i );
+            trackBytes = temp;
+            trackIds = ids;
+            trackIds[ i ] = track;
+        } else if ( trackPackets[ i ] == packets && trackBytes[ i ] == bytes ) {
+            return;
+        }
+        trackPackets[ i ] = packets;
+        trackBytes[ i ]   = bytes;
+        modified = true;
+    }
+
+    private int findTrack( int track ) {
+        for ( int i = 0; i < trackIds.length; i++ ) {
+            if ( trackIds[ i ] == track ) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Number of packets in a track, or -1 if unknown
+     */
+    public synchronized long getTrackPackets( int track ) {
+        int i = findTrack( track );
+        return (i >= 0) ? trackPackets[ i ] : -1;
+    }
+
+    /**
+     * Number of bytes in a track, or -1 if unknown
+     */
+    public synchronized long getTrackBytes( int track ) {
+        int i = findTrack( track );
+        return (i >= 0) ? trackBytes[ i ] : -1;
+    }
+}
@@ -37,6 +37,8 @@ import java.awt.Dimension;
 import java.util.Iterator;
 
 import net.sourceforge.jffmpeg.GPLLicense;
+import net.sourceforge.jffmpeg.DemuxEvent;
+import net.sourceforge.jffmpeg.demux.MediaIndex;
 
 /**
  * AVI file demultiplexer.  Effectively this simply maintains a HashMap
@@ -88,6 +90,27 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
      */
     private double duration;
 
+    /**
+     * Video frame rate is videoRate / videoScale
+     */
+    private int videoScale;
+    private int videoRate;
+
+    /**
+     * Keyframe index (milliseconds), cached between opens
+     */
+    private MediaIndex index = new MediaIndex();
+
+    /**
+     * Source read time for a DemuxEvent, only kept while it is enabled
+     */
+    private boolean timeIo = false;
+    private long ioTime;
+    private String chunkTag;
+
+    /** idx1 flag marking a keyframe */
+    public static final int AVIIF_KEYFRAME = 0x10;
+
     /**
      * Return name of Demultiplexer
      */
@@ -149,11 +172,17 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
     }
     
     /**
-     * Reposition video stream
+     * Reposition video stream to the keyframe at or before time
      */
     public Time setPosition(javax.media.Time time, int param) {
         //System.out.println( "AVI file setPosition()" );
-        return getMediaTime();
+        long offset = index.findOffset( time.getNanoseconds() / 1000000 );
+        if ( offset < 0 || track == null ) return getMediaTime();
+
+        for ( int i = 0; i < track.length; i++ ) {
+            if ( track[ i ] != null ) track[ i ].setPosition( offset );
+        }
+        return time;
     }
     
     /**
@@ -184,6 +213,7 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
      */    
     public void close() {
         //System.out.println( "AVI file close()" );
+        index.save();
     }    
     
     /**
@@ -212,6 +242,15 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
         /* Find end of stream */
         endOfFile = dataSource.getContentLength();
 
+        /* Reuse the cached keyframe index */
+        MediaLocator locator = inputDataSource.getLocator();
+        if ( locator != null ) {
+            URL url = locator.getURL();
+            if ( url != null && "file".equals( url.getProtocol() ) ) {
+                index = MediaIndex.open( new File( url.getFile() ) );
+            }
+        }
+
     }
     
     /**
@@ -245,6 +284,8 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
          */
         byte[] hdrl = null;
         byte[] idx = null;
+        long moviStart;
+        long moviEnd;
 
         while ( true ) {
             String command = new String( readBuffer( 4 ), "ASCII" );
@@ -254,6 +295,8 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
                 String subcommand = new String( readBuffer( 4 ), "ASCII" ); 
                 length -= 4;
                 if ( "movi".equalsIgnoreCase( subcommand ) ) {
+                    moviStart = seekSource.tell() - 4;
+                    moviEnd   = seekSource.tell() + length;
                     break;
 		}
                 if ( "hdrl".equalsIgnoreCase( subcommand ) ) {
@@ -298,6 +341,8 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
                     int rate  = str2ulong( hdrl, i+32 );
                     int length = str2ulong( hdrl, i+40 );
                     duration = ((double)length * scale)/((double)rate);
+                    videoScale = scale;
+                    videoRate  = rate;
                     video = new AviVideoTrack( this, streamNumber++, compressor, scale, rate ); 
                     track[0] = video;
                     lastTagID = 0;
@@ -327,6 +372,60 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
             i += size + 8;
 	}
         endOfHeader = seekSource.tell();
+
+        /* Keyframe index follows the movi list */
+        if ( !index.isComplete() && seekSource.isRandomAccess() && streamVideoTag != null ) {
+            try {
+                readIndex( moviStart, moviEnd );
+            } catch ( IOException e ) {
+                /* No usable index, seeking is disabled */
+            }
+            seekSource.seek( endOfHeader );
+        }
+    }
+
+    /**
+     * Build the keyframe index from the idx1 chunk
+     *     idx1 <length> { ckid flags offset size }
+     */
+    private void readIndex( long moviStart, long moviEnd ) throws IOException {
+        if ( videoRate == 0 || (endOfFile > 0 && moviEnd + 8 > endOfFile) ) return;
+        seekSource.seek( moviEnd );
+        String command = new String( readBuffer( 4 ), "ASCII" );
+        int length = readBytes( 4 );
+        if ( !"idx1".equalsIgnoreCase( command ) || length <= 0 ) return;
+        byte[] idx1 = readBuffer( length );
+
+        /* Offsets are normally relative to the movi list */
+        long base = ( length >= 16 && str2ulong( idx1, 8 ) < moviStart ) ? moviStart : 0;
+
+        String videoTag = streamVideoTag.substring( 0, 2 );
+        long frames = 0;
+        long videoBytes = 0;
+        long otherPackets = 0;
+        long otherBytes = 0;
+        for ( int i = 0; i + 16 <= length; i += 16 ) {
+            int flags  = str2ulong( idx1, i + 4 );
+            long chunk = (str2ulong( idx1, i + 8 ) & 0xffffffffL) + base;
+            int size   = str2ulong( idx1, i + 12 );
+
+            if (    new String( idx1, i, 2, "ASCII" ).equals( videoTag )
+                 && (idx1[ i + 2 ] == 'd' || idx1[ i + 2 ] == 'D') ) {
+                if ( (flags & AVIIF_KEYFRAME) != 0 ) {
+                    index.add( chunk, (frames * videoScale * 1000) / videoRate );
+                }
+                frames++;
+                videoBytes += size;
+            } else {
+                otherPackets++;
+                otherBytes += size;
+            }
+        }
+        if ( index.size() == 0 ) return;
+        index.setTrackStats( 0, frames, videoBytes );
+        index.setTrackStats( 1, otherPackets, otherBytes );
+        index.setDuration( (long)(duration * 1000) );
+        index.setComplete( true );
     }
 
     /**
@@ -342,6 +441,10 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
      */
     public synchronized long readFrame( Buffer buffer, boolean video, long position ) throws IOException {
         boolean isVideo;
+        DemuxEvent event = new DemuxEvent();
+        event.begin();
+        timeIo = event.isEnabled();
+        ioTime = 0;
 
         if ( position < endOfHeader ) position = endOfHeader;
         seekSource.seek( position );
@@ -352,8 +455,25 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
              */
             if ( (buffer.getLength() & 1) == 1 ) readBuffer( 1 );
         } while ( isVideo != video );
+
+        event.end();
+        if ( event.shouldCommit() ) {
+            event.set( this, getStreamNumber( chunkTag ), position, buffer.getLength(), ioTime, 0 );
+            event.commit();
+        }
         return seekSource.tell();
     }
+
+    /**
+     * Stream number from a chunk tag such as "01WB", or -1
+     */
+    private static int getStreamNumber( String tag ) {
+        try {
+            return Integer.parseInt( tag.substring( 0, 2 ) );
+        } catch ( Exception e ) {
+            return -1;
+        }
+    }
         
 
     /**
@@ -381,6 +501,7 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
          */
         output.setData( readBuffer(size) );
         output.setLength( size );
+        chunkTag = command;
 
         /**
          * Look for ##db ##dc ##wb [video]
@@ -430,12 +551,14 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
     private final byte[] readBuffer( int size ) throws IOException {
         byte[] buffer = new byte[ size ];
 
+        long start = timeIo ? System.nanoTime() : 0;
         int read = 0;
         while ( read < size ) {
             int next = dataSource.read( buffer, read, size - read );
             if ( next < 0 ) throw new IOException( "End of Stream" );
             read += next;
 	}
+        if ( timeIo ) ioTime += System.nanoTime() - start;
         return buffer;
     }
 
@@ -455,12 +578,14 @@ public class AviDemux implements Demultiplexer, Positionable, GPLLicense {
      */
     private final int readBytes( int number ) throws IOException {
         byte[] buffer = new byte[ number ];
+        long start = timeIo ? System.nanoTime() : 0;
         int read = dataSource.read( buffer, 0, number );
 
         if ( read != buffer.length ) {
             if ( read < 0 ) throw new IOException( "End of Stream" );
             for ( int i = read; i < buffer.length; i++ ) buffer[ i ] = (byte)readByte();
         }
+        if ( timeIo ) ioTime += System.nanoTime() - start;
         
 	/**
          * Create integer
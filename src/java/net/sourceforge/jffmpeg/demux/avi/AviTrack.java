@@ -116,6 +116,13 @@ public abstract class AviTrack implements Track, GPLLicense {
         }
     }
 
+    /**
+     * Continue reading from this file position (after a seek)
+     */
+    public void setPosition( long position ) {
+        pos = position;
+    }
+
     /**
      * Track listener (for push streams)
      */
@@ -47,6 +47,8 @@ import java.util.Enumeration;
 
 import java.awt.Dimension;
 
+import net.sourceforge.jffmpeg.DemuxEvent;
+
 /**
  * MPEG file demultiplexer.
  */
@@ -231,6 +233,12 @@ public class MpegDemux implements Demultiplexer, Positionable {
     protected synchronized long readPacket( Buffer output, 
                                             int id, 
                                             long pos ) throws IOException {
+        DemuxEvent event = new DemuxEvent();
+        event.begin();
+        boolean timeIo = event.isEnabled();
+        long ioTime = 0;
+        long start = 0;
+
         /**
          * Set buffer size
          */
@@ -244,12 +252,16 @@ public class MpegDemux implements Demultiplexer, Positionable {
          * Seek to start of packet
          */
         pos = seek.seek( pos );
+        long position = pos;
         int j = output.getLength();
+        int first = j;
 
         /**
          * Read packet header
          */
+        if ( timeIo ) start = System.nanoTime();
         in.read( buffer, j, 4 ); j += 4; pos += 4;
+        if ( timeIo ) ioTime += System.nanoTime() - start;
 
         /**
          * Read until next packet header
@@ -258,7 +270,9 @@ public class MpegDemux implements Demultiplexer, Positionable {
         int i = 0xffffffff;
         while ( (i|0xff) != 0x1ff ) {
             if ( (p % PACKET_READ_SIZE) == 0 ) { 
+                if ( timeIo ) start = System.nanoTime();
                 in.read( buffer, j, PACKET_READ_SIZE ); 
+                if ( timeIo ) ioTime += System.nanoTime() - start;
             }
             j++; pos++; p++;
             i = ((i << 8) | (0xff & buffer[j-1])) & 0xffffffff;
@@ -270,6 +284,12 @@ public class MpegDemux implements Demultiplexer, Positionable {
          */
         output.setData( buffer );
         output.setLength( j - 4 );
+
+        event.end();
+        if ( event.shouldCommit() ) {
+            event.set( this, id, position, j - 4 - first, ioTime, 0 );
+            event.commit();
+        }
         return pos;
     }
 
@@ -26,6 +26,7 @@ import javax.media.Buffer;
 import javax.media.TrackListener;
 import javax.media.format.AudioFormat;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import javax.media.Time;
@@ -87,6 +88,10 @@ public class AudioTrack implements Track {
         try {
             demux.readFrame( buffer, serial, sampleDuration );
             if ( headersRequired > 0 ) process( buffer );
+        } catch( EOFException e ) {
+            /* File ends inside a page */
+            buffer.setEOM( true );
+            buffer.setLength( 0 );
         } catch( IOException e ) {
             e.printStackTrace();
         }
@@ -200,6 +205,7 @@ public class AudioTrack implements Track {
 
         sampleRate = rate;
         sampleDuration = Time.ONE_SECOND / rate;
+        demux.setSampleRate( rate );
 //	System.out.println( "Extracted Rate: " + rate );
     }
 
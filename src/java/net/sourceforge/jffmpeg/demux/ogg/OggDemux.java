@@ -39,6 +39,8 @@ import javax.media.Buffer;
 
 import java.util.Iterator;
 
+import net.sourceforge.jffmpeg.demux.MediaIndex;
+import net.sourceforge.jffmpeg.DemuxEvent;
 
 /**
  */
@@ -63,6 +65,32 @@ public class OggDemux implements Demultiplexer, Positionable {
     private long currentTime;
     private long duration;
 
+    /* Granule position of the last page read, compared with the end */
+    private long currentGranule = -1;
+
+    /**
+     * Page index (granule positions), cached between opens
+     */
+    private MediaIndex index = new MediaIndex();
+
+    /**
+     * Source read and CRC time for a DemuxEvent, only kept while it
+     * is enabled
+     */
+    private boolean timeIo = false;
+    private long ioTime;
+    private long checksumTime;
+
+    /**
+     * True while pages are read in order from the start of the file or
+     * from an indexed page, so new index entries leave no gap.  Pages
+     * read while searching are not indexed.
+     */
+    private boolean contiguous = true;
+
+    /** Granule positions per second, pages are indexed at most once a second */
+    private long sampleRate = 44100;
+
     /** Create the OGG Demultiplexer */
     public OggDemux() {
     }
@@ -74,6 +102,7 @@ public class OggDemux implements Demultiplexer, Positionable {
     }
     
     public void close() {
+        index.save();
     }    
     
     public synchronized void start() throws java.io.IOException {
@@ -121,9 +150,17 @@ public class OggDemux implements Demultiplexer, Positionable {
     }
     
     public Time setPosition( javax.media.Time newTime, int parameter ) {
-        seekPacket( (int)(newTime.getNanoseconds()/(1000000000 / 44100)), 1 );
+        seekPacket( newTime.getNanoseconds() * sampleRate / Time.ONE_SECOND, 1 );
         return getMediaTime();
     }
+
+    /**
+     * Called by the track once the identification header has been read
+     */
+    void setSampleRate( long sampleRate ) {
+        this.sampleRate = sampleRate;
+        duration = lastGranuleNumber * Time.ONE_SECOND / sampleRate;
+    }
     
     public void setSource( DataSource inputDataSource ) throws java.io.IOException, javax.media.IncompatibleSourceException {
         if ( inputDataSource instanceof PullDataSource ) {
@@ -132,8 +169,26 @@ public class OggDemux implements Demultiplexer, Positionable {
                  && in.getContentLength() != in.LENGTH_UNKNOWN) {
                 seek = (Seekable)in;
 
+                /* Reuse the cached page index */
+                MediaLocator locator = inputDataSource.getLocator();
+                if ( locator != null ) {
+                    try {
+                        URL url = locator.getURL();
+                        if ( url != null && "file".equals( url.getProtocol() ) ) {
+                            index = MediaIndex.open( new File( url.getFile() ) );
+                        }
+                    } catch ( IOException e ) {
+                    }
+                }
+                if ( index.getDuration() >= 0 ) {
+                    lastPacketPosition = index.getEndOffset();
+                    lastGranuleNumber  = index.getDuration();
+                }
+
                 /* Find duration */
                 seekPacket( -1, 1 );
+                index.setDuration( lastGranuleNumber );
+                index.setEndOffset( lastPacketPosition );
                 duration = lastGranuleNumber * (1000000000 / 44100);
 //		System.out.println( "Duration: " + (duration/1000000000) );
                 seekPacket( 0, 1 );
@@ -146,9 +201,29 @@ public class OggDemux implements Demultiplexer, Positionable {
     byte[] buffer;
     protected void readFrame( Buffer output, int serial,
                               long sampleDuration ) throws IOException {
+        DemuxEvent event = new DemuxEvent();
+        event.begin();
+        timeIo = event.isEnabled();
+        ioTime = 0;
+        checksumTime = 0;
+        long position = (timeIo && seek != null) ? seek.tell() : -1;
+
+        readPage( output, serial, sampleDuration );
 
+        event.end();
+        if ( event.shouldCommit() ) {
+            event.set( this, serial, position, output.getLength(), ioTime, checksumTime );
+            event.commit();
+        }
+    }
+
+    /**
+     * Read the next page into the output Buffer
+     */
+    private void readPage( Buffer output, int serial,
+                           long sampleDuration ) throws IOException {
         output.setEOM( false );
-        if ( currentTime == duration && seek != null && lastPacketPosition > 0 ) {
+        if ( currentGranule == lastGranuleNumber && seek != null && lastPacketPosition > 0 ) {
             if ( seek.tell() >= lastPacketPosition ) {
                 output.setEOM( true );
                 output.setLength( 0 );
@@ -164,6 +239,8 @@ public class OggDemux implements Demultiplexer, Positionable {
             output.setData( buffer );
         }
 
+        long pagePosition = (seek != null) ? seek.tell() : -1;
+
         /* Read header */
         readBytes( 0, 27 );
         /* Capture Pattern */
@@ -195,16 +272,26 @@ public class OggDemux implements Demultiplexer, Positionable {
         buffer[ 24 ] = 0;
         buffer[ 25 ] = 0;
 
+        long start = timeIo ? System.nanoTime() : 0;
         int crc = 0;
         for( int i = 0; i < packetSize; i++) {
             crc = (crc<<8)^crc_lookup[(((int)(crc >> 24))^buffer[i])&0xff];
         }
+        if ( timeIo ) checksumTime = System.nanoTime() - start;
 
         if ( page_checksum != crc ) {
             throw new IOException( "Invalid CRC " + crc + "/" + page_checksum );
         }
 
+        /* Extend the index as pages are played */
+        if (    contiguous && pagePosition >= 0 && absolute_granulePosition > 0
+             && (   index.size() == 0
+                 || absolute_granulePosition >= index.getLastTime() + sampleRate) ) {
+            index.add( pagePosition, absolute_granulePosition );
+        }
+
         /* Return packet */
+        currentGranule = absolute_granulePosition;
         currentTime = absolute_granulePosition * sampleDuration;
 
         output.setLength( packetSize );
@@ -279,10 +366,14 @@ public class OggDemux implements Demultiplexer, Positionable {
     };
       
     private void readBytes( int offset, int n ) throws IOException {
+        long start = timeIo ? System.nanoTime() : 0;
         int read = 0;
         while (read < n) {
-            read += in.read( buffer, read + offset, n - read );
+            int count = in.read( buffer, read + offset, n - read );
+            if ( count < 0 ) throw new EOFException();
+            read += count;
         }
+        if ( timeIo ) ioTime += System.nanoTime() - start;
     }
 
     private long readLong( byte[] buffer, int offset ) {
@@ -315,8 +406,10 @@ public class OggDemux implements Demultiplexer, Positionable {
     protected void seekPacket( long granuleNumber, int serial ) {
         if ( granuleNumber == 0 ) {
             seek.seek( 0 );
+            contiguous = true;
             return;
         }
+        contiguous = false;
 
         if ( granuleNumber == -1 ) {
             if ( lastPacketPosition >= 0 ) {
@@ -341,6 +434,14 @@ public class OggDemux implements Demultiplexer, Positionable {
 	    }
         }
 
+        /* Use the page index if it covers this position */
+        long indexed = index.findOffset( granuleNumber );
+        if ( indexed >= 0 && index.getFirstTime() <= granuleNumber ) {
+            seek.seek( indexed );
+            contiguous = true;
+            return;
+        }
+
         long chopLow  = 0;
         long chopHigh = lastPacketPosition;
         long chopLast = 0;
@@ -177,8 +177,10 @@ public class AudioTrack extends DataBuffer implements Track, GPLLicense {
     /**
      * Data received from vob file
      */
-    public void readData( long timeStamp, InputStream in, int length ) throws IOException {
-        super.readData( timeStamp, in, length );
+    public void readData( long timeStamp, byte[] data, int offset, int length ) throws IOException {
+        /* Disabled tracks may never be read, only keep the latest packet */
+        if ( !enabled ) drop();
+        super.readData( timeStamp, data, offset, length );
         if ( this.timeStamp == 0 ) this.timeStamp = timeStamp;
     }
 }
@@ -22,65 +22,169 @@
 package net.sourceforge.jffmpeg.demux.vob;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import javax.media.Buffer;
 
 import net.sourceforge.jffmpeg.GPLLicense;
 
+/**
+ * Per-stream ring buffer of demultiplexed payload data.
+ *
+ * Payloads are appended straight from the demuxer's sector buffer and
+ * drained into the caller's Buffer.  The ring only grows (doubling) when
+ * a stream runs further ahead than ever before, so in steady state no
+ * memory is allocated.
+ *
+ * The demuxer's reader thread is the only producer and the track the
+ * only consumer.  Each stream is guarded by its own monitor so the
+ * audio and video tracks never block each other.
+ */
 class DataBuffer implements GPLLicense {
-    protected byte[] buffer = new byte[ 10000 ];
-    protected int size = 0;
-    
-    public final byte[] getBuffer() {
-        return buffer;
-    }
-    
+    public static final int INITIAL_CAPACITY = 16384;
+
+    /** The reader thread waits when this much data is pending */
+    public static final int MAX_PENDING = 256 * 1024;
+
+    /** Ring storage, the length is always a power of 2 */
+    protected byte[] buffer = new byte[ INITIAL_CAPACITY ];
+    protected int mask = INITIAL_CAPACITY - 1;
+
+    /** Free running read and write counters */
+    protected int readPosition  = 0;
+    protected int writePosition = 0;
+
+    /** Set once the reader thread has reached the end of the file */
+    protected boolean endOfStream = false;
+
     public final int getCurrentSize() {
-        return size;
+        return writePosition - readPosition;
     }
     
-    public void readData( long timeStamp, InputStream in, int length ) throws IOException {
+    /**
+     * Append length bytes of data (starting at offset) to the ring
+     */
+    public synchronized void readData( long timeStamp, byte[] data, int offset, int length ) throws IOException {
+        int size = getCurrentSize();
         if ( buffer.length < length + size ) {
-            byte[] temp = new byte[ (length + size) * 2 ];
-            System.arraycopy( buffer, 0, temp, 0, size );
-            buffer = temp;
+            grow( length + size );
+        }
+
+        int start = writePosition & mask;
+        int first = buffer.length - start;
+        if ( first >= length ) {
+            System.arraycopy( data, offset, buffer, start, length );
+        } else {
+            System.arraycopy( data, offset, buffer, start, first );
+            System.arraycopy( data, offset + first, buffer, 0, length - first );
         }
-        
-        int p = size;
-        int read = 0;
-        while ( length > 0 ) {
-            read = in.read( buffer, size, length );
-            if ( read < 0 ) throw new IOException( "End of Stream" );
-            length -= read;
-            size += read;
-        }        
+        writePosition += length;
+        notifyAll();
     }
-   
-    public void resetBuffer( byte[] buffer ) {
-        this.buffer = buffer;
-        size = 0;
+
+    /**
+     * Drain all pending data into the Buffer, reusing its array where possible
+     */
+    public synchronized void writeData( Buffer output ) {
+        int length = getCurrentSize();
+        Object oldData = output.getData();
+        byte[] data;
+        if ( oldData instanceof byte[] && ((byte[])oldData).length >= length ) {
+            data = (byte[])oldData;
+        } else {
+            data = new byte[ length * 2 ];
+            output.setData( data );
+        }
+
+        int start = readPosition & mask;
+        int first = buffer.length - start;
+        if ( first >= length ) {
+            System.arraycopy( buffer, start, data, 0, length );
+        } else {
+            System.arraycopy( buffer, start, data, 0, first );
+            System.arraycopy( buffer, 0, data, first, length - first );
+        }
+        readPosition += length;
+        output.setOffset( 0 );
+        output.setLength( length );
+        notifyAll();
     }
-/*    
-    public int getFrameEnd() {
-        return frameEnd;
+
+    /**
+     * True if the consumer has data to read
+     */
+    protected boolean hasData() {
+        return getCurrentSize() > 0;
     }
-    
-    public void drop() {
-        size = 0;
-        frameEnd = 0;
+
+    /**
+     * True if the reader thread should wait for the consumer
+     */
+    protected boolean isFull() {
+        return getCurrentSize() >= MAX_PENDING;
     }
-*/
-    public void setBuffer( byte[] buffer, int existingSize ) {
-        this.buffer = buffer;
-        size = existingSize;
+
+    /**
+     * Consumer side: wait until data is available.  Returns false at
+     * the end of the stream.
+     */
+    public synchronized boolean awaitData() throws IOException {
+        try {
+            while ( !endOfStream && !hasData() ) wait();
+        } catch ( InterruptedException e ) {
+            throw new InterruptedIOException();
+        }
+        return hasData();
     }
-    
-    public void bufferData() throws IOException {
+
+    /**
+     * Producer side: wait until the consumer has caught up
+     */
+    public synchronized void awaitSpace() throws IOException {
+        try {
+            while ( !endOfStream && isFull() ) wait();
+        } catch ( InterruptedException e ) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Mark the end of the stream and release any waiting threads
+     */
+    public synchronized void setEndOfStream() {
+        endOfStream = true;
+        notifyAll();
+    }
+
+    /**
+     * Enlarge the ring to hold at least required bytes, preserving its contents
+     */
+    private void grow( int required ) {
+        int capacity = buffer.length;
+        while ( capacity < required ) capacity <<= 1;
+
+        byte[] temp = new byte[ capacity ];
+        int size = getCurrentSize();
+        int start = readPosition & mask;
+        int first = buffer.length - start;
+        if ( first >= size ) {
+            System.arraycopy( buffer, start, temp, 0, size );
+        } else {
+            System.arraycopy( buffer, start, temp, 0, first );
+            System.arraycopy( buffer, 0, temp, first, size - first );
+        }
+        buffer = temp;
+        mask = capacity - 1;
+        readPosition  = 0;
+        writePosition = size;
     }
     
     /**
      * Discard all data (pending seek)
      */
-    public void drop() {
-        size = 0;
+    public synchronized void drop() {
+        readPosition  = 0;
+        writePosition = 0;
+        endOfStream   = false;
+        notifyAll();
     }
 }
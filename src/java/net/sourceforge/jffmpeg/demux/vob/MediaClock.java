@@ -0,0 +1,205 @@
+/*
+ * Java port of ffmpeg VOB demultiplexer.
+ * Contains some liba52 and Xine code (GPL)
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * Copyright (c) 2000, 2001, 2002 Fabrice Bellard.
+ *
+ * vobdemux is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * vobdemux is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.sourceforge.jffmpeg.demux.vob;
+
+import net.sourceforge.jffmpeg.GPLLicense;
+
+/**
+ * Presentation clock shared by the tracks of a VOB file.  All times are
+ * in milliseconds of media time.
+ *
+ * The clock is anchored to the audio timestamps: audio is buffered by the
+ * renderer, so playback is assumed to be between MIN_AUDIO_BUFFER and
+ * MAX_AUDIO_BUFFER behind the last audio packet read.  Between audio
+ * packets (or for files without audio) it runs from System.nanoTime().
+ *
+ * The video track reports how long each frame type takes to get through
+ * the codec, so B-Frames are only dropped if they cannot be shown in time.
+ */
+public class MediaClock implements GPLLicense {
+    /** Don't let video run further than this ahead of the clock */
+    public static final long MAX_EARLY = 400;
+
+    /** Longest wait for one early frame, the next frame checks again */
+    public static final long MAX_WAIT = 200;
+
+    /** Timestamps further than this from the clock start a new section */
+    public static final long DISCONTINUITY = 5000;
+
+    /** Weight of each new decode cost measurement (out of 8) */
+    private static final int COST_WEIGHT = 2;
+
+    /** Media time at anchorNanos, valid once anchored is set */
+    private long anchorTime;
+    private long anchorNanos;
+    private boolean anchored = false;
+    private boolean audioDriven = false;
+
+    /**
+     * Average decode cost (nanoseconds) indexed by picture coding type
+     */
+    private long[] decodeCost = new long[ 8 ];
+    private long lastDeliveryNanos = 0;
+    private int  lastFrameType = 0;
+
+    /**
+     * Statistics
+     */
+    private long framesDelivered = 0;
+    private long framesDropped   = 0;
+    private long lateness        = 0;
+    private long maxLateness     = 0;
+
+    /**
+     * Current media time
+     */
+    public synchronized long getTime() {
+        if ( !anchored ) return 0;
+        return anchorTime + (System.nanoTime() - anchorNanos) / 1000000;
+    }
+
+    private void anchor( long time ) {
+        anchorTime  = time;
+        anchorNanos = System.nanoTime();
+        anchored    = true;
+    }
+
+    /**
+     * Audio packet with this timestamp has been passed to the renderer
+     */
+    public synchronized void setAudioTimeStamp( long timeStamp ) {
+        long time = getTime();
+        if ( !anchored || !audioDriven ) {
+            anchor( timeStamp - VobDemux.MAX_AUDIO_BUFFER );
+            audioDriven = true;
+            return;
+        }
+
+        /* Clock is too far behind audio */
+        if ( time < timeStamp - VobDemux.MAX_AUDIO_BUFFER ) {
+if (VobDemux.debugLipSync)            System.out.println( "Audio resync " + time + " " + timeStamp );
+            anchor( timeStamp - VobDemux.MAX_AUDIO_BUFFER );
+        }
+
+        /* Clock has overtaken the buffered audio */
+        if ( time > timeStamp - VobDemux.MIN_AUDIO_BUFFER ) {
+if (VobDemux.debugLipSync)            System.out.println( "Audio behind " + time + " " + timeStamp );
+            anchor( timeStamp - VobDemux.MIN_AUDIO_BUFFER );
+        }
+    }
+
+    /**
+     * Called as each video frame is handed to the codec.  Returns true
+     * if a B-Frame should be dropped because it cannot be decoded before
+     * its target time.
+     *
+     * A frame more than MAX_EARLY ahead of the clock waits once, for the
+     * time it is beyond MAX_EARLY but at most MAX_WAIT, so a long lead is
+     * worked off over several frames.  reset() ends the wait early.
+     */
+    public boolean dropFrame( int frameType, long target ) {
+        long delay;
+        synchronized ( this ) {
+            long now = System.nanoTime();
+
+            /* The interval between frames is only decode cost if we are behind */
+            if ( lastDeliveryNanos != 0 && lateness > 0 ) {
+                long cost = now - lastDeliveryNanos;
+                decodeCost[ lastFrameType ] += ((cost - decodeCost[ lastFrameType ]) * COST_WEIGHT) >> 3;
+            }
+            lastDeliveryNanos = now;
+            lastFrameType = frameType & 7;
+
+            if ( !anchored ) anchor( target );
+            long time = getTime();
+            if ( !audioDriven && Math.abs( target - time ) > DISCONTINUITY ) {
+                /* change video section */
+                anchor( target );
+                time = target;
+            }
+
+            lateness = time + decodeCost[ lastFrameType ] / 1000000 - target;
+            if ( lateness > maxLateness ) maxLateness = lateness;
+if (VobDemux.debugLipSync)       System.out.println( "time " + time + " target " + target + " lateness " + lateness );
+
+            if ( VobDemux.showAllFrames ) {
+                framesDelivered++;
+                return false;
+            }
+            if ( lateness >= 0 && frameType == VideoTrack.B_TYPE ) {
+                framesDropped++;
+                return true;
+            }
+            framesDelivered++;
+            delay = -lateness - MAX_EARLY;
+        }
+
+        /* Video is too far ahead, wait for part of the lead */
+        if ( delay > 0 ) {
+            synchronized ( this ) {
+                try {
+                    wait( delay < MAX_WAIT ? delay : MAX_WAIT );
+                } catch ( InterruptedException e ) {
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restart timing (after a seek), wakes any waiting track
+     */
+    public synchronized void reset() {
+        anchored = false;
+        audioDriven = false;
+        lastDeliveryNanos = 0;
+        lateness = 0;
+        notifyAll();
+    }
+
+    /** Lateness (milliseconds) of the last video frame, negative if early */
+    public synchronized long getLateness() {
+        return lateness;
+    }
+
+    public synchronized long getMaxLateness() {
+        return maxLateness;
+    }
+
+    public synchronized long getFramesDelivered() {
+        return framesDelivered;
+    }
+
+    public synchronized long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /** Average decode cost (nanoseconds) of I, P or B frames */
+    public synchronized long getDecodeCost( int frameType ) {
+        return decodeCost[ frameType & 7 ];
+    }
+
+    /** True if timing follows the audio stream rather than the system clock */
+    public synchronized boolean isAudioDriven() {
+        return audioDriven;
+    }
+}
@@ -30,7 +30,7 @@ import javax.media.format.VideoFormat;
 import java.awt.Dimension;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 
 import net.sourceforge.jffmpeg.GPLLicense;
 
@@ -119,7 +119,7 @@ public class VideoTrack extends DataBuffer implements Track, GPLLicense {
     /**
      * Append data to a buffer
      */
-    private static final void appendBuffer( Buffer buffer, byte[] data, int length ) {
+    private static final void appendBuffer( Buffer buffer, byte[] data, int offset, int length ) {
         byte[] bdata = (byte[])buffer.getData();
         int    blen  = buffer.getLength();
         
@@ -132,7 +132,7 @@ public class VideoTrack extends DataBuffer implements Track, GPLLicense {
             buffer.setData( temp );
             bdata = temp;
         }
-        System.arraycopy( data, 0, bdata, blen, length );
+        System.arraycopy( data, offset, bdata, blen, length );
         buffer.setLength( blen + length );
     }
     
@@ -172,10 +172,15 @@ public class VideoTrack extends DataBuffer implements Track, GPLLicense {
     
     private Buffer   partialFrame   = new Buffer();
 
+    /**
+     * The reader thread waits when this many frames are pending
+     */
+    public static final int MAX_PENDING_FRAMES = 64;
+    private int packetsReceived = 0;
+
     /**
      * Temporary work areas
      */
-    private Buffer temp = new Buffer();
     private int[]    framePointer = new int[ FRAME_BUFFER_MASK + 1 ];
     
     /**
@@ -186,34 +191,68 @@ public class VideoTrack extends DataBuffer implements Track, GPLLicense {
         try {
             /* Ignore data if this channel is disabled */
             if ( !enabled ) {
-                demux.readVideo( streamNumber, temp );
+                if ( !awaitPacket() ) outputBuffer.setEOM( true );
                 outputBuffer.setLength( 0 );
                 return;
             }
             
             do {
                 /**
-                 * Read data from VOB file
+                 * Wait for the reader thread to supply a frame
                  */
-                while ( currentFrameNumber == getNumberOfFrames() ) {
-                    demux.parse( streamNumber );
+                if ( !awaitData() ) {
+                    outputBuffer.setEOM( true );
+                    outputBuffer.setLength( 0 );
+                    return;
                 }
                 
 //    System.out.println( "Frame number " + currentFrameNumber + " " + getNumberOfFrames() );
                 /* Supply next frame */
-                outputBuffer.setData( frameBuffer[ currentFrameNumber ].getData() );
-                outputBuffer.setLength( frameBuffer[ currentFrameNumber ].getLength() );
+                synchronized ( this ) {
+                    outputBuffer.setData( frameBuffer[ currentFrameNumber ].getData() );
+                    outputBuffer.setLength( frameBuffer[ currentFrameNumber ].getLength() );
                     
-                currentFrameNumber = (currentFrameNumber + 1) & FRAME_BUFFER_MASK;
+                    currentFrameNumber = (currentFrameNumber + 1) & FRAME_BUFFER_MASK;
+                    notifyAll();
+                }
                 
                 /* Remove B-Frame if we are running slow */
-            } while (   frameType[ (currentFrameNumber - 1) & FRAME_BUFFER_MASK ] == B_TYPE
-                     && demux.isVideoSlow( frameReference[ currentFrameNumber ] ) );
+            } while ( demux.getClock().dropFrame( frameType[ (currentFrameNumber - 1) & FRAME_BUFFER_MASK ],
+                                                  frameReference[ (currentFrameNumber - 1) & FRAME_BUFFER_MASK ] ) );
             
             framesDelivered++;
         } catch (IOException e) {
         }
     }
+
+    /**
+     * Frames are ready when the reader thread is ahead of us
+     */
+    protected boolean hasData() {
+        return currentFrameNumber != numberOfFramesAvailable;
+    }
+
+    /**
+     * Stop the reader thread well before it could overwrite a frame
+     * that has been handed to the codec
+     */
+    protected boolean isFull() {
+        return enabled 
+            && ((numberOfFramesAvailable - currentFrameNumber) & FRAME_BUFFER_MASK) >= MAX_PENDING_FRAMES;
+    }
+
+    /**
+     * Disabled channels are paced by the arrival of their packets
+     */
+    private synchronized boolean awaitPacket() throws IOException {
+        int received = packetsReceived;
+        try {
+            while ( !endOfStream && received == packetsReceived ) wait();
+        } catch ( InterruptedException e ) {
+            throw new InterruptedIOException();
+        }
+        return received != packetsReceived;
+    }
         
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
@@ -250,23 +289,16 @@ public class VideoTrack extends DataBuffer implements Track, GPLLicense {
     /**
      * Extract frames into frame buffer
      */
-    public synchronized void readData( long timeStamp, InputStream in, int length ) throws IOException {
-        /* Read array of data */
-        if ( buffer.length < length ) {
-            buffer = new byte[ length * 2 ];
-        }
-        
-        size = 0;
-        int read = 0;
-        while ( length > 0 ) {
-            read = in.read( buffer, size, length );
-            if ( read < 0 ) throw new IOException( "End of Stream" );
-            length -= read;
-            size += read;
+    public synchronized void readData( long timeStamp, byte[] data, int offset, int length ) throws IOException {
+        /* Data for disabled channels is discarded */
+        packetsReceived++;
+        if ( !enabled ) {
+            notifyAll();
+            return;
         }
         
         /* Append to existing data */
-        appendBuffer( partialFrame, buffer, size );
+        appendBuffer( partialFrame, data, offset, length );
         
         /* We only really get 1 frame every 20 reads */
         if ( packetsPerFrame-- > 0 ) return;
@@ -339,6 +371,7 @@ public class VideoTrack extends DataBuffer implements Track, GPLLicense {
          */
         setBuffer( partialFrame, currentData, framePointer[ numberOfFrames ], currentDataLength - framePointer[ numberOfFrames ] );
         setNumberOfFrames( numberOfFrames );
+        notifyAll();
     }
     
     /**
@@ -43,6 +43,8 @@ import javax.media.Buffer;
 import java.util.Iterator;
 
 import net.sourceforge.jffmpeg.GPLLicense;
+import net.sourceforge.jffmpeg.DemuxEvent;
+import net.sourceforge.jffmpeg.demux.MediaIndex;
 
 /**
  * VOB file demultiplexer.  Effectively this simply maintains a HashMap
@@ -109,27 +111,85 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
         this.in = in;
     }
     
+    /**
+     * DVD sectors are 2048 bytes long and each holds exactly one pack
+     */
+    public static final int SECTOR_SIZE = 2048;
+
+    /**
+     * Reusable sector buffer, packets are parsed directly from here
+     */
+    private byte[] sector = new byte[ SECTOR_SIZE * 2 ];
+    private int sectorOffset = 0;
+    private int sectorLength = 0;
+
+    /** File offset of sector[ 0 ] */
+    private long sectorBase = 0;
+
+    /** Source read time for a DemuxEvent, only kept while it is enabled */
+    private boolean timeIo = false;
+    private long ioTime;
+
+    /**
+     * Ensure at least count bytes are available in the sector buffer.
+     * Data is read from the input a sector at a time.
+     */
+    private void fill( int count ) throws IOException {
+        int available = sectorLength - sectorOffset;
+        if ( available >= count ) return;
+
+        /* Packets larger than the buffer are only found in MPEG-PS files */
+        if ( sector.length < count ) {
+            byte[] temp = new byte[ ((count + SECTOR_SIZE - 1) / SECTOR_SIZE) * SECTOR_SIZE ];
+            System.arraycopy( sector, sectorOffset, temp, 0, available );
+            sector = temp;
+        } else if ( sectorOffset > 0 ) {
+            System.arraycopy( sector, sectorOffset, sector, 0, available );
+        }
+        sectorBase += sectorOffset;
+        sectorOffset = 0;
+        sectorLength = available;
+
+        long start = timeIo ? System.nanoTime() : 0;
+        while ( sectorLength < count ) {
+            int space = sector.length - sectorLength;
+            int read = in.read( sector, sectorLength, space < SECTOR_SIZE ? space : space - space % SECTOR_SIZE );
+            if ( read < 0 ) throw new IOException( "End of Stream" );
+            sectorLength += read;
+        }
+        if ( timeIo ) ioTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Discard any buffered data (after a seek to position)
+     */
+    private void emptySector( long position ) {
+        sectorBase   = position;
+        sectorOffset = 0;
+        sectorLength = 0;
+    }
+    
     /**
      * Read until we find a start code 0x000001xx
      */
     private int findStartCode() throws IOException {
         int state = 0xff;
         do {
-            state = ((state << 8) | in.read()) & 0xffffffff;
+            if ( sectorOffset == sectorLength ) fill( 1 );
+            state = (state << 8) | (sector[ sectorOffset++ ] & 0xff);
         } while ( (state & 0xffffff00) != 0x100 );
         return state;
     }
     
     /**
-     * Read a Presentation Time Stamp
+     * Read a Presentation Time Stamp from 5 bytes at offset
      */
-    private long getPts( int c ) throws IOException {
-        if (c < 0) c = in.read();
-        long pts = (((long)c >> 1) & 0x07) << 30;
+    private static long getPts( byte[] data, int offset ) {
+        long pts = (((long)data[ offset ] >> 1) & 0x07) << 30;
         
-        long val = (in.read() << 8) | in.read();
+        long val = ((data[ offset + 1 ] & 0xff) << 8) | (data[ offset + 2 ] & 0xff);
         pts |= (val >> 1) << 15;
-        val = (in.read() << 8) | in.read();
+        val = ((data[ offset + 3 ] & 0xff) << 8) | (data[ offset + 4 ] & 0xff);
         pts |= (val >> 1);
         return pts;
     }
@@ -138,148 +198,249 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
      * This Find and parse packet ID "readPacket"
      */
     protected synchronized void parse( int readPacket ) throws IOException {
-        int startCode;
-        do {
-            /** Find packet ID */
-            startCode = findStartCode();
-            
-            switch ( startCode ) {
-                case PACK_START_CODE: {
-                    /* Read timestamp information */
-                    int byte4 = in.read();
-                    int byte5 = in.read();
-                    int byte6 = in.read();
-                    int byte7 = in.read();
-                    int byte8 = in.read();
-                    timeStamp = (( byte4 & 0x08 ) << 27)
-                               |(( byte4 & 0x03 ) << 28)
-                               |(( byte5        ) << 20)
-                               |(( byte6 & 0xf8 ) << 12 )
-                               |(( byte6 & 0x03 ) << 13 )
-                               |(( byte7        ) << 5 )
-                               |(( byte8 & 0xfe ) >> 3 );
-                    timeStamp *= 300;
-                    timeStamp /= 26900;
+        while ( readPacket != parsePacket() );
+    }
+
+    /**
+     * Parse the next packet, returning its stream ID.  Each packet is
+     * one DemuxEvent, whether read by the reader thread or by parse().
+     */
+    private int parsePacket() throws IOException {
+        DemuxEvent event = new DemuxEvent();
+        event.begin();
+        timeIo = event.isEnabled();
+        ioTime = 0;
+        long position = sectorBase + sectorOffset;
+
+        int stream = parseNextPacket();
+
+        event.end();
+        if ( event.shouldCommit() ) {
+            event.set( this, stream, position, (int)(sectorBase + sectorOffset - position), ioTime, 0 );
+            event.commit();
+        }
+        return stream;
+    }
+
+    private int parseNextPacket() throws IOException {
+        /** Find packet ID */
+        int startCode = findStartCode();
+        
+        switch ( startCode ) {
+            case PACK_START_CODE: {
+                packOffset = sectorBase + sectorOffset - 4;
+
+                /* Read timestamp information */
+                fill( 5 );
+                int byte4 = sector[ sectorOffset     ] & 0xff;
+                int byte5 = sector[ sectorOffset + 1 ] & 0xff;
+                int byte6 = sector[ sectorOffset + 2 ] & 0xff;
+                int byte7 = sector[ sectorOffset + 3 ] & 0xff;
+                int byte8 = sector[ sectorOffset + 4 ] & 0xff;
+                sectorOffset += 5;
+                timeStamp = (( byte4 & 0x08 ) << 27)
+                           |(( byte4 & 0x03 ) << 28)
+                           |(( byte5        ) << 20)
+                           |(( byte6 & 0xf8 ) << 12 )
+                           |(( byte6 & 0x03 ) << 13 )
+                           |(( byte7        ) << 5 )
+                           |(( byte8 & 0xfe ) >> 3 );
+                timeStamp *= 300;
+                timeStamp /= 26900;
 //                    timeStamp /= 28000;
-                    break;
-                }
-                case SYSTEM_HEADER_START_CODE: {
-                    /** Ignore information packet */
+                break;
+            }
+            case SYSTEM_HEADER_START_CODE: {
+                /** Ignore information packet */
 //                    System.out.println( "SystemHeaderStartCode" );
+                break;
+            }
+            case PRIVATE_STREAM_2: {
+                /* DVD navigation packets */
+                fill( 2 );
+                int length = ((sector[ sectorOffset ] & 0xff) << 8) | (sector[ sectorOffset + 1 ] & 0xff);
+                fill( length + 2 );
+                parseNavigation( sector, sectorOffset + 2, length );
+                sectorOffset += length + 2;
+                break;
+            }
+            case PADDING_STREAM: {
+                /* Skip unsupported packets */
+                fill( 2 );
+                int length = ((sector[ sectorOffset ] & 0xff) << 8) | (sector[ sectorOffset + 1 ] & 0xff);
+                fill( length + 2 );
+                sectorOffset += length + 2;
+                break;
+            }
+            default: {
+                /* Ignore unrecognised packets */
+                if (!((startCode >= 0x1c0 && startCode <= 0x1df) ||
+                      (startCode >= 0x1e0 && startCode <= 0x1ef) ||
+                      (startCode == 0x1bd))) {
+//                        System.out.println( "Unrecognised " + startCode );
                     break;
                 }
-                case PADDING_STREAM:
-                case PRIVATE_STREAM_2: {
-                    /* Skip unsupported packets */
-                    int length = (in.read() << 8) | in.read();
-                    in.skip( length );
-                    break;
+
+                /* packet length, the whole packet is then buffered */
+                fill( 2 );
+                int length = ((sector[ sectorOffset ] & 0xff) << 8) | (sector[ sectorOffset + 1 ] & 0xff);
+                fill( length + 2 );
+                byte[] data = sector;
+                int p   = sectorOffset + 2;
+                int end = p + length;
+                sectorOffset = end;
+
+                long pts = 0;
+                long dts = 0;
+                
+                /* Read control flags */
+                int c;
+                do {
+                    c = (p < end) ? (data[ p ] & 0xff) : 0;
+                    p++;
+                } while ( c == 0xff );
+
+                /* Escape code */
+                if ( (c & 0xc0) == 0x40 ) {
+                    c = (p + 1 < end) ? (data[ p + 1 ] & 0xff) : 0;
+                    p += 2;
                 }
-                default: {
-                    /* Ignore unrecognised packets */
-                    if (!((startCode >= 0x1c0 && startCode <= 0x1df) ||
-                          (startCode >= 0x1e0 && startCode <= 0x1ef) ||
-                          (startCode == 0x1bd))) {
-//                        System.out.println( "Unrecognised " + startCode );
+                
+                /* Read Pts/Dts */
+                switch ( c & 0xf0 ) {
+                    case 0x20: {
+                        if ( p + 4 > end ) break;
+                        pts = getPts( data, p - 1 );
+                        p += 4;
                         break;
                     }
-
-                    /* packet length */
-                    long pts = 0;
-                    long dts = 0;
-                    int length = (in.read() << 8) | in.read();
-                    
-                    /* Read control flags */
-                    int c;
-                    do {
-                        c = in.read();
-                        length--;
-                    } while ( c == 0xff );
-
-                    /* Escape code */
-                    if ( (c & 0xc0) == 0x40 ) {
-                        in.read();
-                        c = in.read();
-                        length -=2;
+                    case 0x30: {
+                        if ( p + 9 > end ) break;
+                        pts = getPts( data, p - 1 );
+                        dts = getPts( data, p + 4 );
+                        p += 9;
+                        break;
                     }
-                    
-                    /* Read Pts/Dts */
-                    switch ( c & 0xf0 ) {
-                        case 0x20: {
-                            pts = getPts(c);
-                            length -= 4;
-                            break;
-                        }
-                        case 0x30: {
-                            pts = getPts(c);
-                            dts = getPts(-1);
-                            length -= 9;
-                            break;
-                        }
-                        default: {
-                            if ( (c & 0xc0) != 0x80 ) break;
+                    default: {
+                        if ( (c & 0xc0) != 0x80 ) break;
 //                            if ( (c & 0x30) != 0) throw new IOException( "Encrypted streams not supported" );
 
-                            /* Escaped header */
-                            int flags = in.read();
-                            int headerLength = in.read();
-                            length -= 2;
-                            if ( headerLength > length ) continue;
-
-                            switch ( flags & 0xc0 ) {
-                                case 0x80: {
-                                    pts = getPts(-1);
-                                    headerLength -= 5;
-                                    length -= 5;
-                                    break;
-                                } 
-                                case 0xc0: {
-                                    pts = getPts(-1);
-                                    dts = getPts(-1);
-                                    headerLength -= 10;
-                                    length -= 10;
-                                    break;
-                                }
+                        /* Escaped header */
+                        if ( p + 2 > end ) break;
+                        int flags = data[ p ] & 0xff;
+                        int headerLength = data[ p + 1 ] & 0xff;
+                        p += 2;
+                        if ( headerLength > end - p ) {
+                            /* Corrupt header, resume scanning inside this packet */
+                            sectorOffset = p;
+                            return startCode;
+                        }
+
+                        switch ( flags & 0xc0 ) {
+                            case 0x80: {
+                                if ( headerLength < 5 ) break;
+                                pts = getPts( data, p );
+                                break;
+                            } 
+                            case 0xc0: {
+                                if ( headerLength < 10 ) break;
+                                pts = getPts( data, p );
+                                dts = getPts( data, p + 5 );
+                                break;
                             }
-                            
-                            /* Skip remainder of header */
-                            length -= headerLength;
-                            in.skip( headerLength );
-                            break;
                         }
-                    }   
+                        
+                        /* Skip remainder of header */
+                        p += headerLength;
+                        break;
+                    }
+                }   
 
 //                    System.out.println( "pts " + pts + " dts " + dts );
-                    
-                    /** Read Audio stream header 0x1bd */
-                    if ( startCode == PRIVATE_STREAM_1 ) {
-                        startCode = in.read();
-                        length--;
-                        if (startCode >= 0x80 && startCode <= 0xbf) {
-                            /* audio: skip header */
-                            in.skip( 3 );
-                            length -= 3;
-                        }
+                
+                /** Read Audio stream header 0x1bd */
+                if ( startCode == PRIVATE_STREAM_1 ) {
+                    if ( p >= end ) break;
+                    startCode = data[ p++ ] & 0xff;
+                    if (startCode >= 0x80 && startCode <= 0xbf) {
+                        /* audio: skip header */
+                        p += 3;
                     }
+                }
+                if ( p > end ) break;
 
-                    /* Stream ID is in startCode */
-                    DataBuffer out = streams[ startCode ];
-                    if ( out == null ) {
+                /* Stream ID is in startCode */
+                DataBuffer out = streams[ startCode ];
+                if ( out == null ) {
 //                        System.out.println( "Allocate " + startCode );
-                        out = allocateStream( startCode );
-                        if ( out == null ) {
-                            /* Unknown data */
-                            in.skip( length );
-                            break;
-                        }
+                    out = allocateStream( startCode );
+                    if ( out == null ) {
+                        /* Unknown data */
+                        break;
                     }
-                    out.readData( timeStamp, in, length );
-                    break;
                 }
+                /* Prefer the packet's PTS (90kHz) to the pack time */
+                out.readData( (pts != 0) ? pts / 90 : timeStamp, data, p, end - p );
+                streamPackets[ startCode ]++;
+                streamBytes[ startCode ] += end - p;
+                break;
             }
-        } while ( readPacket != startCode );
+        }
+        return startCode;
     }
     
+    /**
+     * Index of the VOBUs found so far
+     */
+    private MediaIndex index = new MediaIndex();
+
+    /** File offset of the last pack header */
+    private long packOffset = 0;
+
+    /** VOBU start time from the last PCI packet */
+    private long navOffset = -1;
+    private long navTime   = -1;
+
+    /** True if every pack since the start of the file has been parsed */
+    private boolean contiguous = true;
+
+    /** Packets and bytes per stream, counted while contiguous */
+    private long[] streamPackets = new long[ 512 ];
+    private long[] streamBytes   = new long[ 512 ];
+
+    public final MediaIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * A DVD NAV pack holds a PCI packet (sub stream 0) carrying the VOBU
+     * start PTS, followed by a DSI packet (sub stream 1).  The VOBU is
+     * indexed once the DSI packet confirms the NAV pack.
+     */
+    private void parseNavigation( byte[] data, int p, int length ) {
+        if ( length < 1 ) return;
+        switch ( data[ p ] ) {
+            case 0x00: {
+                /* pci_gi: nv_pck_lbn, vobu_cat, zero, vobu_uop_ctl, vobu_s_ptm */
+                if ( length < 17 ) return;
+                long ptm = (  ((long)(data[ p + 13 ] & 0xff) << 24)
+                            | ((data[ p + 14 ] & 0xff) << 16)
+                            | ((data[ p + 15 ] & 0xff) << 8)
+                            |  (data[ p + 16 ] & 0xff) );
+                navOffset = packOffset;
+                navTime   = ptm / 90;
+                break;
+            }
+            case 0x01: {
+                if ( navOffset == packOffset && navTime >= 0 ) {
+                    index.add( navOffset, navTime );
+                }
+                navTime = -1;
+                break;
+            }
+        }
+    }
+
     private DataBuffer allocateStream( int startCode ) {
         DataBuffer out;
 //        int type;
@@ -311,52 +472,100 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
     /**
      * Read video data into buffer
      */
-    protected synchronized void readVideo( int stream, Buffer buffer ) throws IOException {
-        DataBuffer bsos;
-        do {
-            bsos = streams[ stream ];
-            if ( bsos == null || bsos.getCurrentSize() == 0 ) {
-                parse( SYNC_CHANNEL );
-                bsos = null;
-            }
-        } while ( bsos == null );
-        byte[] data = bsos.getBuffer();
-        byte[] oldData = (byte[])buffer.getData();
+    protected void readVideo( int stream, Buffer buffer ) throws IOException {
+        readStream( stream, buffer );
+    }
+    
+    /**
+     * Read audio data into buffer
+     */
+    protected void readAudio( int stream, Buffer buffer ) throws IOException {
+//        System.out.println( "byte rate " + estimateByteRate() );
+        readStream( stream, buffer );
+    }
 
+    /**
+     * Wait for the reader thread to supply data for this stream only
+     */
+    private void readStream( int stream, Buffer buffer ) throws IOException {
+        DataBuffer bsos = streams[ stream ];
+        if ( bsos == null || !bsos.awaitData() ) {
+            buffer.setLength( 0 );
+            buffer.setEOM( true );
+            return;
+        }
+        bsos.writeData( buffer );
+    }
 
-        buffer.setData( data );
-        buffer.setLength( bsos.getCurrentSize() );
+    /**
+     * Background thread parsing packs and publishing their payloads
+     * to the per-stream buffers.  It only holds the demultiplexer lock
+     * while parsing a packet, and waits (outside that lock) on any
+     * stream that has run too far ahead of its track.
+     */
+    private class Reader extends Thread {
+        private volatile boolean running = true;
 
-        if ( oldData != null ) {
-            bsos.resetBuffer( oldData );
-        } else {
-            bsos.resetBuffer( new byte[ data.length ] );
+        Reader() {
+            super( "VOB demux" );
+            setDaemon( true );
+        }
+
+        public void run() {
+            try {
+                while ( running ) {
+                    int stream;
+                    synchronized ( VobDemux.this ) {
+                        stream = parsePacket();
+                    }
+                    DataBuffer out = (stream >= 0 && stream < streams.length) ? streams[ stream ] : null;
+                    if ( out != null ) out.awaitSpace();
+                }
+            } catch ( IOException e ) {
+                /* End of file (or closed) */
+            }
+            synchronized ( VobDemux.this ) {
+                if ( reader == this ) reader = null;
+
+                /* Stopped for a seek or close, which handle the streams */
+                if ( !running ) return;
+
+                if ( contiguous ) {
+                    /* The whole file has been read, so the index is exact */
+                    index.setComplete( true );
+                    index.setDuration( index.getLastTime() - index.getFirstTime() );
+                    for ( int i = 0; i < streams.length; i++ ) {
+                        if ( streams[ i ] != null ) {
+                            index.setTrackStats( i, streamPackets[ i ], streamBytes[ i ] );
+                        }
+                    }
+                }
+                setEndOfStream();
+            }
         }
     }
-    
+
+    private Reader reader;
+
     /**
-     * Read audio data into buffer
+     * Stop the reader thread and wait for it to exit.  Must not be
+     * called holding the demultiplexer lock, which the reader needs
+     * to finish.
      */
-    protected synchronized void readAudio( int stream, Buffer buffer ) throws IOException {
-//        System.out.println( "byte rate " + estimateByteRate() );
-        DataBuffer bsos;
-        do {
-            bsos = streams[ stream ];
-            if ( bsos == null || (bsos.getCurrentSize() == 0)) {
-                parse( SYNC_CHANNEL );
-            }   
-        } while (bsos == null);
-            
-        byte[] data = bsos.getBuffer();
-        byte[] oldData = (byte[])buffer.getData();
-
-        buffer.setData( data );
-        buffer.setLength( bsos.getCurrentSize() );
-
-        if ( oldData != null ) {
-            bsos.resetBuffer( oldData );
-        } else {
-            bsos.resetBuffer( new byte[ data.length ] );
+    private void stopReader() {
+        Reader oldReader;
+        synchronized ( this ) {
+            oldReader = reader;
+            reader = null;
+        }
+        if ( oldReader == null ) return;
+
+        oldReader.running = false;
+        oldReader.interrupt();
+        try {
+            oldReader.join();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
         }
     }
     
@@ -368,6 +577,11 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
     */
     /** Required methods to be a Demultiplexer */    
     public void close() {
+        stopReader();
+        synchronized ( this ) {
+            setEndOfStream();
+        }
+        index.save();
     }    
     
     public Object getControl(String str) {
@@ -380,12 +594,23 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
 
     Time estimatedDuration = new Time( 1000 );
     public Time getDuration() {
+        if ( index.getDuration() >= 0 ) {
+            return new Time( index.getDuration() * 1000000 );
+        }
+
+        /* Extrapolate from the indexed part of the file */
+        double byteRate = index.getByteRate();
+        if ( byteRate > 0 && totalFileSize > 0 ) {
+            return new Time( (long)(totalFileSize / byteRate) * 1000000 );
+        }
         return estimatedDuration;
     }
     
     public Time getMediaTime() {
-        System.out.println( "getMediaTime" );
-        return new Time( 5000000 );
+        long firstTime = index.getFirstTime();
+        long time = clock.getTime();
+        if ( firstTime < 0 || time < firstTime ) return new Time( 0 );
+        return new Time( (time - firstTime) * 1000000 );
     }
     
     public String getName() {
@@ -430,9 +655,21 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
     }
     
     public Time setPosition(javax.media.Time time, int param) {
+        /* The old reader may have reached the end of file already */
+        stopReader();
+
+        synchronized ( this ) {
+            seek( time );
+        }
+        return time;
+    }
 
+    /**
+     * Restart from time with a new reader thread
+     */
+    private void seek( Time time ) {
         /**
-         * Clear pending buffers
+         * Clear pending buffers and end of stream
          **/
         for ( int i = 0; i < streams.length; i++ ) {
             if ( streams[ i ] != null ) {
@@ -442,16 +679,46 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
         }
         
         try { 
-             seekSource.seek( (time.getNanoseconds() * ESTIMATED_BYTE_RATE)/1000000000 );
+             long position = findPosition( time.getNanoseconds() / 1000000 );
+             seekSource.seek( position );
+             emptySector( position );
+             contiguous = (position == 0);
+             for ( int i = 0; i < streams.length; i++ ) {
+                 streamPackets[ i ] = 0;
+                 streamBytes[ i ]   = 0;
+             }
+             navTime = -1;
              timeStamp = 0;
              start();
-             System.out.println( "Aim for position " + (time.getNanoseconds()/1000000) + " actual " + timeStamp );
         } catch ( IOException e ) {
-            e.printStackTrace();
+            /* Nothing left to play after this position, start() has ended the tracks */
         }
-        startTime = 0;  //System.currentTimeMillis() - timeStamp - MAX_AUDIO_BUFFER;
+        clock.reset();
+    }
+    
+    /**
+     * File offset of the VOBU to play from to reach time (milliseconds)
+     */
+    private long findPosition( long time ) {
+        long position;
+        long firstTime = index.getFirstTime();
+        long offset = (firstTime >= 0) ? index.findOffset( firstTime + time ) : -1;
+        if ( offset >= 0 ) return offset;
         
-        return time;
+        /* Beyond the indexed VOBUs, extrapolate from the measured byte rate */
+        double byteRate = index.getByteRate();
+        if ( byteRate > 0 ) {
+            position = index.getLastOffset() + (long)((firstTime + time - index.getLastTime()) * byteRate);
+        } else {
+            position = (time * ESTIMATED_BYTE_RATE) / 1000;
+        }
+        if ( totalFileSize > 0 && position > totalFileSize - SECTOR_SIZE ) {
+            position = totalFileSize - SECTOR_SIZE;
+        }
+        if ( position < 0 ) position = 0;
+
+        /* Packs are sector aligned */
+        return position - (position % SECTOR_SIZE);
     }
     
     private PullSourceStream dataSource;
@@ -475,6 +742,7 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
                         if ( url != null ) {
                             File file = new File( url.getFile() );
                             totalFileSize = file.length();
+                            index = MediaIndex.open( file );
 //                System.out.println( "File size " + (totalFileSize * 1000000/ ESTIMATED_BYTE_RATE) );
                             estimatedDuration = new Time( (totalFileSize * 1000000000 / ESTIMATED_BYTE_RATE) );
                         }
@@ -505,8 +773,27 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
     */
     
     public synchronized void start() throws java.io.IOException {
+        try {
+            prime();
+        } catch ( IOException e ) {
+            /* No reader thread follows, so the tracks must not wait for one */
+            setEndOfStream();
+            throw e;
+        }
+
+        /* Hand over to the reader thread */
+        if ( reader == null ) {
+            reader = new Reader();
+            reader.start();
+        }
+    }
+
+    /**
+     * Parse up to the first audio packets, creating the tracks
+     */
+    private void prime() throws IOException {
         parse( SYNC_CHANNEL );
-        startTime = System.currentTimeMillis() - timeStamp - MAX_AUDIO_BUFFER;
+        clock.reset();
         parse( SYNC_CHANNEL );
         parse( SYNC_CHANNEL );
         parse( SYNC_CHANNEL );
@@ -519,74 +806,41 @@ public class VobDemux implements Demultiplexer, Positionable, GPLLicense {
         parse( SYNC_CHANNEL );
         parse( SYNC_CHANNEL );
     }
+
+    /**
+     * Mark the end of every track, waking any waiting for data
+     */
+    private void setEndOfStream() {
+        for ( int i = 0; i < streams.length; i++ ) {
+            if ( streams[ i ] != null ) streams[ i ].setEndOfStream();
+        }
+    }
     
     public void stop() {
     }
     
     /**
-     * The estmated startTime of the stream timer
+     * Presentation clock driven by the audio timestamps
      */
-    private long startTime = 0;
+    private MediaClock clock = new MediaClock();
+
+    public final MediaClock getClock() {
+        return clock;
+    }
     
     /**
      * Note the Audio is buffered so this is not exact.
-     * We fiddle the startTime so that the video is never more than
+     * The clock is kept so that the video is never more than
      * MAX_AUDIO_BUFFER behind
      */
     public final void setAudioTimeStamp( long timeStamp ) {
-        long time = System.currentTimeMillis() - startTime;
-        
-        /* Video is too far behind audio */
-        if ( time + MAX_AUDIO_BUFFER < timeStamp ) {
-if (debugLipSync)            System.out.println( "Audio resync " + time + " " + timeStamp );
-            startTime -= timeStamp - time - MAX_AUDIO_BUFFER;
-        }
-        
-        if ( time >= timeStamp && timeStamp > MAX_AUDIO_BUFFER ) {
-            startTime -= timeStamp - time - MAX_AUDIO_BUFFER;
-            return;
-        }
-        /* Video is too far behind audio */
-        if ( time + MIN_AUDIO_BUFFER > timeStamp && timeStamp > MAX_AUDIO_BUFFER  ) {
-if (debugLipSync)           System.out.println( "Audio behind " + time + " " + timeStamp );
-            startTime -= timeStamp - time - MAX_AUDIO_BUFFER;
-        }
+        clock.setAudioTimeStamp( timeStamp );
     }
     
     /**
-     * Returns true if the video is behind target
+     * Returns true if a B-Frame due at target should be dropped
      */
     public final boolean isVideoSlow( long target ) {
-        if ( showAllFrames ) return false;
-        
-        if ( startTime == 0 ) startTime = System.currentTimeMillis();  //demux.getStartTime();
-
-        long time = System.currentTimeMillis() - startTime;
-        
-        if ( target < 1000 && time - target > 5000 ) {
-            /* change video section */
-            startTime = System.currentTimeMillis();
-            return false;
-        }
-        
-if (debugLipSync)       System.out.print( "time " + time + " target " + target  );
-        if (target <= time) { 
-if (debugLipSync)  System.out.println( " slow " + ( time - target ) );
-            return true;
-        }
-if (debugLipSync)  System.out.println();
-        if (target > time + 400) {
-            synchronized( this ) {
-                try {
-                    if ( target - time - 15 < 200 ) {
-if (debugLipSync)                    System.out.println( "Wait " + (target - time - 15 ) );
-                    this.wait( target - time - 15 );
-                    } else {
-                        this.wait( 100 );
-                    }
-                } catch ( Exception e ) {}
-            }
-        }
-        return false;
+        return clock.dropFrame( VideoTrack.B_TYPE, target );
     }
 }
@@ -0,0 +1,11 @@
+package net.sourceforge.jffmpeg.ffmpegnative;
+
+/**
+ * This interface is a Control for specifying the asyncActive parameter
+ * that queues frames for a dedicated encoding thread, so that process()
+ * returns without waiting for the frame to be encoded.
+ */
+public interface AsyncEncodingControl extends javax.media.Control {
+
+    public boolean setAsyncEncoding(boolean asyncEncoding);
+}
@@ -20,8 +20,8 @@ public class CompatibilityAdapter implements CompatibilityControl, Owned {
 
     public boolean setCompatibility(boolean compatibility) {
         owner.compatibility = compatibility;
-        owner.set_compatibility(owner.peer, owner.compatibility);
-        owner.set_rtpPayloadSize(owner.peer, (owner.compatibility ? owner.targetPacketSize : owner.targetPacketSize - 128));
+        owner.changeCompatibility(owner.compatibility);
+        owner.changePayloadSize(owner.compatibility ? owner.targetPacketSize : owner.targetPacketSize - 128);
         owner.resetRequired = true;
         return owner.compatibility;
     }
@@ -42,6 +42,7 @@ import javax.media.format.RGBFormat;
 import javax.media.format.YUVFormat;
 
 import java.awt.Dimension;
+import java.nio.ByteBuffer;
 
 import net.sourceforge.jffmpeg.JMFCodec;
 import net.sourceforge.jffmpeg.CodecManager;
@@ -112,21 +113,70 @@ public class NativeDecoder implements JMFCodec {
     //--------------------------------------------------------------------------------
 
     private native boolean open_decoder(String codec, boolean rtp, boolean setTruncted, boolean yuv2rgb, int depth, int rMask, int gMask, int bMask, int width, int height);
-    private native boolean close_decoder(int peer);
+    private native boolean close_decoder(long peer);
 
     // returns the number of bytes consumed, or negative if error
-    private native int convert(int peer,
+    private native int convert(long peer,
                                Object inData, int inBufSize, int inOffset, int inLength,
                                Object outData, int outLength, int eof);
 
-    private native float extractFrameRate( int peer );
+    // as convert, for direct ByteBuffers which the native code uses in place
+    private native int convertDirect(long peer,
+                                     ByteBuffer inData, int inOffset, int inLength,
+                                     ByteBuffer outData, int outLength, int eof);
+
+    // decodes many packets per call into a ring of frames, returns the
+    // number of pictures or negative if error
+    private native int convertBatch(long peer,
+                                    Object inData, int inBufSize,
+                                    int[] offsets, int[] lengths, int[] eofs, int count,
+                                    ByteBuffer ring, int frameLength, int ringStart,
+                                    int[] consumed, int[] pictures);
+
+    // decodes YUV into a direct buffer with the strides of the decoded
+    // picture, filling in layout (see PLANE_*)
+    private native int convertPlanes(long peer,
+                                     Object inData, int inBufSize, int inOffset, int inLength,
+                                     ByteBuffer outData, int[] layout, int eof);
+
+    // copies the last picture again into a larger buffer
+    private native void copyPlanes(long peer, ByteBuffer outData, int[] layout);
+
+    private native float extractFrameRate( long peer );
+
+    // sets the number of threads shared by all decoders for RGB conversion
+    private static native void setConversionThreads( int threads );
 
     //--------------------------------------------------------------------------------
     // NATIVE VARIABLES
     //--------------------------------------------------------------------------------
 
     // Native structure pointer
-    public int peer = 0;
+    public long peer = 0;
+
+    /**
+     * Data type of YUV output written as planes into a direct ByteBuffer
+     * (JMF has no data type for these)
+     */
+    public static final Class<?> directBuffer = ByteBuffer.class;
+
+    // How the output Buffer is written
+    private static final int ARRAY_OUTPUT  = 0;
+    private static final int DIRECT_OUTPUT = 1;
+    private static final int PLANE_OUTPUT  = 2;
+
+    // Plane layout returned by convertPlanes
+    private static final int PLANE_STRIDE_Y  = 0;
+    private static final int PLANE_STRIDE_UV = 1;
+    private static final int PLANE_OFFSET_U  = 2;
+    private static final int PLANE_OFFSET_V  = 3;
+    private static final int PLANE_LENGTH    = 4;
+    private static final int PLANE_STATUS    = 5;
+    private static final int PLANE_WIDTH     = 6;
+    private static final int PLANE_HEIGHT    = 7;
+
+    private int[] planeLayout = new int[ 8 ];
+    private YUVFormat planeFormat;
 
     /* Set to true if/when the native library is loaded */
     private static boolean nativeLibraryLoaded = false;
@@ -141,6 +191,13 @@ public class NativeDecoder implements JMFCodec {
         catch (UnsatisfiedLinkError e) {
             nativeLibraryLoaded = false;
         }
+        if ( nativeLibraryLoaded ) {
+            try {
+                setConversionThreads( codecManager.getConversionThreads() );
+            } catch (UnsatisfiedLinkError e) {
+                /* Older library, convert on the decoding thread */
+            }
+        }
     }
 
     /**
@@ -150,6 +207,14 @@ public class NativeDecoder implements JMFCodec {
         return nativeLibraryLoaded;
     }
 
+    /**
+     * Returns false if the native library failed to load, without
+     * creating a decoder
+     */
+    public static boolean isLibraryLoaded() {
+        return nativeLibraryLoaded;
+    }
+
     // Constructor
     public NativeDecoder() {
         // Specify the input formats. In this list we can be "general". The
@@ -254,7 +319,7 @@ public class NativeDecoder implements JMFCodec {
             RGBFormat rgb = (RGBFormat) out;
 
             int bitsPerPixel = rgb.getBitsPerPixel();
-            Class dataType = rgb.getDataType();
+            Class<?> dataType = rgb.getDataType();
 
             int pixelStride = 1;
 
@@ -321,7 +386,7 @@ public class NativeDecoder implements JMFCodec {
     /**
      * Get frame rate from Codec
      */
-    public float getFrameRate( int peer ) {
+    public float getFrameRate( long peer ) {
         if ( frameRate <= 0 ) frameRate = extractFrameRate( peer );
         return frameRate;
     }
@@ -403,28 +468,51 @@ public class NativeDecoder implements JMFCodec {
         int inOffset = inBuffer.getOffset();
         int inLength = inBuffer.getLength();
 
-        // The codec might read up to INPUT_BUFFER_PADDING_SIZE additional bytes
-        // before checking for EOS, which can cause ArrayOutOfBounds in Java code.
-        byte[] curArray = (byte[])inBuffer.getData();
-        int inBufSize = curArray.length;
-
-        Object inData = (Object)inBuffer.getData();  //getInputData(inBuffer);  //
-        long inDataBytes = 0; //getNativeData(inData);
+        Object inData = inBuffer.getData();
+        Object outData = outBuffer.getData();
+        int dataOffset = inOffset;
+
+        // A direct ByteBuffer for YUV output is filled with planes in the
+        // strides libavcodec decoded them with, so each plane is copied once
+        // and the buffer is reused for every frame.  Direct ByteBuffers on
+        // both sides for RGB are passed to the codec without pinning or
+        // copying.  Buffer offsets index from the start of the ByteBuffer,
+        // not from its position.
+        int mode;
+        if (!yuv2rgb && isDirect(outData)) {
+            mode = PLANE_OUTPUT;
+        } else if (isDirect(inData) && isDirect(outData)
+                   && ((ByteBuffer)outData).capacity() >= outputLength) {
+            mode = DIRECT_OUTPUT;
+        } else {
+            mode = ARRAY_OUTPUT;
+        }
 
-        /* TODO - check type is correct */
-        int[] outData = (int[])outBuffer.getData(); //getOutputData(outBuffer); 
+        if (mode != DIRECT_OUTPUT && inData instanceof ByteBuffer && !isDirect(inData)) {
+            inData = copyInput((ByteBuffer)inData, inOffset, inLength);
+            dataOffset = 0;
+        }
 
-        if (outData == null || outData.length < outputLength ||
-            outBuffer.getFormat() != outputFormat ||
-            !outBuffer.getFormat().equals(outputFormat)) {
+        if (mode == ARRAY_OUTPUT) {
+            /* TODO - check type is correct */
+            if (!(outData instanceof int[]) || ((int[])outData).length < outputLength ||
+                !outputFormat.equals(outBuffer.getFormat())) {
 // System.out.println("Decoder:: mismatch: " + (outData == null ? "NULL" : outData.toString()) + ", " + outBuffer.toString());
 
-            outData = new int[ outputLength ];
-            outBuffer.setLength(outputLength);
+                outData = new int[ outputLength ];
+                outBuffer.setLength(outputLength);
+                outBuffer.setFormat(outputFormat);
+                outBuffer.setData( outData );
+            }
+        } else if (mode == DIRECT_OUTPUT && !outputFormat.equals(outBuffer.getFormat())) {
             outBuffer.setFormat(outputFormat);
-            outBuffer.setData( outData );
         }
 
+        // The codec might read up to INPUT_BUFFER_PADDING_SIZE additional bytes
+        // before checking for EOS, which can cause ArrayOutOfBounds in Java code.
+        int inBufSize = (inData instanceof ByteBuffer) ? ((ByteBuffer)inData).capacity()
+                                                       : ((byte[])inData).length;
+
 //        outData = validateData(outBuffer, outputLength, true /*allow native*/);
         long outDataBytes = 0; //getNativeData(outData);
 
@@ -448,11 +536,11 @@ public class NativeDecoder implements JMFCodec {
 
                 if (timestamp != inBuffer.getTimeStamp()) {
                     // Try to recover last received frame
-                    result = convert(peer, inData, 0, 0, 0, outData, outputLength, 0);
+                    result = decode(mode, inData, 0, 0, 0, outBuffer, 0);
                     if ( result > 0 ) {
 //                        outBuffer.setTimeStamp(timestamp);
                         outBuffer.setOffset(0);
-                        outBuffer.setLength(outputLength);
+                        outBuffer.setLength(frameLength(mode));
                         frameNum++; // increment number of frames decoded
                         // System.out.println("return INPUT_BUFFER_NOT_CONSUMED");
                         seqNum = inBuffer.getSequenceNumber(); // prevent packet loss code from being triggered a second time
@@ -468,8 +556,8 @@ public class NativeDecoder implements JMFCodec {
             eof = 1;
         }
 
-        result = convert(peer, inData, inBufSize, inOffset, inLength, 
-                         outData, outputLength, eof);
+        result = decode(mode, inData, inBufSize, dataOffset, inLength,
+                        outBuffer, eof);
 
         if ( result > 0 ) {
             inBuffer.setOffset( inOffset + result );
@@ -487,7 +575,7 @@ public class NativeDecoder implements JMFCodec {
 //            System.out.println("Not enough data " + inLength );
             if ( quirkIncompatibleBuffering ) {
                 leftOver = new byte[ inLength ];
-                System.arraycopy( inData, inOffset, leftOver, 0, inLength );
+                System.arraycopy( inData, dataOffset, leftOver, 0, inLength );
 	    }
             frames++;
             return Codec.BUFFER_PROCESSED_OK;
@@ -508,7 +596,7 @@ public class NativeDecoder implements JMFCodec {
 
         // outBuffer.setTimeStamp(inBuffer.getTimeStamp());
         outBuffer.setOffset(0);
-        outBuffer.setLength(outputLength);
+        outBuffer.setLength(frameLength(mode));
 
         seqNum++;
         frameNum++; // increment number of frames decoded
@@ -525,21 +613,160 @@ public class NativeDecoder implements JMFCodec {
         return Codec.BUFFER_PROCESSED_OK;
     }
 
+    /**
+     * Size in bytes of one decoded picture in the selected output format
+     */
+    public int getFrameLength() {
+        return outputLength;
+    }
+
+    /**
+     * Decode count packets from one input in a single native call, for
+     * streams of small pictures where a JNI crossing per packet costs as
+     * much as the decoding.
+     *
+     * Packet i is lengths[i] bytes at offsets[i] of data (a byte[] or a
+     * direct ByteBuffer, which is only read).  Packets may be back to back;
+     * one not followed by INPUT_BUFFER_PADDING_SIZE zero bytes is copied
+     * before decoding.  eofs marks the last RTP packet of each picture and
+     * may be null outside RTP mode.  Pictures are written to successive
+     * getFrameLength() byte slots of the direct ByteBuffer ring, starting
+     * at slot ringStart and wrapping.  consumed[i] receives the bytes used
+     * from packet i and pictures[i] the slot holding its picture, or -1.
+     * Returns the number of pictures decoded, or -1 if the native decoder
+     * is closed.  The output format must have been set first.
+     */
+    public synchronized int decodeBatch(Object data, int[] offsets, int[] lengths, int[] eofs,
+                                        int count, ByteBuffer ring, int ringStart,
+                                        int[] consumed, int[] pictures) {
+        int inBufSize;
+        if (data instanceof byte[]) {
+            inBufSize = ((byte[])data).length;
+        } else if (isDirect(data)) {
+            inBufSize = ((ByteBuffer)data).capacity();
+        } else {
+            throw new IllegalArgumentException("Input must be a byte[] or direct ByteBuffer");
+        }
+        if (outputLength <= 0)
+            throw new IllegalStateException("No output format set");
+        if (ring == null || !ring.isDirect() || ring.capacity() < outputLength)
+            throw new IllegalArgumentException("Ring must be a direct ByteBuffer of at least one frame");
+        if (offsets.length < count || lengths.length < count
+            || consumed.length < count || pictures.length < count
+            || (eofs != null && eofs.length < count))
+            throw new IllegalArgumentException("Fewer than " + count + " packet entries");
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > inBufSize)
+                throw new IllegalArgumentException("Packet " + i + " outside the input");
+        }
+
+        int result = convertBatch(peer, data, inBufSize, offsets, lengths,
+                                  rtpActive ? eofs : null, count,
+                                  ring, outputLength, ringStart, consumed, pictures);
+        if (result > 0) frameNum += result;
+        return result;
+    }
+
+    /**
+     * Decode through the entry point for the output mode
+     */
+    private int decode(int mode, Object inData, int inBufSize, int inOffset, int inLength,
+                       Buffer outBuffer, int eof) {
+        Object outData = outBuffer.getData();
+        switch (mode) {
+        case DIRECT_OUTPUT:
+            return convertDirect(peer, (ByteBuffer)inData, inOffset, inLength,
+                                 (ByteBuffer)outData, outputLength, eof);
+        case PLANE_OUTPUT: {
+            int result = convertPlanes(peer, inData, inBufSize, inOffset, inLength,
+                                       (ByteBuffer)outData, planeLayout, eof);
+            if (planeLayout[PLANE_STATUS] < 0) {
+                // Picture is larger than the buffer, which is replaced once
+                outData = ByteBuffer.allocateDirect(planeLayout[PLANE_LENGTH]);
+                outBuffer.setData(outData);
+                copyPlanes(peer, (ByteBuffer)outData, planeLayout);
+            }
+            if (planeLayout[PLANE_STATUS] > 0) {
+                outBuffer.setFormat(getPlaneFormat());
+            }
+            return result;
+        }
+        default:
+            return convert(peer, inData, inBufSize, inOffset, inLength,
+                           outData, outputLength, eof);
+        }
+    }
+
+    private int frameLength(int mode) {
+        return (mode == PLANE_OUTPUT) ? planeLayout[PLANE_LENGTH] : outputLength;
+    }
+
+    /**
+     * Format of the planes in the last picture, only created again if
+     * the layout changes
+     */
+    private YUVFormat getPlaneFormat() {
+        int[] layout = planeLayout;
+        YUVFormat format = planeFormat;
+        Dimension size = (format != null) ? format.getSize() : null;
+        if (format == null
+            || format.getStrideY() != layout[PLANE_STRIDE_Y]
+            || format.getStrideUV() != layout[PLANE_STRIDE_UV]
+            || format.getOffsetV() != layout[PLANE_OFFSET_V]
+            || size.width != layout[PLANE_WIDTH]
+            || size.height != layout[PLANE_HEIGHT]) {
+            planeFormat = new YUVFormat(new Dimension(layout[PLANE_WIDTH], layout[PLANE_HEIGHT]),
+                layout[PLANE_LENGTH],
+                directBuffer,
+                ((VideoFormat)outputFormat).getFrameRate(),
+                YUVFormat.YUV_420,
+                layout[PLANE_STRIDE_Y],
+                layout[PLANE_STRIDE_UV],
+                0,
+                layout[PLANE_OFFSET_U],
+                layout[PLANE_OFFSET_V]);
+        }
+        return planeFormat;
+    }
+
+    private static boolean isDirect(Object data) {
+        return data instanceof ByteBuffer && ((ByteBuffer)data).isDirect();
+    }
+
+    /**
+     * Input for the array entry point, with room for the padding the
+     * codec may read past the end
+     */
+    private byte[] inputCopy = new byte[ 0 ];
+
+    private byte[] copyInput(ByteBuffer data, int offset, int length) {
+        if (inputCopy.length < length + INPUT_BUFFER_PADDING_SIZE) {
+            inputCopy = new byte[ length + INPUT_BUFFER_PADDING_SIZE ];
+        }
+        ByteBuffer source = data.duplicate();
+        source.position(offset);
+        source.get(inputCopy, 0, length);
+        // Zero padding lets the native side decode in place
+        java.util.Arrays.fill(inputCopy, length, length + INPUT_BUFFER_PADDING_SIZE, (byte)0);
+        return inputCopy;
+    }
+
     public synchronized void open() throws ResourceUnavailableException {
         if (!opened) {
 // System.out.println("Decoder:: open()");
 
-            synchronized (getClass()) {
-//                if (inputFormat == null)
-//                    throw new ResourceUnavailableException("No input format selected");
-                if (outputFormat == null)
-                    throw new ResourceUnavailableException("No output format selected");
-		Dimension size = videoSize;
-                if (!open_decoder(encoding, rtpActive, truncatedFlag, yuv2rgb, depth, rMask, gMask, bMask, 
+            // The native library initialises libavcodec once and serialises
+            // avcodec_open itself, so decoders open concurrently.
+//            if (inputFormat == null)
+//                throw new ResourceUnavailableException("No input format selected");
+            if (outputFormat == null)
+                throw new ResourceUnavailableException("No output format selected");
+            Dimension size = videoSize;
+            if (!open_decoder(encoding, rtpActive, truncatedFlag, yuv2rgb, depth, rMask, gMask, bMask, 
   (int)size.getWidth(), (int)size.getHeight()))
-                    throw new ResourceUnavailableException("Couldn't open codec for " + encoding);
-            }
+                throw new ResourceUnavailableException("Couldn't open codec for " + encoding);
 
+            opened = true;
             resetRequired = false;
         }
     }
@@ -548,6 +775,7 @@ public class NativeDecoder implements JMFCodec {
         if (opened) {
 // System.out.println("Decoder:: close()");
             close_decoder(peer);
+            opened = false;
         }
     }
 
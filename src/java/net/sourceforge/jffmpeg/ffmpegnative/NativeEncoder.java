@@ -46,6 +46,8 @@ import javax.media.TimeBase;
 import javax.media.SystemTimeBase;
 
 import java.awt.Dimension;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
 
 import com.sun.media.BasicCodec;
 
@@ -146,6 +148,26 @@ public class NativeEncoder extends BasicCodec
     protected boolean cpuActive = false;
     protected long targetFrameTime;
 
+    // Asynchronous encoding, frames waiting beyond the queue are dropped
+    protected boolean asyncActive = false;
+    private final static int ASYNC_QUEUE_FRAMES = 3;
+    private AsyncEncoder asyncEncoder = null;
+    private boolean asyncPending = false;
+
+    // process(), open(), close() and reset() run one at a time
+    private final Object processLock = new Object();
+
+    // Frame rate, quality, RTP payload size and compatibility changes not
+    // yet passed to the native encoder (0 or false if unchanged).  Only
+    // the thread encoding makes native calls on peer, so it applies them
+    // before a frame.
+    private final Object settingsLock = new Object();
+    private int newFrameRate = 0;
+    private float newQuality = 0;
+    private int newPayloadSize = 0;
+    private boolean compatibilityChanged = false;
+    private boolean newCompatibility;
+
     //--------------------------------------------------------------------------------
     // NATIVE METHODS
     //--------------------------------------------------------------------------------
@@ -155,23 +177,27 @@ public class NativeEncoder extends BasicCodec
                                         int bitRate, int frameRate, int keyFrameInterval,
                                         float quality, boolean dynQuality,
                                         int rtpPayloadSize, boolean compatibility);
-    private native boolean close_encoder(int peer);
+    private native boolean close_encoder(long peer);
 
-    protected native boolean set_frameRate(int peer, int frameRate);
-    protected native boolean set_quality(int peer, float quality);
-    protected native boolean set_rtpPayloadSize(int peer, int rtpPayloadSize);
-    protected native boolean set_compatibility(int peer, boolean compatibility);
+    protected native boolean set_frameRate(long peer, int frameRate);
+    protected native boolean set_quality(long peer, float quality);
+    protected native boolean set_rtpPayloadSize(long peer, int rtpPayloadSize);
+    protected native boolean set_compatibility(long peer, boolean compatibility);
 
     // returns the size of the output buffer after encoding, or negative if error
-    private native boolean convert(int peer, Object inData, long inDataBytes, int inBufSize, int inOffset, int inLength,
+    private native boolean convert(long peer, Object inData, long inDataBytes, int inBufSize, int inOffset, int inLength,
                                    Object outData, long outDataBytes, int outLength);
 
+    // as convert, reading the frame in place from a direct ByteBuffer
+    private native boolean convertDirect(long peer, ByteBuffer inData, int inOffset, int inLength,
+                                         Object outData, long outDataBytes, int outLength);
+
     //--------------------------------------------------------------------------------
     // NATIVE VARIABLES
     //--------------------------------------------------------------------------------
 
     // Native structure pointer
-    public int peer = 0;
+    public long peer = 0;
 
     // Set to true or false by the native code if it is finished processing
     // the input buffer.
@@ -297,7 +323,7 @@ public class NativeEncoder extends BasicCodec
             frameDecimation = 1;
         inputFormat = new YUVFormat(inSize,
             inputYuvLength + INPUT_BUFFER_PADDING_SIZE,
-            Format.byteArray,
+            (yuv.getDataType() == NativeDecoder.directBuffer) ? NativeDecoder.directBuffer : Format.byteArray,
             sourceFrameRate,
             YUVFormat.YUV_420,
             strideY,
@@ -356,8 +382,18 @@ public class NativeEncoder extends BasicCodec
     }
 
     public int process(Buffer inBuffer, Buffer outBuffer) {
-        if (inputDone) {
+        synchronized (processLock) {
+            return processBuffer(inBuffer, outBuffer);
+        }
+    }
+
+    private int processBuffer(Buffer inBuffer, Buffer outBuffer) {
+        // In asynchronous mode inputDone belongs to the encoding thread
+        boolean newFrame = (asyncEncoder != null) ? !asyncPending : inputDone;
+        if (newFrame) {
             if (isEOM(inBuffer)) {
+                if (asyncEncoder != null)
+                    return processAsync(inBuffer, outBuffer);
                 propagateEOM(outBuffer);
                 reset();
                 return BUFFER_PROCESSED_OK;
@@ -383,7 +419,7 @@ public class NativeEncoder extends BasicCodec
             if (frameNum > 0) {
                 long deltaTime = masterTimeBase.getNanoseconds() - lastFrameTime + 1;
                 int frameRate = (int)(1000000000 / deltaTime);
-                set_frameRate(peer, Math.max(frameRate,(int)targetFrameRate) + 1); // MPI<0 workaround (must be non-zero)
+                changeFrameRate(Math.max(frameRate,(int)targetFrameRate) + 1); // MPI<0 workaround (must be non-zero)
                 if (cpuActive && (deltaTime > targetFrameTime)) {
 // System.out.println("Encoder:: can't keep up, add " + (deltaTime / targetFrameTime) + " frames behind");
 
@@ -421,6 +457,9 @@ public class NativeEncoder extends BasicCodec
             setInputFormat(inFormat);
         }
 
+        if (asyncEncoder != null)
+            return processAsync(inBuffer, outBuffer);
+
         if (inBuffer.getLength() < 10) {
             outBuffer.setDiscard(true);
             reset();
@@ -430,14 +469,16 @@ public class NativeEncoder extends BasicCodec
         int inOffset = inBuffer.getOffset();
         int inLength = inBuffer.getLength();
 
-        // The codec might read up to INPUT_BUFFER_PADDING_SIZE additional bytes
-        // before checking for EOS, which can cause ArrayOutOfBounds in Java code.
-        byte[] curArray = (byte[])inBuffer.getData();
-        int inBufSize = curArray.length;
-
         Object inData = getInputData(inBuffer);
         long inDataBytes = getNativeData(inData);
 
+        // Heap ByteBuffers are encoded from their backing array
+        if (inData instanceof ByteBuffer && !((ByteBuffer)inData).isDirect()) {
+            ByteBuffer heap = (ByteBuffer)inData;
+            inOffset += heap.arrayOffset();
+            inData = heap.array();
+        }
+
         Object outData = getOutputData(outBuffer);
 
         if (outData == null ||
@@ -452,10 +493,13 @@ public class NativeEncoder extends BasicCodec
         outData = validateData(outBuffer, outputH263Length, true /*allow native*/);
         long outDataBytes = getNativeData(outData);
 
+        if (newFrame)
+            applySettings();
+
         // Call the native method to convert input buffer to the
         // output buffer. Note that this call can potentially set
         // some of the instance variables marked as native above.
-        boolean result = convert(peer, inData, inDataBytes, inBufSize, inOffset, inLength, outData, outDataBytes, outputH263Length);
+        boolean result = encode(inData, inDataBytes, inOffset, inLength, outData, outDataBytes);
 
         if (!result)
             return BUFFER_PROCESSED_FAILED;
@@ -464,6 +508,112 @@ public class NativeEncoder extends BasicCodec
         outBuffer.setOffset(0);
         outBuffer.setLength(outputSize);
 
+        if (!inputDone) {
+// System.out.println("Encoder:: packet #" + seqNum + " (" + outputSize + " bytes)");
+
+            sendPacket(outBuffer, false);
+            return INPUT_BUFFER_NOT_CONSUMED;
+        }
+
+// System.out.println("Encoder:: packet #" + seqNum + " (" + outputSize + " bytes), end of frame #" + frameNum);
+
+        sendPacket(outBuffer, true);
+
+        // At this point, the input and output frames buffers are done
+        reset();
+        return BUFFER_PROCESSED_OK;
+    }
+
+    /**
+     * Encode one frame, or the next RTP packet of it, from a byte[] or a
+     * direct ByteBuffer
+     */
+    private boolean encode(Object inData, long inDataBytes, int inOffset, int inLength,
+                           Object outData, long outDataBytes) {
+        if (inData instanceof ByteBuffer) {
+            return convertDirect(peer, (ByteBuffer)inData, inOffset, inLength,
+                                 outData, outDataBytes, outputH263Length);
+        }
+
+        // The codec might read up to INPUT_BUFFER_PADDING_SIZE additional bytes
+        // before checking for EOS, which can cause ArrayOutOfBounds in Java code.
+        int inBufSize = (inDataBytes != 0) ? inOffset + inLength : ((byte[])inData).length;
+
+        return convert(peer, inData, inDataBytes, inBufSize, inOffset, inLength,
+                       outData, outDataBytes, outputH263Length);
+    }
+
+    /**
+     * Record a change of frame rate for the thread encoding
+     */
+    void changeFrameRate(int frameRate) {
+        synchronized (settingsLock) {
+            newFrameRate = frameRate;
+        }
+    }
+
+    /**
+     * Record a change of quantiser for the thread encoding
+     */
+    void changeQuality(float quality) {
+        synchronized (settingsLock) {
+            newQuality = quality;
+        }
+    }
+
+    /**
+     * Record a change of RTP payload size for the thread encoding
+     */
+    void changePayloadSize(int payloadSize) {
+        synchronized (settingsLock) {
+            newPayloadSize = payloadSize;
+        }
+    }
+
+    /**
+     * Record a change of compatibility mode for the thread encoding
+     */
+    void changeCompatibility(boolean compatibility) {
+        synchronized (settingsLock) {
+            newCompatibility = compatibility;
+            compatibilityChanged = true;
+        }
+    }
+
+    /**
+     * Pass recorded changes to the native encoder.  Only called by the
+     * thread encoding, before it starts a frame.
+     */
+    private void applySettings() {
+        int frameRate, payloadSize;
+        float quality;
+        boolean setCompatibility, compatibility;
+        synchronized (settingsLock) {
+            frameRate   = newFrameRate;
+            quality     = newQuality;
+            payloadSize = newPayloadSize;
+            setCompatibility = compatibilityChanged;
+            compatibility    = newCompatibility;
+            newFrameRate   = 0;
+            newQuality     = 0;
+            newPayloadSize = 0;
+            compatibilityChanged = false;
+        }
+        if (setCompatibility)
+            set_compatibility(peer, compatibility);
+        if (frameRate != 0)
+            set_frameRate(peer, frameRate);
+        if (quality != 0)
+            set_quality(peer, quality);
+        if (payloadSize != 0)
+            set_rtpPayloadSize(peer, payloadSize);
+    }
+
+    /**
+     * Sequence number, marker and bit rate shaping for a packet about to
+     * be returned from process()
+     */
+    private void sendPacket(Buffer outBuffer, boolean endOfFrame) {
         if (rtpActive)
             outBuffer.setSequenceNumber(seqNum);
 
@@ -480,17 +630,11 @@ public class NativeEncoder extends BasicCodec
             }
         }
         lastPacketTime = masterTimeBase.getNanoseconds();
-        lastPacketBits = outputSize * 8;
+        lastPacketBits = outBuffer.getLength() * 8;
 
-        if (!inputDone) {
-// System.out.println("Encoder:: packet #" + seqNum + " (" + outputSize + " bytes)");
-
-            seqNum++;
-
-            return INPUT_BUFFER_NOT_CONSUMED;
-        }
-
-// System.out.println("Encoder:: packet #" + seqNum + " (" + outputSize + " bytes), end of frame #" + frameNum);
+        seqNum++;
+        if (!endOfFrame)
+            return;
 
         if (rtpActive) {
             // Set the RTP marker (last packet in a video frame).
@@ -498,55 +642,120 @@ public class NativeEncoder extends BasicCodec
             outBuffer.setFlags(flags | Buffer.FLAG_RTP_MARKER);
         }
 
-        seqNum++;
         frameNum++; // increment number of frames encoded
+    }
 
-        // At this point, the input and output frames buffers are done
-        reset();
+    /**
+     * process() in asynchronous mode: a new frame is queued for the
+     * encoding thread, and whatever it has finished is returned, one
+     * packet per call.  The capture thread never waits for the encoder;
+     * only EOM waits for the queued frames to be encoded.
+     */
+    private int processAsync(Buffer inBuffer, Buffer outBuffer) {
+        if (isEOM(inBuffer)) {
+            asyncEncoder.waitIdle();
+        } else if (!asyncPending) {
+            if (inBuffer.getLength() < 10) {
+                outBuffer.setDiscard(true);
+                return BUFFER_PROCESSED_OK;
+            }
+            if (!asyncEncoder.enqueue(inBuffer))
+                framesDropped++;
+        }
+
+        EncodedPacket packet = asyncEncoder.poll();
+        if (packet == null) {
+            asyncPending = false;
+            if (isEOM(inBuffer)) {
+                propagateEOM(outBuffer);
+                reset();
+                return BUFFER_PROCESSED_OK;
+            }
+            if (asyncEncoder.hasFailed())
+                return BUFFER_PROCESSED_FAILED;
+
+            outBuffer.setOffset(0);
+            outBuffer.setLength(0);
+            outBuffer.setFormat(outputFormat);
+            return OUTPUT_BUFFER_NOT_FILLED;
+        }
+
+        if (!outputFormat.equals(outBuffer.getFormat()))
+            outBuffer.setFormat(outputFormat);
+        byte[] outData = (byte[])validateData(outBuffer, outputH263Length, false);
+        System.arraycopy(packet.data, 0, outData, 0, packet.length);
+        outBuffer.setOffset(0);
+        outBuffer.setLength(packet.length);
+        sendPacket(outBuffer, packet.endOfFrame);
+        asyncEncoder.recycle(packet);
+
+        // Keep the input until everything encoded so far has been sent
+        asyncPending = asyncEncoder.hasOutput();
+        if (asyncPending)
+            return INPUT_BUFFER_NOT_CONSUMED;
+
+        if (packet.endOfFrame)
+            reset();
         return BUFFER_PROCESSED_OK;
     }
 
-    public synchronized void open() throws ResourceUnavailableException {
-        if (!opened) {
+    public void open() throws ResourceUnavailableException {
+        synchronized (processLock) {
+            if (!opened) {
 // System.out.println("Encoder:: open()");
 
-            super.open();
+                super.open();
+
+                if (inputFormat == null)
+                    throw new ResourceUnavailableException("No input format selected");
+                if (outputFormat == null)
+                    throw new ResourceUnavailableException("No output format selected");
 
-            if (inputFormat == null)
-                throw new ResourceUnavailableException("No input format selected");
-            if (outputFormat == null)
-                throw new ResourceUnavailableException("No output format selected");
+                Dimension size = ((VideoFormat)inputFormat).getSize();
+                if (!open_encoder(outputFormat.getEncoding(), size.width, size.height,
+                    bitRate, (int)targetFrameRate, keyFrameInterval, quality, bitRate < MAX_BIT_RATE,
+                    (compatibility ? targetPacketSize : targetPacketSize - 128), compatibility))
+                    throw new ResourceUnavailableException("Couldn't open codec for " + inputFormat.toString());
 
-            Dimension size = ((VideoFormat)inputFormat).getSize();
-            if (!open_encoder(outputFormat.getEncoding(), size.width, size.height,
-                bitRate, (int)targetFrameRate, keyFrameInterval, quality, bitRate < MAX_BIT_RATE,
-                (compatibility ? targetPacketSize : targetPacketSize - 128), compatibility))
-                throw new ResourceUnavailableException("Couldn't open codec for " + inputFormat.toString());
+                resetRequired = false;
 
-            resetRequired = false;
+                if (asyncActive) {
+                    asyncEncoder = new AsyncEncoder();
+                    asyncPending = false;
+                }
+            }
         }
     }
 
-    public synchronized void close() {
-        if (opened) {
+    public void close() {
+        synchronized (processLock) {
+            if (opened) {
 // System.out.println("Encoder:: close()");
 
-            close_encoder(peer);
+                if (asyncEncoder != null) {
+                    asyncEncoder.stop();
+                    asyncEncoder = null;
+                }
 
-            super.close();
+                close_encoder(peer);
+
+                super.close();
+            }
         }
     }
 
-    public synchronized void reset() {
-        if (resetRequired && opened) {
+    public void reset() {
+        synchronized (processLock) {
+            if (resetRequired && opened) {
 // System.out.println("Encoder:: reset()");
 
-            try {
-                close();
-                open();
-            }
-            catch(Exception e) {
-                e.printStackTrace();
+                try {
+                    close();
+                    open();
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
@@ -577,12 +786,192 @@ public class NativeEncoder extends BasicCodec
                  new PacketSizeAdapter(this,targetPacketSize,true),
                  new BitRateShapingAdapter(this),
                  new CompatibilityAdapter(this),
-                 new CpuLoadMgtAdapter(this)
+                 new CpuLoadMgtAdapter(this),
+                 new AsyncEncodingAdapter(this)
              };
         }
 
         return (Object [])controls;
     }
+
+    /**
+     * A packet produced by the encoding thread
+     */
+    private static class EncodedPacket {
+        byte[] data;
+        int length;
+        boolean endOfFrame;
+    }
+
+    /**
+     * A copy of an input frame waiting to be encoded, held in a direct
+     * buffer so the encoder reads it in place
+     */
+    private static class QueuedFrame {
+        ByteBuffer data = null;
+        int length;
+
+        boolean fill(Buffer in) {
+            Object src = in.getData();
+            int offset = in.getOffset();
+            length = in.getLength();
+            if (data == null || data.capacity() < length + INPUT_BUFFER_PADDING_SIZE)
+                data = ByteBuffer.allocateDirect(length + INPUT_BUFFER_PADDING_SIZE);
+            data.clear();
+            if (src instanceof byte[]) {
+                data.put((byte[])src, offset, length);
+            } else if (src instanceof ByteBuffer) {
+                ByteBuffer source = ((ByteBuffer)src).duplicate();
+                source.limit(offset + length);
+                source.position(offset);
+                data.put(source);
+            } else {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Encoding thread for asynchronous mode.  Frames are copied in by
+     * process() and encoded in order; all the packets of a frame are
+     * produced together and handed back through an output queue.
+     * Frames and packets are recycled, so a steady stream allocates
+     * nothing.
+     */
+    private class AsyncEncoder implements Runnable {
+        private LinkedList<QueuedFrame> frames = new LinkedList<QueuedFrame>();
+        private LinkedList<QueuedFrame> freeFrames = new LinkedList<QueuedFrame>();
+        private LinkedList<EncodedPacket> packets = new LinkedList<EncodedPacket>();
+        private LinkedList<EncodedPacket> freePackets = new LinkedList<EncodedPacket>();
+
+        private boolean running = true;
+        private boolean busy = false;
+        private boolean failed = false;
+        private Thread thread;
+
+        AsyncEncoder() {
+            thread = new Thread(this, PLUGIN_NAME);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Queue a copy of the frame.  Returns false if a frame was
+         * dropped because the encoder is too far behind.
+         */
+        synchronized boolean enqueue(Buffer in) {
+            boolean kept = true;
+            if (frames.size() >= ASYNC_QUEUE_FRAMES) {
+                // Drop the oldest frame, the newest is worth more to a live stream
+                freeFrames.addLast(frames.removeFirst());
+                kept = false;
+            }
+            QueuedFrame frame = freeFrames.isEmpty() ? new QueuedFrame() : freeFrames.removeFirst();
+            if (!frame.fill(in)) {
+                freeFrames.addLast(frame);
+                return false;
+            }
+            frames.addLast(frame);
+            notifyAll();
+            return kept;
+        }
+
+        synchronized EncodedPacket poll() {
+            return packets.isEmpty() ? null : packets.removeFirst();
+        }
+
+        synchronized boolean hasOutput() {
+            return !packets.isEmpty();
+        }
+
+        synchronized boolean hasFailed() {
+            return failed;
+        }
+
+        synchronized void recycle(EncodedPacket packet) {
+            freePackets.addLast(packet);
+        }
+
+        private synchronized EncodedPacket obtain() {
+            EncodedPacket packet = freePackets.isEmpty() ? new EncodedPacket() : freePackets.removeFirst();
+            if (packet.data == null || packet.data.length < outputH263Length)
+                packet.data = new byte[outputH263Length];
+            return packet;
+        }
+
+        /**
+         * Wait until every queued frame has been encoded
+         */
+        synchronized void waitIdle() {
+            while (running && !failed && (busy || !frames.isEmpty())) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stop the thread once the frame being encoded is finished, queued
+         * frames are discarded
+         */
+        void stop() {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) { }
+        }
+
+        public void run() {
+            while (true) {
+                QueuedFrame frame;
+                synchronized (this) {
+                    while (running && frames.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            running = false;
+                        }
+                    }
+                    if (!running)
+                        return;
+                    frame = frames.removeFirst();
+                    busy = true;
+                }
+                applySettings();
+
+                // inputDone and outputSize are set by the native code on this thread
+                boolean result;
+                do {
+                    EncodedPacket packet = obtain();
+                    result = convertDirect(peer, frame.data, 0, frame.length,
+                                           packet.data, 0, outputH263Length);
+                    if (!result) {
+                        recycle(packet);
+                        break;
+                    }
+                    packet.length = outputSize;
+                    packet.endOfFrame = inputDone;
+                    synchronized (this) {
+                        packets.addLast(packet);
+                    }
+                } while (!inputDone);
+
+                synchronized (this) {
+                    freeFrames.addLast(frame);
+                    busy = false;
+                    if (!result)
+                        failed = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
 }
 
 class H263Adapter extends com.sun.media.controls.H263Adapter implements Owned {
@@ -675,7 +1064,7 @@ class FrameRateAdapter extends com.sun.media.controls.FrameRateAdapter implement
         else
             owner.frameDecimation = 1;
         owner.targetFrameTime = 1250000000 / (long)owner.targetFrameRate; // relax by 25%
-        owner.set_frameRate(owner.peer, (int)owner.targetFrameRate);
+        owner.changeFrameRate((int)owner.targetFrameRate);
         owner.resetRequired = true;
         return owner.targetFrameRate;
     }
@@ -719,7 +1108,7 @@ class QualityAdapter extends com.sun.media.controls.QualityAdapter implements Ow
         // quality settings range from 0.0 (low) to 1.0 (high),
         // and must be mapped to quantiser settings from 31 (low) to 4 (high).
         owner.quality = 31.0f - (quality * 27.0f);
-        owner.set_quality(owner.peer, owner.quality);
+        owner.changeQuality(owner.quality);
         return quality;
     }
 }
@@ -744,7 +1133,7 @@ class PacketSizeAdapter extends com.sun.media.controls.PacketSizeAdapter impleme
             numBytes = owner.MAX_RTP_MTU;
 
         owner.targetPacketSize = super.setPacketSize(numBytes);
-        owner.set_rtpPayloadSize(owner.peer, (owner.compatibility ? owner.targetPacketSize : owner.targetPacketSize - 128));
+        owner.changePayloadSize(owner.compatibility ? owner.targetPacketSize : owner.targetPacketSize - 128);
         return owner.targetPacketSize;
     }
 }
@@ -770,6 +1159,30 @@ class BitRateShapingAdapter implements BitRateShapingControl, Owned {
     }
 }
 
+class AsyncEncodingAdapter implements AsyncEncodingControl, Owned {
+    NativeEncoder owner;
+
+    public AsyncEncodingAdapter(NativeEncoder owner) {
+        this.owner=owner;
+    }
+
+    public java.lang.Object getOwner() {
+        return (Object) owner;
+    }
+
+    public boolean setAsyncEncoding(boolean asyncEncoding) {
+        if (owner.asyncActive != asyncEncoding) {
+            owner.asyncActive = asyncEncoding;
+            owner.resetRequired = true;
+        }
+        return owner.asyncActive;
+    }
+
+    public Component getControlComponent() {
+        return null;
+    }
+}
+
 class CpuLoadMgtAdapter implements CpuLoadMgtControl, Owned {
     NativeEncoder owner;
 
@@ -0,0 +1,266 @@
+/*
+ * Checks the input handling of the NativeDecoder entry points without
+ * libavcodec or a JVM: decoder.c is compiled in with a stub
+ * avcodec_decode_video that records each packet it is given, and a JNI
+ * environment with just the calls the entry points make.
+ *
+ * Packets are laid out back to back, so the bytes after one packet are
+ * the start of the next.  The decoder must see every packet intact with
+ * zero padding, and must never write to the caller's input.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ */
+
+#include "decoder.c"
+
+#define WIDTH  16
+#define HEIGHT 16
+#define FRAME_LENGTH (WIDTH * HEIGHT * 3 / 2)
+#define MAX_PACKETS 16
+
+static int failures = 0;
+
+#define CHECK(condition, message) \
+    do { if (!(condition)) { printf("FAIL %s:%d %s\n", __FILE__, __LINE__, message); failures++; } } while (0)
+
+/*
+ * libavcodec stubs
+ */
+static unsigned char packets_seen[MAX_PACKETS][256];
+static const unsigned char *packet_address[MAX_PACKETS];
+static int packet_length[MAX_PACKETS];
+static int packet_count = 0;
+static unsigned char planes[FRAME_LENGTH];
+
+int avcodec_decode_video(AVCodecContext *avctx, AVFrame *picture,
+                         int *got_picture_ptr, uint8_t *buf, int buf_size)
+{
+    if (buf_size <= 0 || packet_count == MAX_PACKETS) {
+        *got_picture_ptr = 0;
+        return 0;
+    }
+
+    // The packet and the padding a decoder may read
+    memcpy(packets_seen[packet_count], buf, buf_size + INPUT_BUFFER_PADDING_SIZE);
+    packet_address[packet_count] = buf;
+    packet_length[packet_count] = buf_size;
+
+    // The picture is the packet number
+    memset(planes, packet_count, sizeof(planes));
+    picture->data[0] = planes;
+    picture->data[1] = planes + WIDTH * HEIGHT;
+    picture->data[2] = planes + WIDTH * HEIGHT * 5 / 4;
+    picture->linesize[0] = WIDTH;
+    picture->linesize[1] = picture->linesize[2] = WIDTH / 2;
+    avctx->width = WIDTH;
+    avctx->height = HEIGHT;
+
+    packet_count++;
+    *got_picture_ptr = 1;
+    return buf_size;
+}
+
+AVCodec *avcodec_find_decoder_by_name(const char *name) { return NULL; }
+AVCodecContext *avcodec_alloc_context(void) { return NULL; }
+AVFrame *avcodec_alloc_frame(void) { return NULL; }
+int avcodec_close(AVCodecContext *avctx) { return 0; }
+void av_free(void *ptr) { }
+void jffmpeg_init(void) { }
+int jffmpeg_open_codec(AVCodecContext *ctx, AVCodec *codec) { return -1; }
+jfieldID jffmpeg_decoder_peer;
+jfieldID jffmpeg_field(JNIEnv *env, jobject obj, jfieldID cached, const char *name, const char *sig) { return cached; }
+Converter* yuv2rgb_get_converter(int depth, long red_mask, long green_mask, long blue_mask) { return NULL; }
+void release_converter(Converter *cnv) { }
+void yuv2rgb_set_threads(int threads) { }
+void yuv2rgb_convert(Converter *cnv, unsigned char *lum, unsigned char *cb, unsigned char *cr,
+                     unsigned char *out, int cols, int rows) { }
+
+/*
+ * Java objects: arrays are pinned, as a JVM is free to do, so a write
+ * to the elements is a write to the caller's data
+ */
+typedef struct {
+    int direct;
+    void *data;
+    jlong capacity;
+} Object;
+
+static void* JNICALL getDirectBufferAddress(JNIEnv *env, jobject buf)
+{
+    return ((Object *) buf)->direct ? ((Object *) buf)->data : NULL;
+}
+
+static jlong JNICALL getDirectBufferCapacity(JNIEnv *env, jobject buf)
+{
+    return ((Object *) buf)->direct ? ((Object *) buf)->capacity : -1;
+}
+
+static jbyte* JNICALL getByteArrayElements(JNIEnv *env, jbyteArray array, jboolean *isCopy)
+{
+    return (jbyte *) ((Object *) array)->data;
+}
+
+static void JNICALL releaseByteArrayElements(JNIEnv *env, jbyteArray array, jbyte *elems, jint mode)
+{
+}
+
+static jint* JNICALL getIntArrayElements(JNIEnv *env, jintArray array, jboolean *isCopy)
+{
+    return (jint *) ((Object *) array)->data;
+}
+
+static void JNICALL releaseIntArrayElements(JNIEnv *env, jintArray array, jint *elems, jint mode)
+{
+}
+
+static void JNICALL exceptionClear(JNIEnv *env)
+{
+}
+
+static struct JNINativeInterface_ functions;
+static const struct JNINativeInterface_ *environment = &functions;
+static JNIEnv *env = &environment;
+
+static FFMPEGWrapper wrapper;
+static AVCodecContext context;
+static AVFrame picture;
+
+/*
+ * count packets of the given lengths back to back in input, none of
+ * them with zero bytes, so no packet is followed by zero padding
+ */
+static int fill_packets(unsigned char *input, const int *lengths, jint *offsets, int count)
+{
+    int i, j, offset = 0;
+
+    for (i = 0; i < count; i++) {
+        offsets[i] = offset;
+        for (j = 0; j < lengths[i]; j++)
+            input[offset + j] = (unsigned char) (0x11 * (i + 1) + j) | 0x80;
+        offset += lengths[i];
+    }
+    return offset;
+}
+
+static void test_batch(int direct)
+{
+    static const jint lengths[] = { 37, 1, 64, 5, 120 };
+    int count = sizeof(lengths) / sizeof(lengths[0]);
+    unsigned char input[512], original[512];
+    unsigned char ring[2 * FRAME_LENGTH];
+    jint offsets[MAX_PACKETS], consumed[MAX_PACKETS], pictures[MAX_PACKETS];
+    Object jinput, joffsets, jlengths, jconsumed, jpictures, jring;
+    int size, i, result;
+
+    size = fill_packets(input, lengths, offsets, count);
+    memcpy(original, input, size);
+
+    jinput.direct = direct;     jinput.data = input;        jinput.capacity = size;
+    joffsets.direct = 0;        joffsets.data = offsets;
+    jlengths.direct = 0;        jlengths.data = (void *) lengths;
+    jconsumed.direct = 0;       jconsumed.data = consumed;
+    jpictures.direct = 0;       jpictures.data = pictures;
+    jring.direct = 1;           jring.data = ring;          jring.capacity = sizeof(ring);
+
+    packet_count = 0;
+    result = Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convertBatch(
+        env, NULL, WRAPPER_TO_PEER(&wrapper),
+        (jobject) &jinput, size, (jintArray) &joffsets, (jintArray) &jlengths, NULL, count,
+        (jobject) &jring, FRAME_LENGTH, 1, (jintArray) &jconsumed, (jintArray) &jpictures);
+
+    CHECK(result == count, "every packet gives a picture");
+    CHECK(packet_count == count, "every packet reaches the decoder");
+    CHECK(memcmp(input, original, size) == 0, "input unchanged");
+    for (i = 0; i < count && i < packet_count; i++) {
+        int p;
+
+        CHECK(packet_length[i] == lengths[i], "packet length");
+        CHECK(memcmp(packets_seen[i], original + offsets[i], lengths[i]) == 0, "packet intact");
+        for (p = 0; p < INPUT_BUFFER_PADDING_SIZE; p++)
+            CHECK(packets_seen[i][lengths[i] + p] == 0, "padding is zero");
+        CHECK(consumed[i] == lengths[i], "consumed");
+        // Ring of two slots from slot 1
+        CHECK(pictures[i] == (1 + i) % 2, "ring slot");
+    }
+    // The last two pictures are left in the ring
+    CHECK(ring[pictures[count - 1] * FRAME_LENGTH] == count - 1, "last picture in its slot");
+    CHECK(ring[pictures[count - 2] * FRAME_LENGTH] == count - 2, "picture before in its slot");
+
+    // Without an output format there is no picture size
+    packet_count = 0;
+    result = Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convertBatch(
+        env, NULL, WRAPPER_TO_PEER(&wrapper),
+        (jobject) &jinput, size, (jintArray) &joffsets, (jintArray) &jlengths, NULL, count,
+        (jobject) &jring, 0, 1, (jintArray) &jconsumed, (jintArray) &jpictures);
+    CHECK(result == -1 && packet_count == 0, "zero frame length fails");
+}
+
+static void test_direct_in_place(void)
+{
+    unsigned char input[64 + INPUT_BUFFER_PADDING_SIZE], original[sizeof(input)];
+    unsigned char output[FRAME_LENGTH];
+    Object jinput, joutput;
+    int result;
+
+    // A packet followed by zero padding is decoded where it is
+    memset(input, 0, sizeof(input));
+    memset(input, 0xa5, 64);
+    memcpy(original, input, sizeof(input));
+
+    jinput.direct = 1;  jinput.data = input;    jinput.capacity = sizeof(input);
+    joutput.direct = 1; joutput.data = output;  joutput.capacity = sizeof(output);
+
+    packet_count = 0;
+    result = Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convertDirect(
+        env, NULL, WRAPPER_TO_PEER(&wrapper),
+        (jobject) &jinput, 0, 64, (jobject) &joutput, FRAME_LENGTH, 1);
+
+    CHECK(result == 64, "direct packet consumed");
+    CHECK(packet_count == 1 && packet_address[0] == input, "decoded in place");
+    CHECK(memcmp(input, original, sizeof(input)) == 0, "direct input unchanged");
+
+    // Without room for the padding it is copied
+    packet_count = 0;
+    jinput.capacity = 64;
+    result = Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convertDirect(
+        env, NULL, WRAPPER_TO_PEER(&wrapper),
+        (jobject) &jinput, 0, 64, (jobject) &joutput, FRAME_LENGTH, 1);
+    CHECK(result == 64, "unpadded packet consumed");
+    CHECK(packet_count == 1 && packet_address[0] != input, "unpadded packet copied");
+
+    // An unusable output buffer is an error code, not a message
+    joutput.capacity = FRAME_LENGTH - 1;
+    result = Java_net_sourceforge_jffmpeg_ffmpegnative_NativeDecoder_convertDirect(
+        env, NULL, WRAPPER_TO_PEER(&wrapper),
+        (jobject) &jinput, 0, 64, (jobject) &joutput, FRAME_LENGTH, 1);
+    CHECK(result == -1, "small output fails");
+}
+
+int main(int argc, char **argv)
+{
+    functions.GetDirectBufferAddress   = getDirectBufferAddress;
+    functions.GetDirectBufferCapacity  = getDirectBufferCapacity;
+    functions.GetByteArrayElements     = getByteArrayElements;
+    functions.ReleaseByteArrayElements = releaseByteArrayElements;
+    functions.GetIntArrayElements      = getIntArrayElements;
+    functions.ReleaseIntArrayElements  = releaseIntArrayElements;
+    functions.ExceptionClear           = exceptionClear;
+
+    wrapper.codec_context = &context;
+    wrapper.picture = &picture;
+
+    test_batch(0);
+    test_batch(1);
+    test_direct_in_place();
+
+    free(wrapper.copy_buf);
+    if (failures) {
+        printf("batch_test: %d failures\n", failures);
+        return 1;
+    }
+    printf("batch_test: passed\n");
+    return 0;
+}
@@ -0,0 +1,59 @@
+package net.sourceforge.jffmpeg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A codec that cannot be created is skipped for later streams, and one
+ * whose class is missing (as AC3 in the LGPL jar) is never chosen, in
+ * both configured and measured mode.
+ */
+public class CodecSelectorTest {
+    private static final String WORKING = "net.sourceforge.jffmpeg.codecs.audio.ac3.AC3Decoder";
+
+    /* Loads, but is not a JMFCodec */
+    private static final String BROKEN = "java.lang.Object";
+
+    private static final String MISSING = "net.sourceforge.jffmpeg.codecs.Missing";
+
+    public static void main( String[] args ) {
+        for ( int mode = 0; mode < 2; mode++ ) {
+            boolean measured = (mode == 1);
+            CodecSelector selector = selector( measured, new String[] { BROKEN, WORKING } );
+
+            CodecSelector.Candidate first = selector.select();
+            check( BROKEN.equals( first.getProvider().getClassName() ), "cheapest chosen first" );
+            check( first.createCodec() == null, "broken codec not created" );
+            check( first.isFailed(), "broken codec marked failed" );
+
+            CodecSelector.Candidate next = selector.select();
+            check( WORKING.equals( next.getProvider().getClassName() ), "next codec chosen" );
+            check( next.createCodec() != null, "next codec created" );
+            check( selector.select() == next, "failed codec not chosen again" );
+
+            CodecSelector missing = selector( measured, new String[] { MISSING, WORKING } );
+            check( WORKING.equals( missing.select().getProvider().getClassName() ), "missing class skipped" );
+
+            CodecSelector none = selector( measured, new String[] { BROKEN } );
+            none.select().createCodec();
+            check( none.select() == null, "nothing left to choose" );
+        }
+        System.out.println( "CodecSelectorTest: failed and missing codecs skipped" );
+    }
+
+    /**
+     * Providers of the classes, cheapest first
+     */
+    private static CodecSelector selector( boolean measured, String[] classNames ) {
+        List<CodecProvider> providers = new ArrayList<CodecProvider>();
+        for ( int i = 0; i < classNames.length; i++ ) {
+            providers.add( new CodecProvider( classNames[ i ], CodecProvider.AUDIO, new String[] { "AC3" },
+                                              false, i, CodecProvider.PCM_OUTPUT ) {} );
+        }
+        return new CodecSelector( providers, null, measured, "ac3" );
+    }
+
+    private static void check( boolean condition, String message ) {
+        if ( !condition ) throw new AssertionError( message );
+    }
+}
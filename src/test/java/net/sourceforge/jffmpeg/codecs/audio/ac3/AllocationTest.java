@@ -0,0 +1,100 @@
+/*
+ * This is a Java port of the a52dec audio codec,a free ATSC A-52 stream decoder.
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * Copyright (C) 2000-2003 Michel Lespinasse <walken@zoy.org>
+ * Copyright (C) 1999-2000 Aaron Holtzman <aholtzma@ess.engr.uvic.ca>
+ *
+ * a52dec is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * a52dec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.sourceforge.jffmpeg.codecs.audio.ac3;
+
+import java.lang.management.ManagementFactory;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.AudioFormat;
+
+/**
+ * Decoding a block must not allocate once the decoder is warmed up.
+ * Checked for stereo with rematrixing and for a 3/2 downmix, in both
+ * precisions.
+ */
+public class AllocationTest {
+    private static final int WARMUP_FRAMES   = 2000;
+    private static final int MEASURED_FRAMES = 500;
+
+    public static void main( String[] args ) throws Exception {
+        com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        if ( !threads.isThreadAllocatedMemorySupported() ) {
+            System.out.println( "AllocationTest: allocation counting not supported, skipped" );
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled( true );
+
+        int[] modes = new int[] { 2, 7 };
+        for ( int i = 0; i < modes.length; i++ ) {
+            check( threads, modes[ i ], false );
+            check( threads, modes[ i ], true );
+        }
+    }
+
+    private static void check( com.sun.management.ThreadMXBean threads,
+                               int acmod, boolean singlePrecision ) {
+        SyntheticAc3 writer = new SyntheticAc3( acmod, acmod );
+        byte[][] frames = new byte[ WARMUP_FRAMES + MEASURED_FRAMES ][];
+        for ( int i = 0; i < frames.length; i++ ) {
+            frames[ i ] = writer.nextFrame();
+        }
+
+        AC3Decoder decoder = new AC3Decoder( singlePrecision );
+        decoder.setInputFormat( new AudioFormat( "ac3", 48000, 16, writer.getChannels() ) );
+        decoder.setOutputFormat( new AudioFormat( AudioFormat.LINEAR, 48000, 16, 2,
+                                                  AudioFormat.LITTLE_ENDIAN, AudioFormat.SIGNED,
+                                                  Format.NOT_SPECIFIED, Format.NOT_SPECIFIED,
+                                                  Format.shortArray ) );
+        Buffer input  = new Buffer();
+        Buffer output = new Buffer();
+
+        for ( int i = 0; i < WARMUP_FRAMES; i++ ) {
+            decode( decoder, frames[ i ], input, output );
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes( thread );
+        for ( int i = WARMUP_FRAMES; i < frames.length; i++ ) {
+            decode( decoder, frames[ i ], input, output );
+        }
+        long allocated = threads.getThreadAllocatedBytes( thread ) - before;
+
+        long blocks = MEASURED_FRAMES * 6;
+        String name = "acmod " + acmod + (singlePrecision ? " single" : " double");
+        System.out.println( "AllocationTest: " + name + ", " + allocated + " bytes in " + blocks + " blocks" );
+        if ( allocated >= blocks ) {
+            throw new AssertionError( name + " allocated " + allocated + " bytes in " + blocks + " blocks" );
+        }
+    }
+
+    private static void decode( AC3Decoder decoder, byte[] frame, Buffer input, Buffer output ) {
+        input.setData( frame );
+        input.setOffset( 0 );
+        input.setLength( frame.length );
+        if ( decoder.process( input, output ) != AC3Decoder.BUFFER_PROCESSED_OK
+             || output.getLength() != 6 * 256 * 2 ) {
+            throw new AssertionError( "Frame not decoded" );
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This is a Java port of the a52dec audio codec,a free ATSC A-52 stream decoder.
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * Copyright (C) 2000-2003 Michel Lespinasse <walken@zoy.org>
+ * Copyright (C) 1999-2000 Aaron Holtzman <aholtzma@ess.engr.uvic.ca>
+ *
+ * a52dec is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * a52dec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.sourceforge.jffmpeg.codecs.audio.ac3;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.AudioFormat;
+
+/**
+ * With OUTPUT_NATIVE the output Buffer's format follows the channels
+ * coded in the stream, not the container's count, and one Buffer never
+ * holds frames with different channel counts.
+ */
+public class OutputLayoutTest {
+    public static void main( String[] args ) {
+        check( AC3Decoder.parseOutputLayout( "Native" ) == AC3Decoder.OUTPUT_NATIVE, "native setting" );
+        check( AC3Decoder.parseOutputLayout( "5.1" ) == AC3Decoder.OUTPUT_5_1, "5.1 setting" );
+        check( AC3Decoder.parseOutputLayout( null ) == AC3Decoder.OUTPUT_STEREO, "default setting" );
+
+        byte[] surround = new SyntheticAc3( 7, 7 ).nextFrame();
+        byte[] stereo   = new SyntheticAc3( 2, 2 ).nextFrame();
+
+        AC3Decoder decoder = new AC3Decoder( false );
+        decoder.setOutputLayout( AC3Decoder.OUTPUT_NATIVE );
+        /* As the VOB demuxer reports every AC-3 track */
+        decoder.setInputFormat( new AudioFormat( "ac3", 48000, 16, 2 ) );
+        decoder.setOutputFormat( new AudioFormat( AudioFormat.LINEAR, 48000, 16, 2,
+                                                  AudioFormat.LITTLE_ENDIAN, AudioFormat.SIGNED,
+                                                  Format.NOT_SPECIFIED, Format.NOT_SPECIFIED,
+                                                  Format.shortArray ) );
+        Buffer output = new Buffer();
+
+        decode( decoder, surround, output );
+        check( output, 5, "3/2 frame" );
+        decode( decoder, stereo, output );
+        check( output, 2, "2/0 frame" );
+
+        byte[] both = new byte[ surround.length + stereo.length ];
+        System.arraycopy( surround, 0, both, 0, surround.length );
+        System.arraycopy( stereo, 0, both, surround.length, stereo.length );
+        decode( decoder, both, output );
+        check( output, 5, "3/2 frame first" );
+        decode( decoder, new byte[ 0 ], output );
+        check( output, 2, "2/0 frame kept for the next Buffer" );
+
+        System.out.println( "OutputLayoutTest: output format follows the coded channels" );
+    }
+
+    private static void decode( AC3Decoder decoder, byte[] data, Buffer output ) {
+        Buffer input = new Buffer();
+        input.setData( data );
+        input.setOffset( 0 );
+        input.setLength( data.length );
+        check( decoder.process( input, output ) == AC3Decoder.BUFFER_PROCESSED_OK, "decoded" );
+    }
+
+    private static void check( Buffer output, int channels, String message ) {
+        check( ((AudioFormat)output.getFormat()).getChannels() == channels, message + ": format" );
+        check( output.getLength() == 6 * 256 * channels, message + ": length " + output.getLength() );
+    }
+
+    private static void check( boolean condition, String message ) {
+        if ( !condition ) throw new AssertionError( message );
+    }
+}
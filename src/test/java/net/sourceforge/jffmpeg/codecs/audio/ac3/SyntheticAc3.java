@@ -0,0 +1,168 @@
+/*
+ * This is a Java port of the a52dec audio codec,a free ATSC A-52 stream decoder.
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * Copyright (C) 2000-2003 Michel Lespinasse <walken@zoy.org>
+ * Copyright (C) 1999-2000 Aaron Holtzman <aholtzma@ess.engr.uvic.ca>
+ *
+ * a52dec is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * a52dec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.sourceforge.jffmpeg.codecs.audio.ac3;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes AC-3 frames for tests.  The SNR offsets are zero, so there are
+ * no mantissas: every coefficient is dither scaled by an exponent that
+ * follows a random walk.  Bandwidth, rematrixing (stereo) and block
+ * switching vary from block to block.  Each frame holds six blocks and
+ * the last one skips to the smallest frame size at 48 kHz that fits.
+ */
+class SyntheticAc3 {
+    /** Largest frame: room for new exponents on five channels in every block */
+    private static final int MAX_FRAME_LENGTH = 4 * 640;
+
+    private final int acmod;
+    private final Random random;
+
+    private byte[] frame;
+    private int position;
+
+    SyntheticAc3( int acmod, long seed ) {
+        this.acmod  = acmod;
+        this.random = new Random( seed );
+    }
+
+    /**
+     * Number of audio channels (not counting LFE)
+     */
+    int getChannels() {
+        return AC3Decoder.nfchansValues[ acmod ];
+    }
+
+    /**
+     * One frame of six blocks
+     */
+    byte[] nextFrame() {
+        frame = new byte[ MAX_FRAME_LENGTH ];
+        position = 0;
+
+        put( 0x0b77, 16 );
+        put( 0, 16 );                   /* crc1 */
+        put( 0, 2 );                    /* fscod 48 kHz */
+        put( 0, 6 );                    /* frmsizecod, set below */
+        put( 8, 5 );                    /* bsid */
+        put( 0, 3 );                    /* bsmod */
+        put( acmod, 3 );
+        if ( acmod == 2 ) put( 0, 2 );  /* dsurmod */
+        if ( (acmod & 1) != 0 && acmod != 1 ) put( 0, 2 );  /* cmixlev */
+        if ( (acmod & 4) != 0 ) put( 0, 2 );                 /* surmixlev */
+        put( 0, 1 );                    /* lfeon */
+        for ( int i = (acmod == 0) ? 2 : 1; i > 0; i-- ) {
+            put( 27, 5 );               /* dialnorm */
+            put( 0, 3 );                /* compre, langcode, audprodie */
+        }
+        put( 0, 2 );                    /* copyright, original */
+        put( 0, 3 );                    /* timecod1e, timecod2e, addbsie */
+
+        for ( int block = 0; block < 6; block++ ) {
+            writeBlock( block == 0, block == 5 );
+        }
+        return frame;
+    }
+
+    private void writeBlock( boolean first, boolean last ) {
+        int nfchans = AC3Decoder.nfchansValues[ acmod ];
+        boolean shortBlocks = random.nextInt( 4 ) == 0;
+        for ( int i = 0; i < nfchans; i++ ) put( shortBlocks ? 1 : 0, 1 );    /* blksw */
+        for ( int i = 0; i < nfchans; i++ ) put( 1, 1 );                      /* dithflag */
+        for ( int i = (acmod == 0) ? 2 : 1; i > 0; i-- ) put( 0, 1 );        /* dynrnge */
+        if ( first ) {
+            put( 1, 1 );                /* cplstre */
+            put( 0, 1 );                /* cplinu */
+        } else {
+            put( 0, 1 );
+        }
+        if ( acmod == 2 ) {
+            put( 1, 1 );                /* rematstr */
+            put( random.nextInt( 16 ), 4 );
+        }
+
+        boolean newExponents = first || random.nextBoolean();
+        for ( int i = 0; i < nfchans; i++ ) put( newExponents ? 1 : 0, 2 );   /* chexpstr D15 */
+        if ( newExponents ) {
+            int chbwcod = 20 + random.nextInt( 41 );
+            for ( int i = 0; i < nfchans; i++ ) put( chbwcod, 6 );
+            int endmant = chbwcod * 3 + 73;
+            int groups = (endmant + 3 - 4) / 3;
+            for ( int i = 0; i < nfchans; i++ ) {
+                int exponent = 4 + random.nextInt( 8 );
+                put( exponent, 4 );     /* absexp */
+                for ( int g = 0; g < groups; g++ ) {
+                    int code = 0;
+                    for ( int k = 0; k < 3; k++ ) {
+                        int delta = random.nextInt( 5 ) - 2;
+                        if ( exponent + delta < 0 || exponent + delta > 24 ) delta = 0;
+                        exponent += delta;
+                        code = code * 5 + delta + 2;
+                    }
+                    put( code, 7 );
+                }
+                put( 0, 2 );            /* gainrng */
+            }
+        }
+        put( 0, 1 );                    /* baie */
+        if ( first ) {
+            put( 1, 1 );                /* snroffste, all zero */
+            put( 0, 6 );
+            for ( int i = 0; i < nfchans; i++ ) put( 0, 7 );
+        } else {
+            put( 0, 1 );
+        }
+        put( 0, 1 );                    /* deltbaie */
+        if ( last ) {
+            skipToEnd();
+        } else {
+            put( 0, 1 );                /* skiple */
+        }
+    }
+
+    /**
+     * The decoder reads blocks until it is within the last 7 bytes of
+     * the frame, so skip to there and set frmsizecod to match
+     */
+    private void skipToEnd() {
+        int end = position + 10;
+        int frmsizecod = 0;
+        while ( (4 * AC3Decoder.rate[ frmsizecod >> 1 ] - 7) * 8 < end ) {
+            frmsizecod += 2;
+        }
+        int length = 4 * AC3Decoder.rate[ frmsizecod >> 1 ];
+        put( 1, 1 );                    /* skiple */
+        put( ((length - 7) * 8 - end + 7) / 8, 9 );
+        frame[ 4 ] = (byte)frmsizecod;  /* fscod 0 */
+        frame = Arrays.copyOf( frame, length );
+    }
+
+    private void put( int value, int bits ) {
+        for ( int i = bits - 1; i >= 0; i-- ) {
+            if ( ((value >> i) & 1) != 0 ) {
+                frame[ position >> 3 ] |= 0x80 >> (position & 7);
+            }
+            position++;
+        }
+    }
+}
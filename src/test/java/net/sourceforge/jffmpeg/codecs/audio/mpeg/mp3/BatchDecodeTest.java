@@ -0,0 +1,127 @@
+/*
+ * Java port of ffmpeg mp3 decoder.
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * Copyright (c) 2000, 2001 Fabrice Bellard.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * See Credits file and Readme for details
+ */
+package net.sourceforge.jffmpeg.codecs.audio.mpeg.mp3;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.AudioFormat;
+
+/**
+ * MP3BatchDecoder gives the same PCM as MP3 decoding the frames one
+ * after another, with several segments per call and a call boundary
+ * in the middle of a frame.
+ */
+public class BatchDecodeTest {
+    private static final int FRAMES = 600;
+
+    /** PCM samples (both channels) in a frame */
+    private static final int FRAME_SAMPLES = 2 * 1152;
+
+    private static final AudioFormat INPUT = new AudioFormat( "mpeglayer3", 48000, 16, 2 );
+    private static final AudioFormat OUTPUT
+            = new AudioFormat( AudioFormat.LINEAR, 48000, 16, 2,
+                               AudioFormat.LITTLE_ENDIAN, AudioFormat.SIGNED,
+                               Format.NOT_SPECIFIED, Format.NOT_SPECIFIED, Format.shortArray );
+
+    public static void main( String[] args ) {
+        byte[] stream = new SyntheticMp3( 33 ).stream( FRAMES );
+
+        short[] sequential = sequential( stream );
+        check( sequential.length == FRAMES * FRAME_SAMPLES, "sequential decode length " + sequential.length );
+        boolean silent = true;
+        for ( int i = 0; i < sequential.length && silent; i++ ) {
+            silent = (sequential[ i ] == 0);
+        }
+        check( !silent, "sequential decode not silent" );
+
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            short[] batch = batch( stream, pool );
+            check( batch.length == sequential.length, "batch decode length " + batch.length );
+            for ( int i = 0; i < batch.length; i++ ) {
+                if ( batch[ i ] != sequential[ i ] ) {
+                    throw new AssertionError( "Sample " + i + " (frame " + i / FRAME_SAMPLES + ") differs: "
+                                              + batch[ i ] + " != " + sequential[ i ] );
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println( "BatchDecodeTest: " + FRAMES + " frames, batch output identical" );
+    }
+
+    /**
+     * MP3.process a few frames at a time
+     */
+    private static short[] sequential( byte[] stream ) {
+        MP3 decoder = new MP3();
+        decoder.setInputFormat( INPUT );
+        decoder.setOutputFormat( OUTPUT );
+
+        /* A frame is decoded once data after it has arrived */
+        byte[] data = Arrays.copyOf( stream, stream.length + 16 );
+        short[] pcm = new short[ 0 ];
+        Buffer input  = new Buffer();
+        Buffer output = new Buffer();
+        int chunk = 3 * SyntheticMp3.FRAME_SIZE + 100;
+        for ( int position = 0; position < data.length; position += chunk ) {
+            input.setData( Arrays.copyOfRange( data, position, Math.min( position + chunk, data.length ) ) );
+            input.setOffset( 0 );
+            input.setLength( ((byte[])input.getData()).length );
+            check( decoder.process( input, output ) == MP3.BUFFER_PROCESSED_OK, "sequential decode" );
+            pcm = append( pcm, output );
+        }
+        return pcm;
+    }
+
+    /**
+     * Two MP3BatchDecoder calls, split inside a frame
+     */
+    private static short[] batch( byte[] stream, ForkJoinPool pool ) {
+        MP3BatchDecoder decoder = new MP3BatchDecoder( pool );
+        decoder.setInputFormat( INPUT );
+        decoder.setOutputFormat( OUTPUT );
+
+        Buffer output = new Buffer();
+        int split = stream.length * 3 / 5 + 7;
+        int used = decoder.decode( stream, 0, split, output );
+        check( used < split, "incomplete frame left for the next call" );
+        decoder.decode( stream, used, stream.length - used, output );
+        return append( new short[ 0 ], output );
+    }
+
+    private static short[] append( short[] pcm, Buffer output ) {
+        int length = output.getLength();
+        if ( length == 0 ) return pcm;
+        short[] t = Arrays.copyOf( pcm, pcm.length + length );
+        System.arraycopy( output.getData(), output.getOffset(), t, pcm.length, length );
+        return t;
+    }
+
+    private static void check( boolean condition, String message ) {
+        if ( !condition ) throw new AssertionError( message );
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Java port of ffmpeg mp3 decoder.
+ * Copyright (c) 2003 Jonathan Hueber.
+ *
+ * Copyright (c) 2000, 2001 Fabrice Bellard.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * See Credits file and Readme for details
+ */
+package net.sourceforge.jffmpeg.codecs.audio.mpeg.mp3;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import net.sourceforge.jffmpeg.codecs.audio.mpeg.mp3.data.Table;
+
+/**
+ * Writes MPEG-1 layer 3 frames for tests: 128 kbit/s, 48 kHz, joint
+ * stereo with mid/side.  Every granule uses long blocks and Huffman
+ * table 1, with a random number of big values and count1 quadruples,
+ * so the size of the main data varies and the bit reservoir both fills
+ * and drains (main_data_begin reaches back over several frames).
+ */
+class SyntheticMp3 {
+    /** 128 kbit/s at 48 kHz, no padding */
+    static final int FRAME_SIZE = 384;
+
+    /** MPEG-1 layer 3 without CRC, 128 kbit/s, 48 kHz, joint stereo with mid/side, original */
+    private static final int HEADER = 0xfffb9464;
+
+    private static final int SIDE_INFO = 32;
+    private static final int PAYLOAD = FRAME_SIZE - 4 - SIDE_INFO;
+    private static final int MAX_MAIN_DATA_BEGIN = 511;
+
+    /* Table 1 for (x, y) = (0,0) (0,1) (1,0) (1,1) */
+    private static final int[] pairCodes = { 1, 1, 1, 0 };
+    private static final int[] pairSizes = { 1, 3, 2, 3 };
+
+    /* Count1 table A, table B is 15 - v in 4 bits */
+    private static final int[] quadCodes = { 1, 5, 4, 5, 6, 5, 4, 4, 7, 3, 6, 0, 7, 2, 3, 1 };
+    private static final int[] quadSizes = { 1, 4, 4, 5, 4, 6, 5, 6, 4, 5, 5, 6, 5, 6, 6, 6 };
+
+    private static final int[] slen1 = Table.getSlenTable1();
+    private static final int[] slen2 = Table.getSlenTable2();
+
+    private final Random random;
+
+    SyntheticMp3( long seed ) {
+        random = new Random( seed );
+    }
+
+    /**
+     * A stream of frames, one after another
+     */
+    byte[] stream( int frames ) {
+        int[][] sideInfo = new int[ frames ][];
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        for ( int f = 0; f < frames; f++ ) {
+            int slot = f * PAYLOAD;
+
+            /* Stuff if the reservoir holds more than main_data_begin can reach */
+            while ( payload.size() < slot - MAX_MAIN_DATA_BEGIN ) payload.write( 0 );
+            int mainDataBegin = slot - payload.size();
+
+            /* Main data must be complete by the end of this frame */
+            int room = slot + PAYLOAD - payload.size();
+            int maxPairs = random.nextInt( 200 );
+            Bits mainData;
+            int[] side;
+            do {
+                side = new int[ 3 + 4 * 10 ];
+                mainData = new Bits();
+                writeFrame( mainDataBegin, maxPairs, side, mainData );
+                maxPairs /= 2;
+            } while ( mainData.length() > room * 8 );
+            sideInfo[ f ] = side;
+            byte[] bytes = mainData.toByteArray();
+            payload.write( bytes, 0, bytes.length );
+        }
+        while ( payload.size() < frames * PAYLOAD ) payload.write( 0 );
+
+        byte[] data = payload.toByteArray();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for ( int f = 0; f < frames; f++ ) {
+            Bits header = new Bits();
+            header.put( HEADER, 32 );
+            int[] side = sideInfo[ f ];
+            header.put( side[ 0 ], 9 );                 /* main_data_begin */
+            header.put( 0, 3 );                         /* private_bits */
+            header.put( side[ 1 ], 4 );                 /* scfsi */
+            header.put( side[ 2 ], 4 );
+            for ( int i = 0; i < 4; i++ ) {
+                int g = 3 + i * 10;
+                header.put( side[ g ], 12 );            /* part2_3_length */
+                header.put( side[ g + 1 ], 9 );         /* big_values */
+                header.put( side[ g + 2 ], 8 );         /* global_gain */
+                header.put( side[ g + 3 ], 4 );         /* scalefac_compress */
+                header.put( 0, 1 );                     /* window_switching_flag */
+                header.put( 1, 5 );                     /* table_select */
+                header.put( 1, 5 );
+                header.put( 1, 5 );
+                header.put( side[ g + 4 ], 4 );         /* region0_count */
+                header.put( side[ g + 5 ], 3 );         /* region1_count */
+                header.put( 0, 1 );                     /* preflag */
+                header.put( side[ g + 6 ], 1 );         /* scalefac_scale */
+                header.put( side[ g + 7 ], 1 );         /* count1table_select */
+            }
+            byte[] bytes = header.toByteArray();
+            stream.write( bytes, 0, bytes.length );
+            stream.write( data, f * PAYLOAD, PAYLOAD );
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Side info values into side, main data of the two granules of both
+     * channels into mainData
+     */
+    private void writeFrame( int mainDataBegin, int maxPairs, int[] side, Bits mainData ) {
+        side[ 0 ] = mainDataBegin;
+        side[ 1 ] = random.nextInt( 16 );
+        side[ 2 ] = random.nextInt( 16 );
+        int[][] scaleFactors = new int[ 2 ][ 21 ];
+        for ( int granule = 0; granule < 2; granule++ ) {
+            for ( int channel = 0; channel < 2; channel++ ) {
+                int g = 3 + (granule * 2 + channel) * 10;
+                int start = mainData.length();
+
+                /* Scale factors, granule 1 reuses the groups selected by scfsi */
+                int compress = random.nextInt( 16 );
+                int j = 0;
+                for ( int i = 0; i < 4; i++ ) {
+                    int n = (i == 0) ? 6 : 5;
+                    boolean reuse = (granule == 1) && (side[ 1 + channel ] & (8 >> i)) != 0;
+                    int slen = (i < 2) ? slen1[ compress ] : slen2[ compress ];
+                    for ( int k = 0; k < n; k++, j++ ) {
+                        if ( reuse ) continue;
+                        scaleFactors[ channel ][ j ] = random.nextInt( 1 << slen );
+                        mainData.put( scaleFactors[ channel ][ j ], slen );
+                    }
+                }
+
+                /* Big values in table 1 */
+                int pairs = random.nextInt( maxPairs + 1 );
+                for ( int i = 0; i < pairs; i++ ) {
+                    int x = random.nextInt( 4 ) == 0 ? 1 : 0;
+                    int y = random.nextInt( 4 ) == 0 ? 1 : 0;
+                    int v = x * 2 + y;
+                    mainData.put( pairCodes[ v ], pairSizes[ v ] );
+                    if ( x != 0 ) mainData.put( random.nextInt( 2 ), 1 );
+                    if ( y != 0 ) mainData.put( random.nextInt( 2 ), 1 );
+                }
+
+                /* Count1 quadruples */
+                int table = random.nextInt( 2 );
+                int quads = random.nextInt( Math.min( 20, (572 - 2 * pairs) / 4 ) + 1 );
+                for ( int i = 0; i < quads; i++ ) {
+                    int v = random.nextInt( 16 );
+                    if ( table == 0 ) {
+                        mainData.put( quadCodes[ v ], quadSizes[ v ] );
+                    } else {
+                        mainData.put( 15 - v, 4 );
+                    }
+                    for ( int k = 0; k < 4; k++ ) {
+                        if ( (v & (8 >> k)) != 0 ) mainData.put( random.nextInt( 2 ), 1 );
+                    }
+                }
+
+                side[ g ]     = mainData.length() - start;
+                side[ g + 1 ] = pairs;
+                side[ g + 2 ] = 150 + random.nextInt( 40 );
+                side[ g + 3 ] = compress;
+                side[ g + 4 ] = random.nextInt( 16 );
+                side[ g + 5 ] = random.nextInt( 8 );
+                side[ g + 6 ] = random.nextInt( 2 );
+                side[ g + 7 ] = table;
+            }
+        }
+        mainData.align();
+    }
+
+    /**
+     * Bits written most significant first
+     */
+    private static class Bits {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+        private int bits;
+
+        void put( int value, int size ) {
+            for ( int i = size - 1; i >= 0; i-- ) {
+                current = (current << 1) | ((value >> i) & 1);
+                if ( ++count == 8 ) {
+                    bytes.write( current );
+                    current = 0;
+                    count = 0;
+                }
+            }
+            bits += size;
+        }
+
+        void align() {
+            while ( count != 0 ) put( 0, 1 );
+        }
+
+        int length() {
+            return bits;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
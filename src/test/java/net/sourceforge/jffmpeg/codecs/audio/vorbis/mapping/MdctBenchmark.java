@@ -0,0 +1,71 @@
+/*
+ * Java port of ogg demultiplexer.
+ * Copyright (c) 2004 Jonathan Hueber.
+ *
+ * License conditions are the same as OggVorbis.  See README.
+ * 1a39e335700bec46ae31a38e2156a898
+ */
+package net.sourceforge.jffmpeg.codecs.audio.vorbis.mapping;
+
+import java.util.Random;
+
+/**
+ * Time of the inverse MDCT with the scalar loops and with the Vector
+ * API for the usual Vorbis block sizes.  Needs --add-modules
+ * jdk.incubator.vector.
+ */
+public class MdctBenchmark {
+    private static final int SECONDS = 2;
+
+    public static void main( String[] args ) {
+        if ( !Mdct.vector ) {
+            throw new AssertionError( "Vector API not available, run with --add-modules jdk.incubator.vector" );
+        }
+        int[] sizes = new int[] { 256, 2048 };
+        for ( int i = 0; i < sizes.length; i++ ) {
+            Mdct mdct = new Mdct( sizes[i] );
+            float[][] blocks = blocks( sizes[i] );
+
+            /* warm up both */
+            time( mdct, blocks, false );
+            time( mdct, blocks, true );
+
+            double scalar = time( mdct, blocks, false );
+            double vector = time( mdct, blocks, true );
+            System.out.println( "n=" + sizes[i] + "  scalar " + (int)scalar + " ns  vector "
+                                + (int)vector + " ns  speed up " + Math.round( scalar / vector * 100 ) / 100. );
+        }
+    }
+
+    private static float[][] blocks( int n ) {
+        Random random = new Random( n );
+        float[][] blocks = new float[ 64 ][ n ];
+        for ( int b = 0; b < blocks.length; b++ ) {
+            for ( int i = 0; i < n / 2; i++ ) {
+                blocks[b][i] = random.nextFloat() - 0.5f;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Nanoseconds per transform
+     */
+    private static double time( Mdct mdct, float[][] blocks, boolean vector ) {
+        int n = blocks[0].length;
+        float[] work = new float[ n ];
+        long count = 0;
+        long start = System.nanoTime();
+        long end   = start + SECONDS * 1000000000L;
+        long now;
+        do {
+            for ( int b = 0; b < blocks.length; b++ ) {
+                System.arraycopy( blocks[b], 0, work, 0, n / 2 );
+                mdct.mdct_backward( work, work, vector );
+            }
+            count += blocks.length;
+            now = System.nanoTime();
+        } while ( now < end );
+        return (double)(now - start) / count;
+    }
+}
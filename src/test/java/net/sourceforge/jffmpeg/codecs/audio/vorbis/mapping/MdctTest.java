@@ -0,0 +1,75 @@
+/*
+ * Java port of ogg demultiplexer.
+ * Copyright (c) 2004 Jonathan Hueber.
+ *
+ * License conditions are the same as OggVorbis.  See README.
+ * 1a39e335700bec46ae31a38e2156a898
+ */
+package net.sourceforge.jffmpeg.codecs.audio.vorbis.mapping;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The Vector API transform, windowing and overlap-add give exactly the
+ * output of the scalar loops.  Needs --add-modules jdk.incubator.vector.
+ */
+public class MdctTest {
+    public static void main( String[] args ) {
+        if ( !Mdct.vector ) {
+            throw new AssertionError( "Vector API not available, run with --add-modules jdk.incubator.vector" );
+        }
+        Random random = new Random( 1 );
+
+        /* Every Vorbis block size */
+        for ( int n = 64; n <= 8192; n <<= 1 ) {
+            Mdct mdct = new Mdct( n );
+            for ( int run = 0; run < 20; run++ ) {
+                float[] scalar = new float[ n ];
+                for ( int i = 0; i < n / 2; i++ ) {
+                    scalar[i] = (random.nextFloat() - 0.5f) * (run + 1);
+                }
+                float[] vector = scalar.clone();
+                mdct.mdct_backward( scalar, scalar, false );
+                mdct.mdct_backward( vector, vector, true );
+                check( "mdct " + n, scalar, vector );
+            }
+        }
+
+        /* Odd offsets and lengths exercise the scalar tails */
+        for ( int length = 0; length < 100; length++ ) {
+            int offset = random.nextInt( 7 );
+            float[] window = random( random, length );
+            float[] scalar = random( random, offset + length + 3 );
+            float[] vector = scalar.clone();
+            for ( int i = 0; i < length; i++ ) {
+                scalar[offset + i] *= window[i];
+            }
+            VectorMdct.multiply( vector, offset, window, length );
+            check( "window " + length, scalar, vector );
+
+            int srcOffset = random.nextInt( 7 );
+            float[] src = random( random, srcOffset + length );
+            for ( int i = 0; i < length; i++ ) {
+                scalar[offset + i] += src[srcOffset + i];
+            }
+            VectorMdct.add( vector, offset, src, srcOffset, length );
+            check( "overlap " + length, scalar, vector );
+        }
+        System.out.println( "MdctTest: " + VectorMdct.getLength() + " lanes, identical" );
+    }
+
+    private static float[] random( Random random, int length ) {
+        float[] a = new float[ length ];
+        for ( int i = 0; i < length; i++ ) {
+            a[i] = random.nextFloat() * 2 - 1;
+        }
+        return a;
+    }
+
+    private static void check( String name, float[] scalar, float[] vector ) {
+        if ( !Arrays.equals( scalar, vector ) ) {
+            throw new AssertionError( name + ": vector output differs from scalar" );
+        }
+    }
+}